@@ -0,0 +1,393 @@
+package org.cis120;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * The {@code AdminServer} is a monitoring listener for operators, separate
+ * from the chat port. It accepts connections on the loopback interface only
+ * and answers one-line commands with one-line JSON objects:
+ *
+ * <pre>
+ * STATS                          counters, queue depth and waits,
+ *                                overload and connection count
+ * TOP CHANNELS MEMBERS|RATE [n]  the largest or busiest channels
+ * TOP USERS [n]                  the users sending the most commands
+ * CHANNEL name                   one channel's owner, members and rate
+ * DUMP file                      writes all statistics to a file
+ * HELP                           lists the commands
+ * </pre>
+ *
+ * Answers are built only from the {@link ServerStats} maintained by the
+ * connection workers and from the latest {@link ModelSnapshot}. The admin
+ * server never enqueues a {@code Task}, so however often it is polled it
+ * adds no work and no latency to the model thread. An "Admin sampler"
+ * thread refreshes the smoothed rates every {@link #SAMPLE_PERIOD_MILLIS}.
+ */
+final class AdminServer {
+
+    static final long SAMPLE_PERIOD_MILLIS = 5000;
+    static final int DEFAULT_TOP = 10;
+
+    private final ServerBackend backend;
+    private final int requestedPort;
+    private final Path dumpDirectory;
+
+    private volatile ServerSocket listener;
+    private volatile boolean running;
+
+    /**
+     * Constructs an {@code AdminServer}.
+     *
+     * @param backend       The server to monitor
+     * @param port          The port to listen on, or 0 for any free port
+     * @param dumpDirectory The only directory DUMP may write into
+     */
+    AdminServer(ServerBackend backend, int port, Path dumpDirectory) {
+        if (backend == null || dumpDirectory == null) {
+            throw new NullPointerException();
+        }
+        this.backend = backend;
+        this.requestedPort = port;
+        this.dumpDirectory = dumpDirectory;
+    }
+
+    /**
+     * Binds the admin port and starts the acceptor and sampler threads.
+     *
+     * @throws IOException if the port cannot be bound
+     */
+    void start() throws IOException {
+        running = true;
+        listener = new ServerSocket(requestedPort, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                try {
+                    serve(listener.accept());
+                } catch (IOException iox) {
+                    if (running) {
+                        iox.printStackTrace();
+                    }
+                }
+            }
+        }, "Admin acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Thread sampler = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(SAMPLE_PERIOD_MILLIS);
+                } catch (InterruptedException ix) {
+                    return;
+                }
+                sample();
+            }
+        }, "Admin sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /** @return the port this server accepts admin connections on */
+    int getLocalPort() {
+        ServerSocket current = listener;
+        return current == null ? -1 : current.getLocalPort();
+    }
+
+    /**
+     * Closes the admin port. Open admin connections end at their next
+     * command.
+     */
+    void stop() {
+        running = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException iox) {
+            iox.printStackTrace();
+        }
+    }
+
+    /**
+     * Refreshes the smoothed rates against the latest snapshot.
+     */
+    void sample() {
+        backend.getStats().sample(backend.getSnapshot(), System.nanoTime());
+    }
+
+    private void serve(Socket socket) {
+        Thread thread = new Thread(() -> {
+            try (
+                    Socket s = socket;
+                    BufferedReader in = new BufferedReader(new InputStreamReader(
+                            s.getInputStream(), StandardCharsets.UTF_8));
+                    Writer out = new BufferedWriter(new OutputStreamWriter(
+                            s.getOutputStream(), StandardCharsets.UTF_8))
+            ) {
+                String line;
+                while (running && (line = in.readLine()) != null) {
+                    out.write(handle(line));
+                    out.write('\n');
+                    out.flush();
+                }
+            } catch (IOException iox) {
+                // The operator went away
+            }
+        }, "Admin connection");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // ==========================================================================
+    // Commands
+    // ==========================================================================
+
+    /**
+     * Answers one admin command.
+     *
+     * @param line The command line
+     * @return The answer as a single-line JSON object
+     */
+    String handle(String line) {
+        String[] words = line.trim().split("\\s+");
+        try {
+            switch (words[0].toUpperCase(Locale.ROOT)) {
+                case "STATS":
+                    return stats();
+                case "TOP":
+                    return top(words);
+                case "CHANNEL":
+                    return channel(argument(words, 1));
+                case "DUMP":
+                    return dump(argument(words, 1));
+                case "HELP":
+                    return "{\"commands\":[\"STATS\",\"TOP CHANNELS MEMBERS|RATE [n]\","
+                            + "\"TOP USERS [n]\",\"CHANNEL name\",\"DUMP file\",\"HELP\"]}";
+                default:
+                    return error("Unknown command: " + words[0]);
+            }
+        } catch (IllegalArgumentException iax) {
+            return error(iax.getMessage());
+        } catch (IOException iox) {
+            return error("Dump failed: " + iox.getMessage());
+        }
+    }
+
+    private String stats() {
+        ServerStats stats = backend.getStats();
+        ModelSnapshot snapshot = backend.getSnapshot();
+        StringBuilder json = new StringBuilder(320)
+                .append("{\"connections\":").append(backend.getConnectionCount())
+                .append(",\"accepted\":").append(stats.getConnectionsAccepted())
+                .append(",\"refused\":").append(stats.getConnectionsRefused())
+                .append(",\"queueDepth\":").append(backend.getQueueDepth())
+                .append(",\"queueWaitMicros\":{");
+        for (FairQueue.Lane lane : FairQueue.Lane.values()) {
+            json.append(lane.ordinal() == 0 ? "\"" : ",\"")
+                    .append(lane.name().toLowerCase(Locale.ROOT))
+                    .append("\":{\"mean\":").append(backend.getQueueWaitMicros(lane))
+                    .append(",\"max\":").append(backend.getMaxQueueWaitMicros(lane))
+                    .append('}');
+        }
+        return json.append('}')
+                .append(",\"overloaded\":").append(backend.isOverloaded())
+                .append(",\"users\":").append(snapshot.getRegisteredUsers().size())
+                .append(",\"channels\":").append(snapshot.getChannels().size())
+                .append(",\"commands\":").append(stats.getCommands())
+                .append(",\"rejected\":").append(stats.getRejected())
+                .append(",\"snapshotVersion\":").append(snapshot.getVersion())
+                .append('}').toString();
+    }
+
+    private String top(String[] words) {
+        String what = argument(words, 1).toUpperCase(Locale.ROOT);
+        if (what.equals("USERS")) {
+            return topUsers(limit(words, 2));
+        }
+        if (what.equals("CHANNELS")) {
+            String order = argument(words, 2).toUpperCase(Locale.ROOT);
+            if (order.equals("MEMBERS")) {
+                return topChannelsByMembers(limit(words, 3));
+            }
+            if (order.equals("RATE")) {
+                return topChannelsByRate(limit(words, 3));
+            }
+            throw new IllegalArgumentException("Expected MEMBERS or RATE");
+        }
+        throw new IllegalArgumentException("Expected CHANNELS or USERS");
+    }
+
+    private String topChannelsByMembers(int limit) {
+        ModelSnapshot snapshot = backend.getSnapshot();
+        PriorityQueue<ModelSnapshot.ChannelView> best = new PriorityQueue<>(
+                Comparator.comparingInt(ModelSnapshot.ChannelView::getMemberCount));
+        snapshot.getChannelViews().forEach((name, view) -> {
+            best.add(view);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        });
+        List<String> names = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            names.add(best.poll().getName());
+        }
+        Collections.reverse(names);
+        return channelList(snapshot, names);
+    }
+
+    private String topChannelsByRate(int limit) {
+        ModelSnapshot snapshot = backend.getSnapshot();
+        List<String> names = new ArrayList<>();
+        for (String name : backend.getStats().topChannelsByRate(limit)) {
+            if (snapshot.getChannel(name) != null) {
+                names.add(name);
+            }
+        }
+        return channelList(snapshot, names);
+    }
+
+    private String channelList(ModelSnapshot snapshot, List<String> names) {
+        ServerStats stats = backend.getStats();
+        StringBuilder json = new StringBuilder("{\"channels\":[");
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            json.append(i == 0 ? "{\"name\":" : ",{\"name\":");
+            ChatEvent.appendString(json, name);
+            json.append(",\"members\":").append(snapshot.getChannel(name).getMemberCount())
+                    .append(",\"rate\":").append(rate(stats.getMessageRate(name)))
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private String topUsers(int limit) {
+        ServerStats stats = backend.getStats();
+        ModelSnapshot snapshot = backend.getSnapshot();
+        StringBuilder json = new StringBuilder("{\"users\":[");
+        boolean first = true;
+        for (int userId : stats.topUsersByRate(limit)) {
+            String nickname = snapshot.getNickname(userId);
+            if (nickname == null) {
+                continue;
+            }
+            json.append(first ? "{\"id\":" : ",{\"id\":").append(userId)
+                    .append(",\"nickname\":");
+            ChatEvent.appendString(json, nickname);
+            json.append(",\"rate\":").append(rate(stats.getCommandRate(userId))).append('}');
+            first = false;
+        }
+        return json.append("]}").toString();
+    }
+
+    private String channel(String name) {
+        ModelSnapshot.ChannelView view = backend.getSnapshot().getChannel(name);
+        if (view == null) {
+            throw new IllegalArgumentException("No such channel: " + name);
+        }
+        ServerStats stats = backend.getStats();
+        StringBuilder json = new StringBuilder("{\"name\":");
+        ChatEvent.appendString(json, name);
+        json.append(",\"owner\":");
+        ChatEvent.appendString(json, view.getOwner());
+        json.append(",\"private\":").append(view.isPrivate())
+                .append(",\"messages\":").append(stats.getMessageCount(name))
+                .append(",\"rate\":").append(rate(stats.getMessageRate(name)))
+                .append(",\"members\":[");
+        boolean first = true;
+        for (String member : view.getMembers()) {
+            if (!first) {
+                json.append(',');
+            }
+            ChatEvent.appendString(json, member);
+            first = false;
+        }
+        return json.append("]}").toString();
+    }
+
+    // ==========================================================================
+    // Dumps
+    // ==========================================================================
+
+    /**
+     * Writes the counters, every channel and the busiest users to a file in
+     * the dump directory. The file name may not leave that directory.
+     *
+     * @param fileName The name of the file to write
+     * @return The answer naming the file written
+     * @throws IOException if the file cannot be written
+     */
+    private String dump(String fileName) throws IOException {
+        if (fileName.contains("/") || fileName.contains("\\") || fileName.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid dump file name: " + fileName);
+        }
+        Path file = dumpDirectory.resolve(fileName);
+        dump(file);
+        StringBuilder json = new StringBuilder("{\"dumped\":");
+        ChatEvent.appendString(json, file.toString());
+        return json.append('}').toString();
+    }
+
+    /**
+     * Writes the counters, every channel and the busiest users to a file, one
+     * JSON object per line.
+     *
+     * @param file The file to write, replaced if it exists
+     * @throws IOException if the file cannot be written
+     */
+    void dump(Path file) throws IOException {
+        ModelSnapshot snapshot = backend.getSnapshot();
+        List<String> lines = new ArrayList<>();
+        lines.add("{\"time\":" + System.currentTimeMillis() + ",\"stats\":" + stats() + "}");
+        for (String name : new TreeSet<>(snapshot.getChannels())) {
+            lines.add(channel(name));
+        }
+        lines.add(topUsers(DEFAULT_TOP));
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, lines, StandardCharsets.UTF_8);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // ==========================================================================
+    // Helpers
+    // ==========================================================================
+
+    private static String argument(String[] words, int index) {
+        if (words.length <= index) {
+            throw new IllegalArgumentException("Missing argument");
+        }
+        return words[index];
+    }
+
+    private static int limit(String[] words, int index) {
+        if (words.length <= index) {
+            return DEFAULT_TOP;
+        }
+        try {
+            int limit = Integer.parseInt(words[index]);
+            if (limit > 0) {
+                return limit;
+            }
+        } catch (NumberFormatException nfx) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid count: " + words[index]);
+    }
+
+    private static String rate(double perSecond) {
+        return String.format(Locale.ROOT, "%.2f", perSecond);
+    }
+
+    private static String error(String message) {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        ChatEvent.appendString(json, message);
+        return json.append('}').toString();
+    }
+}
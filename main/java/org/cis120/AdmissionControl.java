@@ -0,0 +1,152 @@
+package org.cis120;
+
+/**
+ * {@code AdmissionControl} decides what new work the server takes on. It
+ * enforces two kinds of limit:
+ * <ul>
+ * <li>fixed limits on registered users and channels, past which new
+ * connections and {@code CREATE} commands are refused;</li>
+ * <li>overload, entered when the model thread falls behind: too many
+ * queued tasks, tasks waiting longer than the target latency, or too little
+ * free heap. While overloaded, new connections are refused and {@code MESG}
+ * commands are answered {@link ServerResponse#BUSY} without reaching the
+ * model.</li>
+ * </ul>
+ * The user and channel limits are first checked against the latest
+ * published snapshot, which turns most refused work away before it is
+ * queued, and then enforced exactly on the model thread.
+ * <p>
+ * Overload is judged by {@link #sample(int, long, int)}, called
+ * periodically off the model thread, so that it is noticed even when the
+ * model thread is stuck. The server recovers on its own once the queue is
+ * back under half its limit, the latency under the target, and the heap
+ * free. The checks made per connection and per command are a volatile read
+ * and a few comparisons.
+ */
+final class AdmissionControl {
+
+    private final int maxQueuedTasks;
+    private final int maxUsers;
+    private final int maxChannels;
+    private final int minHeapFreePercent;
+    private final long targetLatencyMicros;
+
+    private volatile boolean overloaded;
+
+    /**
+     * Constructs an {@code AdmissionControl}. A limit of 0 is no limit.
+     *
+     * @param maxQueuedTasks      The most tasks queued for the model thread
+     * @param maxUsers            The most registered users
+     * @param maxChannels         The most channels
+     * @param minHeapFreePercent  The least free heap, in percent of the
+     *                            maximum heap size
+     * @param targetLatencyMillis The longest tasks should wait in the queue
+     */
+    AdmissionControl(int maxQueuedTasks, int maxUsers, int maxChannels,
+            int minHeapFreePercent, long targetLatencyMillis) {
+        if (maxQueuedTasks < 0 || maxUsers < 0 || maxChannels < 0
+                || minHeapFreePercent < 0 || minHeapFreePercent > 100
+                || targetLatencyMillis < 0) {
+            throw new IllegalArgumentException("Invalid admission limits");
+        }
+        this.maxQueuedTasks = maxQueuedTasks;
+        this.maxUsers = maxUsers;
+        this.maxChannels = maxChannels;
+        this.minHeapFreePercent = minHeapFreePercent;
+        this.targetLatencyMicros = targetLatencyMillis * 1000;
+    }
+
+    /**
+     * @return an {@code AdmissionControl} without limits, which never
+     * refuses anything
+     */
+    static AdmissionControl unlimited() {
+        return new AdmissionControl(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return true if any overload limit is set, so that
+     * {@link #sample(int, long, int)} must be called
+     */
+    boolean isSampled() {
+        return maxQueuedTasks > 0 || minHeapFreePercent > 0 || targetLatencyMicros > 0;
+    }
+
+    /** @return the most registered users, or 0 for no limit */
+    int getMaxUsers() {
+        return maxUsers;
+    }
+
+    /** @return the most channels, or 0 for no limit */
+    int getMaxChannels() {
+        return maxChannels;
+    }
+
+    /** @return true if the server is shedding load */
+    boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * Checks a new connection against the limits. The user count may lag
+     * behind, so the model thread enforces the user limit again when it
+     * registers the user.
+     *
+     * @param users The number of registered users
+     * @return true if a new connection may be accepted
+     */
+    boolean admitsConnection(int users) {
+        return !overloaded && (maxUsers == 0 || users < maxUsers);
+    }
+
+    /**
+     * Checks a command against the limits. The channel count may lag
+     * behind, so the model enforces the channel limit again when it creates
+     * the channel.
+     *
+     * @param payload  A client command, without prefix
+     * @param channels The number of channels
+     * @return true if the command may be queued for the model thread
+     */
+    boolean admitsCommand(String payload, int channels) {
+        if (overloaded && payload.startsWith("MESG ")) {
+            return false;
+        }
+        return maxChannels == 0 || channels < maxChannels || !payload.startsWith("CREATE ");
+    }
+
+    /**
+     * Enters or leaves overload from the latest measurements.
+     *
+     * @param queued          The number of tasks queued
+     * @param waitMicros      The longest recent wait in the queue, in
+     *                        microseconds
+     * @param heapFreePercent The free heap, in percent of the maximum
+     * @return true if the server entered or left overload
+     */
+    boolean sample(int queued, long waitMicros, int heapFreePercent) {
+        boolean heapLow = minHeapFreePercent > 0 && heapFreePercent < minHeapFreePercent;
+        boolean late = targetLatencyMicros > 0 && waitMicros > targetLatencyMicros;
+        if (!overloaded) {
+            if (heapLow || late || (maxQueuedTasks > 0 && queued > maxQueuedTasks)) {
+                overloaded = true;
+                return true;
+            }
+        } else if (!heapLow && !late && (maxQueuedTasks == 0 || queued <= maxQueuedTasks / 2)) {
+            overloaded = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the free heap, counting memory not yet claimed from the
+     * operating system, in percent of the maximum heap size
+     */
+    static int heapFreePercent() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (int) (100 - used * 100 / runtime.maxMemory());
+    }
+}
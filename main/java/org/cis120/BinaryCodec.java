@@ -0,0 +1,299 @@
+package org.cis120;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact binary framing of the text protocol, negotiated with
+ * {@code PROTO BINARY}.
+ * <p>
+ * Each line is sent as a frame: a varint body length followed by the body.
+ * The body starts with a one-byte verb code (see {@link #VERBS}), a flags
+ * byte and a parameter count, followed by the optional {@code :prefix}
+ * nickname, the parameters, and the optional trailing payload.
+ * <p>
+ * Nicknames, channel names and other non-numeric parameters are interned:
+ * the first time the encoder sees a name it sends a {@code DEFINE} frame
+ * (verb code 0) binding it to a small integer id, and from then on refers to
+ * it by that id. Each direction of a connection has its own id table, so the
+ * codec is stateful and a fresh instance must be used per connection.
+ * <p>
+ * A token is written as a varint reference: 0 means a literal string
+ * follows, and any other value {@code r} refers to interned id {@code r - 1}.
+ * Strings are written as a varint byte length followed by UTF-8 bytes.
+ */
+final class BinaryCodec implements WireCodec {
+
+    static final String NAME = "BINARY";
+
+    /**
+     * Verb codes, indexed by code. Code 0 is reserved for {@code DEFINE}
+     * frames and {@link #LITERAL_VERB} for verbs not in this table, whose
+     * name is then sent as a literal string.
+     */
+    static final String[] VERBS = {
+        null, "CONNECT", "NICK", "CREATE", "JOIN", "MESG", "LEAVE", "INVITE",
+        "KICK", "QUIT", "NAMES", "ERROR", "SEARCH", "HIT", "ENDSEARCH", "PROTO",
+        "PING", "PONG"
+    };
+
+    private static final int DEFINE = 0;
+    private static final int LITERAL_VERB = 255;
+
+    private static final int FLAG_PREFIX = 1;
+    private static final int FLAG_PAYLOAD = 2;
+
+    /**
+     * The largest accepted frame body, to bound memory use on bad input.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    /**
+     * The largest number of names interned per direction. Later names are
+     * sent as literals.
+     */
+    static final int MAX_INTERNED = 4096;
+
+    private static final Map<String, Integer> VERB_CODES = new HashMap<>();
+
+    static {
+        for (int code = 1; code < VERBS.length; code++) {
+            VERB_CODES.put(VERBS[code], code);
+        }
+    }
+
+    // Encoder state: names this side has defined for the peer
+    private final Map<String, Integer> sentIds = new HashMap<>();
+
+    // Decoder state: names the peer has defined for this side
+    private final List<String> receivedNames = new ArrayList<>();
+
+    // Reused by the encoder to assemble frame bodies
+    private final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream body = new DataOutputStream(bodyBytes);
+
+    @Override
+    public String decode(InputStream in) throws IOException {
+        while (true) {
+            int length;
+            try {
+                length = readVarint(in);
+            } catch (EOFException eofx) {
+                return null;
+            }
+            if (length <= 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            byte[] frameBytes = in.readNBytes(length);
+            if (frameBytes.length < length) {
+                return null;
+            }
+            DataInputStream frame = new DataInputStream(new ByteArrayInputStream(frameBytes));
+            int verb = frame.readUnsignedByte();
+            if (verb == DEFINE) {
+                int id = readVarint(frame);
+                if (id != receivedNames.size()) {
+                    throw new IOException("Out of order DEFINE " + id);
+                }
+                receivedNames.add(readString(frame));
+            } else {
+                return decodeLine(verb, frame);
+            }
+        }
+    }
+
+    private String decodeLine(int verb, DataInputStream frame) throws IOException {
+        int flags = frame.readUnsignedByte();
+        int paramCount = frame.readUnsignedByte();
+
+        StringBuilder line = new StringBuilder();
+        if ((flags & FLAG_PREFIX) != 0) {
+            line.append(':').append(readToken(frame)).append(' ');
+        }
+        if (verb == LITERAL_VERB) {
+            line.append(readString(frame));
+        } else if (verb < VERBS.length) {
+            line.append(VERBS[verb]);
+        } else {
+            throw new IOException("Unknown verb code " + verb);
+        }
+        for (int i = 0; i < paramCount; i++) {
+            line.append(' ').append(readToken(frame));
+        }
+        if ((flags & FLAG_PAYLOAD) != 0) {
+            line.append(" :").append(readString(frame));
+        }
+        return line.toString();
+    }
+
+    @Override
+    public void encode(String line, OutputStream out) throws IOException {
+        // Split the line the same way CommandParser does
+        String prefix = null;
+        String payload = null;
+        List<String> tokens = new ArrayList<>();
+        String rest = line;
+        if (rest.startsWith(":")) {
+            int index = rest.indexOf(' ');
+            prefix = index < 0 ? rest.substring(1) : rest.substring(1, index);
+            rest = index < 0 ? "" : rest.substring(index + 1);
+        }
+        int payloadIndex = rest.startsWith(":") ? 0 : rest.indexOf(" :");
+        if (payloadIndex >= 0) {
+            payload = rest.substring(payloadIndex + (payloadIndex == 0 ? 1 : 2));
+            rest = rest.substring(0, payloadIndex);
+        }
+        for (String token : rest.split(" ")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        if (tokens.isEmpty() || tokens.size() > 256) {
+            throw new IOException("Cannot frame line: " + line);
+        }
+
+        String verbName = tokens.get(0);
+        List<String> params = tokens.subList(1, tokens.size());
+
+        // Define any new names before the frame that uses them
+        if (prefix != null) {
+            defineIfNew(prefix, out);
+        }
+        for (String param : params) {
+            defineIfNew(param, out);
+        }
+
+        bodyBytes.reset();
+        Integer verb = VERB_CODES.get(verbName);
+        body.writeByte(verb == null ? LITERAL_VERB : verb);
+        body.writeByte((prefix != null ? FLAG_PREFIX : 0) | (payload != null ? FLAG_PAYLOAD : 0));
+        body.writeByte(params.size());
+        if (prefix != null) {
+            writeToken(prefix, body);
+        }
+        if (verb == null) {
+            writeString(verbName, body);
+        }
+        for (String param : params) {
+            writeToken(param, body);
+        }
+        if (payload != null) {
+            writeString(payload, body);
+        }
+        writeFrame(out);
+    }
+
+    @Override
+    public boolean isStateless() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    // ==========================================================================
+    // Interning
+    // ==========================================================================
+
+    /**
+     * Numbers are short and rarely repeat, so they are never interned.
+     */
+    private static boolean isInternable(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (!Character.isDigit(c) && c != '-') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void defineIfNew(String name, OutputStream out) throws IOException {
+        if (!isInternable(name) || sentIds.containsKey(name)
+                || sentIds.size() >= MAX_INTERNED) {
+            return;
+        }
+        int id = sentIds.size();
+        sentIds.put(name, id);
+
+        bodyBytes.reset();
+        body.writeByte(DEFINE);
+        writeVarint(id, body);
+        writeString(name, body);
+        writeFrame(out);
+    }
+
+    private void writeToken(String token, DataOutputStream out) throws IOException {
+        Integer id = sentIds.get(token);
+        if (id == null) {
+            writeVarint(0, out);
+            writeString(token, out);
+        } else {
+            writeVarint(id + 1, out);
+        }
+    }
+
+    private String readToken(DataInputStream in) throws IOException {
+        int ref = readVarint(in);
+        if (ref == 0) {
+            return readString(in);
+        }
+        if (ref > receivedNames.size()) {
+            throw new IOException("Undefined name id " + (ref - 1));
+        }
+        return receivedNames.get(ref - 1);
+    }
+
+    // ==========================================================================
+    // Primitive encodings
+    // ==========================================================================
+
+    private void writeFrame(OutputStream out) throws IOException {
+        writeVarint(bodyBytes.size(), out);
+        bodyBytes.writeTo(out);
+    }
+
+    private static void writeString(String s, OutputStream out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length, out);
+        out.write(bytes);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        int length = readVarint(in);
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarint(int value, OutputStream out) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -79,11 +79,24 @@ public final class Broadcast {
      * @throws IllegalArgumentException if error value is {@code OKAY}
      */
     public static Broadcast error(Command command, ServerResponse error) {
+        return error(command.getSender(), error);
+    }
+
+    /**
+     * Creates a {@code Broadcast} for the case where a client's request,
+     * which is handled by the backend rather than parsed as a
+     * {@link Command}, fails.
+     *
+     * @param recipient The nickname of the client
+     * @param error     The {@link ServerResponse} that the request caused
+     * @return A {@code Broadcast} representing the response to send
+     * @throws IllegalArgumentException if error value is {@code OKAY}
+     */
+    static Broadcast error(String recipient, ServerResponse error) {
         if (error == ServerResponse.OKAY) {
             throw new IllegalArgumentException("Invalid error type");
         }
         Broadcast broadcast = new Broadcast();
-        String recipient = command.getSender();
         int errorCode = error.getCode();
         String response = String.format(":%s ERROR %d", recipient, errorCode);
         broadcast.addResponse(recipient, response);
@@ -105,6 +118,36 @@ public final class Broadcast {
         return broadcast;
     }
 
+    /**
+     * Creates a {@code Broadcast} welcoming several newly connected clients
+     * at once, each with its own {@code CONNECT} line.
+     *
+     * @param recipients The nicknames of the new clients
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast connected(Collection<String> recipients) {
+        Broadcast broadcast = new Broadcast();
+        for (String recipient : recipients) {
+            broadcast.addResponse(recipient, String.format(":%s CONNECT", recipient));
+        }
+        return broadcast;
+    }
+
+    /**
+     * Creates a {@code Broadcast} telling clients that the server is shutting
+     * down. Their connections are closed once it has been sent.
+     *
+     * @param recipients The nicknames of the connected clients
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast shutdown(Collection<String> recipients) {
+        Broadcast broadcast = new Broadcast();
+        for (String recipient : recipients) {
+            broadcast.addResponse(recipient, String.format(":%s SHUTDOWN", recipient));
+        }
+        return broadcast;
+    }
+
     /**
      * Creates a {@code Broadcast} for the case when a user disconnects from the
      * server and other
@@ -129,6 +172,33 @@ public final class Broadcast {
         return broadcast;
     }
 
+    /**
+     * Creates a {@code Broadcast} for the case when several users disconnect
+     * at once. Each recipient is sent one {@code QUIT} line per departed
+     * user it shared a channel with.
+     *
+     * @param departuresHeard The nicknames of the departed users each
+     *                        recipient should be told about, in order, by
+     *                        the recipient's nickname
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast disconnected(Map<String, List<String>> departuresHeard) {
+        Broadcast broadcast = new Broadcast();
+        // Every recipient of a departure gets the same line
+        Map<String, String> lines = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : departuresHeard.entrySet()) {
+            List<String> responses = new LinkedList<>();
+            for (String user : entry.getValue()) {
+                if (user.equals(entry.getKey())) {
+                    throw new IllegalArgumentException("Disconnected user in broadcast");
+                }
+                responses.add(lines.computeIfAbsent(user, u -> String.format(":%s QUIT", u)));
+            }
+            broadcast.responses.put(entry.getKey(), responses);
+        }
+        return broadcast;
+    }
+
     /**
      * A specialized method for creating a {@code Broadcast} in the event that a
      * user is added to a
@@ -148,24 +218,240 @@ public final class Broadcast {
      *                                  or {@link InviteCommand}
      */
     public static Broadcast names(Command command, Collection<String> recipients, String owner) {
+        return names(command, recipients, recipients, owner);
+    }
+
+    /**
+     * Like {@link #names(Command, Collection, String)}, but relays the
+     * command to only some of the channel's members, such as when the rest
+     * are told in a presence digest.
+     *
+     * @param command    The command issued by the client (Invite or Join)
+     * @param recipients The nicknames of the users to relay the command to
+     * @param members    The nicknames of all the channel's members
+     * @param owner      The nickname of the channel's owner
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast names(
+            Command command, Collection<String> recipients, Collection<String> members,
+            String owner
+    ) {
         // Relay JOIN or INVITE normally
         Broadcast broadcast = Broadcast.okay(command, recipients);
 
         // Also relay NAMES to user who joins channel
-        String channelName, userToAdd;
+        String userToAdd = userToAdd(command);
+        broadcast.addResponse(userToAdd,
+                namesResponse(userToAdd, channelOf(command), owner, members));
+        return broadcast;
+    }
+
+    /**
+     * Like {@link #names(Command, Collection, String)}, but for a channel too
+     * large to list in one line: the user added is sent the first page of
+     * the channel's members, and an {@code ENDNAMES} line with the cursor for
+     * the next, as {@link #namesPage(Command, String, String, Roster.Page)}
+     * does.
+     *
+     * @param command    The command issued by the client (Invite or Join)
+     * @param recipients The nicknames of the users to relay the command to
+     * @param owner      The nickname of the channel's owner
+     * @param page       The first page of the channel's members
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast names(
+            Command command, Collection<String> recipients, String owner, Roster.Page page
+    ) {
+        Broadcast broadcast = Broadcast.okay(command, recipients);
+        broadcast.addNamesPage(userToAdd(command), channelOf(command), owner, page);
+        return broadcast;
+    }
+
+    /**
+     * Creates a {@code Broadcast} carrying one page of a channel's members:
+     * a {@code NAMES} line, marking the owner with {@code @} if they are on
+     * the page, followed by
+     * {@code :<nickname> ENDNAMES <channel> <version> <cursor>}. The cursor
+     * asks for the next page with {@code NAMES <channel> <cursor>}, and is
+     * -1 on the last page. The version can later be brought up to date with
+     * {@code ROSTER <channel> <version>}.
+     *
+     * @param command     The {@link NamesCommand} or {@link RosterCommand}
+     *                    asking for the page
+     * @param channelName The channel
+     * @param owner       The nickname of the channel's owner
+     * @param page        The page
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast namesPage(
+            Command command, String channelName, String owner, Roster.Page page
+    ) {
+        Broadcast broadcast = new Broadcast();
+        broadcast.addNamesPage(command.getSender(), channelName, owner, page);
+        return broadcast;
+    }
+
+    /**
+     * Creates a {@code Broadcast} bringing a client's copy of a channel's
+     * members up to date:
+     * {@code :<nickname> ROSTER <channel> <version> :+<joined> -<left> ...}.
+     *
+     * @param command The command asking for the changes
+     * @param version The channel's current roster version
+     * @param changes The changes since the client's version, possibly none
+     * @return A {@code Broadcast} representing the response to send
+     */
+    static Broadcast rosterChanges(RosterCommand command, long version, String changes) {
+        Broadcast broadcast = new Broadcast();
+        broadcast.addResponse(command.getSender(), String.format(":%s ROSTER %s %d :%s",
+                command.getSender(), command.getChannel(), version, changes));
+        return broadcast;
+    }
+
+    private void addNamesPage(
+            String recipient, String channelName, String owner, Roster.Page page
+    ) {
+        StringBuilder payload = new StringBuilder();
+        for (String nick : page.getNicknames()) {
+            if (payload.length() > 0) {
+                payload.append(' ');
+            }
+            if (nick.equals(owner)) {
+                payload.append('@');
+            }
+            payload.append(nick);
+        }
+        addResponse(recipient, String.format(":%s NAMES %s :%s", recipient, channelName, payload));
+        String next = page.getNext() == null ? "-1" : page.getNext();
+        addResponse(recipient, String.format(":%s ENDNAMES %s %d %s",
+                recipient, channelName, page.getVersion(), next));
+    }
+
+    private static String channelOf(Command command) {
         if (command instanceof JoinCommand joinCommand) {
-            channelName = joinCommand.getChannel();
-            userToAdd = joinCommand.getSender();
+            return joinCommand.getChannel();
         } else if (command instanceof InviteCommand inviteCommand) {
-            channelName = inviteCommand.getChannel();
-            userToAdd = inviteCommand.getUserToInvite();
-        } else {
-            throw new IllegalArgumentException("Invalid command type");
+            return inviteCommand.getChannel();
+        }
+        throw new IllegalArgumentException("Invalid command type");
+    }
+
+    private static String userToAdd(Command command) {
+        if (command instanceof JoinCommand joinCommand) {
+            return joinCommand.getSender();
+        } else if (command instanceof InviteCommand inviteCommand) {
+            return inviteCommand.getUserToInvite();
+        }
+        throw new IllegalArgumentException("Invalid command type");
+    }
+
+    /**
+     * Formats the {@code NAMES} line listing a channel's members.
+     *
+     * @param recipient   The nickname of the client the line is for
+     * @param channelName The channel
+     * @param owner       The channel owner's nickname
+     * @param members     The nicknames of the channel's members, including
+     *                    the owner
+     * @return The line
+     */
+    static String namesResponse(
+            String recipient, String channelName, String owner, Collection<String> members
+    ) {
+        return String.format(":%s NAMES %s :%s",
+                recipient, channelName, createNamesPayload(owner, members));
+    }
+
+    /**
+     * Creates a {@code Broadcast} giving a client that opened a session its
+     * resume token, and its place in each of its channels.
+     *
+     * @param recipient The client's nickname
+     * @param token     The resume token
+     * @param positions {@code channel:seq} for each of the client's channels
+     * @return A {@code Broadcast} representing the response to send
+     */
+    static Broadcast sessionOpened(String recipient, String token, Collection<String> positions) {
+        Broadcast broadcast = new Broadcast();
+        StringBuilder response = new StringBuilder(":" + recipient + " SESSION " + token);
+        for (String position : positions) {
+            response.append(' ').append(position);
+        }
+        broadcast.addResponse(recipient, response.toString());
+        return broadcast;
+    }
+
+    /**
+     * Formats the {@code PRESENCE} line summing up a channel's membership
+     * changes over a window.
+     *
+     * @param recipient   The nickname of the client the line is for
+     * @param channelName The channel
+     * @param changes     The changes, such as {@code +alice -bob}
+     * @return The line
+     */
+    static String presenceResponse(String recipient, String channelName, String changes) {
+        return String.format(":%s PRESENCE %s :%s", recipient, channelName, changes);
+    }
+
+    /**
+     * Creates a {@code Broadcast} carrying presence digests, formatted by
+     * {@link #presenceResponse(String, String, String)}.
+     *
+     * @param lines The lines for each recipient, by nickname
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast presence(Map<String, List<String>> lines) {
+        Broadcast broadcast = new Broadcast();
+        for (Map.Entry<String, List<String>> entry : lines.entrySet()) {
+            broadcast.responses.put(entry.getKey(), new LinkedList<>(entry.getValue()));
         }
-        String namesPayload = createNamesPayload(owner, recipients);
-        String namesResponse = String
-                .format(":%s NAMES %s :%s", userToAdd, channelName, namesPayload);
-        broadcast.addResponse(userToAdd, namesResponse);
+        return broadcast;
+    }
+
+    /**
+     * Creates a {@code Broadcast} telling a client that its session was
+     * resumed, followed by the lines it missed. Unlike other broadcasts,
+     * repeated lines are all sent.
+     *
+     * @param recipient The client's nickname, as before it disconnected
+     * @param replayed  The missed lines, in order
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast resumed(String recipient, List<String> replayed) {
+        Broadcast broadcast = new Broadcast();
+        List<String> lines = new LinkedList<>();
+        lines.add(String.format(":%s RESUMED", recipient));
+        lines.addAll(replayed);
+        broadcast.responses.put(recipient, lines);
+        return broadcast;
+    }
+
+    /**
+     * Creates a {@code Broadcast} carrying one page of results for a
+     * {@link SearchCommand}. Each hit is sent to the searching user as its
+     * own {@code HIT} line, followed by an {@code ENDSEARCH} line holding the
+     * cursor for the next page, which is the sequence number of the oldest
+     * hit sent, or -1 if there are no more results.
+     *
+     * @param command The search command issued by the client
+     * @param page    The page of hits to send
+     * @return A {@code Broadcast} representing the responses to send
+     */
+    static Broadcast searchResults(SearchCommand command, MessageIndex.SearchPage page) {
+        Broadcast broadcast = new Broadcast();
+        String recipient = command.getSender();
+        String channelName = command.getChannel();
+        for (MessageIndex.Doc hit : page.getHits()) {
+            String response = String.format(
+                    ":%s HIT %s %d %d %s :%s", recipient, channelName,
+                    hit.getSeq(), hit.getTime(), hit.getSender(), hit.getMessage()
+            );
+            broadcast.addResponse(recipient, response);
+        }
+        String end = String.format(
+                ":%s ENDSEARCH %s %d", recipient, channelName, page.getCursor());
+        broadcast.addResponse(recipient, end);
         return broadcast;
     }
 
@@ -185,8 +471,8 @@ public final class Broadcast {
      *         delivered by the
      *         {@link ServerBackend}
      */
-    public Map<Integer, List<String>> getResponses(ServerModel model) {
-        Map<Integer, List<String>> userIdResponses = new TreeMap<>();
+    IntMap<List<String>> getResponses(ServerModel model) {
+        IntMap<List<String>> userIdResponses = new IntMap<>();
         for (Map.Entry<String, List<String>> entry : responses.entrySet()) {
             int userId = model.getUserId(entry.getKey());
             userIdResponses.put(userId, entry.getValue());
@@ -194,6 +480,17 @@ public final class Broadcast {
         return userIdResponses;
     }
 
+    /**
+     * Lists the responses to one recipient. Used for a broadcast answered
+     * off the model thread, which may not map nicknames to user IDs.
+     *
+     * @param recipient The recipient's nickname
+     * @return the responses to send it, in order
+     */
+    List<String> getResponses(String recipient) {
+        return responses.getOrDefault(recipient, Collections.emptyList());
+    }
+
     // ==========================================================================
     // Private utility methods
     // ==========================================================================
@@ -1,36 +1,55 @@
 package org.cis120;
 
-import java.util.TreeSet;
-
 /**
  * The {@code Channel} is the class responsible for storing the
  * information about the channel, including its users, owner,
  * name and privacy status.
+ * <p>
+ * Users are identified by their user IDs only; nicknames are looked up in
+ * the {@link ServerModel} when a response is built, so a nickname change
+ * does not touch any channel. The IDs are kept in a {@link MemberSet}, which
+ * switches to a compressed bitmap as the channel grows large.
  */
 public class Channel implements Comparable<Channel> {
 
-    private TreeSet<User> usersInChannel;
-    private String owner;
-    private String channelName;
-    private boolean isPrivate;
+    private final int channelId;
+    private final String channelName;
+    private final int ownerId;
+    private final boolean isPrivate;
+    private final MemberSet members;
 
     /**
-     * Constructs a {@code Channel}.
+     * Constructs a {@code Channel} with no members.
+     *
+     * @param channelId   The channel's ID, unique within its model
+     * @param channelName The channel's name
+     * @param ownerId     The user ID of the owner
+     * @param isPrivate   true if the channel is invite-only
      */
-    public Channel(String channelName, String owner, boolean isPrivate) {
-        usersInChannel = new TreeSet<User>();
+    public Channel(int channelId, String channelName, int ownerId, boolean isPrivate) {
+        this.channelId = channelId;
         this.channelName = channelName;
-        this.owner = owner;
+        this.ownerId = ownerId;
         this.isPrivate = isPrivate;
+        members = new MemberSet();
+    }
+
+    /**
+     * Gets the ID of the channel.
+     *
+     * @return channelId, the ID of the channel.
+     */
+    public int getChannelId() {
+        return channelId;
     }
 
     /**
-     * Gets the nickname of the current owner of the channel.
+     * Gets the user ID of the owner of the channel.
      *
-     * @return owner, the current owner of the channel.
+     * @return ownerId, the user ID of the owner.
      */
-    public String getChannelOwner() {
-        return owner;
+    public int getOwnerId() {
+        return ownerId;
     }
 
     /**
@@ -52,38 +71,47 @@ public class Channel implements Comparable<Channel> {
     }
 
     /**
-     * Gets a collection of strings that are the nicknames
-     * of the users in the channel.
+     * Gets the user IDs of the members. The returned set must not be
+     * modified.
      *
-     * @return TreeSet<String>, the nicknames of the users in
-     * the channel.
+     * @return MemberSet, the user IDs of the users in the channel.
      */
-    public TreeSet<String> getUserNicknames() {
-        TreeSet<String> names = new TreeSet<>();
-        for (User currUser : usersInChannel) {
-            names.add(currUser.getNickname());
-        }
-        return names;
+    MemberSet getMembers() {
+        return members;
     }
+
+    /**
+     * Checks whether a user is in the channel.
+     *
+     * @param userId the user ID to look for.
+     * @return true if the user is a member.
+     */
+    public boolean hasMember(int userId) {
+        return members.contains(userId);
+    }
+
     /**
      * Removes an argued user from the channel.
      *
-     * @param name is the name of the user that has to be removed
+     * @param userId is the ID of the user that has to be removed.
+     * @return true if the user was a member.
      */
-    public void removeUser(String name) {
-        usersInChannel.removeIf(currUser -> currUser.getNickname().equals(name));
+    public boolean removeMember(int userId) {
+        return members.remove(userId);
     }
 
     /**
-     * Adds an argued user t0 the channel.
+     * Adds an argued user to the channel.
      *
-     * @param name is the name of the user that has to be added.
+     * @param userId is the ID of the user that has to be added.
+     * @return true if the user was not a member yet.
      */
-    public void addUser(String name, Integer theirID) {
-        usersInChannel.add(new User(theirID, name));
+    public boolean addMember(int userId) {
+        return members.add(userId);
     }
+
     /**
-     * Compares the channel name. This method is created to implement the
+     * Compares the channel ID. This method is created to implement the
      * Comparable interface.
      *
      * @param channel Channel object
@@ -91,10 +119,6 @@ public class Channel implements Comparable<Channel> {
      */
     @Override
     public int compareTo(Channel channel) {
-        if (getChannelName().equals(channel.getChannelName())) {
-            return 0;
-        } else {
-            return -1;
-        }
+        return Integer.compare(channelId, channel.channelId);
     }
 }
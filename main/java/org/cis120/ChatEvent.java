@@ -0,0 +1,116 @@
+package org.cis120;
+
+/**
+ * A {@code ChatEvent} records one change to the chat state, as published to
+ * other services through an {@link EventStream}. Events are immutable.
+ */
+final class ChatEvent {
+
+    /**
+     * The kinds of event the {@link ServerModel} emits.
+     */
+    enum Type {
+        /** A message was relayed to a channel; carries the message. */
+        MESSAGE_RELAYED,
+        /** A user joined a channel, by {@code JOIN} or by invitation. */
+        USER_JOINED,
+        /** A user left a channel, by {@code LEAVE}, kick or disconnecting. */
+        USER_LEFT,
+        /** A channel was created; the user is its owner. */
+        CHANNEL_CREATED,
+        /** A channel was destroyed because its owner left it. */
+        CHANNEL_DESTROYED
+    }
+
+    private final long sequence;
+    private final long time;
+    private final Type type;
+    private final String channel;
+    private final String nickname;
+    private final String message;
+
+    /**
+     * Constructs a {@code ChatEvent}.
+     *
+     * @param sequence The event's position in the model's event order
+     * @param time     When the event happened, in milliseconds since the epoch
+     * @param type     What happened
+     * @param channel  The channel concerned
+     * @param nickname The user concerned
+     * @param message  The relayed message, or null for other types
+     */
+    ChatEvent(long sequence, long time, Type type, String channel, String nickname,
+              String message) {
+        this.sequence = sequence;
+        this.time = time;
+        this.type = type;
+        this.channel = channel;
+        this.nickname = nickname;
+        this.message = message;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getTime() {
+        return time;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    String getChannel() {
+        return channel;
+    }
+
+    String getNickname() {
+        return nickname;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    /**
+     * Formats the event as a single-line JSON object.
+     *
+     * @return The event in JSON form
+     */
+    String toJson() {
+        StringBuilder json = new StringBuilder(96)
+                .append("{\"seq\":").append(sequence)
+                .append(",\"time\":").append(time)
+                .append(",\"type\":\"").append(type).append('"')
+                .append(",\"channel\":");
+        appendString(json, channel);
+        json.append(",\"user\":");
+        appendString(json, nickname);
+        if (message != null) {
+            json.append(",\"message\":");
+            appendString(json, message);
+        }
+        return json.append('}').toString();
+    }
+
+    static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
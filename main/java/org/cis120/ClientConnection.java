@@ -0,0 +1,334 @@
+package org.cis120;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@code ClientConnection} wraps the socket of a connected client together
+ * with the {@link WireCodec} currently used to talk to it.
+ * <p>
+ * Lines are read by the connection's {@code ConnectionWorker} thread only.
+ * Lines may be sent from any thread; sends are serialized by a write lock.
+ * The time of the last received line is recorded for the
+ * {@link HeartbeatMonitor}.
+ * <p>
+ * The codec is negotiated by the client: sending the text line
+ * {@code PROTO <name>} switches the connection to the named codec. The server
+ * acknowledges with {@code PROTO <name>} in the old codec, and every line
+ * after that is encoded with the new one in both directions. A connection
+ * may switch codecs at most {@link #MAX_NEGOTIATIONS} times; later
+ * {@code PROTO} lines are treated as commands, so that the rate limiter
+ * counts them.
+ * <p>
+ * After a hot restart, a client still connected to the old process reaches
+ * this one through a Unix domain socket channel instead of a TCP socket; see
+ * {@link HotRestart}. The old process keeps the client's codec, so such a
+ * connection always uses the text protocol.
+ */
+final class ClientConnection {
+
+    /**
+     * The most times a client may switch codecs.
+     */
+    static final int MAX_NEGOTIATIONS = 4;
+
+    // Changes only when the client resumes an earlier session
+    private volatile int userId;
+    private final Socket socket;
+    private final SocketChannel channel;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ReentrantLock writeLock;
+    private volatile long lastActivity;
+
+    // The reader and writer each switch codecs at their own point in the
+    // stream, so they are tracked separately.
+    private WireCodec reader;
+    private WireCodec writer;
+    // Reader thread only
+    private int negotiations;
+
+    /**
+     * Constructs a {@code ClientConnection} using the text protocol.
+     *
+     * @param userId The backend-generated ID of the client
+     * @param socket The client's socket
+     * @throws IOException if the socket's streams cannot be opened
+     */
+    ClientConnection(int userId, Socket socket) throws IOException {
+        this.userId = userId;
+        this.socket = socket;
+        this.channel = null;
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        writeLock = new ReentrantLock();
+        lastActivity = System.nanoTime();
+        reader = new TextCodec();
+        writer = reader;
+    }
+
+    /**
+     * Constructs a {@code ClientConnection} for a client relayed by the
+     * process this one took over from, using the text protocol.
+     *
+     * @param userId  The ID the client was given by the old process
+     * @param channel The blocking relay channel
+     */
+    ClientConnection(int userId, SocketChannel channel) {
+        this.userId = userId;
+        this.socket = null;
+        this.channel = channel;
+        in = new BufferedInputStream(HotRestart.inputStream(channel));
+        out = new BufferedOutputStream(HotRestart.outputStream(channel));
+        writeLock = new ReentrantLock();
+        lastActivity = System.nanoTime();
+        reader = new TextCodec();
+        writer = reader;
+    }
+
+    /** @return the backend-generated ID of the client */
+    int getUserId() {
+        return userId;
+    }
+
+    /**
+     * Makes this the connection of an earlier user, whose session the
+     * client has resumed.
+     *
+     * @param userId The resumed user's ID
+     */
+    void rebind(int userId) {
+        this.userId = userId;
+    }
+
+    /** @return the client's socket, or null for a relayed client */
+    Socket getSocket() {
+        return socket;
+    }
+
+    /** @return true if the connection has been closed on this side */
+    boolean isClosed() {
+        return socket != null ? socket.isClosed() : !channel.isOpen();
+    }
+
+    /**
+     * Reads the next line from the client. Must only be called from the
+     * connection's reader thread.
+     *
+     * @return The line in text form, or null if the client closed the
+     * connection
+     * @throws IOException if reading fails
+     */
+    String receive() throws IOException {
+        String line = reader.decode(in);
+        if (line != null) {
+            lastActivity = System.nanoTime();
+        }
+        return line;
+    }
+
+    /**
+     * @return the time the last line was received, or the connection was
+     * opened, from {@link System#nanoTime()}
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Sends a line to the client and flushes it.
+     *
+     * @param line The line in text form
+     * @throws IOException if writing fails
+     */
+    void send(String line) throws IOException {
+        writeLock.lock();
+        try {
+            writer.encode(line, out);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a line to the client unless another thread is currently sending
+     * to it. Never blocks waiting for the write lock, though the write itself
+     * may block.
+     *
+     * @param line The line in text form
+     * @return true if the line was sent, false if the connection was busy or
+     * the write failed
+     */
+    boolean trySend(String line) {
+        if (!writeLock.tryLock()) {
+            return false;
+        }
+        try {
+            writer.encode(line, out);
+            out.flush();
+            return true;
+        } catch (IOException iox) {
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a line to the client and flushes it, reusing the encoded bytes
+     * from {@code shared} if another connection with the same stateless codec
+     * has already encoded the line. Newly encoded bytes of a stateless codec
+     * are added to {@code shared}.
+     *
+     * @param line   The line in text form
+     * @param shared Encoded lines keyed by codec name and line, shared by the
+     *               connections receiving the same broadcast
+     * @throws IOException if writing fails
+     */
+    void send(String line, Map<String, byte[]> shared) throws IOException {
+        writeLock.lock();
+        try {
+            writeShared(line, shared);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends several lines to the client, as {@link #send(String, Map)} does,
+     * but flushes once after the last of them.
+     *
+     * @param lines  The lines in text form
+     * @param shared Encoded lines keyed by codec name and line
+     * @throws IOException if writing fails
+     */
+    void send(List<String> lines, Map<String, byte[]> shared) throws IOException {
+        writeLock.lock();
+        try {
+            for (String line : lines) {
+                writeShared(line, shared);
+            }
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeShared(String line, Map<String, byte[]> shared) throws IOException {
+        if (!writer.isStateless()) {
+            writer.encode(line, out);
+            return;
+        }
+        String key = writer.getName() + ' ' + line;
+        byte[] encoded = shared.get(key);
+        if (encoded == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(line.length() + 8);
+            writer.encode(line, bytes);
+            encoded = bytes.toByteArray();
+            shared.put(key, encoded);
+        }
+        out.write(encoded);
+    }
+
+    /** @return the codec currently used to send lines to the client */
+    WireCodec getWriter() {
+        writeLock.lock();
+        try {
+            return writer;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Handles a {@code PROTO} negotiation line from the client. Must only be
+     * called from the connection's reader thread.
+     *
+     * @param line A line received from the client
+     * @return true if the line was a {@code PROTO} request and has been
+     * handled, false if it should be processed as a command, as it is once
+     * the client has switched codecs {@link #MAX_NEGOTIATIONS} times
+     * @throws IOException if the acknowledgement cannot be sent
+     */
+    boolean negotiate(String line) throws IOException {
+        if (!line.startsWith("PROTO ") || negotiations >= MAX_NEGOTIATIONS) {
+            return false;
+        }
+        WireCodec requested = createCodec(line.substring("PROTO ".length()).trim());
+        if (requested == null) {
+            return false;
+        }
+        writeLock.lock();
+        try {
+            writer.encode("PROTO " + requested.getName(), out);
+            out.flush();
+            writer = requested;
+        } finally {
+            writeLock.unlock();
+        }
+        reader = requested;
+        negotiations++;
+        return true;
+    }
+
+    /**
+     * Creates a fresh codec by name, or returns null if the name is unknown.
+     */
+    static WireCodec createCodec(String name) {
+        switch (name) {
+            case TextCodec.NAME:
+                return new TextCodec();
+            case BinaryCodec.NAME:
+                return new BinaryCodec();
+            case DeflateCodec.NAME:
+                return new DeflateCodec();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Flushes what has been sent and half-closes the socket, so that the
+     * client reads every line before the end of the stream. Lines can still
+     * be received until the client closes its side.
+     *
+     * @throws IOException if flushing or shutting down output fails
+     */
+    void closeOutput() throws IOException {
+        writeLock.lock();
+        try {
+            out.flush();
+            if (socket != null) {
+                socket.shutdownOutput();
+            } else {
+                channel.shutdownOutput();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the client's socket.
+     *
+     * @throws IOException if closing fails
+     */
+    void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        } else {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.cis120;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Starts one node of a server cluster without a UI, so that several nodes
+ * can run as separate processes on one machine:
+ *
+ * <pre>
+ * java org.cis120.ClusterMain 0 21212 31212
+ * java org.cis120.ClusterMain 1 21213 31213 0=localhost:31212
+ * java org.cis120.ClusterMain 2 21214 31214 0=localhost:31212 1=localhost:31213
+ * </pre>
+ *
+ * The arguments are the node number, the client port, the cluster port, and
+ * the cluster address of every node already running. Nodes accept cluster
+ * links on the loopback interface only. Stopping the process with an
+ * interrupt hands the node's channels to the remaining nodes.
+ */
+public final class ClusterMain {
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.err.println(
+                    "Usage: ClusterMain <node> <clientPort> <clusterPort> [<node>=<host>:<port> ...]"
+            );
+            System.exit(2);
+        }
+        int nodeNumber = Integer.parseInt(args[0]);
+        int clientPort = Integer.parseInt(args[1]);
+        int clusterPort = Integer.parseInt(args[2]);
+        Map<Integer, InetSocketAddress> seeds = new HashMap<>();
+        for (int i = 3; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            int colon = args[i].lastIndexOf(':');
+            seeds.put(
+                    Integer.parseInt(args[i].substring(0, equals)),
+                    new InetSocketAddress(
+                            args[i].substring(equals + 1, colon),
+                            Integer.parseInt(args[i].substring(colon + 1))
+                    )
+            );
+        }
+
+        final ServerBackend server = new ServerBackend(
+                new ServerModel(), RateLimiter.defaults(), HeartbeatMonitor.defaults(),
+                clientPort
+        );
+        final ClusterNode cluster = new ClusterNode(nodeNumber, clusterPort, seeds);
+        server.joinCluster(cluster);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                cluster.leave();
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+            server.stop();
+        }, "Cluster shutdown"));
+
+        Thread acceptor = new Thread(server, "Connection acceptor");
+        acceptor.start();
+        acceptor.join();
+    }
+
+    // Prevents the instantiation of ClusterMain objects
+    private ClusterMain() {
+    }
+}
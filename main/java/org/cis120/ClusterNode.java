@@ -0,0 +1,835 @@
+package org.cis120;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code ClusterNode} lets several {@link ServerBackend} processes share
+ * one user and channel namespace, so clients can connect to any of them.
+ * <p>
+ * Channels are partitioned between nodes by a {@link HashRing}. A
+ * channel-scoped command (CREATE, JOIN, MESG, LEAVE, INVITE, KICK, SEARCH,
+ * NAMES, ROSTER) from a local client is forwarded to the node owning the channel, which
+ * runs it against its own {@link ServerModel} and relays the resulting
+ * responses to the recipients' home nodes through a {@link FanoutTree}, so
+ * a line for a large channel crosses each link at most once. Routing happens on the model
+ * thread, so a client's commands reach each node in the order they were
+ * sent.
+ * <p>
+ * Users live on the node they connected to. Every node keeps a replica of
+ * all users, so any model can resolve nicknames. User IDs encode the home
+ * node ({@code id % MAX_NODES}), and each node generates default nicknames
+ * from its own disjoint set. A nickname change is first reserved with the
+ * node owning the new nickname on the ring. The home node then fans the
+ * change out: every other node applies it to its channels and reports back
+ * the users it affected, and the home node sends each of them the
+ * {@code NICK} line exactly once. Disconnections work the same way with
+ * {@code QUIT}.
+ * <p>
+ * Nodes talk over persistent TCP links using a line protocol:
+ * <pre>
+ * HELLO node               handshake, sent by both ends
+ * USER id nick             a user connected to the sender
+ * GONE event id            a user of the sender disconnected
+ * RENAME event id nick     a user of the sender changed nickname
+ * RECIPIENTS event id...   users affected by a GONE or RENAME
+ * FWD hops id payload      a command for a channel owned by the receiver
+ * FANOUT frame             a response line for users of the receiver and
+ *                          the nodes below it in the {@link FanoutTree}
+ * RESERVE req id nick      reserve a nickname owned by the receiver
+ * RESERVED req OK|TAKEN    the answer to a RESERVE
+ * ADOPT name priv ownerId id:nick... hand a channel to its new owner
+ * BYE node                 the sender is leaving the cluster
+ * </pre>
+ * <p>
+ * Rebalancing: when a node joins, every node adds it to its ring and hands
+ * the channels it no longer owns to the new node with {@code ADOPT}. A node
+ * leaving with {@link #leave()} hands all of its channels to their next
+ * owners before sending {@code BYE}; the remaining nodes drop it from their
+ * ring and disconnect its users. Consistent hashing means no other channel
+ * moves. A node whose link fails is treated as having left, but its
+ * channels are lost. Channel history is not moved, and commands sent by
+ * other nodes while a channel is in transit may fail with
+ * {@link ServerResponse#NO_SUCH_CHANNEL}.
+ * <p>
+ * A joining node must list every running node as a seed.
+ */
+final class ClusterNode {
+
+    /**
+     * The largest number of nodes in a cluster; also the stride of user IDs
+     * and generated nicknames.
+     */
+    static final int MAX_NODES = 64;
+
+    private static final long RESERVE_TIMEOUT_MILLIS = 5000;
+    // Lets a command follow its channel once after a hand-off without ever
+    // bouncing between two nodes whose rings disagree
+    private static final int MAX_HOPS = 2;
+    private static final long RESERVATION_LIFETIME_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long NOTICE_LIFETIME_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final Set<String> CHANNEL_VERBS = Set.of(
+            "CREATE", "JOIN", "MESG", "LEAVE", "INVITE", "KICK", "SEARCH", "NAMES", "ROSTER"
+    );
+
+    private final int nodeNumber;
+    private final int requestedPort;
+    private final Map<Integer, InetSocketAddress> seeds;
+    private final FanoutTree fanoutTree;
+
+    private final Map<Integer, ClusterLink> links;
+    private final Map<String, Integer> directory;
+    private final Map<String, Reservation> reservations;
+    private final Map<Long, Notice> notices;
+    private final Map<Long, CompletableFuture<Boolean>> pendingReserves;
+    private final AtomicLong nextRequest;
+
+    // Only written on the model thread
+    private volatile HashRing ring;
+
+    private volatile ServerBackend backend;
+    private volatile ServerModel model;
+    private volatile ServerSocket listener;
+    private volatile boolean running;
+
+    /**
+     * Constructs a {@code ClusterNode}.
+     *
+     * @param nodeNumber  This node's number, unique in the cluster, from 0
+     *                    to {@link #MAX_NODES} - 1
+     * @param clusterPort The port to accept links from other nodes on, or 0
+     *                    for any free port
+     * @param seeds       The cluster addresses of every running node, by node
+     *                    number; empty for the first node
+     */
+    ClusterNode(int nodeNumber, int clusterPort, Map<Integer, InetSocketAddress> seeds) {
+        this(nodeNumber, clusterPort, seeds, FanoutTree.DEFAULT_DEGREE);
+    }
+
+    /**
+     * Constructs a {@code ClusterNode} relaying broadcasts through a fan-out
+     * tree of the given degree. Every node of a cluster must use the same
+     * degree.
+     *
+     * @param nodeNumber   This node's number, unique in the cluster, from 0
+     *                     to {@link #MAX_NODES} - 1
+     * @param clusterPort  The port to accept links from other nodes on, or 0
+     *                     for any free port
+     * @param seeds        The cluster addresses of every running node, by
+     *                     node number; empty for the first node
+     * @param fanoutDegree The number of nodes each node relays a line to
+     */
+    ClusterNode(
+            int nodeNumber, int clusterPort, Map<Integer, InetSocketAddress> seeds,
+            int fanoutDegree
+    ) {
+        if (nodeNumber < 0 || nodeNumber >= MAX_NODES) {
+            throw new IllegalArgumentException("Invalid node number " + nodeNumber);
+        }
+        this.nodeNumber = nodeNumber;
+        this.requestedPort = clusterPort;
+        this.seeds = new TreeMap<>(seeds);
+        fanoutTree = new FanoutTree(fanoutDegree);
+        links = new ConcurrentHashMap<>();
+        directory = new ConcurrentHashMap<>();
+        reservations = new ConcurrentHashMap<>();
+        notices = new ConcurrentHashMap<>();
+        pendingReserves = new ConcurrentHashMap<>();
+        nextRequest = new AtomicLong();
+        ring = new HashRing(Collections.singleton(nodeNumber));
+    }
+
+    /**
+     * Binds this node to a backend and its model. Called by
+     * {@link ServerBackend#joinCluster(ClusterNode)}.
+     */
+    void attach(ServerBackend backend, ServerModel model) {
+        this.backend = backend;
+        this.model = model;
+        model.setNicknameSpace(MAX_NODES, nodeNumber);
+    }
+
+    /**
+     * Starts accepting links and connects to every seed. Returns once the
+     * seeds have been contacted; the handshakes complete in the background.
+     *
+     * @throws IOException if the cluster port cannot be bound or a seed
+     *                     cannot be reached
+     */
+    void start() throws IOException {
+        if (backend == null) {
+            throw new IllegalStateException("Not attached to a backend");
+        }
+        running = true;
+        listener = new ServerSocket(requestedPort, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                try {
+                    startLink(new ClusterLink(listener.accept()));
+                } catch (IOException iox) {
+                    if (running) {
+                        iox.printStackTrace();
+                    }
+                }
+            }
+        }, "Cluster acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (InetSocketAddress seed : seeds.values()) {
+            ClusterLink link = new ClusterLink(new Socket(seed.getAddress(), seed.getPort()));
+            startLink(link);
+            link.send("HELLO " + nodeNumber);
+        }
+    }
+
+    /** @return the port this node accepts links on */
+    int getClusterPort() {
+        ServerSocket current = listener;
+        return current == null ? -1 : current.getLocalPort();
+    }
+
+    /** @return this node's number */
+    int getNodeNumber() {
+        return nodeNumber;
+    }
+
+    /** @return the current ring */
+    HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Converts a backend-local connection number to a cluster-wide user ID.
+     */
+    int globalId(int localId) {
+        return localId * MAX_NODES + nodeNumber;
+    }
+
+    /** @return the node the user is connected to */
+    static int homeOf(int userId) {
+        return userId % MAX_NODES;
+    }
+
+    /** @return true if the user is connected to this node */
+    boolean isLocal(int userId) {
+        return homeOf(userId) == nodeNumber;
+    }
+
+    // ==========================================================================
+    // Hooks called by the backend
+    // ==========================================================================
+
+    /**
+     * Forwards a command to the node owning its channel. Must be called on
+     * the model thread.
+     *
+     * @param userId  The sender's ID
+     * @param payload The command line
+     * @param hops    The number of times the command was already forwarded
+     * @return true if the command was forwarded, false if it should be run
+     * against the local model
+     */
+    boolean forward(int userId, String payload, int hops) {
+        String channelName = channelOf(payload);
+        if (channelName == null || hops >= MAX_HOPS) {
+            return false;
+        }
+        int owner = ring.ownerOf(channelName);
+        ClusterLink link = links.get(owner);
+        if (owner == nodeNumber || link == null) {
+            return false;
+        }
+        link.send("FWD " + (hops + 1) + " " + userId + " " + payload);
+        return true;
+    }
+
+    /**
+     * Returns the channel named by a channel-scoped command, or null.
+     */
+    static String channelOf(String payload) {
+        int verbEnd = payload.indexOf(' ');
+        if (verbEnd < 0 || !CHANNEL_VERBS.contains(payload.substring(0, verbEnd))) {
+            return null;
+        }
+        int end = payload.indexOf(' ', verbEnd + 1);
+        String channelName = end < 0 ? payload.substring(verbEnd + 1) : payload.substring(verbEnd + 1, end);
+        return channelName.isEmpty() || channelName.startsWith(":") ? null : channelName;
+    }
+
+    /**
+     * Reserves a nickname for a user with the node that owns the nickname,
+     * waiting for the answer. Called from a connection's worker thread before
+     * its {@code NICK} command is enqueued.
+     *
+     * @param userId   The user asking for the nickname
+     * @param nickname The requested nickname
+     * @return true if the nickname is free for the user to take
+     */
+    boolean reserve(int userId, String nickname) {
+        int owner = ring.ownerOf("@" + nickname);
+        ClusterLink link = links.get(owner);
+        if (owner == nodeNumber || link == null) {
+            return reserveLocally(userId, nickname);
+        }
+        long request = nextRequest.incrementAndGet();
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        pendingReserves.put(request, answer);
+        try {
+            link.send("RESERVE " + request + " " + userId + " " + nickname);
+            return answer.get(RESERVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException x) {
+            return false;
+        } finally {
+            pendingReserves.remove(request);
+        }
+    }
+
+    private boolean reserveLocally(int userId, String nickname) {
+        Integer holder = directory.get(nickname);
+        if (holder != null && holder != userId) {
+            return false;
+        }
+        long now = System.nanoTime();
+        Reservation reservation = new Reservation(userId, now + RESERVATION_LIFETIME_NANOS);
+        Reservation existing = reservations.putIfAbsent(nickname, reservation);
+        if (existing != null && existing.userId != userId && existing.expiresAt - now > 0) {
+            return false;
+        }
+        reservations.put(nickname, reservation);
+        return true;
+    }
+
+    /**
+     * Announces a newly connected local user. Called on the model thread.
+     */
+    void userRegistered(int userId, String nickname) {
+        directory.put(nickname, userId);
+        sendToAll("USER " + userId + " " + nickname);
+    }
+
+    /**
+     * Announces a nickname change of a local user to the other nodes, and
+     * arranges for the {@code NICK} line to reach every affected user who
+     * has not been sent it yet. Called on the model thread.
+     *
+     * @param notified The users the local model already sent the line to
+     */
+    void userRenamed(int userId, String oldNickname, String newNickname, int[] notified) {
+        directory.remove(oldNickname, userId);
+        directory.put(newNickname, userId);
+        reservations.remove(newNickname);
+        long event = startNotice(String.format(":%s NICK %s", oldNickname, newNickname), notified);
+        sendToAll("RENAME " + event + " " + userId + " " + newNickname);
+    }
+
+    /**
+     * Announces the disconnection of a local user to the other nodes, and
+     * arranges for the {@code QUIT} line to reach every affected user who
+     * has not been sent it yet. Called on the model thread.
+     *
+     * @param notified The users the local model already sent the line to
+     */
+    void userDeparted(int userId, String nickname, int[] notified) {
+        directory.remove(nickname, userId);
+        long event = startNotice(String.format(":%s QUIT", nickname), notified);
+        sendToAll("GONE " + event + " " + userId);
+    }
+
+    /**
+     * Sends responses to users connected to other nodes. Each distinct line
+     * is relayed once through the fan-out tree, however many users and
+     * nodes it is for.
+     *
+     * @param responses The response lines, by recipient
+     */
+    void deliver(IntMap<List<String>> responses) {
+        Map<String, SortedMap<Integer, List<Integer>>> byLine = new LinkedHashMap<>();
+        responses.forEach((userId, lines) -> {
+            for (String line : lines) {
+                byLine.computeIfAbsent(line, l -> new TreeMap<>())
+                        .computeIfAbsent(homeOf(userId), node -> new ArrayList<>())
+                        .add(userId);
+            }
+        });
+        for (Map.Entry<String, SortedMap<Integer, List<Integer>>> line : byLine.entrySet()) {
+            relay(nodeNumber, line.getValue(), line.getKey());
+        }
+    }
+
+    /**
+     * Delivers a line to this node's recipients and passes it on to the
+     * next hops towards the others.
+     */
+    private void relay(int origin, SortedMap<Integer, List<Integer>> targets, String line) {
+        List<Integer> own = targets.get(nodeNumber);
+        if (own != null) {
+            backend.sendLocal(own, line);
+        }
+        Map<Integer, SortedMap<Integer, List<Integer>>> hops =
+                fanoutTree.route(ring.getNodes(), origin, nodeNumber, targets);
+        for (Map.Entry<Integer, SortedMap<Integer, List<Integer>>> hop : hops.entrySet()) {
+            ClusterLink link = links.get(hop.getKey());
+            if (link != null) {
+                link.send("FANOUT " + FanoutTree.encode(origin, hop.getValue(), line));
+                continue;
+            }
+            // The next hop is gone; reach whatever is below it directly
+            for (Map.Entry<Integer, List<Integer>> target : hop.getValue().entrySet()) {
+                ClusterLink direct = links.get(target.getKey());
+                if (direct != null) {
+                    SortedMap<Integer, List<Integer>> only = new TreeMap<>();
+                    only.put(target.getKey(), target.getValue());
+                    direct.send("FANOUT " + FanoutTree.encode(origin, only, line));
+                }
+            }
+        }
+    }
+
+    private void deliverLine(int userId, String line) {
+        IntMap<List<String>> responses = new IntMap<>();
+        responses.put(userId, Collections.singletonList(line));
+        deliver(responses);
+    }
+
+    /**
+     * Hands every channel of this node to its next owner, tells the other
+     * nodes this node is leaving, and closes all links. Local users are not
+     * disconnected; the caller should stop the backend afterwards.
+     *
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              model thread
+     */
+    void leave() throws InterruptedException {
+        CountDownLatch handedOff = new CountDownLatch(1);
+        backend.submit(() -> {
+            HashRing next = ring.without(nodeNumber);
+            if (!next.getNodes().isEmpty()) {
+                moveChannels(next);
+            }
+            ring = next.getNodes().isEmpty() ? ring : next;
+            sendToAll("BYE " + nodeNumber);
+            handedOff.countDown();
+            return null;
+        });
+        if (!handedOff.await(RESERVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            System.err.println("Model thread did not hand off channels");
+        }
+        stop();
+    }
+
+    /**
+     * Closes all links without handing anything off.
+     */
+    void stop() {
+        running = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException iox) {
+            iox.printStackTrace();
+        }
+        for (ClusterLink link : links.values()) {
+            link.close();
+        }
+        links.clear();
+    }
+
+    // ==========================================================================
+    // Rebalancing
+    // ==========================================================================
+
+    /**
+     * Hands every local channel not owned by this node on the given ring to
+     * its owner there. Must be called on the model thread.
+     */
+    private void moveChannels(HashRing next) {
+        for (String channelName : model.getChannels()) {
+            int owner = next.ownerOf(channelName);
+            ClusterLink link = links.get(owner);
+            if (owner == nodeNumber || link == null) {
+                continue;
+            }
+            Channel channel = model.releaseChannel(channelName);
+            StringBuilder adopt = new StringBuilder("ADOPT ")
+                    .append(channelName).append(' ')
+                    .append(channel.isPrivate() ? 1 : 0).append(' ')
+                    .append(channel.getOwnerId());
+            for (int memberId : channel.getMembers().toArray()) {
+                adopt.append(' ').append(memberId).append(':').append(model.getNickname(memberId));
+            }
+            link.send(adopt.toString());
+        }
+    }
+
+    private void nodeJoined(int node) {
+        backend.submit(() -> {
+            if (!ring.getNodes().contains(node)) {
+                HashRing next = ring.with(node);
+                moveChannels(next);
+                ring = next;
+            }
+            return null;
+        });
+    }
+
+    private void nodeLeft(int node) {
+        ClusterLink link = links.remove(node);
+        if (link != null) {
+            link.close();
+        }
+        backend.submit(() -> {
+            if (ring.getNodes().contains(node) && ring.getNodes().size() > 1) {
+                ring = ring.without(node);
+            }
+            return null;
+        });
+        for (Map.Entry<String, Integer> user : directory.entrySet()) {
+            int userId = user.getValue();
+            if (homeOf(userId) == node && directory.remove(user.getKey(), userId)) {
+                backend.submit(() -> model.getNickname(userId) == null
+                        ? null : model.deregisterUser(userId));
+            }
+        }
+    }
+
+    // ==========================================================================
+    // Fan-out of nickname changes and disconnections
+    // ==========================================================================
+
+    private long startNotice(String line, int[] notified) {
+        long now = System.nanoTime();
+        notices.values().removeIf(notice -> now - notice.createdAt > NOTICE_LIFETIME_NANOS);
+        long event = nextRequest.incrementAndGet();
+        if (!links.isEmpty()) {
+            notices.put(event, new Notice(line, notified, links.size(), now));
+        }
+        return event;
+    }
+
+    private void recipientsReported(long event, List<Integer> userIds) {
+        Notice notice = notices.get(event);
+        if (notice == null) {
+            return;
+        }
+        List<Integer> toNotify = new ArrayList<>();
+        synchronized (notice) {
+            for (int userId : userIds) {
+                if (notice.notified.add(userId)) {
+                    toNotify.add(userId);
+                }
+            }
+            if (--notice.pendingReplies <= 0) {
+                notices.remove(event);
+            }
+        }
+        for (int userId : toNotify) {
+            deliverLine(userId, notice.line);
+        }
+    }
+
+    /**
+     * Runs a remote user's departure or rename against the local model on
+     * the model thread, then reports the affected local-channel members back
+     * to the user's home node instead of dispatching the broadcast.
+     */
+    private void applyRemoteChange(ClusterLink link, long event, int userId, String newNickname) {
+        backend.submit(() -> {
+            String nickname = model.getNickname(userId);
+            Broadcast broadcast = null;
+            if (nickname != null && newNickname == null) {
+                broadcast = model.deregisterUser(userId);
+            } else if (nickname != null) {
+                broadcast = model.changeNickname(
+                        new NicknameCommand(userId, nickname, newNickname));
+            } else if (newNickname != null) {
+                model.addRemoteUser(userId, newNickname);
+            }
+            StringBuilder reply = new StringBuilder("RECIPIENTS ").append(event);
+            if (broadcast != null) {
+                for (int recipient : broadcast.getResponses(model).keys()) {
+                    if (recipient != userId && recipient >= 0) {
+                        reply.append(' ').append(recipient);
+                    }
+                }
+            }
+            link.send(reply.toString());
+            return null;
+        });
+    }
+
+    // ==========================================================================
+    // Link protocol
+    // ==========================================================================
+
+    private void startLink(ClusterLink link) {
+        Thread reader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = link.receive()) != null) {
+                    try {
+                        handle(link, line);
+                    } catch (RuntimeException rx) {
+                        rx.printStackTrace();
+                    }
+                }
+            } catch (IOException iox) {
+                if (running) {
+                    System.err.println("Cluster link failed: " + iox.getMessage());
+                }
+            } finally {
+                link.close();
+                if (link.peer >= 0 && links.get(link.peer) == link && running) {
+                    nodeLeft(link.peer);
+                }
+            }
+        }, "Cluster link reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void handle(ClusterLink link, String line) {
+        int verbEnd = line.indexOf(' ');
+        String verb = verbEnd < 0 ? line : line.substring(0, verbEnd);
+        String rest = verbEnd < 0 ? "" : line.substring(verbEnd + 1);
+        String[] args = rest.split(" ", 3);
+
+        switch (verb) {
+            case "HELLO": {
+                int peer = Integer.parseInt(args[0]);
+                boolean reply = link.peer < 0 && !seeds.containsKey(peer);
+                link.peer = peer;
+                links.put(peer, link);
+                if (reply) {
+                    link.send("HELLO " + nodeNumber);
+                }
+                for (Map.Entry<String, Integer> user : directory.entrySet()) {
+                    if (isLocal(user.getValue())) {
+                        link.send("USER " + user.getValue() + " " + user.getKey());
+                    }
+                }
+                nodeJoined(peer);
+                break;
+            }
+            case "USER": {
+                int userId = Integer.parseInt(args[0]);
+                String nickname = args[1];
+                directory.put(nickname, userId);
+                reservations.remove(nickname);
+                backend.submit(() -> {
+                    model.addRemoteUser(userId, nickname);
+                    return null;
+                });
+                break;
+            }
+            case "GONE": {
+                int userId = Integer.parseInt(args[1]);
+                directory.values().remove(userId);
+                applyRemoteChange(link, Long.parseLong(args[0]), userId, null);
+                break;
+            }
+            case "RENAME": {
+                int userId = Integer.parseInt(args[1]);
+                String nickname = args[2];
+                directory.values().remove(userId);
+                directory.put(nickname, userId);
+                reservations.remove(nickname);
+                applyRemoteChange(link, Long.parseLong(args[0]), userId, nickname);
+                break;
+            }
+            case "RECIPIENTS": {
+                String[] fields = rest.split(" ");
+                List<Integer> userIds = new ArrayList<>();
+                for (int i = 1; i < fields.length; i++) {
+                    userIds.add(Integer.parseInt(fields[i]));
+                }
+                recipientsReported(Long.parseLong(fields[0]), userIds);
+                break;
+            }
+            case "FWD": {
+                String[] fields = rest.split(" ", 3);
+                backend.submitRequest(
+                        Integer.parseInt(fields[1]), fields[2], Integer.parseInt(fields[0]));
+                break;
+            }
+            case "FANOUT": {
+                FanoutTree.Frame frame = FanoutTree.decode(rest);
+                relay(frame.getOrigin(), frame.getTargets(), frame.getLine());
+                break;
+            }
+            case "RESERVE": {
+                boolean granted = reserveLocally(Integer.parseInt(args[1]), args[2]);
+                link.send("RESERVED " + args[0] + " " + (granted ? "OK" : "TAKEN"));
+                break;
+            }
+            case "RESERVED": {
+                CompletableFuture<Boolean> answer = pendingReserves.get(Long.parseLong(args[0]));
+                if (answer != null) {
+                    answer.complete(args[1].equals("OK"));
+                }
+                break;
+            }
+            case "ADOPT": {
+                String[] fields = rest.split(" ");
+                IntMap<String> members = new IntMap<>();
+                for (int i = 3; i < fields.length; i++) {
+                    int colon = fields[i].indexOf(':');
+                    members.put(
+                            Integer.parseInt(fields[i].substring(0, colon)),
+                            fields[i].substring(colon + 1)
+                    );
+                }
+                backend.submit(() -> {
+                    model.adoptChannel(
+                            fields[0], fields[1].equals("1"), Integer.parseInt(fields[2]), members
+                    );
+                    return null;
+                });
+                break;
+            }
+            case "BYE":
+                nodeLeft(Integer.parseInt(args[0]));
+                break;
+            default:
+                System.err.println("Unknown cluster line: " + line);
+        }
+    }
+
+    private void sendToAll(String line) {
+        for (ClusterLink link : links.values()) {
+            link.send(line);
+        }
+    }
+
+    // ==========================================================================
+    // Helper classes
+    // ==========================================================================
+
+    /**
+     * A line-based connection to another node.
+     * <p>
+     * Lines are queued and written by the link's own writer thread, which
+     * takes everything queued since its last write and flushes it at once.
+     * Under load, many frames therefore share one write and one TCP segment,
+     * and neither the model thread nor a relaying link ever blocks on a slow
+     * peer.
+     */
+    private static final class ClusterLink {
+        // Queued by close(); compared by identity, so no real line matches
+        private static final String CLOSE = new String("CLOSE");
+
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final PrintWriter writer;
+        private final BlockingQueue<String> outbox;
+        private volatile boolean closing;
+        private volatile int peer = -1;
+
+        ClusterLink(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16), false);
+            outbox = new LinkedBlockingQueue<>();
+            Thread thread = new Thread(this::writeQueued, "Cluster link writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String receive() throws IOException {
+            return reader.readLine();
+        }
+
+        void send(String line) {
+            if (!closing) {
+                outbox.add(line);
+            }
+        }
+
+        /**
+         * Closes the link once every line already sent has been written.
+         */
+        void close() {
+            closing = true;
+            outbox.add(CLOSE);
+        }
+
+        private void writeQueued() {
+            List<String> batch = new ArrayList<>();
+            try {
+                while (!writer.checkError()) {
+                    batch.add(outbox.take());
+                    outbox.drainTo(batch);
+                    for (String line : batch) {
+                        if (line == CLOSE) {
+                            writer.flush();
+                            return;
+                        }
+                        writer.print(line);
+                        writer.print('\n');
+                    }
+                    writer.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException iox) {
+                    iox.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A nickname held for a user until their rename is seen.
+     */
+    private static final class Reservation {
+        private final int userId;
+        private final long expiresAt;
+
+        Reservation(int userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A {@code NICK} or {@code QUIT} line waiting for other nodes to report
+     * who should receive it.
+     */
+    private static final class Notice {
+        private final String line;
+        private final IntSet notified;
+        private final long createdAt;
+        private int pendingReplies;
+
+        Notice(String line, int[] notified, int pendingReplies, long createdAt) {
+            this.line = line;
+            this.notified = new IntSet();
+            for (int userId : notified) {
+                this.notified.add(userId);
+            }
+            this.pendingReplies = pendingReplies;
+            this.createdAt = createdAt;
+        }
+    }
+}
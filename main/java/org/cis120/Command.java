@@ -307,3 +307,161 @@ class KickCommand extends Command {
         return String.format(":%s KICK %s %s", getSender(), channel, userToKick);
     }
 }
+
+/**
+ * A {@link Command} that only reads the model. It may be answered by
+ * {@link #readServerModel(ServerModel, ModelSnapshot)} on any thread,
+ * concurrently with commands being run on the model thread; every other
+ * command changes the model and must be run there. {@code MESG} is not
+ * read-only: relaying a message indexes it for {@code SEARCH}, numbers it
+ * for session replay and publishes an event, and its recipients must be the
+ * channel's members in the order of the channel's joins and leaves.
+ * <p>
+ * {@link CommandParser#isReadOnly(String)} tells which command strings parse
+ * into a {@code ReadOnlyCommand}.
+ */
+abstract class ReadOnlyCommand extends Command {
+
+    ReadOnlyCommand(int senderId, String sender) {
+        super(senderId, sender);
+    }
+
+    /**
+     * Answers the command from a published snapshot of the model, without
+     * touching the parts of the model that only the model thread may use.
+     *
+     * @param model    The model, for its thread-safe parts
+     * @param snapshot A snapshot reflecting every earlier command of the
+     *                 sender
+     * @return A {@link Broadcast} object whose only recipient is the sender
+     */
+    public abstract Broadcast readServerModel(ServerModel model, ModelSnapshot snapshot);
+}
+
+/**
+ * Represents a {@link Command} issued by a client to search the message
+ * history of a channel. Results are returned one page at a time, newest
+ * first; the client asks for the next page by repeating the search with the
+ * cursor from the previous response.
+ */
+class SearchCommand extends ReadOnlyCommand {
+    private final String channel;
+    private final long cursor;
+    private final String query;
+
+    public SearchCommand(int senderId, String sender, String channel, long cursor, String query) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.cursor = cursor;
+        this.query = query;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.searchChannel(this);
+    }
+
+    @Override
+    public Broadcast readServerModel(ServerModel model, ModelSnapshot snapshot) {
+        return model.searchChannel(this, snapshot);
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the sequence number the hits must be older than, or
+     * {@link Long#MAX_VALUE} for the first page
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    @Override
+    public String toString() {
+        return cursor == Long.MAX_VALUE
+                ? String.format(":%s SEARCH %s :%s", getSender(), channel, query)
+                : String.format(":%s SEARCH %s %d :%s", getSender(), channel, cursor, query);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client to list the members of a
+ * channel one page at a time. The client asks for the next page with the
+ * cursor from the previous response.
+ */
+class NamesCommand extends ReadOnlyCommand {
+    private final String channel;
+    private final String cursor;
+
+    public NamesCommand(int senderId, String sender, String channel, String cursor) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.cursor = cursor;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.listNames(this);
+    }
+
+    @Override
+    public Broadcast readServerModel(ServerModel model, ModelSnapshot snapshot) {
+        return model.listNames(this, snapshot);
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /** @return the last nickname of the previous page, or null for the first */
+    public String getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public String toString() {
+        return cursor == null
+                ? String.format(":%s NAMES %s", getSender(), channel)
+                : String.format(":%s NAMES %s %s", getSender(), channel, cursor);
+    }
+}
+
+/**
+ * Represents a {@link Command} issued by a client that holds a copy of a
+ * channel's member list, from {@code NAMES}, to bring it up to date.
+ */
+class RosterCommand extends Command {
+    private final String channel;
+    private final long version;
+
+    public RosterCommand(int senderId, String sender, String channel, long version) {
+        super(senderId, sender);
+        this.channel = channel;
+        this.version = version;
+    }
+
+    @Override
+    public Broadcast updateServerModel(ServerModel model) {
+        return model.rosterChanges(this);
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /** @return the roster version of the client's copy */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(":%s ROSTER %s %d", getSender(), channel, version);
+    }
+}
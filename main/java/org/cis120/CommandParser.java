@@ -89,15 +89,50 @@ public final class CommandParser {
                 return new LeaveCommand(senderId, sender, param0);
             case MESG:
                 return new MessageCommand(senderId, sender, param0, payload);
+            case NAMES:
+                return new NamesCommand(senderId, sender, param0, param1);
             case NICK:
                 return new NicknameCommand(senderId, sender, param0);
+            case ROSTER:
+                long version;
+                try {
+                    version = Long.parseLong(param1);
+                } catch (NumberFormatException nfx) {
+                    return null;
+                }
+                return new RosterCommand(senderId, sender, param0, version);
+            case SEARCH:
+                long cursor;
+                try {
+                    cursor = param1 == null ? Long.MAX_VALUE : Long.parseLong(param1);
+                } catch (NumberFormatException nfx) {
+                    return null;
+                }
+                if (cursor < 0) {
+                    return null;
+                }
+                return new SearchCommand(senderId, sender, param0, cursor, payload);
             default:
                 return null;
         }
     }
 
+    /**
+     * Tells from its first word alone whether a command string would parse
+     * into a {@link ReadOnlyCommand}, so that where to run it can be decided
+     * before it is parsed.
+     *
+     * @param commandString The command string, without prefix
+     * @return true if the command is {@code NAMES} or {@code SEARCH}
+     */
+    public static boolean isReadOnly(String commandString) {
+        int end = commandString.indexOf(' ');
+        String verb = end < 0 ? commandString : commandString.substring(0, end);
+        return verb.equals(CommandType.NAMES.name()) || verb.equals(CommandType.SEARCH.name());
+    }
+
     private enum CommandType {
-        CREATE, INVITE, JOIN, KICK, LEAVE, MESG, NICK
+        CREATE, INVITE, JOIN, KICK, LEAVE, MESG, NAMES, NICK, ROSTER, SEARCH
     }
 
     // Prevents the instantiation of any CommandParser objects,
@@ -0,0 +1,113 @@
+package org.cis120;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compressed transport for the text protocol, negotiated with
+ * {@code PROTO DEFLATE}.
+ * <p>
+ * Each line is sent as a frame: a varint length followed by the line
+ * compressed as raw deflate data, primed with {@link #DICTIONARY}. Every frame
+ * is compressed independently and ends at a flush point, so a line can be
+ * decoded as soon as its frame arrives.
+ * <p>
+ * Because frames do not depend on each other, the same line always encodes
+ * to the same bytes. The backend takes advantage of this by compressing a
+ * response once and sending the result to every subscriber using this codec.
+ * The price is a worse ratio than a single long-lived deflate stream per
+ * connection; the preset dictionary recovers most of it for short lines.
+ */
+final class DeflateCodec implements WireCodec {
+
+    static final String NAME = "DEFLATE";
+
+    /**
+     * The preset dictionary shared by both ends. Deflate favours matches
+     * near the end of the dictionary, so the most common strings come last.
+     */
+    static final byte[] DICTIONARY = (
+            " INVITE  KICK  CREATE  SEARCH  HIT  ENDSEARCH  PROTO  ERROR 40"
+            + " ERROR 50 :@User0 User1 User2 User3 User4 User5 User6 User7"
+            + " User8 User9 QUIT  CONNECT  NICK  LEAVE  NAMES  JOIN  MESG :User"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The largest accepted compressed or decompressed frame, to bound memory
+     * use on bad input.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[4096];
+
+    @Override
+    public String decode(InputStream in) throws IOException {
+        int length;
+        try {
+            length = BinaryCodec.readVarint(in);
+        } catch (EOFException eofx) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] compressed = in.readNBytes(length);
+        if (compressed.length < length) {
+            return null;
+        }
+
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(compressed);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(length * 4);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated frame");
+                }
+                line.write(buffer, 0, n);
+                if (line.size() > MAX_FRAME_LENGTH) {
+                    throw new IOException("Frame too large");
+                }
+            }
+        } catch (DataFormatException dfx) {
+            throw new IOException("Malformed frame", dfx);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void encode(String line, OutputStream out) throws IOException {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(line.getBytes(StandardCharsets.UTF_8));
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(line.length() + 8);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+        }
+        BinaryCodec.writeVarint(compressed.size(), out);
+        compressed.writeTo(out);
+    }
+
+    @Override
+    public boolean isStateless() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
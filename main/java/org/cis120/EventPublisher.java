@@ -0,0 +1,89 @@
+package org.cis120;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An {@code EventPublisher} delivers batches of {@link ChatEvent}s to an
+ * outside event bus. It is the extension point for bridging chat traffic to
+ * other services: an {@link EventStream} calls it from its own publisher
+ * thread, never from the model thread, so an implementation may block on
+ * network or disk I/O.
+ * <p>
+ * {@link MemoryEventPublisher} is an in-process stand-in broker for tests,
+ * and {@link FileEventPublisher} appends events to a local file.
+ */
+interface EventPublisher {
+
+    /**
+     * Publishes a batch of events, in order. If this throws, the
+     * {@link EventStream} retries the same batch after a delay, so
+     * implementations should be idempotent per batch or tolerate
+     * duplicates.
+     *
+     * @param batch The events to publish, oldest first
+     * @throws IOException if the batch could not be published
+     */
+    void publish(List<ChatEvent> batch) throws IOException;
+
+    /**
+     * Releases any resources held by the publisher. Called once, after the
+     * last batch.
+     *
+     * @throws IOException if closing fails
+     */
+    default void close() throws IOException {
+    }
+}
+
+/**
+ * Keeps every published event in memory, where tests and in-process
+ * consumers can read them back.
+ */
+final class MemoryEventPublisher implements EventPublisher {
+    private final List<ChatEvent> events = new ArrayList<>();
+    private final List<Integer> batchSizes = new ArrayList<>();
+
+    @Override
+    public synchronized void publish(List<ChatEvent> batch) {
+        events.addAll(batch);
+        batchSizes.add(batch.size());
+        notifyAll();
+    }
+
+    /**
+     * @return a copy of the events published so far, oldest first
+     */
+    synchronized List<ChatEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    /**
+     * @return the size of each batch published so far
+     */
+    synchronized List<Integer> getBatchSizes() {
+        return Collections.unmodifiableList(new ArrayList<>(batchSizes));
+    }
+
+    /**
+     * Waits until at least {@code count} events have been published.
+     *
+     * @param count         The number of events to wait for
+     * @param timeoutMillis The longest time to wait
+     * @return true if the events arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized boolean await(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (events.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
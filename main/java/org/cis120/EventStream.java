@@ -0,0 +1,219 @@
+package org.cis120;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code EventStream} carries {@link ChatEvent}s from the
+ * {@link ServerModel} to an {@link EventPublisher} without ever blocking the
+ * model thread.
+ * <p>
+ * Events are stamped with a sequence number and put in a bounded buffer.
+ * A "Publisher thread" takes them out in batches: a batch is published once
+ * it holds {@code maxBatch} events or its oldest event has waited
+ * {@code lingerMillis}, whichever comes first. If publishing fails, the same
+ * batch is retried with exponential backoff, and no further events are taken
+ * from the buffer meanwhile.
+ * <p>
+ * That is the backpressure: while the publisher is slow or failing the
+ * buffer fills up, and once it is full, new events are dropped and counted
+ * rather than held in unbounded memory or waited for. Consumers can detect
+ * the loss from gaps in the sequence numbers.
+ */
+final class EventStream implements Runnable {
+
+    static final int DEFAULT_CAPACITY = 8192;
+    static final int DEFAULT_MAX_BATCH = 256;
+    static final long DEFAULT_LINGER_MILLIS = 50;
+
+    private static final long MIN_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    private final EventPublisher publisher;
+    private final BlockingQueue<ChatEvent> buffer;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final AtomicLong dropped;
+    private final AtomicLong published;
+
+    // Only touched on the model thread
+    private long nextSequence;
+
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    /**
+     * Constructs an {@code EventStream} with the default buffer capacity,
+     * batch size and linger time.
+     *
+     * @param publisher Where to publish events
+     */
+    EventStream(EventPublisher publisher) {
+        this(publisher, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_LINGER_MILLIS);
+    }
+
+    /**
+     * Constructs an {@code EventStream}.
+     *
+     * @param publisher    Where to publish events
+     * @param capacity     The most events buffered before new ones are dropped
+     * @param maxBatch     The most events published in one batch
+     * @param lingerMillis The longest an event waits for its batch to fill
+     */
+    EventStream(EventPublisher publisher, int capacity, int maxBatch, long lingerMillis) {
+        if (publisher == null) {
+            throw new NullPointerException();
+        }
+        if (capacity < 1 || maxBatch < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException("Invalid event stream settings");
+        }
+        this.publisher = publisher;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        dropped = new AtomicLong();
+        published = new AtomicLong();
+    }
+
+    /**
+     * Records an event. Never blocks. Must only be called on the model
+     * thread.
+     *
+     * @param type     What happened
+     * @param channel  The channel concerned
+     * @param nickname The user concerned
+     * @param message  The relayed message, or null for other types
+     * @return false if the buffer was full and the event was dropped
+     */
+    boolean emit(ChatEvent.Type type, String channel, String nickname, String message) {
+        ChatEvent event = new ChatEvent(
+                nextSequence++, System.currentTimeMillis(), type, channel, nickname, message
+        );
+        if (buffer.offer(event)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Starts the "Publisher thread".
+     */
+    void start() {
+        running = true;
+        thread = new Thread(this, "Publisher thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Publishes what is left in the buffer, then closes the publisher. A
+     * batch that still fails is dropped rather than retried.
+     *
+     * @param timeoutMillis The longest time to wait for the buffer to drain
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void close(long timeoutMillis) throws InterruptedException {
+        running = false;
+        Thread current = thread;
+        if (current != null) {
+            current.interrupt();
+            current.join(timeoutMillis);
+        }
+    }
+
+    /** @return the number of events dropped because the buffer was full */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /** @return the number of events successfully published */
+    long getPublished() {
+        return published.get();
+    }
+
+    /** @return the number of events waiting to be published */
+    int getBuffered() {
+        return buffer.size();
+    }
+
+    @Override
+    public void run() {
+        List<ChatEvent> batch = new ArrayList<>(maxBatch);
+        try {
+            while (running || !buffer.isEmpty()) {
+                try {
+                    fillBatch(batch);
+                } catch (InterruptedException ix) {
+                    // Woken by close(); publish what was gathered and drain
+                }
+                if (!batch.isEmpty()) {
+                    publish(batch);
+                    batch.clear();
+                }
+            }
+        } finally {
+            try {
+                publisher.close();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Waits for the first event of a batch, then gathers more until the
+     * batch is full or the first event has lingered long enough.
+     */
+    private void fillBatch(List<ChatEvent> batch) throws InterruptedException {
+        ChatEvent first = running
+                ? buffer.poll(100, TimeUnit.MILLISECONDS)
+                : buffer.poll();
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < maxBatch) {
+            buffer.drainTo(batch, maxBatch - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatch || remaining <= 0 || !running) {
+                return;
+            }
+            ChatEvent next = buffer.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void publish(List<ChatEvent> batch) {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (true) {
+            try {
+                publisher.publish(batch);
+                published.addAndGet(batch.size());
+                return;
+            } catch (IOException | RuntimeException x) {
+                if (!running) {
+                    System.err.println("Dropping " + batch.size() + " events: " + x);
+                    dropped.addAndGet(batch.size());
+                    return;
+                }
+                System.err.println("Publishing events failed, retrying: " + x);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ix) {
+                // Closing; one last attempt
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package org.cis120;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@code FairQueue} is the blocking queue in front of the model thread. It
+ * keeps its items in three lanes, served in this order:
+ * <ol>
+ * <li>the priority lane, for items that free or claim resources, such as
+ * registrations and disconnections, in order of arrival;</li>
+ * <li>the fair lane, made of one sub-queue per flow, usually a client
+ * connection, served by deficit round-robin, so that a client sending a
+ * flood of commands delays every other client by at most one quantum per
+ * turn rather than by the whole flood;</li>
+ * <li>the ordered lane, for a barrier, such as a shutdown, and everything
+ * added after it, in order of arrival.</li>
+ * </ol>
+ * Each flow's items are served in the order they were added. An urgent item
+ * of a flow only goes into the priority lane if the flow has nothing
+ * pending; otherwise it waits its turn behind the flow's earlier items. Once
+ * a barrier has been added, nothing overtakes it, so the barrier is served
+ * after everything added before it and before everything added after it.
+ * <p>
+ * Every flow's turn allows it {@code quantum} units of cost, such as bytes
+ * of commands; what it does not use is kept for its next turn, as long as it
+ * has items pending. The queue records how long items waited in each lane.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @param <T> The type of item queued
+ */
+final class FairQueue<T> {
+
+    /**
+     * The lanes of a {@code FairQueue}, in the order they are served.
+     */
+    enum Lane {
+        PRIORITY, FAIR, ORDERED
+    }
+
+    private final int quantum;
+    private final ArrayDeque<Node<T>> priority;
+    // The flows with items pending, by flow
+    private IntMap<Flow<T>> flows;
+    // The same flows in turn order; the first one's turn is under way
+    private final ArrayDeque<Flow<T>> active;
+    private final ArrayDeque<Node<T>> ordered;
+    // Set once a barrier is added; everything after it is ordered
+    private boolean barred;
+    // The item peek() looked at, already taken from its lane
+    private Node<T> next;
+    private int size;
+
+    // Wait statistics by lane
+    private final long[] served;
+    private final long[] waitedNanos;
+    private final long[] maxWaitNanos;
+    // The longest wait since takeRecentWaitMicros() was last called
+    private long recentMaxWaitNanos;
+    private long lastServedNanos;
+    // When the queue last went from empty to not empty
+    private long busySinceNanos;
+
+    /**
+     * Constructs an empty {@code FairQueue}.
+     *
+     * @param quantum The cost each flow may use per turn, positive
+     */
+    FairQueue(int quantum) {
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("Invalid quantum");
+        }
+        this.quantum = quantum;
+        priority = new ArrayDeque<>();
+        flows = new IntMap<>();
+        active = new ArrayDeque<>();
+        ordered = new ArrayDeque<>();
+        served = new long[Lane.values().length];
+        waitedNanos = new long[Lane.values().length];
+        maxWaitNanos = new long[Lane.values().length];
+        lastServedNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds an item to a flow's sub-queue in the fair lane.
+     *
+     * @param item The item
+     * @param flow The flow, such as the sender's user ID
+     * @param cost The item's cost against the flow's quantum, at least 1
+     */
+    synchronized void add(T item, int flow, int cost) {
+        if (barred) {
+            addOrdered(item);
+            return;
+        }
+        Flow<T> queue = flows.get(flow);
+        if (queue == null) {
+            queue = new Flow<>(flow);
+            flows.put(flow, queue);
+        }
+        if (queue.items.isEmpty()) {
+            active.addLast(queue);
+        }
+        queue.items.addLast(new Node<>(item, Lane.FAIR, Math.max(1, cost)));
+        added();
+    }
+
+    /**
+     * Adds an item to the priority lane.
+     *
+     * @param item The item
+     */
+    synchronized void addUrgent(T item) {
+        if (barred) {
+            addOrdered(item);
+            return;
+        }
+        priority.addLast(new Node<>(item, Lane.PRIORITY, 1));
+        added();
+    }
+
+    /**
+     * Adds an item of a flow to the priority lane, unless the flow has items
+     * pending, which must be served first.
+     *
+     * @param item The item
+     * @param flow The flow, such as the sender's user ID
+     */
+    synchronized void addUrgent(T item, int flow) {
+        Flow<T> queue = flows.get(flow);
+        if (queue != null && !queue.items.isEmpty()) {
+            add(item, flow, 1);
+        } else {
+            addUrgent(item);
+        }
+    }
+
+    /**
+     * Adds a barrier: it is served after every item added before it, and
+     * every item added after it goes into the ordered lane behind it.
+     *
+     * @param item The barrier
+     */
+    synchronized void addBarrier(T item) {
+        barred = true;
+        addOrdered(item);
+    }
+
+    /**
+     * Takes the next item, waiting for one if the queue is empty.
+     *
+     * @return the item
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized T take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        return poll();
+    }
+
+    /**
+     * @return the next item, which is removed, or null if the queue is
+     * empty
+     */
+    synchronized T poll() {
+        Node<T> node = peekNode();
+        if (node == null) {
+            return null;
+        }
+        next = null;
+        size--;
+        int lane = node.lane.ordinal();
+        long waited = System.nanoTime() - node.queuedNanos;
+        served[lane]++;
+        waitedNanos[lane] += waited;
+        maxWaitNanos[lane] = Math.max(maxWaitNanos[lane], waited);
+        recentMaxWaitNanos = Math.max(recentMaxWaitNanos, waited);
+        lastServedNanos = node.queuedNanos + waited;
+        return node.item;
+    }
+
+    /**
+     * @return the item {@link #poll()} would return next, which is not
+     * removed, or null if the queue is empty
+     */
+    synchronized T peek() {
+        Node<T> node = peekNode();
+        return node == null ? null : node.item;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes every item.
+     *
+     * @return the items removed, so that whatever they hold can be released
+     */
+    synchronized List<T> clear() {
+        List<T> removed = new ArrayList<>(size);
+        if (next != null) {
+            removed.add(next.item);
+        }
+        for (Node<T> node : priority) {
+            removed.add(node.item);
+        }
+        for (Flow<T> queue : active) {
+            for (Node<T> node : queue.items) {
+                removed.add(node.item);
+            }
+        }
+        for (Node<T> node : ordered) {
+            removed.add(node.item);
+        }
+        priority.clear();
+        flows = new IntMap<>();
+        active.clear();
+        ordered.clear();
+        next = null;
+        size = 0;
+        return removed;
+    }
+
+    /**
+     * @param lane A lane
+     * @return the number of items served from the lane
+     */
+    synchronized long getServed(Lane lane) {
+        return served[lane.ordinal()];
+    }
+
+    /**
+     * @param lane A lane
+     * @return the mean time items served from the lane waited, in
+     * microseconds, or 0 if none has been served
+     */
+    synchronized long getMeanWaitMicros(Lane lane) {
+        long count = served[lane.ordinal()];
+        return count == 0 ? 0 : waitedNanos[lane.ordinal()] / count / 1000;
+    }
+
+    /**
+     * @param lane A lane
+     * @return the longest time an item served from the lane waited, in
+     * microseconds
+     */
+    synchronized long getMaxWaitMicros(Lane lane) {
+        return maxWaitNanos[lane.ordinal()] / 1000;
+    }
+
+    /**
+     * Returns the longest time an item waited since the last call. If items
+     * are waiting but none has been served for a while, as when the taker
+     * is stuck, that while counts as a wait too.
+     *
+     * @return the longest recent wait, in microseconds
+     */
+    synchronized long takeRecentWaitMicros() {
+        long waited = recentMaxWaitNanos;
+        recentMaxWaitNanos = 0;
+        if (size > 0) {
+            long idle = System.nanoTime() - Math.max(lastServedNanos, busySinceNanos);
+            waited = Math.max(waited, idle);
+        }
+        return waited / 1000;
+    }
+
+    private void addOrdered(T item) {
+        ordered.addLast(new Node<>(item, Lane.ORDERED, 1));
+        added();
+    }
+
+    private void added() {
+        size++;
+        if (size == 1) {
+            busySinceNanos = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    private Node<T> peekNode() {
+        if (next == null) {
+            next = priority.pollFirst();
+        }
+        if (next == null) {
+            next = pollFair();
+        }
+        if (next == null) {
+            next = ordered.pollFirst();
+        }
+        return next;
+    }
+
+    /**
+     * Takes the next item by deficit round-robin: the flow whose turn it is
+     * is served while its deficit covers its next item's cost, then goes to
+     * the back of the ring with what is left, unless it has run out of
+     * items, in which case it leaves the ring and forgets its deficit.
+     */
+    private Node<T> pollFair() {
+        while (!active.isEmpty()) {
+            Flow<T> queue = active.peekFirst();
+            if (!queue.inTurn) {
+                queue.inTurn = true;
+                queue.deficit += quantum;
+            }
+            Node<T> head = queue.items.peekFirst();
+            if (head.cost <= queue.deficit) {
+                queue.items.pollFirst();
+                queue.deficit -= head.cost;
+                if (queue.items.isEmpty()) {
+                    active.pollFirst();
+                    flows.remove(queue.flow);
+                }
+                return head;
+            }
+            queue.inTurn = false;
+            active.addLast(active.pollFirst());
+        }
+        return null;
+    }
+
+    private static final class Node<T> {
+        final T item;
+        final Lane lane;
+        final int cost;
+        final long queuedNanos;
+
+        Node(T item, Lane lane, int cost) {
+            this.item = item;
+            this.lane = lane;
+            this.cost = cost;
+            this.queuedNanos = System.nanoTime();
+        }
+    }
+
+    private static final class Flow<T> {
+        final int flow;
+        final ArrayDeque<Node<T>> items = new ArrayDeque<>();
+        int deficit;
+        boolean inTurn;
+
+        Flow(int flow) {
+            this.flow = flow;
+        }
+    }
+}
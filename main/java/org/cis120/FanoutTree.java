@@ -0,0 +1,194 @@
+package org.cis120;
+
+import java.util.*;
+
+/**
+ * A {@code FanoutTree} relays one {@link Broadcast} line to recipients on
+ * many cluster nodes without the originating node sending a copy per
+ * recipient, or even per node.
+ * <p>
+ * The nodes of the ring are arranged in a {@code degree}-ary tree rooted at
+ * the originating node: ordered by node number starting after the origin,
+ * the node at position {@code p} has children at positions
+ * {@code p * degree + 1} to {@code p * degree + degree}. A frame carries the
+ * line once, followed by the recipients of the receiving node's subtree
+ * grouped by node. Each node delivers the line to its own recipients and
+ * passes the rest down to those children whose subtrees hold recipients, so
+ * no node sends more than {@code degree} copies of a line, and a line
+ * reaches every node within log<sub>degree</sub>(nodes) hops.
+ * <p>
+ * The tree only depends on the ring and the origin, never on who the
+ * recipients are, so lines from one origin always take the same path to a
+ * node and arrive in the order they were sent.
+ * <p>
+ * A frame is {@code <origin> <node>:<id>,<id>;<node>:<id> <line>}, where the
+ * IDs are per-node connection numbers ({@code userId / MAX_NODES}), which
+ * keeps the recipient lists of large channels short.
+ */
+final class FanoutTree {
+
+    /**
+     * The number of nodes each node relays a line to by default.
+     */
+    static final int DEFAULT_DEGREE = 4;
+
+    private final int degree;
+
+    /**
+     * Constructs a {@code FanoutTree}.
+     *
+     * @param degree The number of children of each node, at least 1
+     */
+    FanoutTree(int degree) {
+        if (degree < 1) {
+            throw new IllegalArgumentException("Invalid degree " + degree);
+        }
+        this.degree = degree;
+    }
+
+    /**
+     * Lists the nodes of the tree rooted at {@code origin} by position.
+     *
+     * @param nodes  The nodes on the ring
+     * @param origin The node the line starts from
+     * @return The nodes in tree order, starting with {@code origin}
+     */
+    static List<Integer> order(SortedSet<Integer> nodes, int origin) {
+        List<Integer> order = new ArrayList<>(nodes.size() + 1);
+        order.add(origin);
+        order.addAll(nodes.tailSet(origin + 1));
+        order.addAll(nodes.headSet(origin));
+        return order;
+    }
+
+    /**
+     * Decides where {@code self} sends the recipients it is responsible
+     * for. Recipients on {@code self} itself are left out. A recipient node
+     * that is not in {@code self}'s subtree, which only happens while nodes
+     * disagree about the ring, is sent to directly.
+     *
+     * @param nodes   The nodes on the ring
+     * @param origin  The node the line started from
+     * @param self    The node relaying the line
+     * @param targets The recipients to reach, by node
+     * @return The recipients to send to each next hop, by next hop
+     */
+    Map<Integer, SortedMap<Integer, List<Integer>>> route(
+            SortedSet<Integer> nodes, int origin, int self,
+            SortedMap<Integer, List<Integer>> targets
+    ) {
+        List<Integer> order = order(nodes, origin);
+        Map<Integer, Integer> positions = new HashMap<>();
+        for (int position = 0; position < order.size(); position++) {
+            positions.put(order.get(position), position);
+        }
+        Integer own = positions.get(self);
+
+        Map<Integer, SortedMap<Integer, List<Integer>>> hops = new TreeMap<>();
+        for (Map.Entry<Integer, List<Integer>> target : targets.entrySet()) {
+            int node = target.getKey();
+            if (node == self) {
+                continue;
+            }
+            int hop = node;
+            Integer position = positions.get(node);
+            if (own != null && position != null) {
+                // Climb from the target towards the root until just below self
+                int child = position;
+                while (child > 0 && (child - 1) / degree != own) {
+                    child = (child - 1) / degree;
+                }
+                if (child > 0) {
+                    hop = order.get(child);
+                }
+            }
+            hops.computeIfAbsent(hop, h -> new TreeMap<>()).put(node, target.getValue());
+        }
+        return hops;
+    }
+
+    /**
+     * Encodes a frame.
+     *
+     * @param origin  The node the line started from
+     * @param targets The recipients' user IDs, by node
+     * @param line    The line to deliver
+     * @return The frame
+     */
+    static String encode(int origin, SortedMap<Integer, List<Integer>> targets, String line) {
+        StringBuilder frame = new StringBuilder().append(origin).append(' ');
+        boolean firstNode = true;
+        for (Map.Entry<Integer, List<Integer>> target : targets.entrySet()) {
+            if (!firstNode) {
+                frame.append(';');
+            }
+            firstNode = false;
+            frame.append(target.getKey()).append(':');
+            boolean firstId = true;
+            for (int userId : target.getValue()) {
+                if (!firstId) {
+                    frame.append(',');
+                }
+                firstId = false;
+                frame.append(userId / ClusterNode.MAX_NODES);
+            }
+        }
+        return frame.append(' ').append(line).toString();
+    }
+
+    /**
+     * Decodes a frame produced by {@link #encode(int, SortedMap, String)}.
+     *
+     * @param frame The frame
+     * @return The decoded frame
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    static Frame decode(String frame) {
+        int originEnd = frame.indexOf(' ');
+        int targetsEnd = originEnd < 0 ? -1 : frame.indexOf(' ', originEnd + 1);
+        if (targetsEnd < 0) {
+            throw new IllegalArgumentException("Malformed fan-out frame");
+        }
+        int origin = Integer.parseInt(frame.substring(0, originEnd));
+        SortedMap<Integer, List<Integer>> targets = new TreeMap<>();
+        for (String group : frame.substring(originEnd + 1, targetsEnd).split(";")) {
+            int colon = group.indexOf(':');
+            int node = Integer.parseInt(group.substring(0, colon));
+            List<Integer> userIds = new ArrayList<>();
+            if (colon + 1 < group.length()) {
+                for (String localId : group.substring(colon + 1).split(",")) {
+                    userIds.add(Integer.parseInt(localId) * ClusterNode.MAX_NODES + node);
+                }
+            }
+            targets.put(node, userIds);
+        }
+        return new Frame(origin, targets, frame.substring(targetsEnd + 1));
+    }
+
+    /**
+     * A decoded frame.
+     */
+    static final class Frame {
+        private final int origin;
+        private final SortedMap<Integer, List<Integer>> targets;
+        private final String line;
+
+        Frame(int origin, SortedMap<Integer, List<Integer>> targets, String line) {
+            this.origin = origin;
+            this.targets = targets;
+            this.line = line;
+        }
+
+        int getOrigin() {
+            return origin;
+        }
+
+        SortedMap<Integer, List<Integer>> getTargets() {
+            return targets;
+        }
+
+        String getLine() {
+            return line;
+        }
+    }
+}
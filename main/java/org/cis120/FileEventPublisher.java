@@ -0,0 +1,45 @@
+package org.cis120;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends published events to a local file, one JSON object per line, and
+ * flushes after every batch. Other processes can follow the file like a
+ * log.
+ */
+final class FileEventPublisher implements EventPublisher {
+    private final BufferedWriter writer;
+
+    /**
+     * Opens a file for appending, creating it if needed.
+     *
+     * @param file The file to append events to
+     * @throws IOException if the file cannot be opened
+     */
+    FileEventPublisher(Path file) throws IOException {
+        writer = Files.newBufferedWriter(
+                file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND
+        );
+    }
+
+    @Override
+    public void publish(List<ChatEvent> batch) throws IOException {
+        for (ChatEvent event : batch) {
+            writer.write(event.toJson());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
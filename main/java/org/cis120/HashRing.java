@@ -0,0 +1,116 @@
+package org.cis120;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A {@code HashRing} assigns keys, such as channel names, to cluster nodes
+ * by consistent hashing. Each node is placed on a 64-bit ring at
+ * {@link #VIRTUAL_NODES} pseudo-random points, and a key belongs to the node
+ * owning the first point at or after the key's hash.
+ * <p>
+ * Adding or removing a node only moves the keys between that node and its
+ * neighbours on the ring; every other key keeps its owner. The virtual
+ * nodes spread each node's share evenly around the ring.
+ * <p>
+ * {@code HashRing}s are immutable; {@link #with(int)} and
+ * {@link #without(int)} return new rings.
+ */
+final class HashRing {
+
+    /**
+     * The number of points each node occupies on the ring.
+     */
+    static final int VIRTUAL_NODES = 128;
+
+    private final SortedSet<Integer> nodes;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * Constructs a {@code HashRing} over the given nodes.
+     *
+     * @param nodes The node numbers on the ring
+     */
+    HashRing(Collection<Integer> nodes) {
+        this.nodes = Collections.unmodifiableSortedSet(new TreeSet<>(nodes));
+        TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (int node : this.nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash("node-" + node + "-" + i), node);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new int[ring.size()];
+        int index = 0;
+        for (Map.Entry<Long, Integer> point : ring.entrySet()) {
+            points[index] = point.getKey();
+            owners[index] = point.getValue();
+            index++;
+        }
+    }
+
+    /**
+     * @return the node numbers on the ring, in ascending order
+     */
+    SortedSet<Integer> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param node A node number
+     * @return a ring that also contains the node
+     */
+    HashRing with(int node) {
+        Set<Integer> next = new TreeSet<>(nodes);
+        next.add(node);
+        return new HashRing(next);
+    }
+
+    /**
+     * @param node A node number
+     * @return a ring that does not contain the node
+     */
+    HashRing without(int node) {
+        Set<Integer> next = new TreeSet<>(nodes);
+        next.remove(node);
+        return new HashRing(next);
+    }
+
+    /**
+     * Finds the node that owns a key.
+     *
+     * @param key The key, for example a channel name
+     * @return The owning node number
+     * @throws IllegalStateException if the ring is empty
+     */
+    int ownerOf(String key) {
+        if (points.length == 0) {
+            throw new IllegalStateException("Empty ring");
+        }
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Hashes a string to a point on the ring with 64-bit FNV-1a, followed by
+     * a finalizer that spreads similar keys such as "Channel1" and
+     * "Channel2" far apart.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
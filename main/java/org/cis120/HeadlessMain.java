@@ -0,0 +1,186 @@
+package org.cis120;
+
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * Starts a server without a UI, configured by a {@link ServerConfig}:
+ *
+ * <pre>
+ * java org.cis120.HeadlessMain --port=21212 --adminPort=21300
+ * java org.cis120.HeadlessMain --config=server.properties --queueLimit=10000
+ * java org.cis120.HeadlessMain --mode=restartable --restartSocket=/run/chat.sock
+ * </pre>
+ *
+ * Unlike {@link ServerMain}, no AWT or Swing class is ever loaded, so the
+ * server starts quickly and runs on hosts without a display. Two startup
+ * times are logged, both measured from the start of the process: when the
+ * client port is bound, and when the first connection is accepted.
+ * Startup can be shortened further with a class data sharing archive,
+ * created by one run with {@code -XX:ArchiveClassesAtExit=server.jsa} and
+ * used with {@code -XX:SharedArchiveFile=server.jsa}.
+ * <p>
+ * Interrupting the process shuts the server down gracefully (see
+ * {@link ServerBackend#shutdown(long, java.nio.file.Path)}), after handing
+ * a cluster node's channels to the remaining nodes.
+ */
+public final class HeadlessMain {
+
+    private final ServerConfig config;
+    private final ServerModel model;
+    private final ServerBackend backend;
+    private final ClusterNode cluster;
+
+    private EventStream events;
+    private AdminServer admin;
+    private HotRestart restart;
+    private Thread acceptor;
+
+    /**
+     * Constructs the server described by a configuration, without starting
+     * it.
+     *
+     * @param config The configuration
+     */
+    HeadlessMain(ServerConfig config) {
+        this.config = config;
+        model = new ServerModel();
+        backend = new ServerBackend(model, config);
+        if (config.getMode() == ServerConfig.Mode.CLUSTER) {
+            cluster = new ClusterNode(
+                    config.getNode(), config.getClusterPort(), config.getSeeds()
+            );
+            backend.joinCluster(cluster);
+        } else {
+            cluster = null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long mainStarted = System.currentTimeMillis();
+        System.setProperty("java.awt.headless", "true");
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException | IOException x) {
+            System.err.println(x.getMessage());
+            System.err.print("Usage: HeadlessMain [--config=<file>] [--<name>=<value> ...]\n"
+                    + "Settings and defaults:\n" + ServerConfig.describeDefaults());
+            System.exit(2);
+            return;
+        }
+        long processStarted = ProcessHandle.current().info().startInstant()
+                .map(Instant::toEpochMilli).orElse(mainStarted);
+
+        final HeadlessMain server = new HeadlessMain(config);
+        server.start();
+        System.out.printf(
+                "Listening on port %d, %d ms after process start\n",
+                server.getLocalPort(), System.currentTimeMillis() - processStarted
+        );
+        Thread startupTimer = new Thread(() -> {
+            try {
+                long accepted = server.backend.getStats().awaitFirstConnection();
+                System.out.printf(
+                        "First connection accepted %d ms after process start\n",
+                        accepted - processStarted
+                );
+            } catch (InterruptedException ix) {
+                // Shut down before anyone connected
+            }
+        }, "Startup timer");
+        startupTimer.setDaemon(true);
+        startupTimer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.shutdown();
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Server shutdown"));
+        server.awaitTermination();
+    }
+
+    /**
+     * Starts the event stream, the backend, and the admin server, as
+     * configured. Returns once the client port is bound, or binding it has
+     * failed.
+     *
+     * @throws IOException          if a listener cannot be started
+     * @throws InterruptedException if interrupted while starting
+     */
+    void start() throws IOException, InterruptedException {
+        if (config.getEventsFile() != null) {
+            events = new EventStream(new FileEventPublisher(config.getEventsFile()));
+            events.start();
+            model.publishEventsTo(events);
+        }
+        if (config.getRestartSocket() != null) {
+            restart = new HotRestart(backend, config.getRestartSocket());
+            acceptor = restart.start();
+        } else {
+            acceptor = new Thread(backend, "Connection acceptor");
+            acceptor.start();
+            while (backend.getLocalPort() <= 0 && acceptor.isAlive()) {
+                Thread.sleep(1);
+            }
+        }
+        if (config.getAdminPort() >= 0) {
+            admin = new AdminServer(backend, config.getAdminPort(), config.getDumpDirectory());
+            admin.start();
+        }
+    }
+
+    /** @return the backend */
+    ServerBackend getBackend() {
+        return backend;
+    }
+
+    /** @return the client port, or -1 if it is not bound */
+    int getLocalPort() {
+        return backend.getLocalPort();
+    }
+
+    /** @return the admin port, or -1 if there is no admin server */
+    int getAdminPort() {
+        return admin == null ? -1 : admin.getLocalPort();
+    }
+
+    /**
+     * Waits until the server stops accepting connections.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitTermination() throws InterruptedException {
+        acceptor.join();
+    }
+
+    /**
+     * Shuts the server down gracefully, then stops everything else. A
+     * backend that cannot shut down gracefully, because it has stopped or is
+     * relaying clients after a hot restart, is stopped at once.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void shutdown() throws InterruptedException {
+        if (cluster != null && backend.isRunning()) {
+            cluster.leave();
+        }
+        ServerBackend.ShutdownReport report = backend.shutdown(
+                config.getShutdownTimeoutMillis(), config.getSnapshotFile()
+        );
+        if (report == null) {
+            backend.stop();
+        }
+        if (admin != null) {
+            admin.stop();
+        }
+        if (restart != null) {
+            restart.close();
+        }
+        if (events != null) {
+            events.close(config.getShutdownTimeoutMillis());
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.cis120;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code HeartbeatMonitor} finds connections whose peer has gone away
+ * without closing the TCP connection, and reaps them.
+ * <p>
+ * Every {@link ClientConnection} records the time it last received a line.
+ * Once a connection has been silent for {@code pingAfter}, the monitor sends
+ * it {@code PING <token>}; any line from the client, normally
+ * {@code PONG <token>}, counts as activity. If the client is still silent
+ * {@code pongTimeout} after the ping, its socket is closed. The connection's
+ * {@code ConnectionWorker} then fails its read and enqueues the usual
+ * {@code Disconnection} task, so a reaped user leaves their channels exactly
+ * as if they had quit.
+ * <p>
+ * Deadlines are kept in a single {@link TimingWheel} serviced by one
+ * "Heartbeat thread". A connection's deadline is not moved on every line it
+ * receives; when a deadline expires, the monitor compares it with the last
+ * activity and simply schedules the next check if the connection turns out
+ * to have been busy. Receiving a line therefore costs one clock read and one
+ * volatile write.
+ * <p>
+ * Pings are written by a fixed pool of {@link #SENDERS} "Heartbeat sender"
+ * threads, never by the heartbeat thread itself: a peer that stopped reading
+ * fills its socket buffer, and a write to it blocks until the socket is
+ * closed. A sender stuck that way is freed when the connection is reaped,
+ * and other connections are pinged by the other senders in the meantime. If
+ * every sender is stuck, pings wait their turn, and a connection's pong
+ * timeout only starts once its ping is being written, so a connection is
+ * never reaped for a ping it was not sent.
+ */
+final class HeartbeatMonitor implements Runnable {
+
+    /**
+     * The number of "Heartbeat sender" threads, however many connections
+     * are pinged at once.
+     */
+    static final int SENDERS = 4;
+
+    private final long pingAfterNanos;
+    private final long pongTimeoutNanos;
+    private final long tickNanos;
+    private final TimingWheel<Watch> wheel;
+    private final ExecutorService senders;
+    private final AtomicInteger senderThreads;
+    private final boolean enabled;
+
+    private volatile boolean running;
+    private volatile Thread thread;
+    private long nextToken;
+
+    /**
+     * Constructs a {@code HeartbeatMonitor}.
+     *
+     * @param pingAfter   How long a connection may be silent before it is
+     *                    pinged
+     * @param pongTimeout How long a pinged connection has to answer
+     * @param tick        The resolution of the monitor's deadlines
+     * @param unit        The unit of the three durations
+     */
+    HeartbeatMonitor(long pingAfter, long pongTimeout, long tick, TimeUnit unit) {
+        this(pingAfter, pongTimeout, tick, unit, true);
+    }
+
+    private HeartbeatMonitor(
+            long pingAfter, long pongTimeout, long tick, TimeUnit unit, boolean enabled
+    ) {
+        this.enabled = enabled;
+        pingAfterNanos = unit.toNanos(pingAfter);
+        pongTimeoutNanos = unit.toNanos(pongTimeout);
+        tickNanos = unit.toNanos(tick);
+        // One turn of the wheel covers the longest deadline, so most
+        // connections are only ever touched when they are actually due
+        long span = Math.max(pingAfterNanos, pongTimeoutNanos);
+        int slots = (int) Math.min(1 << 16, span / tickNanos + 1);
+        wheel = new TimingWheel<>(tickNanos, slots, System.nanoTime());
+        senderThreads = new AtomicInteger();
+        senders = Executors.newFixedThreadPool(SENDERS, runnable -> {
+            senderThreads.incrementAndGet();
+            Thread thread = new Thread(runnable, "Heartbeat sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a {@code HeartbeatMonitor} that pings connections after a
+     * minute of silence and reaps them if they do not answer within 30
+     * seconds, with one-second resolution.
+     *
+     * @return The default heartbeat monitor
+     */
+    static HeartbeatMonitor defaults() {
+        return new HeartbeatMonitor(60, 30, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a {@code HeartbeatMonitor} that watches nothing and never
+     * starts a thread, so idle connections stay open.
+     *
+     * @return A disabled heartbeat monitor
+     */
+    static HeartbeatMonitor disabled() {
+        return new HeartbeatMonitor(60, 30, 1, TimeUnit.SECONDS, false);
+    }
+
+    /**
+     * @return the number of "Heartbeat sender" threads started, at most
+     * {@link #SENDERS}
+     */
+    int getSenderThreads() {
+        return senderThreads.get();
+    }
+
+    /**
+     * Starts tracking a new connection.
+     *
+     * @param connection The connection to track
+     */
+    void watch(ClientConnection connection) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        wheel.schedule(new Watch(connection), pingAfterNanos, now);
+    }
+
+    /**
+     * Starts the "Heartbeat thread".
+     */
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "Heartbeat thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the "Heartbeat thread". Connections are left open.
+     */
+    void stop() {
+        running = false;
+        Thread current = thread;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(tickNanos);
+            } catch (InterruptedException ix) {
+                continue;
+            }
+            long now = System.nanoTime();
+            wheel.advance(now, watch -> check(watch, now));
+        }
+    }
+
+    /**
+     * Decides what to do with a connection whose deadline has expired, and
+     * schedules its next deadline if it is still open.
+     *
+     * @param watch The expired connection
+     * @param now   The current time from {@link System#nanoTime()}
+     */
+    void check(Watch watch, long now) {
+        ClientConnection connection = watch.connection;
+        if (connection.isClosed()) {
+            return;
+        }
+        long lastActivity = connection.getLastActivity();
+        long idle = now - lastActivity;
+
+        if (watch.pingSentAt != 0 && lastActivity - watch.pingSentAt < 0) {
+            // Pinged, and nothing heard since; the pong timeout runs from
+            // when a sender started writing the ping, if that was later
+            long sentAt = watch.pingSentAt;
+            if (watch.queued) {
+                sentAt = now;
+            } else if (watch.pingWrittenAt - sentAt > 0) {
+                sentAt = watch.pingWrittenAt;
+            }
+            if (now - sentAt >= pongTimeoutNanos) {
+                reap(connection);
+            } else {
+                wheel.schedule(watch, sentAt + pongTimeoutNanos - now, now);
+            }
+        } else if (idle >= pingAfterNanos) {
+            watch.pingSentAt = now;
+            // If the connection is busy, or the last ping is still being
+            // written, the pong timeout applies all the same
+            if (!watch.sending) {
+                watch.sending = true;
+                watch.queued = true;
+                String ping = "PING " + nextToken++;
+                senders.execute(() -> {
+                    watch.pingWrittenAt = System.nanoTime();
+                    watch.queued = false;
+                    connection.trySend(ping);
+                    watch.sending = false;
+                });
+            }
+            wheel.schedule(watch, pongTimeoutNanos, now);
+        } else {
+            watch.pingSentAt = 0;
+            wheel.schedule(watch, pingAfterNanos - idle, now);
+        }
+    }
+
+    private void reap(ClientConnection connection) {
+        System.out.printf("Reaping idle user %d\n", connection.getUserId());
+        try {
+            connection.close();
+        } catch (IOException iox) {
+            iox.printStackTrace();
+        }
+    }
+
+    /**
+     * The heartbeat state of one connection.
+     */
+    static final class Watch {
+        private final ClientConnection connection;
+        private long pingSentAt;
+        // Set from when this connection's ping is handed to the senders
+        // until it has been written; queued only until a sender picks it up
+        private volatile boolean sending;
+        private volatile boolean queued;
+        // When a sender started writing the latest ping
+        private volatile long pingWrittenAt;
+
+        Watch(ClientConnection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package org.cis120;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@code HotRestart} replaces a running server process with a new one
+ * without disconnecting its clients, for example to deploy a new version:
+ *
+ * <pre>
+ * java org.cis120.HotRestart 21212 /tmp/chat.sock      the running server
+ * java org.cis120.HotRestart 21212 /tmp/chat.sock      takes over from it
+ * </pre>
+ *
+ * Every server listens on a Unix domain socket at the given path. A new
+ * server that finds an old one there connects and sends {@code TAKEOVER}.
+ * The old server stops accepting, runs the commands it has already queued,
+ * and sends back its state (see {@link ServerBackend#handOff(Writer)}). The
+ * new server loads it, binds the client port and opens one relay channel per
+ * connected client, introduced by {@code ATTACH id}. Then it takes over the
+ * socket path for the next restart.
+ * <p>
+ * A JVM cannot pass file descriptors over a Unix domain socket, so the
+ * established TCP connections stay in the old process. The old process keeps
+ * each client's codec and relays its lines, as text, both ways until the
+ * client hangs up; it exits when the last one has. Clients keep their user
+ * IDs, nicknames and channels and see no interruption. New clients connect
+ * to the new process; between the old process closing the port and the new
+ * one binding it, which takes as long as sending the state, connections are
+ * refused. Message history is not carried over, and cluster nodes cannot be
+ * restarted this way.
+ */
+final class HotRestart {
+
+    /**
+     * How long the old process waits for the new one to attach each client
+     * before disconnecting it.
+     */
+    static final long ATTACH_TIMEOUT_MILLIS = 10_000;
+
+    private final ServerBackend backend;
+    private final Path socketPath;
+    private volatile ServerSocketChannel listener;
+    // Set once a new process has taken over the socket path
+    private volatile boolean handedOver;
+
+    /**
+     * Constructs a {@code HotRestart}.
+     *
+     * @param backend    The server to start, not yet running
+     * @param socketPath The Unix domain socket shared by successive servers
+     */
+    HotRestart(ServerBackend backend, Path socketPath) {
+        if (backend == null || socketPath == null) {
+            throw new NullPointerException();
+        }
+        this.backend = backend;
+        this.socketPath = socketPath;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: HotRestart <clientPort> <socketPath>");
+            System.exit(2);
+        }
+        ServerBackend server = new ServerBackend(
+                new ServerModel(), RateLimiter.defaults(), HeartbeatMonitor.defaults(),
+                Integer.parseInt(args[0])
+        );
+        new HotRestart(server, Path.of(args[1])).start().join();
+    }
+
+    /**
+     * Starts the server, taking over from the server listening on the socket
+     * path if there is one, and then listens there for the next restart.
+     *
+     * @return the server's acceptor thread, which ends when the server stops
+     * accepting connections
+     * @throws IOException          if taking over or listening fails
+     * @throws InterruptedException if interrupted while taking over
+     */
+    Thread start() throws IOException, InterruptedException {
+        SocketChannel control;
+        try {
+            control = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException iox) {
+            // Nobody is listening; the file may be left over from a crash
+            Files.deleteIfExists(socketPath);
+            control = null;
+        }
+        Thread acceptor;
+        if (control == null) {
+            acceptor = startAcceptor();
+        } else {
+            try (SocketChannel old = control) {
+                acceptor = takeOver(old);
+            }
+        }
+        listen();
+        return acceptor;
+    }
+
+    /**
+     * Stops listening for a new process, and removes the socket file unless
+     * a new process has taken it over.
+     */
+    void close() {
+        ServerSocketChannel current = listener;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+            if (!handedOver) {
+                Files.deleteIfExists(socketPath);
+            }
+        } catch (IOException iox) {
+            iox.printStackTrace();
+        }
+    }
+
+    private Thread startAcceptor() throws InterruptedException {
+        Thread acceptor = new Thread(backend, "Connection acceptor");
+        acceptor.start();
+        while (backend.getLocalPort() <= 0 && acceptor.isAlive()) {
+            Thread.sleep(5);
+        }
+        return acceptor;
+    }
+
+    // ==========================================================================
+    // New process
+    // ==========================================================================
+
+    private Thread takeOver(SocketChannel control) throws IOException, InterruptedException {
+        Writer out = new OutputStreamWriter(outputStream(control), StandardCharsets.UTF_8);
+        out.write("TAKEOVER\n");
+        out.flush();
+
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(inputStream(control), StandardCharsets.UTF_8)
+        );
+        String line = in.readLine();
+        if (line == null || !line.startsWith("NEXT ")) {
+            throw new IOException("Takeover refused: " + line);
+        }
+        int nextUserId = Integer.parseInt(line.substring("NEXT ".length()));
+        List<Integer> userIds = new ArrayList<>();
+        while (true) {
+            in.mark(256);
+            line = in.readLine();
+            if (line == null || !line.startsWith("CONNECTION ")) {
+                in.reset();
+                break;
+            }
+            userIds.add(Integer.parseInt(line.substring("CONNECTION ".length())));
+        }
+        ModelSnapshot snapshot = ModelSnapshot.read(in);
+
+        backend.restore(snapshot, nextUserId);
+        Thread acceptor = startAcceptor();
+        for (int userId : userIds) {
+            SocketChannel relay = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+            outputStream(relay).write(
+                    ("ATTACH " + userId + "\n").getBytes(StandardCharsets.UTF_8)
+            );
+            backend.adopt(userId, relay);
+        }
+        System.out.printf("Took over %d clients from the previous server\n", userIds.size());
+        return acceptor;
+    }
+
+    // ==========================================================================
+    // Old process
+    // ==========================================================================
+
+    private void listen() throws IOException {
+        // The previous server's listener, if any, is no longer needed
+        Files.deleteIfExists(socketPath);
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(socketPath));
+        listener = channel;
+        Thread thread = new Thread(() -> {
+            int expected = -1;
+            try {
+                while (expected != 0) {
+                    SocketChannel connection = channel.accept();
+                    String line = new TextCodec().decode(inputStream(connection));
+                    if ("TAKEOVER".equals(line) && expected < 0) {
+                        expected = handOff(connection);
+                    } else if (line != null && line.startsWith("ATTACH ") && expected > 0) {
+                        backend.attach(
+                                Integer.parseInt(line.substring("ATTACH ".length())), connection
+                        );
+                        expected--;
+                    } else {
+                        connection.close();
+                    }
+                }
+            } catch (IOException | RuntimeException x) {
+                if (channel.isOpen()) {
+                    x.printStackTrace();
+                }
+            } catch (InterruptedException ix) {
+                // Abandon the handoff
+            } finally {
+                // The new process owns the socket path by now
+                try {
+                    channel.close();
+                } catch (IOException iox) {
+                    iox.printStackTrace();
+                }
+            }
+        }, "Hot restart listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Answers {@code TAKEOVER} with the server's state.
+     *
+     * @return the number of clients to attach, or -1 if refused
+     */
+    private int handOff(SocketChannel control) throws IOException, InterruptedException {
+        try (control) {
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(outputStream(control), StandardCharsets.UTF_8)
+            );
+            int[] userIds = backend.handOff(out);
+            if (userIds == null) {
+                out.write("BUSY\n");
+                out.flush();
+                return -1;
+            }
+            handedOver = true;
+            return userIds.length;
+        }
+    }
+
+    /**
+     * Relays one client of the old process to the new one. Lines from the
+     * client are forwarded by the model thread; lines from the new process
+     * are sent to the client by a "Relay" thread, which closes the client's
+     * connection when the new process closes the channel.
+     */
+    static final class Relay {
+        private final ClientConnection connection;
+        private final SocketChannel channel;
+        private final OutputStream out;
+        private final TextCodec codec = new TextCodec();
+
+        Relay(ClientConnection connection, SocketChannel channel) {
+            this.connection = connection;
+            this.channel = channel;
+            out = new BufferedOutputStream(outputStream(channel));
+        }
+
+        void start() {
+            Thread pump = new Thread(() -> {
+                InputStream in = new BufferedInputStream(inputStream(channel));
+                TextCodec decoder = new TextCodec();
+                try {
+                    String line;
+                    while ((line = decoder.decode(in)) != null) {
+                        connection.send(line);
+                    }
+                } catch (IOException iox) {
+                    // Either side hung up
+                } finally {
+                    try {
+                        connection.close();
+                    } catch (IOException iox) {
+                        iox.printStackTrace();
+                    }
+                }
+            }, "Relay " + connection.getUserId());
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        /**
+         * Forwards a line from the client. Called on the model thread only.
+         *
+         * @param line The line in text form
+         * @throws IOException if the new process has hung up
+         */
+        void forward(String line) throws IOException {
+            codec.encode(line, out);
+            out.flush();
+        }
+
+        /**
+         * Tells the new process that the client has hung up.
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+        }
+    }
+
+    // ==========================================================================
+    // Channel streams
+    // ==========================================================================
+
+    // The streams of Channels.newInputStream and newOutputStream share a lock
+    // on a blocking channel, so a pending read would block every write. These
+    // call read and write directly, which may run concurrently.
+
+    /**
+     * @param channel A blocking channel
+     * @return an unbuffered stream reading from the channel
+     */
+    static InputStream inputStream(SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return length == 0 ? 0 : channel.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+        };
+    }
+
+    /**
+     * @param channel A blocking channel
+     * @return an unbuffered stream writing to the channel
+     */
+    static OutputStream outputStream(SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,365 @@
+package org.cis120;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An {@code IdBitmap} is a compressed bitmap of non-negative {@code int}s,
+ * laid out like a roaring bitmap. Values are split by their high 16 bits
+ * into chunks of 65536; each chunk is a sorted array of its low 16 bits
+ * while it holds at most {@value #ARRAY_LIMIT} values, and a plain bitmap of
+ * 1024 words once it holds more. User IDs are handed out densely, so the
+ * members of a channel with tens of thousands of users take about one bit
+ * each, and the union of two such channels is a word-by-word {@code OR}.
+ * <p>
+ * Values are visited in ascending order. Not thread-safe.
+ */
+final class IdBitmap {
+
+    // The most values a chunk keeps as an array; an array that size takes
+    // as much room as a bitmap
+    static final int ARRAY_LIMIT = 4096;
+
+    private char[] keys;
+    private Chunk[] chunks;
+    private int chunkCount;
+    private int size;
+
+    /**
+     * Constructs an empty {@code IdBitmap}.
+     */
+    IdBitmap() {
+        keys = new char[4];
+        chunks = new Chunk[4];
+    }
+
+    /** @return the number of values */
+    int size() {
+        return size;
+    }
+
+    /** @return true if there are no values */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param value A value
+     * @return true if the bitmap contains the value
+     */
+    boolean contains(int value) {
+        int i = indexOf(value >>> 16);
+        return i >= 0 && chunks[i].contains((char) value);
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param value The value, not negative
+     * @return false if the bitmap already contained it
+     */
+    boolean add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value");
+        }
+        int i = indexOf(value >>> 16);
+        if (i < 0) {
+            i = -i - 1;
+            insertChunk(i, (char) (value >>> 16), new ArrayChunk(new char[4], 0));
+        }
+        Chunk chunk = chunks[i];
+        int before = chunk.size();
+        chunks[i] = chunk.add((char) value);
+        if (chunks[i].size() == before) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param value The value
+     * @return false if the bitmap did not contain it
+     */
+    boolean remove(int value) {
+        int i = value < 0 ? -1 : indexOf(value >>> 16);
+        if (i < 0 || !chunks[i].contains((char) value)) {
+            return false;
+        }
+        chunks[i] = chunks[i].remove((char) value);
+        size--;
+        if (chunks[i].size() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, chunkCount - i - 1);
+            System.arraycopy(chunks, i + 1, chunks, i, chunkCount - i - 1);
+            chunks[--chunkCount] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Adds every value of another bitmap to this one.
+     *
+     * @param other The other bitmap, which is not modified
+     */
+    void or(IdBitmap other) {
+        for (int j = 0; j < other.chunkCount; j++) {
+            int i = indexOf(other.keys[j]);
+            if (i < 0) {
+                insertChunk(-i - 1, other.keys[j], other.chunks[j].copy());
+            } else {
+                chunks[i] = chunks[i].or(other.chunks[j]);
+            }
+        }
+        size = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            size += chunks[i].size();
+        }
+    }
+
+    /**
+     * Calls an action with every value, in ascending order. The bitmap must
+     * not be modified by the action.
+     *
+     * @param action The action
+     */
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * @return the values in a new array, in ascending order
+     */
+    int[] toArray() {
+        int[] values = new int[size];
+        int[] n = new int[1];
+        forEach(value -> values[n[0]++] = value);
+        return values;
+    }
+
+    private int indexOf(int key) {
+        return Arrays.binarySearch(keys, 0, chunkCount, (char) key);
+    }
+
+    private void insertChunk(int i, char key, Chunk chunk) {
+        if (chunkCount == keys.length) {
+            keys = Arrays.copyOf(keys, chunkCount * 2);
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, chunkCount - i);
+        System.arraycopy(chunks, i, chunks, i + 1, chunkCount - i);
+        keys[i] = key;
+        chunks[i] = chunk;
+        chunkCount++;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // ==========================================================================
+    // Chunks
+    // ==========================================================================
+
+    /**
+     * The low 16 bits of the values sharing their high 16 bits. Changes
+     * return the chunk to use from then on, which is a different kind of
+     * chunk when the size crosses {@link #ARRAY_LIMIT}.
+     */
+    private abstract static class Chunk {
+        abstract int size();
+
+        abstract boolean contains(char low);
+
+        abstract Chunk add(char low);
+
+        abstract Chunk remove(char low);
+
+        /** May modify this chunk, never {@code other}. */
+        abstract Chunk or(Chunk other);
+
+        abstract Chunk copy();
+
+        abstract void forEach(int high, IntConsumer action);
+    }
+
+    private static final class ArrayChunk extends Chunk {
+        private char[] values;
+        private int size;
+
+        ArrayChunk(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        Chunk add(char low) {
+            int i = Arrays.binarySearch(values, 0, size, low);
+            if (i >= 0) {
+                return this;
+            }
+            if (size == ARRAY_LIMIT) {
+                return toBitmap().add(low);
+            }
+            i = -i - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, size * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, size - i);
+            values[i] = low;
+            size++;
+            return this;
+        }
+
+        @Override
+        Chunk remove(char low) {
+            int i = Arrays.binarySearch(values, 0, size, low);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                size--;
+            }
+            return this;
+        }
+
+        @Override
+        Chunk or(Chunk other) {
+            if (other instanceof BitmapChunk) {
+                return other.copy().or(this);
+            }
+            ArrayChunk that = (ArrayChunk) other;
+            char[] merged = new char[size + that.size];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < size && j < that.size) {
+                char a = values[i];
+                char b = that.values[j];
+                merged[n++] = a <= b ? a : b;
+                i += a <= b ? 1 : 0;
+                j += b <= a ? 1 : 0;
+            }
+            while (i < size) {
+                merged[n++] = values[i++];
+            }
+            while (j < that.size) {
+                merged[n++] = that.values[j++];
+            }
+            ArrayChunk union = new ArrayChunk(merged, n);
+            return n > ARRAY_LIMIT ? union.toBitmap() : union;
+        }
+
+        @Override
+        Chunk copy() {
+            return new ArrayChunk(Arrays.copyOf(values, Math.max(size, 1)), size);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < size; i++) {
+                action.accept(high | values[i]);
+            }
+        }
+
+        private BitmapChunk toBitmap() {
+            BitmapChunk bitmap = new BitmapChunk();
+            for (int i = 0; i < size; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapChunk extends Chunk {
+        private final long[] words = new long[1024];
+        private int size;
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Chunk add(char low) {
+            long word = words[low >>> 6];
+            if ((word & (1L << low)) == 0) {
+                words[low >>> 6] = word | (1L << low);
+                size++;
+            }
+            return this;
+        }
+
+        @Override
+        Chunk remove(char low) {
+            long word = words[low >>> 6];
+            if ((word & (1L << low)) != 0) {
+                words[low >>> 6] = word & ~(1L << low);
+                size--;
+            }
+            // Shrink only well below the limit, so a chunk whose size hovers
+            // around it is not converted back and forth
+            return size < ARRAY_LIMIT / 2 ? toArray() : this;
+        }
+
+        @Override
+        Chunk or(Chunk other) {
+            if (other instanceof ArrayChunk that) {
+                for (int i = 0; i < that.size; i++) {
+                    add(that.values[i]);
+                }
+                return this;
+            }
+            long[] those = ((BitmapChunk) other).words;
+            size = 0;
+            for (int i = 0; i < words.length; i++) {
+                words[i] |= those[i];
+                size += Long.bitCount(words[i]);
+            }
+            return this;
+        }
+
+        @Override
+        Chunk copy() {
+            BitmapChunk copy = new BitmapChunk();
+            System.arraycopy(words, 0, copy.words, 0, words.length);
+            copy.size = size;
+            return copy;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        private ArrayChunk toArray() {
+            char[] values = new char[Math.max(size, 1)];
+            int[] n = new int[1];
+            forEach(0, low -> values[n[0]++] = (char) low);
+            return new ArrayChunk(values, size);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.cis120;
+
+import java.util.Arrays;
+
+/**
+ * An {@code IntMap} maps {@code int} keys to objects, storing the keys
+ * unboxed in an open-addressing hash table with linear probing. It is used
+ * by the {@link ServerModel} for state keyed by user or channel ID, where a
+ * {@code Map<Integer, V>} would allocate a box and an entry per mapping.
+ * <p>
+ * {@link Integer#MIN_VALUE} cannot be used as a key, and null cannot be
+ * used as a value. Removal shifts later entries of the probe sequence back,
+ * so no tombstones build up. The iteration order is unspecified. Not
+ * thread-safe.
+ *
+ * @param <V> The type of the values
+ */
+final class IntMap<V> {
+
+    private static final int FREE = IntSet.FREE;
+    private static final int MIN_CAPACITY = 4;
+
+    /**
+     * An action on one mapping.
+     *
+     * @param <V> The type of the values
+     */
+    interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    /**
+     * Constructs an empty {@code IntMap}.
+     */
+    IntMap() {
+        keys = newKeys(MIN_CAPACITY);
+        values = new Object[MIN_CAPACITY];
+    }
+
+    /**
+     * Constructs an {@code IntMap} with the same mappings as another. The
+     * values themselves are shared.
+     *
+     * @param other The map to copy
+     */
+    IntMap(IntMap<? extends V> other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    /**
+     * Spreads the bits of a key, so that consecutive IDs do not form long
+     * probe sequences.
+     */
+    static int mix(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the number of mappings */
+    int size() {
+        return size;
+    }
+
+    /** @return true if there are no mappings */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of slots in the table, a power of two; each costs
+     * an {@code int} key and a value reference
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param key A key
+     * @return true if the key is mapped
+     */
+    boolean containsKey(int key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @param key A key
+     * @return the key's value, or null if it is not mapped
+     */
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * Maps a key to a value.
+     *
+     * @param key   The key, not {@link Integer#MIN_VALUE}
+     * @param value The value, not null
+     * @return the key's previous value, or null if it was not mapped
+     */
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Reserved key");
+        }
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 4 > keys.length * 3) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes a key's mapping.
+     *
+     * @param key The key
+     * @return the key's value, or null if it was not mapped
+     */
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V previous = (V) values[i];
+        int mask = keys.length - 1;
+        // Shift back later entries whose probe sequence passes the hole
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = FREE;
+        values[hole] = null;
+        size--;
+        return previous;
+    }
+
+    /**
+     * Calls an action with every mapping. The map must not be modified by
+     * the action.
+     *
+     * @param action The action
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(EntryConsumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                action.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the keys in a new array, in iteration order
+     */
+    int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int key : keys) {
+            if (key != FREE) {
+                result[n++] = key;
+            }
+        }
+        return result;
+    }
+
+    private int indexOf(int key) {
+        if (key == FREE) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+            if (keys[i] == FREE) {
+                return -1;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != FREE) {
+                int i = mix(oldKeys[j]) & mask;
+                while (keys[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int[] newKeys(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, FREE);
+        return table;
+    }
+}
@@ -0,0 +1,179 @@
+package org.cis120;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An {@code IntSet} is a set of {@code int}s stored unboxed in an
+ * open-addressing hash table with linear probing. It is used by the
+ * {@link ServerModel} for sets of user and channel IDs, where a
+ * {@code Set<Integer>} would allocate a box and a node per element.
+ * <p>
+ * {@link Integer#MIN_VALUE} marks free slots and cannot be stored. Removal
+ * shifts later entries of the probe sequence back, so no tombstones build
+ * up. The iteration order is unspecified. Not thread-safe.
+ */
+final class IntSet {
+
+    static final int FREE = Integer.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 4;
+
+    private int[] slots;
+    private int size;
+
+    /**
+     * Constructs an empty {@code IntSet}.
+     */
+    IntSet() {
+        slots = newTable(MIN_CAPACITY);
+    }
+
+    /** @return the number of elements */
+    int size() {
+        return size;
+    }
+
+    /** @return true if there are no elements */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param value An element
+     * @return true if the set contains the element
+     */
+    boolean contains(int value) {
+        int mask = slots.length - 1;
+        for (int i = IntMap.mix(value) & mask; ; i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == value) {
+                return value != FREE;
+            }
+            if (slot == FREE) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds an element.
+     *
+     * @param value The element, not {@link #FREE}
+     * @return false if the set already contained it
+     */
+    boolean add(int value) {
+        if (value == FREE) {
+            throw new IllegalArgumentException("Reserved value");
+        }
+        int mask = slots.length - 1;
+        int i = IntMap.mix(value) & mask;
+        while (slots[i] != FREE) {
+            if (slots[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        if (++size * 4 > slots.length * 3) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Removes an element.
+     *
+     * @param value The element
+     * @return false if the set did not contain it
+     */
+    boolean remove(int value) {
+        if (value == FREE) {
+            return false;
+        }
+        int mask = slots.length - 1;
+        int i = IntMap.mix(value) & mask;
+        while (slots[i] != value) {
+            if (slots[i] == FREE) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // Shift back later entries whose probe sequence passes the hole
+        int hole = i;
+        for (int j = (hole + 1) & mask; slots[j] != FREE; j = (j + 1) & mask) {
+            int home = IntMap.mix(slots[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                slots[hole] = slots[j];
+                hole = j;
+            }
+        }
+        slots[hole] = FREE;
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes every element, keeping the allocated table.
+     */
+    void clear() {
+        Arrays.fill(slots, FREE);
+        size = 0;
+    }
+
+    /**
+     * Calls an action with every element. The set must not be modified by
+     * the action.
+     *
+     * @param action The action
+     */
+    void forEach(IntConsumer action) {
+        for (int slot : slots) {
+            if (slot != FREE) {
+                action.accept(slot);
+            }
+        }
+    }
+
+    /**
+     * @return the elements in a new array, in iteration order
+     */
+    int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        for (int slot : slots) {
+            if (slot != FREE) {
+                values[n++] = slot;
+            }
+        }
+        return values;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = slots;
+        slots = newTable(capacity);
+        int mask = capacity - 1;
+        for (int value : old) {
+            if (value != FREE) {
+                int i = IntMap.mix(value) & mask;
+                while (slots[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, FREE);
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        int[] values = toArray();
+        Arrays.sort(values);
+        return Arrays.toString(values);
+    }
+}
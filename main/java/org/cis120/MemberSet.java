@@ -0,0 +1,167 @@
+package org.cis120;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A {@code MemberSet} holds the user IDs of a channel's members, in a form
+ * that suits the channel's size. Up to {@value #ARRAY_LIMIT} members are
+ * kept in a sorted array, which for a small channel is smaller than any
+ * hash table and as quick to search. A larger channel switches to an
+ * {@link IdBitmap}, which takes about a bit per member over the dense user
+ * IDs, and goes back to an array once it has shrunk to half the limit.
+ * <p>
+ * Members are visited in ascending order of ID in either form. Unions of
+ * several channels' members, as needed to find who shares a channel with
+ * a user, are built with {@link #addTo(IdBitmap)}. Not thread-safe.
+ */
+final class MemberSet {
+
+    static final int ARRAY_LIMIT = 1024;
+
+    private int[] array;
+    private int size;
+    // Replaces the array once the set grows past the limit
+    private IdBitmap bitmap;
+
+    /**
+     * Constructs an empty {@code MemberSet}.
+     */
+    MemberSet() {
+        array = new int[4];
+    }
+
+    /** @return the number of members */
+    int size() {
+        return bitmap == null ? size : bitmap.size();
+    }
+
+    /** @return true if there are no members */
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** @return true if the members are kept in an {@link IdBitmap} */
+    boolean isBitmap() {
+        return bitmap != null;
+    }
+
+    /**
+     * @param userId A user ID
+     * @return true if the user is a member
+     */
+    boolean contains(int userId) {
+        if (bitmap != null) {
+            return bitmap.contains(userId);
+        }
+        return Arrays.binarySearch(array, 0, size, userId) >= 0;
+    }
+
+    /**
+     * Adds a member.
+     *
+     * @param userId The user ID, not negative
+     * @return false if the user was already a member
+     */
+    boolean add(int userId) {
+        if (bitmap != null) {
+            return bitmap.add(userId);
+        }
+        int i = Arrays.binarySearch(array, 0, size, userId);
+        if (i >= 0) {
+            return false;
+        }
+        if (userId < 0) {
+            throw new IllegalArgumentException("Negative user ID");
+        }
+        if (size == ARRAY_LIMIT) {
+            bitmap = new IdBitmap();
+            for (int j = 0; j < size; j++) {
+                bitmap.add(array[j]);
+            }
+            array = null;
+            size = 0;
+            return bitmap.add(userId);
+        }
+        i = -i - 1;
+        if (size == array.length) {
+            array = Arrays.copyOf(array, size * 2);
+        }
+        System.arraycopy(array, i, array, i + 1, size - i);
+        array[i] = userId;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param userId The user ID
+     * @return false if the user was not a member
+     */
+    boolean remove(int userId) {
+        if (bitmap != null) {
+            if (!bitmap.remove(userId)) {
+                return false;
+            }
+            if (bitmap.size() < ARRAY_LIMIT / 2) {
+                array = bitmap.toArray();
+                size = array.length;
+                array = Arrays.copyOf(array, ARRAY_LIMIT);
+                bitmap = null;
+            }
+            return true;
+        }
+        int i = Arrays.binarySearch(array, 0, size, userId);
+        if (i < 0) {
+            return false;
+        }
+        System.arraycopy(array, i + 1, array, i, size - i - 1);
+        size--;
+        return true;
+    }
+
+    /**
+     * Adds every member to a bitmap, such as a union being built of the
+     * members of several channels.
+     *
+     * @param union The bitmap to add to
+     */
+    void addTo(IdBitmap union) {
+        if (bitmap != null) {
+            union.or(bitmap);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            union.add(array[i]);
+        }
+    }
+
+    /**
+     * Calls an action with every member, in ascending order. The set must
+     * not be modified by the action.
+     *
+     * @param action The action
+     */
+    void forEach(IntConsumer action) {
+        if (bitmap != null) {
+            bitmap.forEach(action);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            action.accept(array[i]);
+        }
+    }
+
+    /**
+     * @return the members in a new array, in ascending order
+     */
+    int[] toArray() {
+        return bitmap != null ? bitmap.toArray() : Arrays.copyOf(array, size);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
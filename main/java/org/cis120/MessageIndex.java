@@ -0,0 +1,483 @@
+package org.cis120;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+
+/**
+ * The {@code MessageIndex} is an incrementally built inverted index over the
+ * payloads of relayed {@code MESG} commands. It backs the {@code SEARCH}
+ * command.
+ * <p>
+ * The index is organized per channel. Each channel's history is split into
+ * time-ordered segments: new messages go into a small active segment, which
+ * is sealed once it spans {@link #SEGMENT_SPAN_MILLIS} or holds
+ * {@link #SEGMENT_MAX_DOCS} messages. Sealed segments are immutable and are
+ * merged in the background into larger ones. Each channel keeps at most
+ * {@code maxDocs} messages; past that, its oldest sealed segments are
+ * dropped whole.
+ * <p>
+ * Results are paged by sequence number: each page asks for the hits older
+ * than the oldest hit of the previous page, so messages indexed between two
+ * requests neither repeat nor hide hits on later pages.
+ * <p>
+ * All indexing and merging work runs on the indexer executor, so
+ * {@link #index(String, String, String)} only stamps the message and hands it
+ * off. Searches may therefore briefly lag behind the most recent messages.
+ */
+final class MessageIndex {
+
+    /**
+     * The number of hits returned for one page of search results.
+     */
+    static final int PAGE_SIZE = 10;
+
+    /**
+     * The longest time span covered by a single segment before it is sealed.
+     */
+    static final long SEGMENT_SPAN_MILLIS = 60_000;
+
+    /**
+     * The largest number of messages held by the active segment before it
+     * is sealed.
+     */
+    static final int SEGMENT_MAX_DOCS = 256;
+
+    /**
+     * The number of sealed segments of similar size that are merged into
+     * one larger segment.
+     */
+    static final int MERGE_FACTOR = 4;
+
+    /**
+     * The default number of messages kept per channel.
+     */
+    static final int DEFAULT_MAX_DOCS = 100_000;
+
+    private final Executor indexer;
+    private final LongSupplier clock;
+    private final int maxDocs;
+    private final Map<String, ChannelIndex> channels;
+
+    /**
+     * Constructs a {@code MessageIndex} that indexes on its own background
+     * thread and stamps messages with the wall clock.
+     */
+    MessageIndex() {
+        this(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Indexer thread");
+            thread.setDaemon(true);
+            return thread;
+        }), System::currentTimeMillis);
+    }
+
+    /**
+     * Constructs a {@code MessageIndex} with the given executor and clock.
+     * The executor must run tasks one at a time, in submission order.
+     *
+     * @param indexer The executor on which indexing and merges run
+     * @param clock   The source of message timestamps, in milliseconds
+     */
+    MessageIndex(Executor indexer, LongSupplier clock) {
+        this(indexer, clock, DEFAULT_MAX_DOCS);
+    }
+
+    /**
+     * Constructs a {@code MessageIndex} with the given executor, clock and
+     * retention limit.
+     *
+     * @param indexer The executor on which indexing and merges run
+     * @param clock   The source of message timestamps, in milliseconds
+     * @param maxDocs The most messages kept per channel, positive
+     */
+    MessageIndex(Executor indexer, LongSupplier clock, int maxDocs) {
+        if (maxDocs <= 0) {
+            throw new IllegalArgumentException("Invalid retention limit");
+        }
+        this.indexer = indexer;
+        this.clock = clock;
+        this.maxDocs = maxDocs;
+        channels = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds a relayed message to the channel's index. Only the timestamp and
+     * sequence number are assigned on the calling thread; the message is
+     * tokenized and indexed on the indexer executor.
+     *
+     * @param channelName The channel the message was sent to
+     * @param sender      The nickname of the sender
+     * @param message     The message payload
+     */
+    void index(String channelName, String sender, String message) {
+        ChannelIndex channel = channels.computeIfAbsent(channelName, name -> new ChannelIndex());
+        Doc doc = new Doc(channel.nextSeq++, clock.getAsLong(), sender, message);
+        indexer.execute(() -> channel.add(doc));
+    }
+
+    /**
+     * Discards the history of a channel, for example when it is destroyed.
+     * A channel that is later created with the same name starts empty.
+     *
+     * @param channelName The channel whose history to discard
+     */
+    void drop(String channelName) {
+        channels.remove(channelName);
+    }
+
+    /**
+     * Searches the history of a channel. The query is split into terms that
+     * must all match; a term ending in {@code *} matches any word starting
+     * with the rest of the term. Matching is case-insensitive. Hits are
+     * returned newest first.
+     *
+     * @param channelName The channel to search
+     * @param query       The query string
+     * @param before      Only hits with a lower sequence number are returned;
+     *                    {@link Long#MAX_VALUE} for the newest hits, or the
+     *                    cursor of the previous page
+     * @return The requested page of hits
+     */
+    SearchPage search(String channelName, String query, long before) {
+        ChannelIndex channel = channels.get(channelName);
+        List<String> terms = tokenize(query == null ? "" : query, true);
+        if (channel == null || terms.isEmpty() || before <= 0) {
+            return new SearchPage(Collections.emptyList(), false);
+        }
+        return channel.search(terms, before);
+    }
+
+    /**
+     * Splits text into lowercase words. When {@code keepWildcard} is set, a
+     * trailing {@code *} is kept on a word to mark a prefix term.
+     */
+    private static List<String> tokenize(String text, boolean keepWildcard) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else {
+                if (keepWildcard && c == '*' && word.length() > 0) {
+                    word.append('*');
+                }
+                if (word.length() > 0) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+        }
+        return words;
+    }
+
+    // ==========================================================================
+    // Search results
+    // ==========================================================================
+
+    /**
+     * A single indexed message.
+     */
+    static final class Doc {
+        private final long seq;
+        private final long time;
+        private final String sender;
+        private final String message;
+
+        Doc(long seq, long time, String sender, String message) {
+            this.seq = seq;
+            this.time = time;
+            this.sender = sender;
+            this.message = message;
+        }
+
+        /** @return the position of the message in its channel's history */
+        long getSeq() {
+            return seq;
+        }
+
+        /** @return the time the message was relayed, in milliseconds */
+        long getTime() {
+            return time;
+        }
+
+        /** @return the nickname of the sender at the time of sending */
+        String getSender() {
+            return sender;
+        }
+
+        /** @return the message payload */
+        String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * One page of search hits, newest first.
+     */
+    static final class SearchPage {
+        private final List<Doc> hits;
+        private final boolean hasMore;
+
+        SearchPage(List<Doc> hits, boolean hasMore) {
+            this.hits = hits;
+            this.hasMore = hasMore;
+        }
+
+        /** @return the hits on this page */
+        List<Doc> getHits() {
+            return hits;
+        }
+
+        /** @return true if there are hits on later pages */
+        boolean hasMore() {
+            return hasMore;
+        }
+
+        /**
+         * @return the cursor asking for the next page, which is the sequence
+         * number of the oldest hit on this page, or -1 if there are no more
+         * hits
+         */
+        long getCursor() {
+            return hasMore ? hits.get(hits.size() - 1).getSeq() : -1;
+        }
+    }
+
+    // ==========================================================================
+    // Per-channel index
+    // ==========================================================================
+
+    /**
+     * The segments of a single channel, oldest first, holding consecutive
+     * runs of sequence numbers. The sealed segment list is replaced, never
+     * modified, so merges can read it without holding the lock.
+     */
+    private final class ChannelIndex {
+        // Only touched by the thread calling index()
+        private long nextSeq;
+
+        private List<Segment> sealed = Collections.emptyList();
+        private Segment active;
+        private boolean mergePending;
+        // The number of messages in the sealed and active segments
+        private int docCount;
+
+        synchronized void add(Doc doc) {
+            if (active != null && (active.size() >= SEGMENT_MAX_DOCS
+                    || doc.getTime() - active.minTime >= SEGMENT_SPAN_MILLIS)) {
+                List<Segment> next = new ArrayList<>(sealed);
+                next.add(active);
+                sealed = Collections.unmodifiableList(next);
+                active = null;
+                scheduleMerge();
+            }
+            if (active == null) {
+                active = new Segment(doc.getTime());
+            }
+            active.add(doc);
+            docCount++;
+            evict();
+        }
+
+        /**
+         * Drops the oldest sealed segments while the channel holds more than
+         * {@code maxDocs} messages.
+         */
+        private void evict() {
+            if (docCount <= maxDocs || sealed.isEmpty()) {
+                return;
+            }
+            int dropped = 0;
+            while (docCount > maxDocs && dropped < sealed.size()) {
+                docCount -= sealed.get(dropped++).size();
+            }
+            sealed = Collections.unmodifiableList(
+                    new ArrayList<>(sealed.subList(dropped, sealed.size())));
+        }
+
+        synchronized SearchPage search(List<String> terms, long before) {
+            List<Doc> hits = new ArrayList<>();
+            List<Segment> newestFirst = new ArrayList<>(sealed);
+            if (active != null) {
+                newestFirst.add(active);
+            }
+            Collections.reverse(newestFirst);
+            for (Segment segment : newestFirst) {
+                if (segment.firstSeq() >= before) {
+                    // Entirely on earlier pages
+                    continue;
+                }
+                List<Doc> matches = segment.match(terms);
+                for (int i = matches.size() - 1; i >= 0; i--) {
+                    if (matches.get(i).getSeq() >= before) {
+                        continue;
+                    } else if (hits.size() < PAGE_SIZE) {
+                        hits.add(matches.get(i));
+                    } else {
+                        return new SearchPage(hits, true);
+                    }
+                }
+            }
+            return new SearchPage(hits, false);
+        }
+
+        /**
+         * Queues a merge of the oldest run of similarly sized segments if one
+         * exists and no merge is already queued.
+         */
+        private void scheduleMerge() {
+            if (!mergePending && findMergeRun(sealed) >= 0) {
+                mergePending = true;
+                indexer.execute(this::merge);
+            }
+        }
+
+        private void merge() {
+            List<Segment> snapshot;
+            synchronized (this) {
+                snapshot = sealed;
+            }
+            int start = findMergeRun(snapshot);
+            if (start < 0) {
+                synchronized (this) {
+                    mergePending = false;
+                }
+                return;
+            }
+
+            // The expensive part happens outside the lock
+            Segment merged = Segment.merge(snapshot.subList(start, start + MERGE_FACTOR));
+
+            synchronized (this) {
+                // Segments evicted meanwhile were the oldest; if the run's
+                // first segment is still there, so is the rest of it
+                int at = sealed.indexOf(snapshot.get(start));
+                if (at >= 0) {
+                    List<Segment> next = new ArrayList<>(sealed);
+                    for (int i = 0; i < MERGE_FACTOR; i++) {
+                        next.remove(at);
+                    }
+                    next.add(at, merged);
+                    sealed = Collections.unmodifiableList(next);
+                }
+                mergePending = false;
+                scheduleMerge();
+            }
+        }
+
+        /**
+         * Finds the start of the oldest run of {@link #MERGE_FACTOR}
+         * consecutive segments whose sizes are within a factor of
+         * {@link #MERGE_FACTOR} of each other, or -1 if there is none.
+         */
+        private int findMergeRun(List<Segment> segments) {
+            for (int start = 0; start + MERGE_FACTOR <= segments.size(); start++) {
+                int min = Integer.MAX_VALUE;
+                int max = 0;
+                for (int i = start; i < start + MERGE_FACTOR; i++) {
+                    min = Math.min(min, segments.get(i).size());
+                    max = Math.max(max, segments.get(i).size());
+                }
+                if (max < min * MERGE_FACTOR) {
+                    return start;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // ==========================================================================
+    // Segments
+    // ==========================================================================
+
+    /**
+     * A time-ordered run of messages with a term dictionary mapping each word
+     * to the positions of the messages containing it. The sorted dictionary
+     * makes prefix terms a range scan.
+     */
+    private static final class Segment {
+        private final long minTime;
+        private final List<Doc> docs;
+        private final TreeMap<String, List<Integer>> postings;
+
+        Segment(long minTime) {
+            this.minTime = minTime;
+            docs = new ArrayList<>();
+            postings = new TreeMap<>();
+        }
+
+        int size() {
+            return docs.size();
+        }
+
+        long firstSeq() {
+            return docs.get(0).getSeq();
+        }
+
+        void add(Doc doc) {
+            int position = docs.size();
+            docs.add(doc);
+            for (String word : new LinkedHashSet<>(tokenize(doc.getMessage(), false))) {
+                postings.computeIfAbsent(word, w -> new ArrayList<>()).add(position);
+            }
+        }
+
+        /**
+         * Returns the messages matching every term, oldest first.
+         */
+        List<Doc> match(List<String> terms) {
+            BitSet result = null;
+            for (String term : terms) {
+                BitSet positions = new BitSet(docs.size());
+                Collection<List<Integer>> lists;
+                if (term.endsWith("*")) {
+                    String prefix = term.substring(0, term.length() - 1);
+                    lists = postings.subMap(prefix, prefix + Character.MAX_VALUE).values();
+                } else {
+                    List<Integer> list = postings.get(term);
+                    lists = list == null ? Collections.emptyList() : Collections.singleton(list);
+                }
+                for (List<Integer> list : lists) {
+                    for (int position : list) {
+                        positions.set(position);
+                    }
+                }
+                if (result == null) {
+                    result = positions;
+                } else {
+                    result.and(positions);
+                }
+                if (result.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+
+            List<Doc> matches = new ArrayList<>();
+            for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+                matches.add(docs.get(i));
+            }
+            return matches;
+        }
+
+        /**
+         * Merges consecutive segments into one, remapping the postings of
+         * each input by its offset in the merged document list.
+         */
+        static Segment merge(List<Segment> segments) {
+            Segment merged = new Segment(segments.get(0).minTime);
+            for (Segment segment : segments) {
+                int offset = merged.docs.size();
+                merged.docs.addAll(segment.docs);
+                for (Map.Entry<String, List<Integer>> entry : segment.postings.entrySet()) {
+                    List<Integer> target = merged.postings
+                            .computeIfAbsent(entry.getKey(), w -> new ArrayList<>());
+                    for (int position : entry.getValue()) {
+                        target.add(position + offset);
+                    }
+                }
+            }
+            return merged;
+        }
+    }
+}
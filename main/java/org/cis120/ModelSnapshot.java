@@ -0,0 +1,340 @@
+package org.cis120;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * A {@code ModelSnapshot} is an immutable, consistent view of the users and
+ * channels of a {@link ServerModel} at one point in time. Snapshots are
+ * published by the model thread and may be read from any thread without
+ * locking, which makes them suitable for monitoring and admin tools that
+ * poll the server state.
+ * <p>
+ * Successive snapshots share structure. The users, the channel views and
+ * each view's members are held in {@link PersistentMap}s, so that a snapshot
+ * shares all but the paths to what changed with the one before it, and the
+ * view of a channel that did not change is the same object in both. A view's
+ * sorted members are only built when they are first asked for.
+ */
+final class ModelSnapshot {
+
+    /**
+     * The snapshot of a model with no users and no channels.
+     */
+    static final ModelSnapshot EMPTY = new ModelSnapshot(
+            0, PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty()
+    );
+
+    private final long version;
+    private final PersistentMap<Integer, String> nicknames;
+    private final PersistentMap<String, Integer> userIds;
+    private final Set<String> users;
+    private final PersistentMap<String, ChannelView> channels;
+    private final Set<String> channelNames;
+
+    /**
+     * Constructs a {@code ModelSnapshot} from collections that are never
+     * modified again, which may be shared with other snapshots.
+     *
+     * @param version   The version of the snapshot
+     * @param nicknames The nickname of every user, by user ID
+     * @param userIds   The same users' IDs, by nickname
+     * @param channels  The views of all channels, by name
+     */
+    ModelSnapshot(
+            long version, PersistentMap<Integer, String> nicknames,
+            PersistentMap<String, Integer> userIds, PersistentMap<String, ChannelView> channels
+    ) {
+        this.version = version;
+        this.nicknames = nicknames;
+        this.userIds = userIds;
+        this.users = userIds.keySet();
+        this.channels = channels;
+        this.channelNames = channels.keySet();
+    }
+
+    /**
+     * @return the version of the snapshot, increasing with every publication
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the nicknames of all registered users, in no order, which
+     * cannot be modified
+     */
+    Set<String> getRegisteredUsers() {
+        return users;
+    }
+
+    /**
+     * @return the nickname of every user, by user ID
+     */
+    PersistentMap<Integer, String> getNicknames() {
+        return nicknames;
+    }
+
+    /**
+     * @return the ID of every user, by nickname
+     */
+    PersistentMap<String, Integer> getUserIds() {
+        return userIds;
+    }
+
+    /**
+     * @param userId A user ID
+     * @return the user's nickname, or null if there is no such user
+     */
+    String getNickname(int userId) {
+        return nicknames.get(userId);
+    }
+
+    /**
+     * @return the names of all channels, in no order, which cannot be
+     * modified
+     */
+    Set<String> getChannels() {
+        return channelNames;
+    }
+
+    /**
+     * @param channelName A channel name
+     * @return the channel's view, or null if there is no such channel
+     */
+    ChannelView getChannel(String channelName) {
+        return channels.get(channelName);
+    }
+
+    /**
+     * @param channelName A channel name
+     * @return the nicknames of the channel's members, or an empty set if
+     * there is no such channel
+     */
+    SortedSet<String> getUsersInChannel(String channelName) {
+        ChannelView channel = channels.get(channelName);
+        return channel == null ? Collections.emptySortedSet() : channel.getMembers();
+    }
+
+    /**
+     * @param channelName A channel name
+     * @return the nickname of the channel's owner, or null if there is no
+     * such channel
+     */
+    String getOwner(String channelName) {
+        ChannelView channel = channels.get(channelName);
+        return channel == null ? null : channel.getOwner();
+    }
+
+    /**
+     * @return the views of all channels, by name
+     */
+    PersistentMap<String, ChannelView> getChannelViews() {
+        return channels;
+    }
+
+    /**
+     * Writes the snapshot to a file, replacing it atomically, in the format
+     * of {@link #write(Writer)}.
+     *
+     * @param file The file to write
+     * @throws IOException if the file cannot be written
+     */
+    void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            write(out);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the snapshot as lines of text:
+     *
+     * <pre>
+     * SNAPSHOT version
+     * USER id nickname                           one per user
+     * CHANNEL name private owner member...       one per channel, 0 or 1
+     * </pre>
+     *
+     * Users are written by ID, channels by name, and members sorted.
+     *
+     * @param out Where to write the snapshot; neither flushed nor closed
+     * @throws IOException if writing fails
+     */
+    void write(Writer out) throws IOException {
+        out.write("SNAPSHOT " + version + "\n");
+        List<Integer> ids = new ArrayList<>(nicknames.keySet());
+        Collections.sort(ids);
+        for (int userId : ids) {
+            out.write("USER " + userId + " " + nicknames.get(userId) + "\n");
+        }
+        List<String> channelNames = new ArrayList<>(channels.keySet());
+        Collections.sort(channelNames);
+        for (String channelName : channelNames) {
+            ChannelView channel = channels.get(channelName);
+            out.write("CHANNEL " + channel.getName() + " " + (channel.isPrivate() ? 1 : 0)
+                    + " " + channel.getOwner());
+            for (String member : channel.getMembers()) {
+                out.write(" " + member);
+            }
+            out.write("\n");
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(Writer)}, up to the end of
+     * the stream or a line {@code END}.
+     *
+     * @param in Where to read the snapshot from
+     * @return the snapshot
+     * @throws IOException if reading fails, or the snapshot is malformed
+     */
+    static ModelSnapshot read(BufferedReader in) throws IOException {
+        String header = in.readLine();
+        if (header == null || !header.startsWith("SNAPSHOT ")) {
+            throw new IOException("Not a snapshot: " + header);
+        }
+        PersistentMap<Integer, String> nicknames = PersistentMap.empty();
+        PersistentMap<String, Integer> userIds = PersistentMap.empty();
+        PersistentMap<String, ChannelView> channels = PersistentMap.empty();
+        try {
+            long version = Long.parseLong(header.substring("SNAPSHOT ".length()));
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                String[] fields = line.split(" ");
+                if (fields[0].equals("USER") && fields.length == 3) {
+                    int userId = Integer.parseInt(fields[1]);
+                    nicknames = nicknames.plus(userId, fields[2]);
+                    userIds = userIds.plus(fields[2], userId);
+                } else if (fields[0].equals("CHANNEL") && fields.length >= 4) {
+                    PersistentMap<Integer, String> members = PersistentMap.empty();
+                    for (int i = 4; i < fields.length; i++) {
+                        Integer userId = userIds.get(fields[i]);
+                        if (userId == null) {
+                            throw new IOException("Unknown member in snapshot line: " + line);
+                        }
+                        members = members.plus(userId, fields[i]);
+                    }
+                    channels = channels.plus(fields[1], new ChannelView(
+                            fields[1], fields[3], fields[2].equals("1"), members
+                    ));
+                } else {
+                    throw new IOException("Malformed snapshot line: " + line);
+                }
+            }
+            return new ModelSnapshot(version, nicknames, userIds, channels);
+        } catch (NumberFormatException nfx) {
+            throw new IOException("Malformed snapshot", nfx);
+        }
+    }
+
+    /**
+     * An immutable view of one channel.
+     */
+    static final class ChannelView {
+        private final String name;
+        private final String owner;
+        private final boolean isPrivate;
+        private final PersistentMap<Integer, String> memberNicknames;
+        private final long rosterVersion;
+        // Built from memberNicknames when first asked for
+        private volatile SortedSet<String> members;
+
+        /**
+         * Constructs a {@code ChannelView} without a roster version.
+         *
+         * @param name            The channel's name
+         * @param owner           The owner's nickname
+         * @param isPrivate       true if the channel is invite-only
+         * @param memberNicknames The nickname of each member, by user ID
+         */
+        ChannelView(String name, String owner, boolean isPrivate,
+                PersistentMap<Integer, String> memberNicknames) {
+            this(name, owner, isPrivate, memberNicknames, 0);
+        }
+
+        /**
+         * Constructs a {@code ChannelView}.
+         *
+         * @param name            The channel's name
+         * @param owner           The owner's nickname
+         * @param isPrivate       true if the channel is invite-only
+         * @param memberNicknames The nickname of each member, by user ID
+         * @param rosterVersion   The version of the channel's {@link Roster}
+         *                        matching the members, or 0 if it has none
+         */
+        ChannelView(String name, String owner, boolean isPrivate,
+                PersistentMap<Integer, String> memberNicknames, long rosterVersion) {
+            this.name = name;
+            this.owner = owner;
+            this.isPrivate = isPrivate;
+            this.memberNicknames = memberNicknames;
+            this.rosterVersion = rosterVersion;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getOwner() {
+            return owner;
+        }
+
+        boolean isPrivate() {
+            return isPrivate;
+        }
+
+        /**
+         * @return the members' nicknames, sorted, which cannot be modified.
+         * The set is built the first time it is asked for, which takes time
+         * in proportion to the size of the channel.
+         */
+        SortedSet<String> getMembers() {
+            SortedSet<String> sorted = members;
+            if (sorted == null) {
+                TreeSet<String> nicknames = new TreeSet<>();
+                memberNicknames.forEach((userId, nickname) -> nicknames.add(nickname));
+                sorted = Collections.unmodifiableSortedSet(nicknames);
+                members = sorted;
+            }
+            return sorted;
+        }
+
+        /**
+         * @return the nickname of each member, by user ID
+         */
+        PersistentMap<Integer, String> getMemberNicknames() {
+            return memberNicknames;
+        }
+
+        int getMemberCount() {
+            return memberNicknames.size();
+        }
+
+        /**
+         * @param userId A user ID
+         * @return true if the user is a member
+         */
+        boolean hasMember(int userId) {
+            return memberNicknames.containsKey(userId);
+        }
+
+        /**
+         * @return the roster version of the members, which a client asking
+         * {@code ROSTER} with it is sent the changes since, or 0 if unknown,
+         * which makes it start over
+         */
+        long getRosterVersion() {
+            return rosterVersion;
+        }
+    }
+}
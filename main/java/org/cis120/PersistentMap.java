@@ -0,0 +1,344 @@
+package org.cis120;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A {@code PersistentMap} is an immutable hash map: adding or removing a
+ * mapping returns a new map and leaves this one unchanged. It is a hash
+ * array mapped trie, 32 ways at each level on 5 bits of the key's hash, so
+ * a change copies only the path from the root to the key, at most 7 small
+ * nodes, and shares everything else with the map it was made from. It is
+ * used by {@link ModelSnapshot}, so that publishing a snapshot costs the
+ * number of changes rather than the number of users.
+ * <p>
+ * Null cannot be used as a key or a value. The iteration order is
+ * unspecified. Thread-safe, as it is immutable.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+final class PersistentMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(Node.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @return the map without mappings
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param key A key
+     * @return the value mapped to the key, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        return (V) root.get(key, hash(key), 0);
+    }
+
+    boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param key   A key
+     * @param value The value to map it to
+     * @return a map like this one but with the key mapped to the value,
+     * which is this map if it already was
+     */
+    PersistentMap<K, V> plus(K key, V value) {
+        Objects.requireNonNull(value);
+        V previous = get(key);
+        if (previous == value) {
+            return this;
+        }
+        Node changed = root.plus(new Entry(key, value, hash(key)), 0);
+        return new PersistentMap<>(changed, previous == null ? size + 1 : size);
+    }
+
+    /**
+     * @param key A key
+     * @return a map like this one but without the key, which is this map if
+     * it has no such key
+     */
+    PersistentMap<K, V> minus(Object key) {
+        if (get(key) == null) {
+            return this;
+        }
+        return new PersistentMap<>(root.minus(key, hash(key), 0), size - 1);
+    }
+
+    /**
+     * Performs an action on every mapping.
+     *
+     * @param action The action
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach(entry -> action.accept((K) entry.key, (V) entry.value));
+    }
+
+    /**
+     * @return an unmodifiable view of the keys, whose {@code contains} is a
+     * lookup and whose iterator walks a copy taken when it is created
+     */
+    Set<K> keySet() {
+        return new AbstractSet<K>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                return key != null && containsKey(key);
+            }
+
+            @Override
+            public Iterator<K> iterator() {
+                List<K> keys = new ArrayList<>(size);
+                PersistentMap.this.forEach((key, value) -> keys.add(key));
+                return Collections.unmodifiableList(keys).iterator();
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    // ===========
+    // == Nodes ==
+    // ===========
+
+    /**
+     * One mapping, with its key's hash.
+     */
+    private static final class Entry {
+        final Object key;
+        final Object value;
+        final int hash;
+
+        Entry(Object key, Object value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * The mappings of two or more keys with the same hash, in no order.
+     */
+    private static final class Collision {
+        final Entry[] entries;
+        final int hash;
+
+        Collision(Entry[] entries) {
+            this.entries = entries;
+            this.hash = entries[0].hash;
+        }
+
+        int indexOf(Object key) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Collision plus(Entry added) {
+            int i = indexOf(added.key);
+            Entry[] copy;
+            if (i < 0) {
+                copy = new Entry[entries.length + 1];
+                System.arraycopy(entries, 0, copy, 0, entries.length);
+                copy[entries.length] = added;
+            } else {
+                copy = entries.clone();
+                copy[i] = added;
+            }
+            return new Collision(copy);
+        }
+
+        /**
+         * @return what is left without the key: a collision, or the one
+         * remaining entry
+         */
+        Object minus(Object key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return this;
+            }
+            if (entries.length == 2) {
+                return entries[1 - i];
+            }
+            Entry[] copy = new Entry[entries.length - 1];
+            System.arraycopy(entries, 0, copy, 0, i);
+            System.arraycopy(entries, i + 1, copy, i, copy.length - i);
+            return new Collision(copy);
+        }
+    }
+
+    /**
+     * A level of the trie. Bit {@code b} of the bitmap is set if some key
+     * has {@code b} in this level's 5 bits of its hash, and each set bit, in
+     * order, has a slot holding an {@link Entry}, a {@link Collision}, or,
+     * if several keys share those bits, the {@code Node} one level down.
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object get(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = slots[index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).get(key, hash, shift + BITS);
+            }
+            if (slot instanceof Collision) {
+                Collision collision = (Collision) slot;
+                int i = collision.indexOf(key);
+                return i < 0 ? null : collision.entries[i].value;
+            }
+            Entry entry = (Entry) slot;
+            return entry.key.equals(key) ? entry.value : null;
+        }
+
+        Node plus(Entry added, int shift) {
+            int bit = bit(added.hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, copy, 0, i);
+                copy[i] = added;
+                System.arraycopy(slots, i, copy, i + 1, slots.length - i);
+                return new Node(bitmap | bit, copy);
+            }
+            Object slot = slots[i];
+            Object replaced;
+            if (slot instanceof Node) {
+                replaced = ((Node) slot).plus(added, shift + BITS);
+            } else {
+                int hash = slot instanceof Collision
+                        ? ((Collision) slot).hash : ((Entry) slot).hash;
+                if (hash != added.hash) {
+                    // Both go one level down, where their hashes may differ
+                    replaced = new Node(bit(hash, shift + BITS), new Object[] {slot})
+                            .plus(added, shift + BITS);
+                } else if (slot instanceof Collision) {
+                    replaced = ((Collision) slot).plus(added);
+                } else if (((Entry) slot).key.equals(added.key)) {
+                    replaced = added;
+                } else {
+                    replaced = new Collision(new Entry[] {(Entry) slot, added});
+                }
+            }
+            Object[] copy = slots.clone();
+            copy[i] = replaced;
+            return new Node(bitmap, copy);
+        }
+
+        Node minus(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object slot = slots[i];
+            Object replaced;
+            if (slot instanceof Node) {
+                Node child = ((Node) slot).minus(key, hash, shift + BITS);
+                // A child left with a single mapping is pulled up into this
+                // level, so that the trie stays as shallow as it would be
+                // had the key never been added
+                if (child.slots.length == 0) {
+                    replaced = null;
+                } else if (child.slots.length == 1 && !(child.slots[0] instanceof Node)) {
+                    replaced = child.slots[0];
+                } else {
+                    replaced = child;
+                }
+            } else if (slot instanceof Collision) {
+                replaced = ((Collision) slot).minus(key);
+            } else {
+                replaced = ((Entry) slot).key.equals(key) ? null : slot;
+            }
+            if (replaced == slot) {
+                return this;
+            }
+            if (replaced != null) {
+                Object[] copy = slots.clone();
+                copy[i] = replaced;
+                return new Node(bitmap, copy);
+            }
+            if (slots.length == 1) {
+                return EMPTY;
+            }
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, copy, 0, i);
+            System.arraycopy(slots, i + 1, copy, i, copy.length - i);
+            return new Node(bitmap & ~bit, copy);
+        }
+
+        void forEach(Consumer<Entry> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Node) {
+                    ((Node) slot).forEach(action);
+                } else if (slot instanceof Collision) {
+                    for (Entry entry : ((Collision) slot).entries) {
+                        action.accept(entry);
+                    }
+                } else {
+                    action.accept((Entry) slot);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.cis120;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@code PresenceDigest} collects the membership changes of one busy
+ * channel over a short window, so that they can be relayed to each member as
+ * a single {@code PRESENCE} line instead of one {@code JOIN}, {@code LEAVE}
+ * or {@code QUIT} line each. See
+ * {@link ServerModel#setPresenceWindows(java.util.NavigableMap)}.
+ * <p>
+ * Changes are kept in order. A member who joined during the window already
+ * got the channel's {@code NAMES}, so it is only told about the changes made
+ * after it joined. A nickname that joined and left again within the window,
+ * or left and joined again, is not mentioned at all. Not thread-safe.
+ */
+final class PresenceDigest {
+
+    private final String channelName;
+    private final int windowMillis;
+    private final List<String> nicknames = new ArrayList<>();
+    // Whether each change was a join rather than a departure
+    private final BitSet joins = new BitSet();
+    // The number of changes each member who joined during the window has
+    // already seen
+    private final IntMap<Integer> seenAtJoin = new IntMap<>();
+    private String fromStart;
+
+    /**
+     * Constructs an empty {@code PresenceDigest}.
+     *
+     * @param channelName  The channel
+     * @param windowMillis How long changes are collected before the digest
+     *                     is sent
+     */
+    PresenceDigest(String channelName, int windowMillis) {
+        this.channelName = channelName;
+        this.windowMillis = windowMillis;
+    }
+
+    String getChannelName() {
+        return channelName;
+    }
+
+    int getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Adds a member joining the channel.
+     *
+     * @param userId   The member's ID
+     * @param nickname The member's nickname
+     */
+    void joined(int userId, String nickname) {
+        joins.set(nicknames.size());
+        nicknames.add(nickname);
+        seenAtJoin.put(userId, nicknames.size());
+    }
+
+    /**
+     * Adds a member leaving the channel, or quitting.
+     *
+     * @param nickname The member's nickname
+     */
+    void left(String nickname) {
+        nicknames.add(nickname);
+    }
+
+    /**
+     * Lists the changes a member has not seen, such as
+     * {@code +alice +bob -carol}.
+     *
+     * @param userId The ID of a member at the end of the window
+     * @return the changes, or null if there are none
+     */
+    String changesFor(int userId) {
+        Integer seen = seenAtJoin.get(userId);
+        String changes;
+        if (seen != null) {
+            changes = format(seen);
+        } else {
+            if (fromStart == null) {
+                fromStart = format(0);
+            }
+            changes = fromStart;
+        }
+        return changes.isEmpty() ? null : changes;
+    }
+
+    private String format(int from) {
+        // The first and the last change of each nickname, in order of first
+        // change
+        Map<String, int[]> changes = new LinkedHashMap<>();
+        for (int i = from; i < nicknames.size(); i++) {
+            int index = i;
+            changes.computeIfAbsent(nicknames.get(i), n -> new int[] {index, index})[1] = i;
+        }
+        StringBuilder payload = new StringBuilder();
+        for (Map.Entry<String, int[]> change : changes.entrySet()) {
+            boolean joinedFirst = joins.get(change.getValue()[0]);
+            boolean joinedLast = joins.get(change.getValue()[1]);
+            if (joinedFirst != joinedLast) {
+                // Back where the member started
+                continue;
+            }
+            if (payload.length() > 0) {
+                payload.append(' ');
+            }
+            payload.append(joinedLast ? '+' : '-').append(change.getKey());
+        }
+        return payload.toString();
+    }
+}
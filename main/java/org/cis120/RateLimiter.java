@@ -0,0 +1,241 @@
+package org.cis120;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The {@code RateLimiter} protects the model thread and channel members from
+ * clients that send commands faster than a person could type them. It is
+ * consulted by each {@code ConnectionWorker} before a request is enqueued.
+ * <p>
+ * Three kinds of {@link TokenBucket} are checked for every line:
+ * <ul>
+ * <li>a per-connection bucket for all commands,</li>
+ * <li>a per-user bucket for {@code MESG} commands only, and</li>
+ * <li>a per-channel bucket for {@code MESG} commands into that channel,
+ * shared by all of its senders.</li>
+ * </ul>
+ * A line that finds any bucket empty is rejected. The first rejection in a
+ * run is reported to the client with {@link ServerResponse#THROTTLED}; later
+ * ones are dropped silently until a line is accepted again. Rejections also
+ * drain a per-connection strike bucket, and a client that empties it is
+ * disconnected. Heartbeat lines are charged to the per-connection bucket
+ * too, so that a client cannot flood its worker with {@code PING}s.
+ */
+final class RateLimiter {
+
+    /**
+     * The outcome of checking a line against the limits.
+     */
+    enum Verdict {
+        /** The line is within limits and should be processed. */
+        ACCEPT,
+        /** The line is over a limit; tell the client it was throttled. */
+        REJECT_AND_NOTIFY,
+        /** The line is over a limit; the client has already been told. */
+        REJECT,
+        /** The client keeps exceeding its limits and should be dropped. */
+        DISCONNECT
+    }
+
+    /**
+     * A burst size and sustained rate for one kind of bucket.
+     */
+    static final class Limit {
+        private final int capacity;
+        private final double perSecond;
+
+        /**
+         * @param capacity  The largest burst allowed
+         * @param perSecond The sustained rate allowed, per second
+         */
+        Limit(int capacity, double perSecond) {
+            this.capacity = capacity;
+            this.perSecond = perSecond;
+        }
+
+        TokenBucket newBucket() {
+            return new TokenBucket(capacity, perSecond);
+        }
+    }
+
+    // Channel buckets that have refilled completely carry no state, so they
+    // are swept once this many channels are being tracked
+    private static final int CHANNEL_SWEEP_THRESHOLD = 4096;
+
+    private final Limit connectionLimit;
+    private final Limit userMessageLimit;
+    private final Limit channelMessageLimit;
+    private final Limit strikeLimit;
+    private final LongSupplier clock;
+    private final Map<String, TokenBucket> channelBuckets;
+
+    /**
+     * Constructs a {@code RateLimiter}. A null limit disables that kind of
+     * bucket; a null strike limit means clients are never disconnected.
+     *
+     * @param connectionLimit     The limit on all commands per connection
+     * @param userMessageLimit    The limit on {@code MESG} commands per user
+     * @param channelMessageLimit The limit on {@code MESG} commands per channel
+     * @param strikeLimit         The limit on rejected lines per connection
+     * @param clock               The time source, in nanoseconds
+     */
+    RateLimiter(
+            Limit connectionLimit, Limit userMessageLimit,
+            Limit channelMessageLimit, Limit strikeLimit, LongSupplier clock
+    ) {
+        this.connectionLimit = connectionLimit;
+        this.userMessageLimit = userMessageLimit;
+        this.channelMessageLimit = channelMessageLimit;
+        this.strikeLimit = strikeLimit;
+        this.clock = clock;
+        channelBuckets = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a {@code RateLimiter} with limits suitable for human users:
+     * bursts of 20 commands and 10 per second per connection, bursts of 10
+     * messages and 5 per second per user, bursts of 200 messages and 100 per
+     * second per channel, and disconnection after about 50 rejected lines.
+     *
+     * @return The default rate limiter
+     */
+    static RateLimiter defaults() {
+        return new RateLimiter(
+                new Limit(20, 10), new Limit(10, 5),
+                new Limit(200, 100), new Limit(50, 1), System::nanoTime
+        );
+    }
+
+    /**
+     * Creates a {@code RateLimiter} that accepts everything.
+     *
+     * @return The unlimited rate limiter
+     */
+    static RateLimiter unlimited() {
+        return new RateLimiter(null, null, null, null, System::nanoTime);
+    }
+
+    /**
+     * Creates the limiter state for a new connection.
+     *
+     * @return The per-connection state, to be used by one thread only
+     */
+    ConnectionLimits newConnection() {
+        return new ConnectionLimits();
+    }
+
+    private TokenBucket channelBucket(String channelName) {
+        TokenBucket bucket = channelBuckets.get(channelName);
+        if (bucket == null) {
+            if (channelBuckets.size() >= CHANNEL_SWEEP_THRESHOLD) {
+                sweepChannels();
+            }
+            bucket = channelBuckets.computeIfAbsent(channelName, name -> channelMessageLimit.newBucket());
+        }
+        return bucket;
+    }
+
+    private void sweepChannels() {
+        long now = clock.getAsLong();
+        Iterator<TokenBucket> iterator = channelBuckets.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isFull(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the channel of a {@code MESG} command, or null if the line is
+     * not a {@code MESG} command. Avoids a full parse on the hot path.
+     */
+    static String messageChannel(String payload) {
+        if (!payload.startsWith("MESG ")) {
+            return null;
+        }
+        int start = "MESG ".length();
+        int end = payload.indexOf(' ', start);
+        return end < 0 ? payload.substring(start) : payload.substring(start, end);
+    }
+
+    // ==========================================================================
+    // Per-connection state
+    // ==========================================================================
+
+    /**
+     * The limits of a single connection.
+     */
+    final class ConnectionLimits {
+        private final TokenBucket connection;
+        private final TokenBucket userMessages;
+        private final TokenBucket strikes;
+        private boolean notified;
+
+        private ConnectionLimits() {
+            connection = connectionLimit == null ? null : connectionLimit.newBucket();
+            userMessages = userMessageLimit == null ? null : userMessageLimit.newBucket();
+            strikes = strikeLimit == null ? null : strikeLimit.newBucket();
+        }
+
+        /**
+         * Checks a line received from the client against every applicable
+         * limit, consuming tokens if it is accepted.
+         *
+         * @param payload The command line, without any {@code :prefix}
+         * @return What to do with the line
+         */
+        Verdict check(String payload) {
+            long now = clock.getAsLong();
+            if (admit(payload, now)) {
+                notified = false;
+                return Verdict.ACCEPT;
+            }
+            if (strikes != null && !strikes.tryAcquire(now)) {
+                return Verdict.DISCONNECT;
+            }
+            if (notified) {
+                return Verdict.REJECT;
+            }
+            notified = true;
+            return Verdict.REJECT_AND_NOTIFY;
+        }
+
+        /**
+         * Checks a heartbeat line, {@code PING} or {@code PONG}, against the
+         * connection's limit, consuming a token if it is accepted. A
+         * rejected heartbeat is never reported to the client, since the
+         * report would cost as much as the answer, but it still counts as a
+         * strike.
+         *
+         * @return {@link Verdict#ACCEPT}, {@link Verdict#REJECT} or
+         * {@link Verdict#DISCONNECT}
+         */
+        Verdict checkHeartbeat() {
+            long now = clock.getAsLong();
+            if (connection == null || connection.tryAcquire(now)) {
+                return Verdict.ACCEPT;
+            }
+            if (strikes != null && !strikes.tryAcquire(now)) {
+                return Verdict.DISCONNECT;
+            }
+            return Verdict.REJECT;
+        }
+
+        private boolean admit(String payload, long now) {
+            if (connection != null && !connection.tryAcquire(now)) {
+                return false;
+            }
+            String channelName = messageChannel(payload);
+            if (channelName == null) {
+                return true;
+            }
+            if (userMessages != null && !userMessages.tryAcquire(now)) {
+                return false;
+            }
+            return channelMessageLimit == null || channelBucket(channelName).tryAcquire(now);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.cis120;
+
+import java.util.List;
+
+/**
+ * A {@code ReplayBuffer} numbers the lines relayed to the members of one
+ * channel and keeps the most recent of them, so that a client resuming its
+ * session (see {@link ServerModel#resumeSession(int, java.util.Map)}) can be
+ * sent just the lines it missed.
+ * <p>
+ * Every line gets the next sequence number of the channel, whether or not
+ * it is kept. Lines are kept in a ring of fixed capacity, allocated when
+ * the first line is kept; when the ring is full, the oldest line is
+ * overwritten. An event relayed to several channels, such as a {@code QUIT},
+ * is kept in each of them under the same event number. Not thread-safe.
+ */
+final class ReplayBuffer {
+
+    /**
+     * A relayed line and where it falls in its channel and in the model.
+     */
+    static final class Entry {
+        private final String channelName;
+        private final long seq;
+        private final long eventId;
+        private final String line;
+
+        Entry(String channelName, long seq, long eventId, String line) {
+            this.channelName = channelName;
+            this.seq = seq;
+            this.eventId = eventId;
+            this.line = line;
+        }
+
+        String getChannelName() {
+            return channelName;
+        }
+
+        /** @return the line's sequence number in its channel */
+        long getSeq() {
+            return seq;
+        }
+
+        /** @return the number of the model event the line reports */
+        long getEventId() {
+            return eventId;
+        }
+
+        String getLine() {
+            return line;
+        }
+    }
+
+    private final String channelName;
+    private Entry[] ring;
+    // The index the next entry is written to, and the number of entries kept
+    private int next;
+    private int size;
+    private long seq;
+
+    /**
+     * Constructs an empty {@code ReplayBuffer}.
+     *
+     * @param channelName The channel whose lines are numbered
+     */
+    ReplayBuffer(String channelName) {
+        this.channelName = channelName;
+    }
+
+    String getChannelName() {
+        return channelName;
+    }
+
+    /** @return the sequence number of the last line, or 0 if there was none */
+    long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Numbers a line and, if {@code capacity} is positive, keeps it.
+     *
+     * @param eventId  The number of the model event the line reports
+     * @param line     The line as relayed to the channel's members
+     * @param capacity The most lines to keep, or 0 to keep none
+     * @return the numbered line
+     */
+    Entry append(long eventId, String line, int capacity) {
+        Entry entry = new Entry(channelName, ++seq, eventId, line);
+        if (capacity <= 0) {
+            return entry;
+        }
+        if (ring == null || ring.length != capacity) {
+            resize(capacity);
+        }
+        ring[next] = entry;
+        next = (next + 1) % ring.length;
+        size = Math.min(size + 1, ring.length);
+        return entry;
+    }
+
+    /**
+     * Collects the kept lines numbered after {@code lastSeen}, oldest first.
+     *
+     * @param lastSeen The sequence number of the last line the client saw
+     * @param into     Where to add the lines
+     * @return false if some of those lines are no longer kept, or the client
+     * claims to have seen lines not yet numbered, in which case nothing is
+     * added
+     */
+    boolean collectAfter(long lastSeen, List<Entry> into) {
+        if (lastSeen > seq || lastSeen < 0) {
+            return false;
+        }
+        long missed = seq - lastSeen;
+        if (missed > size) {
+            return false;
+        }
+        for (long i = missed; i > 0; i--) {
+            into.add(ring[Math.floorMod(next - (int) i, ring.length)]);
+        }
+        return true;
+    }
+
+    private void resize(int capacity) {
+        Entry[] resized = new Entry[capacity];
+        int kept = Math.min(size, capacity);
+        for (int i = 0; i < kept; i++) {
+            resized[kept - 1 - i] = ring[Math.floorMod(next - 1 - i, ring.length)];
+        }
+        ring = resized;
+        size = kept;
+        next = kept % capacity;
+    }
+}
@@ -0,0 +1,197 @@
+package org.cis120;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A {@code Roster} keeps the nicknames of a large channel's members in
+ * sorted order, so that {@code NAMES} can be sent one page at a time, and
+ * the recent changes to them, so that a client holding an older copy can be
+ * sent just the difference.
+ * <p>
+ * Every change gets a version from the model's roster clock, which only
+ * moves forward, so a version from another roster, even one of an earlier
+ * channel with the same name, is never mistaken for one of this roster.
+ * Changes are kept in a ring of fixed capacity; a client further behind
+ * than that must fetch the whole roster again. Not thread-safe.
+ */
+final class Roster {
+
+    /**
+     * One page of a roster.
+     */
+    static final class Page {
+        private final List<String> nicknames;
+        private final long version;
+        private final String next;
+
+        private Page(List<String> nicknames, long version, String next) {
+            this.nicknames = nicknames;
+            this.version = version;
+            this.next = next;
+        }
+
+        /** @return the nicknames on the page, in order */
+        List<String> getNicknames() {
+            return nicknames;
+        }
+
+        /** @return the roster's version when the page was taken */
+        long getVersion() {
+            return version;
+        }
+
+        /** @return the cursor for the next page, or null if this is the last */
+        String getNext() {
+            return next;
+        }
+    }
+
+    private final TreeSet<String> nicknames;
+    private long version;
+    // The latest version whose change is no longer kept, or the version the
+    // roster started at
+    private long dropped;
+    // The ring of recent changes: the version, nickname, and whether the
+    // nickname joined, of each
+    private final long[] versions;
+    private final String[] changed;
+    private final boolean[] joined;
+    private int next;
+    private int size;
+
+    /**
+     * Constructs a {@code Roster} of a channel's current members.
+     *
+     * @param nicknames The members' nicknames
+     * @param version   The model's roster clock
+     * @param capacity  The most changes to keep
+     */
+    Roster(Collection<String> nicknames, long version, int capacity) {
+        this.nicknames = new TreeSet<>(nicknames);
+        this.version = version;
+        this.dropped = version;
+        versions = new long[capacity];
+        changed = new String[capacity];
+        joined = new boolean[capacity];
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Adds a member.
+     *
+     * @param version  The next version of the model's roster clock
+     * @param nickname The member's nickname
+     */
+    void add(long version, String nickname) {
+        if (nicknames.add(nickname)) {
+            log(version, nickname, true);
+        }
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param version  The next version of the model's roster clock
+     * @param nickname The member's nickname
+     */
+    void remove(long version, String nickname) {
+        if (nicknames.remove(nickname)) {
+            log(version, nickname, false);
+        }
+    }
+
+    /**
+     * Takes a page of nicknames in sorted order.
+     *
+     * @param after The cursor from the previous page, or null for the first
+     * @param limit The most nicknames on the page
+     * @return the page
+     */
+    Page page(String after, int limit) {
+        return page(nicknames, version, after, limit);
+    }
+
+    /**
+     * Takes a page of a copy of a roster, such as a channel's members in a
+     * {@link ModelSnapshot}.
+     *
+     * @param nicknames The nicknames, in sorted order
+     * @param version   The roster version the copy was taken at
+     * @param after     The cursor from the previous page, or null for the
+     *                  first
+     * @param limit     The most nicknames on the page
+     * @return the page
+     */
+    static Page page(SortedSet<String> nicknames, long version, String after, int limit) {
+        Collection<String> rest = after == null ? nicknames : nicknames.tailSet(after);
+        List<String> page = new ArrayList<>(Math.min(limit, nicknames.size()));
+        for (String nickname : rest) {
+            if (nickname.equals(after)) {
+                continue;
+            } else if (page.size() == limit) {
+                return new Page(page, version, page.get(limit - 1));
+            }
+            page.add(nickname);
+        }
+        return new Page(page, version, null);
+    }
+
+    /**
+     * Lists the changes since a version, such as {@code +alice -bob}. A
+     * nickname that joined and left again, or left and joined again, is not
+     * mentioned.
+     *
+     * @param seen The version the client holds
+     * @return the changes, empty if there are none, or null if the changes
+     * since {@code seen} are no longer kept or {@code seen} is not a version
+     * of this roster
+     */
+    String changesSince(long seen) {
+        if (seen < dropped || seen > version) {
+            return null;
+        }
+        int first = Math.floorMod(next - size, versions.length);
+        Map<String, boolean[]> changes = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            int index = (first + i) % versions.length;
+            if (versions[index] > seen) {
+                // Whether the nickname joined at its first and last change
+                boolean[] ends = changes.computeIfAbsent(
+                        changed[index], n -> new boolean[] {joined[index], false});
+                ends[1] = joined[index];
+            }
+        }
+        StringBuilder payload = new StringBuilder();
+        for (Map.Entry<String, boolean[]> change : changes.entrySet()) {
+            if (change.getValue()[0] != change.getValue()[1]) {
+                continue;
+            }
+            if (payload.length() > 0) {
+                payload.append(' ');
+            }
+            payload.append(change.getValue()[1] ? '+' : '-').append(change.getKey());
+        }
+        return payload.toString();
+    }
+
+    private void log(long version, String nickname, boolean join) {
+        this.version = version;
+        if (size == versions.length) {
+            dropped = versions[next];
+        }
+        versions[next] = version;
+        changed[next] = nickname;
+        joined[next] = join;
+        next = (next + 1) % versions.length;
+        size = Math.min(size + 1, versions.length);
+    }
+}
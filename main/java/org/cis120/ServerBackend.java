@@ -1,13 +1,17 @@
 package org.cis120;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The {@code ServerBackend} handles networking and communication with clients,
@@ -18,26 +22,130 @@ import java.util.concurrent.*;
  */
 final class ServerBackend implements Runnable {
 
+    // The most tasks run between two published model snapshots
+    private static final int SNAPSHOT_INTERVAL = 64;
+    // The bytes of commands each client may have run per turn of the queue
+    private static final int FAIR_QUANTUM = 1024;
+    // The flow of the tasks of other cluster nodes, kept in order
+    private static final int CLUSTER_FLOW = -1;
+    // How often overload is judged, when admission control is on
+    private static final long LOAD_SAMPLE_MILLIS = 100;
+
     // The ServerModel is NOT thread-safe; it should only be touched on the
     // model thread after being initialized.
     private final ServerModel model;
 
-    private final BlockingQueue<Task> taskQueue;
+    // Registrations and disconnections go first, then every client's
+    // commands in turn
+    private final FairQueue<Task> taskQueue;
 
+    // The first of the listening sockets, whose port clients connect to
     private volatile ServerSocket serverSocket;
-    private final Map<Integer, Socket> openSockets;
+    private volatile ServerSocket[] listeners = new ServerSocket[0];
+    // Guarded by its own monitor; never held while doing I/O
+    private final IntMap<ClientConnection> openSockets;
+    private final RateLimiter rateLimiter;
+    private final HeartbeatMonitor heartbeat;
+    private final ServerStats stats;
+    private final int port;
+    private final int backlog;
+    private final int maxConnections;
+    private final int acceptors;
+    // 0 if clients may not open resumable sessions
+    private final long sessionGraceMillis;
+    private final int replayLines;
+    // Held by each client command from its worker until the model thread
+    // takes it, or null if the queue is unbounded
+    private final Semaphore queuePermits;
+    // Whether workers answer read-only commands themselves
+    private boolean concurrentReads;
+    private AdmissionControl admission = AdmissionControl.unlimited();
+    private volatile ClusterNode cluster;
 
     private volatile boolean running;
     private volatile Thread modelThread;
+    private volatile Drain drain;
+    private volatile Handoff handoff;
+    // Counted down once every acceptor thread has stopped
+    private final CountDownLatch acceptorStopped = new CountDownLatch(1);
+    private final AtomicInteger nextUserId = new AtomicInteger();
+    // Model thread only
+    private final SessionTable sessions = new SessionTable();
+    // Expires suspended sessions and ends presence digest windows; started
+    // when first needed
+    private volatile ScheduledExecutorService timer;
 
+    /**
+     * Constructs a {@code ServerBackend} on the default port without rate
+     * limits or heartbeats. Servers facing real clients are configured with
+     * {@link #ServerBackend(ServerModel, ServerConfig)} instead.
+     *
+     * @param model The model to serve
+     */
     public ServerBackend(ServerModel model) {
-        if (model == null) {
+        this(model, RateLimiter.unlimited(), HeartbeatMonitor.disabled());
+    }
+
+    public ServerBackend(ServerModel model, RateLimiter rateLimiter) {
+        this(model, rateLimiter, HeartbeatMonitor.defaults());
+    }
+
+    public ServerBackend(
+            ServerModel model, RateLimiter rateLimiter, HeartbeatMonitor heartbeat
+    ) {
+        this(model, rateLimiter, heartbeat, 21212);
+    }
+
+    public ServerBackend(
+            ServerModel model, RateLimiter rateLimiter, HeartbeatMonitor heartbeat, int port
+    ) {
+        this(model, rateLimiter, heartbeat, port, 50, 0, 0, 1, 30_000, 256);
+    }
+
+    /**
+     * Constructs a {@code ServerBackend} with the limits of a configuration.
+     *
+     * @param model  The model to serve
+     * @param config The port, limits, rate limiter, admission control,
+     *               heartbeat, NAMES page and presence digest settings
+     */
+    ServerBackend(ServerModel model, ServerConfig config) {
+        this(
+                model, config.newRateLimiter(), config.newHeartbeat(), config.getPort(),
+                config.getBacklog(), config.getMaxConnections(), config.getQueueLimit(),
+                config.getAcceptors(), config.getSessionGraceSeconds() * 1000L,
+                config.getReplayLines()
+        );
+        model.setNamesPageSize(config.getNamesPageSize());
+        model.setPresenceWindows(config.getPresenceDigest());
+        concurrentReads = config.hasConcurrentReads();
+        admission = config.newAdmissionControl();
+        model.setMaxChannels(admission.getMaxChannels());
+    }
+
+    private ServerBackend(
+            ServerModel model, RateLimiter rateLimiter, HeartbeatMonitor heartbeat, int port,
+            int backlog, int maxConnections, int queueLimit, int acceptors,
+            long sessionGraceMillis, int replayLines
+    ) {
+        if (model == null || rateLimiter == null || heartbeat == null) {
             throw new NullPointerException();
         }
         this.model = model;
-        taskQueue = new LinkedBlockingQueue<>();
+        this.rateLimiter = rateLimiter;
+        this.heartbeat = heartbeat;
+        this.port = port;
+        this.backlog = backlog;
+        this.maxConnections = maxConnections;
+        this.acceptors = Math.max(1, acceptors);
+        this.sessionGraceMillis = sessionGraceMillis;
+        this.replayLines = replayLines;
+        queuePermits = queueLimit > 0 ? new Semaphore(queueLimit) : null;
+        stats = new ServerStats();
+        cluster = null;
+        taskQueue = new FairQueue<>(FAIR_QUANTUM);
         serverSocket = null;
-        openSockets = Collections.synchronizedMap(new HashMap<>());
+        openSockets = new IntMap<>();
         running = false;
         modelThread = null;
     }
@@ -46,13 +154,92 @@ final class ServerBackend implements Runnable {
         return running;
     }
 
+    /**
+     * @return the port clients connect to, or -1 if the server is not
+     * listening yet
+     */
+    public int getLocalPort() {
+        ServerSocket current = serverSocket;
+        return current == null ? -1 : current.getLocalPort();
+    }
+
+    /**
+     * @return the traffic statistics of this server, which may be read from
+     * any thread
+     */
+    ServerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the latest published snapshot of the model, which may be read
+     * from any thread
+     */
+    ModelSnapshot getSnapshot() {
+        return model.snapshot();
+    }
+
+    /**
+     * @return the number of tasks waiting for the model thread
+     */
+    int getQueueDepth() {
+        return taskQueue.size();
+    }
+
+    /**
+     * @param lane A lane of the task queue
+     * @return the mean time tasks served from the lane waited, in
+     * microseconds
+     */
+    long getQueueWaitMicros(FairQueue.Lane lane) {
+        return taskQueue.getMeanWaitMicros(lane);
+    }
+
+    /**
+     * @param lane A lane of the task queue
+     * @return the longest time a task served from the lane waited, in
+     * microseconds
+     */
+    long getMaxQueueWaitMicros(FairQueue.Lane lane) {
+        return taskQueue.getMaxWaitMicros(lane);
+    }
+
+    /** @return true if the server is shedding load */
+    boolean isOverloaded() {
+        return admission.isOverloaded();
+    }
+
+    /**
+     * @return the number of open client connections
+     */
+    int getConnectionCount() {
+        synchronized (openSockets) {
+            return openSockets.size();
+        }
+    }
+
+    /**
+     * Makes this server a node of a cluster. Must be called before
+     * {@link #run()}, which starts the node.
+     *
+     * @param cluster The cluster node to run with this server
+     */
+    void joinCluster(ClusterNode cluster) {
+        if (running) {
+            throw new IllegalStateException("Server already running");
+        }
+        cluster.attach(this, model);
+        this.cluster = cluster;
+    }
+
     @Override
     public void run() {
         running = true;
 
-        // Attempt to open the ServerSocket; abort on failure
+        // Attempt to open the listening sockets; abort on failure
         try {
-            serverSocket = new ServerSocket(21212);
+            listeners = openListeners();
+            serverSocket = listeners[0];
         } catch (IOException iox) {
             iox.printStackTrace();
             running = false;
@@ -61,6 +248,9 @@ final class ServerBackend implements Runnable {
 
         // Start the model thread
         modelThread = new Thread(() -> {
+            int tasksSinceSnapshot = 0;
+            // Counts of the client tasks run since the last snapshot
+            List<AtomicInteger> unsettled = new ArrayList<>();
             while (running || !taskQueue.isEmpty()) {
                 Task task;
                 try {
@@ -68,105 +258,551 @@ final class ServerBackend implements Runnable {
                 } catch (InterruptedException ix) {
                     continue;
                 }
+                if (queuePermits != null && task instanceof Request
+                        && ((Request) task).holdsPermit) {
+                    queuePermits.release();
+                }
+                Handoff moving = handoff;
+                if (moving != null && moving.isRelaying()) {
+                    if (moving.relay(task)) {
+                        break;
+                    }
+                    continue;
+                }
+                Drain current = drain;
+                if (current != null && task != current && !current.admit()) {
+                    continue;
+                }
+                if (current == null && task instanceof Disconnection
+                        && taskQueue.peek() instanceof Disconnection) {
+                    task = new DisconnectionBatch((Disconnection) task);
+                }
+                boolean published = false;
                 try {
-                    dispatchBroadcast(task.getBroadcast());
+                    Broadcast broadcast = task.getBroadcast();
+                    // Coalesce snapshots under load, but never let them
+                    // fall more than a few tasks behind
+                    if (taskQueue.isEmpty() || ++tasksSinceSnapshot >= SNAPSHOT_INTERVAL) {
+                        model.publishSnapshot();
+                        tasksSinceSnapshot = 0;
+                        published = true;
+                    }
+                    dispatchBroadcast(broadcast);
                 } catch (RuntimeException rx) {
                     rx.printStackTrace();
                 }
+                if (task instanceof ClientTask && ((ClientTask) task).unsettled != null) {
+                    unsettled.add(((ClientTask) task).unsettled);
+                }
+                if (published) {
+                    // Answered, and in the snapshot workers read from
+                    for (AtomicInteger count : unsettled) {
+                        count.decrementAndGet();
+                    }
+                    unsettled.clear();
+                }
+                if (task == current) {
+                    current.finish();
+                    break;
+                }
+                if (task == moving && moving.finishIfDone()) {
+                    break;
+                }
             }
 
+            closeListeners();
+            if (timer != null) {
+                timer.shutdownNow();
+            }
+        }, "Model thread");
+        if (admission.isSampled()) {
+            // Judged on the timer rather than the model thread, so that a
+            // stuck model thread is noticed
+            timer().scheduleWithFixedDelay(
+                    this::sampleLoad, LOAD_SAMPLE_MILLIS, LOAD_SAMPLE_MILLIS, TimeUnit.MILLISECONDS
+            );
+        }
+        modelThread.start();
+        heartbeat.start();
+
+        if (cluster != null && running) {
             try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-                }
+                cluster.start();
             } catch (IOException iox) {
                 iox.printStackTrace();
+                stop();
             }
-        }, "Model thread");
-        modelThread.start();
+        }
 
-        // Await new connections on the current thread
+        // Await new connections on the current thread, and on one more
+        // thread per extra acceptor
         ExecutorService workerPool = Executors.newCachedThreadPool();
+        List<Thread> extraAcceptors = new ArrayList<>();
         try {
-            int nextId = 0;
-            while (running && !serverSocket.isClosed()) {
-                int userId = nextId++;
-                Socket clientSocket = serverSocket.accept();
-                openSockets.put(userId, clientSocket);
-                taskQueue.add(new Registration(userId));
-                workerPool.execute(new ConnectionWorker(userId, clientSocket));
+            if (running) {
+                for (int i = 1; i < acceptors; i++) {
+                    ServerSocket listener = listeners[i % listeners.length];
+                    Thread extra = new Thread(() -> {
+                        try {
+                            acceptConnections(listener, workerPool);
+                        } catch (IOException iox) {
+                            if (running && !listener.isClosed()) {
+                                iox.printStackTrace();
+                            }
+                        }
+                    }, "Connection acceptor " + i);
+                    extra.start();
+                    extraAcceptors.add(extra);
+                }
+                acceptConnections(serverSocket, workerPool);
             }
         } catch (IOException iox) {
             iox.printStackTrace();
         } finally {
-            running = false;
-            workerPool.shutdown();
-            try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-                }
-            } catch (IOException iox) {
-                iox.printStackTrace();
-            } finally {
-                serverSocket = null;
+            // A graceful shutdown keeps the workers running until it is done,
+            // and a hot restart until every client has been relayed
+            Drain current = drain;
+            Handoff moving = handoff;
+            if (current == null && moving == null) {
+                running = false;
+            }
+            // The other acceptors must stop before the worker pool does
+            closeListeners();
+            for (Thread extra : extraAcceptors) {
+                joinUninterruptibly(extra);
+            }
+            heartbeat.stop();
+            if (cluster != null) {
+                cluster.stop();
             }
+            workerPool.shutdown();
+            serverSocket = null;
+            acceptorStopped.countDown();
 
-            synchronized (openSockets) {
-                Iterator<Socket> iterator = openSockets.values().iterator();
-                while (iterator.hasNext()) {
-                    Socket clientSocket = iterator.next();
+            // Relayed connections stay open until their clients hang up
+            if (moving == null) {
+                if (current != null) {
+                    // Leave the connections to shutdown() until clients hang up
+                    current.awaitClosed();
+                }
+                List<ClientConnection> connections = new ArrayList<>();
+                synchronized (openSockets) {
+                    for (int userId : openSockets.keys()) {
+                        connections.add(openSockets.remove(userId));
+                    }
+                }
+                for (ClientConnection connection : connections) {
                     try {
-                        clientSocket.close();
+                        connection.close();
                     } catch (IOException iox) {
                         iox.printStackTrace();
-                    } finally {
-                        iterator.remove();
                     }
                 }
             }
         }
     }
 
-    public void stop() {
-        running = false;
-        if (serverSocket != null && !serverSocket.isClosed()) {
+    // ==========================================================================
+    // Accepting connections
+    // ==========================================================================
+
+    /**
+     * Opens the sockets the acceptor threads listen on. Where the platform
+     * supports {@code SO_REUSEPORT}, as Linux does, every acceptor gets its
+     * own socket bound to the same port, and the kernel spreads incoming
+     * connections across them, so that a connection storm is not serialized
+     * on one accept queue. Elsewhere the acceptors share a single socket.
+     *
+     * @return the listening sockets, the first of which is bound first
+     * @throws IOException if a socket cannot be opened or bound
+     */
+    private ServerSocket[] openListeners() throws IOException {
+        ServerSocket first = new ServerSocket();
+        boolean reusePort = acceptors > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        ServerSocket[] opened = new ServerSocket[reusePort ? acceptors : 1];
+        opened[0] = first;
+        try {
+            for (int i = 0; i < opened.length; i++) {
+                if (opened[i] == null) {
+                    opened[i] = new ServerSocket();
+                }
+                if (reusePort) {
+                    opened[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                // With port 0, the others join the port chosen for the first
+                int bindPort = i == 0 ? port : first.getLocalPort();
+                opened[i].bind(new InetSocketAddress(bindPort), backlog);
+            }
+        } catch (IOException iox) {
+            for (ServerSocket listener : opened) {
+                if (listener != null) {
+                    listener.close();
+                }
+            }
+            throw iox;
+        }
+        return opened;
+    }
+
+    private void closeListeners() {
+        for (ServerSocket listener : listeners) {
+            if (!listener.isClosed()) {
+                try {
+                    listener.close();
+                } catch (IOException iox) {
+                    iox.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts connections on one listening socket until it is closed or the
+     * server stops. Several threads may run this at once; user IDs are
+     * allocated without locking, and registrations are batched so that a
+     * burst of connections costs the model thread one task.
+     */
+    private void acceptConnections(ServerSocket listener, ExecutorService workerPool)
+            throws IOException {
+        RegistrationBatch registrations = new RegistrationBatch();
+        while (running && !listener.isClosed()) {
+            Socket clientSocket = listener.accept();
+            if (maxConnections > 0 && getConnectionCount() >= maxConnections) {
+                System.out.printf(
+                        "Refusing connection: limit of %d reached\n", maxConnections
+                );
+                stats.connectionRefused();
+                clientSocket.close();
+                continue;
+            }
+            if (!admission.admitsConnection(model.snapshot().getRegisteredUsers().size())) {
+                System.out.println(admission.isOverloaded()
+                        ? "Refusing connection: overloaded"
+                        : "Refusing connection: user limit reached");
+                stats.connectionRefused();
+                clientSocket.close();
+                continue;
+            }
+            int localId = nextUserId.getAndIncrement();
+            int userId = cluster == null ? localId : cluster.globalId(localId);
+            ClientConnection connection;
             try {
-                serverSocket.close();
+                connection = new ClientConnection(userId, clientSocket);
             } catch (IOException iox) {
                 iox.printStackTrace();
+                clientSocket.close();
+                continue;
+            }
+            synchronized (openSockets) {
+                openSockets.put(userId, connection);
+            }
+            stats.connectionOpened();
+            registrations.add(userId);
+            heartbeat.watch(connection);
+            workerPool.execute(new ConnectionWorker(connection));
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        while (true) {
+            try {
+                thread.join();
+                return;
+            } catch (InterruptedException ix) {
+                // Keep waiting; the acceptor is about to notice the closed socket
+            }
+        }
+    }
+
+    /**
+     * Shuts the server down gracefully, without losing accepted work:
+     * <ol>
+     * <li>stops accepting connections, and ignores new commands;</li>
+     * <li>lets the model thread run every task already queued, dropping
+     * those still queued when the deadline passes;</li>
+     * <li>sends every connected client a {@code SHUTDOWN} line;</li>
+     * <li>writes a final snapshot of the model, if a file is given;</li>
+     * <li>half-closes every connection, and waits until the deadline for
+     * clients to close theirs before closing the rest.</li>
+     * </ol>
+     * Blocks until done. Use {@link #stop()} for an immediate shutdown.
+     *
+     * @param timeoutMillis The longest time to spend draining the queue and
+     *                      waiting for clients, not counting the task
+     *                      running when the deadline passes
+     * @param snapshotFile  Where to write the final snapshot, or null
+     * @return What the shutdown did and how long it took, or null if the
+     * server was not running
+     * @throws InterruptedException if interrupted while waiting
+     */
+    ShutdownReport shutdown(long timeoutMillis, Path snapshotFile)
+            throws InterruptedException {
+        if (!running || drain != null || handoff != null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Drain current = new Drain(deadline, snapshotFile);
+        drain = current;
+        taskQueue.addBarrier(current);
+        closeListeners();
+
+        long drained;
+        int lingering;
+        try {
+            current.finished.await();
+            drained = System.nanoTime();
+
+            // Wait for clients to read to the end of the stream and hang up
+            while (getConnectionCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
             }
+            lingering = getConnectionCount();
+        } finally {
+            current.closed.countDown();
+        }
+
+        ShutdownReport report = new ShutdownReport(
+                drained - start, System.nanoTime() - start, current.processed,
+                current.dropped, current.notified, lingering, current.snapshotWritten
+        );
+        System.out.println("Shut down: " + report);
+        return report;
+    }
+
+    // ==========================================================================
+    // Hot restart
+    // ==========================================================================
+
+    /**
+     * Hands this server over to a new process, which is the old side of a
+     * {@link HotRestart}. Stops accepting connections, lets the model thread
+     * run every task already queued, and then writes to {@code state}:
+     *
+     * <pre>
+     * NEXT id              the next user ID the acceptor would have used
+     * CONNECTION id        one per connected client, to be attached
+     * SNAPSHOT ...         the model, as written by {@link ModelSnapshot}
+     * END
+     * </pre>
+     *
+     * From then on, the model thread no longer runs commands. It passes each
+     * client's lines to the new process in order, over the relay attached
+     * with {@link #attach(int, SocketChannel)}, until every client has hung
+     * up. Clients not attached within {@link HotRestart#ATTACH_TIMEOUT_MILLIS}
+     * are disconnected. If the state cannot be written, this server keeps
+     * serving its connected clients, but accepts no new ones.
+     *
+     * @param state Where to write the state; not closed
+     * @return the IDs of the clients to attach, or null if the server was not
+     * running, is shutting down, or is a cluster node
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              model thread
+     */
+    int[] handOff(Writer state) throws InterruptedException {
+        if (!running || drain != null || handoff != null || cluster != null) {
+            return null;
+        }
+        Handoff moving = new Handoff(state);
+        handoff = moving;
+        closeListeners();
+        // No registration may follow the state
+        acceptorStopped.await();
+        taskQueue.addBarrier(moving);
+        moving.stateSent.await();
+        return moving.attached;
+    }
+
+    /**
+     * Connects a client listed by {@link #handOff(Writer)} to the relay
+     * channel opened for it by the new process.
+     *
+     * @param userId  The client's ID
+     * @param channel The relay channel, closed if the client is gone
+     * @throws IOException if the relay cannot be started
+     */
+    void attach(int userId, SocketChannel channel) throws IOException {
+        Handoff moving = handoff;
+        ClientConnection connection = connectionOf(userId);
+        if (moving == null || connection == null) {
+            channel.close();
+            return;
+        }
+        moving.attach(userId, new HotRestart.Relay(connection, channel));
+    }
+
+    /**
+     * Loads the state handed over by the old process, which is the new side
+     * of a {@link HotRestart}. Must be called before {@link #run()}.
+     *
+     * @param snapshot   The old process's model
+     * @param nextUserId The first user ID to give a new connection
+     */
+    void restore(ModelSnapshot snapshot, int nextUserId) {
+        if (running) {
+            throw new IllegalStateException("Server already running");
+        }
+        model.restore(snapshot);
+        this.nextUserId.set(nextUserId);
+    }
+
+    /**
+     * Takes over a client still connected to the old process, through the
+     * relay channel to it. The client is already registered by
+     * {@link #restore(ModelSnapshot, int)}.
+     *
+     * @param userId  The client's ID
+     * @param channel The relay channel
+     */
+    void adopt(int userId, SocketChannel channel) {
+        ClientConnection connection = new ClientConnection(userId, channel);
+        synchronized (openSockets) {
+            openSockets.put(userId, connection);
         }
+        heartbeat.watch(connection);
+        new Thread(new ConnectionWorker(connection), "Relayed client " + userId).start();
+    }
+
+    public void stop() {
+        running = false;
+        closeListeners();
         if (modelThread != null) {
             modelThread.interrupt();
         }
     }
 
+    /**
+     * Runs a task on the model thread.
+     *
+     * @param task The task to run
+     */
+    void submit(Task task) {
+        taskQueue.add(task, CLUSTER_FLOW, 1);
+    }
+
+    /**
+     * Runs a command forwarded by another cluster node on the model thread,
+     * as if it had come from a local client.
+     *
+     * @param userId  The sender's cluster-wide ID
+     * @param payload The command
+     * @param hops    The number of times the command has been forwarded
+     */
+    void submitRequest(int userId, String payload, int hops) {
+        taskQueue.add(new Request(userId, payload, hops), CLUSTER_FLOW, payload.length());
+    }
+
+    /**
+     * Sends a line relayed by another cluster node to clients connected to
+     * this server, encoding it once per codec. Clients that have disconnected
+     * are skipped.
+     *
+     * @param userIds The clients' IDs
+     * @param line    The line to send
+     */
+    void sendLocal(Collection<Integer> userIds, String line) {
+        Map<String, byte[]> encoded = new HashMap<>();
+        for (int userId : userIds) {
+            ClientConnection connection = connectionOf(userId);
+            if (connection == null) {
+                continue;
+            }
+            try {
+                connection.send(line, encoded);
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+        }
+    }
+
     // ==========================================================================
     // Broadcast dispatch
     // ==========================================================================
 
     private void dispatchBroadcast(Broadcast broadcast) {
+        List<ReplayBuffer.Entry> recorded = model.takeRecorded();
+        for (PresenceDigest digest : model.takeOpenedDigests()) {
+            schedule(new PresenceFlush(digest), digest.getWindowMillis());
+        }
+        // Digests sent early by this change go out before it
+        Broadcast digests = model.takePresenceLines();
+        if (digests != null) {
+            dispatchBroadcast(digests);
+        }
         if (broadcast == null) {
             return;
         }
 
-        Map<Integer, List<String>> responses = broadcast.getResponses(model);
-        for (int userId : responses.keySet()) {
+        IntMap<List<String>> responses = broadcast.getResponses(model);
+        if (!recorded.isEmpty() && !sessions.isEmpty()) {
+            stampSequenceNumbers(responses, recorded);
+        }
+
+        // Most broadcasts send the same line to many users; encode it once
+        // per codec rather than once per recipient
+        Map<String, byte[]> encoded = new HashMap<>();
+        IntMap<List<String>> remote = new IntMap<>();
+        responses.forEach((userId, lines) -> {
+            if (cluster != null && !cluster.isLocal(userId)) {
+                remote.put(userId, lines);
+                return;
+            }
+            ClientConnection connection = connectionOf(userId);
+            if (connection == null) {
+                return;
+            }
             try {
-                Socket clientSocket = openSockets.get(userId);
-                PrintWriter pw = new PrintWriter(clientSocket.getOutputStream());
-                for (String response : responses.get(userId)) {
-                    pw.println(response);
-                    pw.flush();
+                // One flush per recipient, however many lines it is sent
+                connection.send(lines, encoded);
+                for (String response : lines) {
                     System.out.printf(
                             "Response sent to user %d: \"%s\"\n",
                             userId, response
                     );
                 }
-                pw.flush();
             } catch (IOException iox) {
                 iox.printStackTrace();
             }
+        });
+        if (!remote.isEmpty()) {
+            cluster.deliver(remote);
+        }
+    }
+
+    /**
+     * Prefixes the lines sent to clients with sessions with the sequence
+     * numbers those lines were given in the recipient's channels, such as
+     * {@code @java:17 :User0 MESG java :hi}.
+     */
+    private void stampSequenceNumbers(
+            IntMap<List<String>> responses, List<ReplayBuffer.Entry> recorded
+    ) {
+        for (int userId : responses.keys()) {
+            if (sessions.of(userId) == null) {
+                continue;
+            }
+            List<String> stamped = new ArrayList<>();
+            for (String line : responses.get(userId)) {
+                StringBuilder tag = new StringBuilder();
+                for (ReplayBuffer.Entry entry : recorded) {
+                    if (entry.getLine().equals(line)
+                            && model.isMember(entry.getChannelName(), userId)) {
+                        if (tag.length() > 0) {
+                            tag.append(',');
+                        }
+                        tag.append(entry.getChannelName()).append(':').append(entry.getSeq());
+                    }
+                }
+                stamped.add(tag.length() == 0 ? line : ServerModel.stamp(tag.toString(), line));
+            }
+            responses.put(userId, stamped);
+        }
+    }
+
+    private ClientConnection connectionOf(int userId) {
+        synchronized (openSockets) {
+            return openSockets.get(userId);
         }
     }
 
@@ -175,23 +811,39 @@ final class ServerBackend implements Runnable {
     // ==========================================================================
 
     private final class ConnectionWorker implements Runnable {
-        private final int userId;
-        private final Socket clientSocket;
+        // Changes only when the client resumes an earlier session
+        private int userId;
+        private final ClientConnection connection;
+        private final RateLimiter.ConnectionLimits limits;
+        // Tasks queued for this client that the published snapshot may not
+        // reflect yet
+        private final AtomicInteger unsettled = new AtomicInteger();
 
-        public ConnectionWorker(int userId, Socket clientSocket) {
-            this.userId = userId;
-            this.clientSocket = clientSocket;
+        public ConnectionWorker(ClientConnection connection) {
+            this.userId = connection.getUserId();
+            this.connection = connection;
+            this.limits = rateLimiter.newConnection();
         }
 
         @Override
         public void run() {
-            try (
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(clientSocket.getInputStream())
-                    )) {
-                while (running && !clientSocket.isClosed()) {
-                    String line = reader.readLine();
-                    if (line != null) {
+            try {
+                while (running && !connection.isClosed()) {
+                    String line = connection.receive();
+                    if (line == null) {
+                        break;
+                    } else if (connection.negotiate(line)) {
+                        System.out.printf(
+                                "User %d switched to %s protocol\n",
+                                userId, connection.getWriter().getName()
+                        );
+                    } else if (handoff != null) {
+                        // Passed on unparsed, in order, by the model thread
+                        taskQueue.add(new Request(userId, line, 0), userId, line.length());
+                    } else if (drain != null) {
+                        // Shutting down; no new work is taken
+                        continue;
+                    } else if (!answerHeartbeat(line)) {
                         System.out.printf(
                                 "Request received from user %d: " +
                                         "\"%s\"\n",
@@ -204,18 +856,186 @@ final class ServerBackend implements Runnable {
                         } else {
                             payload = line;
                         }
-                        Request request = new Request(userId, payload);
-                        taskQueue.add(request);
-                    } else {
-                        clientSocket.close();
-                        taskQueue.add(new Disconnection(userId));
+                        switch (limits.check(payload)) {
+                            case ACCEPT:
+                                stats.commandAccepted(userId, payload);
+                                if (payload.equals("SESSION")) {
+                                    queue(new SessionStart(userId));
+                                } else if (payload.startsWith("RESUME ")) {
+                                    Resume resume = new Resume(userId, payload, connection);
+                                    queue(resume);
+                                    userId = resume.awaitUserId();
+                                } else if (isNicknameTaken(payload)) {
+                                    queue(new Rejection(
+                                            userId, payload, ServerResponse.NAME_ALREADY_IN_USE
+                                    ));
+                                } else if (!admission.admitsCommand(
+                                        payload, model.snapshot().getChannels().size())) {
+                                    stats.commandRejected();
+                                    refuse(payload, ServerResponse.BUSY);
+                                } else if (!readConcurrently(payload)) {
+                                    if (queuePermits != null) {
+                                        // Stop reading until the model catches up
+                                        queuePermits.acquireUninterruptibly();
+                                    }
+                                    queue(new Request(
+                                            userId, payload, 0, queuePermits != null
+                                    ));
+                                }
+                                break;
+                            case REJECT_AND_NOTIFY:
+                                stats.commandRejected();
+                                queue(new Rejection(
+                                        userId, payload, ServerResponse.THROTTLED
+                                ));
+                                break;
+                            case REJECT:
+                                stats.commandRejected();
+                                break;
+                            case DISCONNECT:
+                                System.out.printf("Disconnecting flooding user %d\n", userId);
+                                connection.close();
+                                break;
+                            default:
+                                throw new IllegalStateException();
+                        }
                     }
                 }
             } catch (IOException iox) {
-                iox.printStackTrace();
-                taskQueue.add(new Disconnection(userId));
+                // Also how a socket closed by the heartbeat monitor ends up
+                if (!connection.isClosed()) {
+                    iox.printStackTrace();
+                }
             } finally {
-                openSockets.remove(userId);
+                synchronized (openSockets) {
+                    // A resumed session may have moved on to a new connection
+                    if (openSockets.get(userId) == connection) {
+                        openSockets.remove(userId);
+                    }
+                }
+                try {
+                    connection.close();
+                } catch (IOException iox) {
+                    iox.printStackTrace();
+                }
+                // However the connection ended, the model hears about it once
+                if (running) {
+                    taskQueue.addUrgent(new Disconnection(userId), userId);
+                }
+            }
+        }
+
+        /**
+         * Handles heartbeat lines, which never reach the model. They are
+         * charged to the connection's rate limit like commands. A client
+         * {@code PING} is answered directly if it is within the limit, and
+         * a {@code PONG} only needs to have been received to count as
+         * activity.
+         *
+         * @return true if the line was a heartbeat line
+         */
+        private boolean answerHeartbeat(String line) throws IOException {
+            boolean ping = line.equals("PING") || line.startsWith("PING ");
+            if (!ping && !line.equals("PONG") && !line.startsWith("PONG ")) {
+                return false;
+            }
+            switch (limits.checkHeartbeat()) {
+                case ACCEPT:
+                    if (ping) {
+                        connection.send("PONG" + line.substring("PING".length()));
+                    }
+                    break;
+                case DISCONNECT:
+                    System.out.printf("Disconnecting flooding user %d\n", userId);
+                    connection.close();
+                    break;
+                default:
+                    stats.commandRejected();
+            }
+            return true;
+        }
+
+        /**
+         * In a cluster, nicknames must be reserved cluster-wide before a
+         * {@code NICK} command reaches the model. Blocks this worker, but not
+         * the model thread, until the reservation is answered.
+         *
+         * @return true if the command asks for a nickname that is taken
+         */
+        private boolean isNicknameTaken(String payload) {
+            if (cluster == null || !payload.startsWith("NICK ")) {
+                return false;
+            }
+            return !cluster.reserve(userId, payload.substring("NICK ".length()));
+        }
+
+        /**
+         * Answers a read-only command, {@code SEARCH} or {@code NAMES}, on
+         * this worker, from the latest published snapshot, instead of
+         * queuing it for the model thread. This is only done once every
+         * task queued earlier for this client has been answered and
+         * published, so the client's commands are still answered in the
+         * order it sent them, and never from a snapshot older than its own
+         * changes. In a cluster, reads may belong to another node and are
+         * always queued. Commands are told apart by their first word, so
+         * only read-only ones are parsed here.
+         *
+         * @return false if the command must be queued for the model thread
+         */
+        private boolean readConcurrently(String payload) throws IOException {
+            if (!concurrentReads || cluster != null || unsettled.get() > 0
+                    || !CommandParser.isReadOnly(payload)) {
+                return false;
+            }
+            ModelSnapshot snapshot = model.snapshot();
+            String sender = snapshot.getNickname(userId);
+            if (sender == null) {
+                return false;
+            }
+            Command command;
+            try {
+                command = CommandParser.parse(userId, sender, payload);
+            } catch (IllegalArgumentException iax) {
+                // Reported by the model thread, as for any other command
+                return false;
+            }
+            if (!(command instanceof ReadOnlyCommand read)) {
+                return false;
+            }
+            List<String> lines = read.readServerModel(model, snapshot).getResponses(sender);
+            connection.send(lines, new HashMap<>());
+            for (String response : lines) {
+                System.out.printf("Response sent to user %d: \"%s\"\n", userId, response);
+            }
+            return true;
+        }
+
+        /**
+         * Refuses a command with an error. The error is sent from this
+         * worker if that cannot overtake an answer to one of the client's
+         * earlier commands, so that refusing work under load does not add
+         * to the model thread's work.
+         */
+        private void refuse(String payload, ServerResponse response) throws IOException {
+            String sender = unsettled.get() > 0 ? null : model.snapshot().getNickname(userId);
+            if (sender == null) {
+                queue(new Rejection(userId, payload, response));
+                return;
+            }
+            String line = Broadcast.error(sender, response).getResponses(sender).get(0);
+            connection.send(line);
+            System.out.printf("Response sent to user %d: \"%s\"\n", userId, line);
+        }
+
+        private void queue(ClientTask task) {
+            unsettled.incrementAndGet();
+            task.unsettled = unsettled;
+            if (task instanceof Request && ((Request) task).payload.startsWith("KICK ")) {
+                // Removing a member goes ahead of other clients' commands,
+                // though never ahead of this client's own
+                taskQueue.addUrgent(task, userId);
+            } else {
+                taskQueue.add(task, userId, task.cost());
             }
         }
     }
@@ -224,56 +1044,476 @@ final class ServerBackend implements Runnable {
     // Tasks
     // ==========================================================================
 
-    private interface Task {
+    interface Task {
         Broadcast getBroadcast();
     }
 
     /**
-     * Represents a client's connection to the server.
+     * A task a client's worker queued for it. Until the model thread has run
+     * it, dispatched its responses and published a snapshot reflecting it,
+     * the task is unsettled, and the worker queues the client's read-only
+     * commands and refusals behind it rather than answering them itself.
      */
-    private final class Registration implements Task {
-        private final int userId;
+    private abstract static class ClientTask implements Task {
+        // The worker's count of its unsettled tasks, or null if not queued
+        // by a worker
+        private AtomicInteger unsettled;
 
-        public Registration(int userId) {
-            this.userId = userId;
-        }
-
-        @Override
-        public Broadcast getBroadcast() {
-            return model.registerUser(userId);
+        /** @return the task's share of its client's turn in the queue */
+        int cost() {
+            return 1;
         }
     }
 
     /**
-     * Represents a client's disconnection from the server.
+     * Represents the connections accepted by one acceptor thread since its
+     * batch last ran. Each acceptor queues its batch at most once at a time,
+     * so a connection storm registers many clients per model task. Because
+     * only the owning acceptor queues it, a client's registration is always
+     * queued before its worker can queue anything.
      */
-    private final class Disconnection implements Task {
-        private final int userId;
+    private final class RegistrationBatch implements Task {
+        private final Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean queued = new AtomicBoolean();
 
-        public Disconnection(int userId) {
-            this.userId = userId;
+        /**
+         * Adds a connection to the batch, queueing the batch unless it is
+         * already queued. Called on the owning acceptor thread only.
+         */
+        void add(int userId) {
+            pending.add(userId);
+            if (queued.compareAndSet(false, true)) {
+                taskQueue.addUrgent(this);
+            }
         }
 
         @Override
         public Broadcast getBroadcast() {
-            return model.deregisterUser(userId);
-        }
-    }
-
-    /**
-     * Represents an incoming command from a connected client.
+            // Cleared first, so that a connection added from here on is
+            // either taken below or queues the batch again
+            queued.set(false);
+            int[] userIds = new int[pending.size()];
+            int count = 0;
+            Integer userId;
+            while ((userId = pending.poll()) != null) {
+                if (count == userIds.length) {
+                    userIds = Arrays.copyOf(userIds, count * 2 + 1);
+                }
+                userIds[count++] = userId;
+            }
+            if (count == 0) {
+                return null;
+            }
+            int maxUsers = admission.getMaxUsers();
+            if (maxUsers > 0 && model.getUserCount() + count > maxUsers) {
+                // The acceptors only saw the published snapshot's count
+                int room = Math.max(0, maxUsers - model.getUserCount());
+                for (int i = room; i < count; i++) {
+                    refuse(userIds[i]);
+                }
+                count = room;
+                if (count == 0) {
+                    return null;
+                }
+            }
+            userIds = Arrays.copyOf(userIds, count);
+            Broadcast broadcast = model.registerUsers(userIds);
+            if (cluster != null) {
+                for (int registered : userIds) {
+                    cluster.userRegistered(registered, model.getNickname(registered));
+                }
+            }
+            return broadcast;
+        }
+
+        /**
+         * Closes a connection over the user limit before it is registered.
+         * Its worker then sees the connection end, and its disconnection
+         * finds no user to remove.
+         */
+        private void refuse(int userId) {
+            System.out.println("Refusing connection: user limit reached");
+            stats.connectionRefused();
+            ClientConnection connection = connectionOf(userId);
+            if (connection == null) {
+                return;
+            }
+            try {
+                connection.close();
+            } catch (IOException iox) {
+                // Already gone
+            }
+        }
+    }
+
+    /**
+     * Represents a client's disconnection from the server.
+     */
+    private final class Disconnection implements Task {
+        private final int userId;
+
+        public Disconnection(int userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            if (connectionOf(userId) != null) {
+                // The session was resumed on another connection
+                return null;
+            }
+            SessionTable.Session session = sessions.of(userId);
+            if (session != null && drain == null) {
+                suspend(session);
+                return null;
+            }
+            return departed(userId);
+        }
+    }
+
+    /**
+     * Several {@link Disconnection}s that were queued one after another,
+     * such as when a network failure drops many clients at once, processed
+     * as one task. The users that are not kept for their sessions are
+     * deregistered together by {@link ServerModel#deregisterUsers(int[])},
+     * so every remaining user is sent all its {@code QUIT} lines in one
+     * write.
+     */
+    private final class DisconnectionBatch implements Task {
+        private final List<Disconnection> disconnections = new ArrayList<>();
+
+        /**
+         * Takes the first disconnection and every disconnection queued right
+         * after it. Only the model thread takes tasks from the queue, so the
+         * task peeked is the task polled.
+         */
+        DisconnectionBatch(Disconnection first) {
+            disconnections.add(first);
+            while (taskQueue.peek() instanceof Disconnection) {
+                disconnections.add((Disconnection) taskQueue.poll());
+            }
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            int[] departing = new int[disconnections.size()];
+            int count = 0;
+            for (Disconnection disconnection : disconnections) {
+                int userId = disconnection.userId;
+                if (connectionOf(userId) != null) {
+                    continue;
+                }
+                SessionTable.Session session = sessions.of(userId);
+                if (session != null && drain == null) {
+                    suspend(session);
+                    continue;
+                }
+                if (cluster != null) {
+                    // The cluster is told about each departure separately
+                    dispatchBroadcast(departed(userId));
+                    continue;
+                }
+                if (session != null) {
+                    sessions.close(session);
+                }
+                departing[count++] = userId;
+            }
+            if (count == 0) {
+                return null;
+            }
+            return model.deregisterUsers(Arrays.copyOf(departing, count));
+        }
+    }
+
+    /**
+     * Removes a user from the model for good, closing their session if any.
+     * Called on the model thread.
+     */
+    private Broadcast departed(int userId) {
+        SessionTable.Session session = sessions.of(userId);
+        if (session != null) {
+            sessions.close(session);
+        }
+        String nickname = model.getNickname(userId);
+        if (nickname == null) {
+            // Refused before it was registered
+            return null;
+        }
+        Broadcast broadcast = model.deregisterUser(userId);
+        if (cluster != null && nickname != null) {
+            cluster.userDeparted(
+                    userId, nickname, broadcast.getResponses(model).keys()
+            );
+        }
+        return broadcast;
+    }
+
+    /**
+     * Removes every user whose session is suspended, without waiting for
+     * the grace period to end. Called on the model thread.
+     */
+    private void endSuspendedSessions() {
+        for (int userId : sessions.suspendedUsers()) {
+            dispatchBroadcast(departed(userId));
+        }
+    }
+
+    /**
+     * Keeps a user whose connection was lost in the model for the grace
+     * period, in case the client resumes its session. Called on the model
+     * thread.
+     */
+    private void suspend(SessionTable.Session session) {
+        int generation = sessions.suspend(session);
+        schedule(new SessionExpiry(session, generation), sessionGraceMillis);
+    }
+
+    /**
+     * Queues a task for the model thread once a delay has passed. Tasks
+     * still waiting when the server stops are dropped. Called on the model
+     * thread.
+     */
+    private void schedule(Task task, long delayMillis) {
+        try {
+            timer().schedule(() -> taskQueue.addUrgent(task), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rex) {
+            // Stopping
+        }
+    }
+
+    /**
+     * @return the backend timer, started when first needed. Called on the
+     * model thread, or before it starts.
+     */
+    private ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Backend timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Judges whether the server is overloaded from the task queue and the
+     * heap. Runs on the backend timer.
+     */
+    private void sampleLoad() {
+        boolean changed = admission.sample(
+                taskQueue.size(), taskQueue.takeRecentWaitMicros(),
+                AdmissionControl.heapFreePercent()
+        );
+        if (changed) {
+            System.out.println(admission.isOverloaded()
+                    ? "Overloaded: refusing connections and messages"
+                    : "Load back under target: accepting connections and messages");
+        }
+    }
+
+    /**
+     * Represents a client asking for a resumable session with
+     * {@code SESSION}. It is answered with
+     * {@code :<nickname> SESSION <token> [<channel>:<seq> ...]}, and from
+     * then on every line relayed to one of its channels is stamped with the
+     * line's sequence number there. If the connection is lost, the user
+     * stays in the model, and in its channels, for the grace period.
+     */
+    private final class SessionStart extends ClientTask {
+        private final int userId;
+
+        SessionStart(int userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            String nickname = model.getNickname(userId);
+            if (nickname == null) {
+                return null;
+            }
+            if (sessionGraceMillis <= 0 || cluster != null) {
+                return Broadcast.error(nickname, ServerResponse.NO_SUCH_SESSION);
+            }
+            model.setReplayCapacity(replayLines);
+            return model.sessionOpened(userId, sessions.open(userId).getToken());
+        }
+    }
+
+    /**
+     * Represents a client resuming an earlier session on a new connection
+     * with {@code RESUME <token> [<channel>:<seq> ...]}, listing the last
+     * sequence number it saw in each channel. The connection takes over the
+     * earlier user's ID, closing the earlier connection if it is still open,
+     * and the user this connection was registered as is removed. The client
+     * is answered with {@code :<nickname> RESUMED} and the lines it missed
+     * (see {@link ServerModel#resumeSession(int, Map)}), or with
+     * {@link ServerResponse#NO_SUCH_SESSION}. The worker waits for the
+     * outcome, so that later commands run as the right user.
      */
-    private final class Request implements Task {
+    private final class Resume extends ClientTask {
         private final int userId;
         private final String payload;
+        private final ClientConnection connection;
+        private final CountDownLatch done = new CountDownLatch(1);
+        // Written on the model thread before done is counted down
+        private int resumedId;
 
-        public Request(int userId, String payload) {
+        Resume(int userId, String payload, ClientConnection connection) {
             this.userId = userId;
             this.payload = payload;
+            this.connection = connection;
+            resumedId = userId;
         }
 
         @Override
         public Broadcast getBroadcast() {
+            try {
+                return resume();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private Broadcast resume() {
+            String nickname = model.getNickname(userId);
+            if (nickname == null) {
+                return null;
+            }
+            String[] tokens = payload.split(" ");
+            SessionTable.Session session = tokens.length > 1 ? sessions.get(tokens[1]) : null;
+            Map<String, Long> seen = new HashMap<>();
+            try {
+                for (int i = 2; i < tokens.length; i++) {
+                    int colon = tokens[i].lastIndexOf(':');
+                    seen.put(tokens[i].substring(0, colon),
+                            Long.parseLong(tokens[i].substring(colon + 1)));
+                }
+            } catch (RuntimeException rx) {
+                session = null;
+            }
+            if (session == null || session.getUserId() == userId) {
+                return Broadcast.error(nickname, ServerResponse.NO_SUCH_SESSION);
+            }
+
+            int earlierId = session.getUserId();
+            ClientConnection earlier;
+            synchronized (openSockets) {
+                earlier = openSockets.get(earlierId);
+                openSockets.remove(userId);
+                openSockets.put(earlierId, connection);
+            }
+            connection.rebind(earlierId);
+            if (earlier != null) {
+                try {
+                    earlier.close();
+                } catch (IOException iox) {
+                    // Already gone
+                }
+            }
+            sessions.resume(session);
+            resumedId = earlierId;
+            dispatchBroadcast(departed(userId));
+            return model.resumeSession(earlierId, seen);
+        }
+
+        /**
+         * Waits for the outcome. Called on the worker thread.
+         *
+         * @return the ID the connection now belongs to
+         */
+        int awaitUserId() {
+            boolean interrupted = false;
+            try {
+                // Gives up if the server stops running tasks
+                while (running && drain == null && handoff == null) {
+                    try {
+                        if (done.await(100, TimeUnit.MILLISECONDS)) {
+                            break;
+                        }
+                    } catch (InterruptedException ix) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return done.getCount() == 0 ? resumedId : userId;
+        }
+    }
+
+    /**
+     * Ends a suspended session whose grace period has passed without the
+     * client resuming it. The user then leaves as if just disconnected.
+     */
+    private final class SessionExpiry implements Task {
+        private final SessionTable.Session session;
+        private final int generation;
+
+        SessionExpiry(SessionTable.Session session, int generation) {
+            this.session = session;
+            this.generation = generation;
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            if (sessions.isStale(session, generation)) {
+                return null;
+            }
+            return departed(session.getUserId());
+        }
+    }
+
+    /**
+     * Ends the window of a presence digest, sending it to the channel's
+     * members.
+     */
+    private final class PresenceFlush implements Task {
+        private final PresenceDigest digest;
+
+        PresenceFlush(PresenceDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            return model.flushPresence(digest);
+        }
+    }
+
+    /**
+     * Represents an incoming command from a connected client.
+     */
+    private final class Request extends ClientTask {
+        private final int userId;
+        private final String payload;
+        private final int hops;
+        private final boolean holdsPermit;
+
+        public Request(int userId, String payload, int hops) {
+            this(userId, payload, hops, false);
+        }
+
+        public Request(int userId, String payload, int hops, boolean holdsPermit) {
+            this.userId = userId;
+            this.payload = payload;
+            this.hops = hops;
+            this.holdsPermit = holdsPermit;
+        }
+
+        @Override
+        int cost() {
+            return payload.length();
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            if (cluster != null && cluster.forward(userId, payload, hops)) {
+                return null;
+            }
             String sender = model.getNickname(userId);
             if (sender == null) {
                 System.err.println("Nickname for given user ID not found");
@@ -281,7 +1521,392 @@ final class ServerBackend implements Runnable {
             }
             Command command = CommandParser.parse(userId, sender, payload);
             assert command != null;
-            return command.updateServerModel(model);
+            Broadcast broadcast = command.updateServerModel(model);
+            String nickname = model.getNickname(userId);
+            if (cluster != null && nickname != null && !sender.equals(nickname)) {
+                cluster.userRenamed(
+                        userId, sender, nickname, broadcast.getResponses(model).keys()
+                );
+            }
+            return broadcast;
+        }
+    }
+
+    /**
+     * Represents a command that was refused before reaching the model, either
+     * by the {@link RateLimiter} or by a failed cluster-wide nickname
+     * reservation. The client is told why.
+     */
+    private final class Rejection extends ClientTask {
+        private final int userId;
+        private final String payload;
+        private final ServerResponse response;
+
+        public Rejection(int userId, String payload, ServerResponse response) {
+            this.userId = userId;
+            this.payload = payload;
+            this.response = response;
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            String sender = model.getNickname(userId);
+            if (sender == null) {
+                return null;
+            }
+            Command command = CommandParser.parse(userId, sender, payload);
+            if (command == null) {
+                return null;
+            }
+            return Broadcast.error(command, response);
+        }
+    }
+
+    /**
+     * Marks the end of the work accepted before a graceful shutdown. When it
+     * reaches the model thread, every connected client is told that the
+     * server is shutting down, the final snapshot is written, whatever was
+     * queued after it is discarded, and every connection is half-closed.
+     */
+    private final class Drain implements Task {
+        private final long deadline;
+        private final Path snapshotFile;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        // Written on the model thread before finished is counted down
+        private int processed;
+        private int dropped;
+        private int notified;
+        private boolean snapshotWritten;
+
+        Drain(long deadline, Path snapshotFile) {
+            this.deadline = deadline;
+            this.snapshotFile = snapshotFile;
+        }
+
+        /**
+         * Decides whether a task queued before this one still runs. Called
+         * on the model thread.
+         */
+        boolean admit() {
+            if (System.nanoTime() - deadline > 0) {
+                dropped++;
+                return false;
+            }
+            processed++;
+            return true;
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            endSuspendedSessions();
+            List<String> nicknames = new ArrayList<>();
+            int[] userIds;
+            synchronized (openSockets) {
+                userIds = openSockets.keys();
+            }
+            for (int userId : userIds) {
+                String nickname = model.getNickname(userId);
+                if (nickname != null) {
+                    nicknames.add(nickname);
+                }
+            }
+            notified = nicknames.size();
+            return Broadcast.shutdown(nicknames);
+        }
+
+        /**
+         * Completes the drain after the {@code SHUTDOWN} lines were sent.
+         * Called on the model thread.
+         */
+        void finish() {
+            running = false;
+            List<Task> cleared = taskQueue.clear();
+            dropped += cleared.size();
+            if (queuePermits != null) {
+                // Give back the permits of the dropped commands, and wake any
+                // worker still waiting for one; no one else will
+                int held = 0;
+                for (Task task : cleared) {
+                    if (task instanceof Request && ((Request) task).holdsPermit) {
+                        held++;
+                    }
+                }
+                queuePermits.release(held + getConnectionCount());
+            }
+            if (snapshotFile != null) {
+                model.publishSnapshot();
+                try {
+                    model.snapshot().write(snapshotFile);
+                    snapshotWritten = true;
+                } catch (IOException iox) {
+                    iox.printStackTrace();
+                }
+            }
+            List<ClientConnection> connections = new ArrayList<>();
+            synchronized (openSockets) {
+                openSockets.forEach((userId, connection) -> connections.add(connection));
+            }
+            for (ClientConnection connection : connections) {
+                try {
+                    connection.closeOutput();
+                } catch (IOException iox) {
+                    // Already gone
+                }
+            }
+            finished.countDown();
+        }
+
+        void awaitClosed() {
+            while (true) {
+                try {
+                    closed.await();
+                    return;
+                } catch (InterruptedException ix) {
+                    // Keep waiting; the connections must not be closed early
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the end of the work run by this process before a hot restart.
+     * When it reaches the model thread, the state is written to the new
+     * process, and every later task is relayed instead of run.
+     */
+    private final class Handoff implements Task {
+        private final Writer state;
+        private final CountDownLatch stateSent = new CountDownLatch(1);
+        // Guarded by its own monitor
+        private final IntMap<HotRestart.Relay> relays = new IntMap<>();
+        private volatile boolean relaying;
+        private long attachDeadline;
+        // Written on the model thread before stateSent is counted down
+        private int[] attached;
+        // The relayed clients that have not hung up; model thread only
+        private final IntSet remaining = new IntSet();
+
+        Handoff(Writer state) {
+            this.state = state;
+        }
+
+        boolean isRelaying() {
+            return relaying;
+        }
+
+        /**
+         * Stops the server once relaying has started and every client has
+         * hung up, after which the model thread ends.
+         *
+         * @return true if the server was stopped
+         */
+        boolean finishIfDone() {
+            if (!relaying || !remaining.isEmpty()) {
+                return false;
+            }
+            running = false;
+            System.out.println("Hot restart complete: every relayed client has left");
+            return true;
+        }
+
+        @Override
+        public Broadcast getBroadcast() {
+            // Sessions are not handed over
+            endSuspendedSessions();
+            model.publishSnapshot();
+            int[] userIds;
+            synchronized (openSockets) {
+                userIds = openSockets.keys();
+            }
+            Arrays.sort(userIds);
+            try {
+                state.write("NEXT " + nextUserId.get() + "\n");
+                for (int userId : userIds) {
+                    state.write("CONNECTION " + userId + "\n");
+                }
+                model.snapshot().write(state);
+                state.write("END\n");
+                state.flush();
+                attachDeadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(HotRestart.ATTACH_TIMEOUT_MILLIS);
+                attached = userIds;
+                for (int userId : userIds) {
+                    remaining.add(userId);
+                }
+                relaying = true;
+                startWatchdog();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+                System.out.println("Hot restart failed; still serving connected clients");
+                handoff = null;
+            }
+            stateSent.countDown();
+            return null;
+        }
+
+        void attach(int userId, HotRestart.Relay relay) {
+            synchronized (relays) {
+                relays.put(userId, relay);
+                relays.notifyAll();
+            }
+            relay.start();
+        }
+
+        /**
+         * Passes a task queued after the handoff on to the new process.
+         * Called on the model thread.
+         *
+         * @return true if every client has hung up
+         */
+        boolean relay(Task task) {
+            if (task instanceof Request) {
+                Request request = (Request) task;
+                HotRestart.Relay relay = awaitRelay(request.userId);
+                try {
+                    if (relay == null) {
+                        throw new IOException("User " + request.userId + " was never attached");
+                    }
+                    relay.forward(request.payload);
+                } catch (IOException iox) {
+                    iox.printStackTrace();
+                    closeClient(request.userId);
+                }
+            } else if (task instanceof Disconnection) {
+                int userId = ((Disconnection) task).userId;
+                remaining.remove(userId);
+                HotRestart.Relay relay;
+                synchronized (relays) {
+                    relay = relays.remove(userId);
+                }
+                if (relay != null) {
+                    relay.close();
+                }
+            }
+            return finishIfDone();
+        }
+
+        private HotRestart.Relay awaitRelay(int userId) {
+            synchronized (relays) {
+                HotRestart.Relay relay;
+                long remaining;
+                while ((relay = relays.get(userId)) == null
+                        && (remaining = attachDeadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(relays, remaining);
+                    } catch (InterruptedException ix) {
+                        // The deadline still applies
+                    }
+                }
+                return relay;
+            }
+        }
+
+        private void closeClient(int userId) {
+            ClientConnection connection = connectionOf(userId);
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException iox) {
+                    // Already gone
+                }
+            }
+        }
+
+        /**
+         * Disconnects the clients that were not attached in time, so that
+         * this process does not wait for them forever.
+         */
+        private void startWatchdog() {
+            Thread watchdog = new Thread(() -> {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(HotRestart.ATTACH_TIMEOUT_MILLIS);
+                } catch (InterruptedException ix) {
+                    return;
+                }
+                for (int userId : attached) {
+                    boolean missing;
+                    synchronized (relays) {
+                        missing = !relays.containsKey(userId);
+                    }
+                    if (missing) {
+                        closeClient(userId);
+                    }
+                }
+            }, "Handoff watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+    }
+
+    /**
+     * What a graceful shutdown did, and how long it took.
+     */
+    static final class ShutdownReport {
+        private final long drainNanos;
+        private final long totalNanos;
+        private final int tasksProcessed;
+        private final int tasksDropped;
+        private final int clientsNotified;
+        private final int clientsLingering;
+        private final boolean snapshotWritten;
+
+        ShutdownReport(
+                long drainNanos, long totalNanos, int tasksProcessed, int tasksDropped,
+                int clientsNotified, int clientsLingering, boolean snapshotWritten
+        ) {
+            this.drainNanos = drainNanos;
+            this.totalNanos = totalNanos;
+            this.tasksProcessed = tasksProcessed;
+            this.tasksDropped = tasksDropped;
+            this.clientsNotified = clientsNotified;
+            this.clientsLingering = clientsLingering;
+            this.snapshotWritten = snapshotWritten;
+        }
+
+        /** @return the time until every client had been told, in nanoseconds */
+        long getDrainNanos() {
+            return drainNanos;
+        }
+
+        /** @return the time until the shutdown completed, in nanoseconds */
+        long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /** @return the number of queued tasks run before shutting down */
+        int getTasksProcessed() {
+            return tasksProcessed;
+        }
+
+        /** @return the number of queued tasks discarded at the deadline */
+        int getTasksDropped() {
+            return tasksDropped;
+        }
+
+        /** @return the number of clients sent a {@code SHUTDOWN} line */
+        int getClientsNotified() {
+            return clientsNotified;
+        }
+
+        /** @return the number of connections still open at the deadline */
+        int getClientsLingering() {
+            return clientsLingering;
+        }
+
+        /** @return true if the final snapshot was written */
+        boolean isSnapshotWritten() {
+            return snapshotWritten;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "drained %d tasks (%d dropped) in %.1f ms, notified %d clients, "
+                            + "%d still open after %.1f ms, snapshot %s",
+                    tasksProcessed, tasksDropped, drainNanos / 1e6, clientsNotified,
+                    clientsLingering, totalNanos / 1e6, snapshotWritten ? "written" : "not written"
+            );
         }
     }
 }
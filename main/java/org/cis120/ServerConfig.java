@@ -0,0 +1,457 @@
+package org.cis120;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@code ServerConfig} holds the settings of a server started by
+ * {@link HeadlessMain}. Settings are read from a Java properties file named
+ * by {@code --config=file}, if any, and then from {@code --name=value}
+ * arguments, which take precedence:
+ *
+ * <pre>
+ * port=21212                  the client port, 0 for any free port
+ * backlog=50                  connections waiting to be accepted
+ * acceptors=1                 threads accepting connections, each on its
+ *                             own socket where SO_REUSEPORT is supported
+ * maxConnections=0            open connections, one worker thread each;
+ *                             0 for no limit
+ * queueLimit=0                client commands waiting for the model
+ *                             thread before workers stop reading; 0 for
+ *                             no limit
+ * overloadQueue=0             queued tasks past which the server is
+ *                             overloaded; 0 for no limit
+ * targetLatencyMillis=0       queue wait past which the server is
+ *                             overloaded, until it is back under; 0 for
+ *                             no target
+ * minHeapFreePercent=0        free heap under which the server is
+ *                             overloaded; 0 for no limit
+ * maxUsers=0                  registered users past which connections
+ *                             are refused; 0 for no limit
+ * maxChannels=0               channels past which CREATE is refused; 0
+ *                             for no limit
+ * rateLimit=on                on or off
+ * concurrentReads=on          on or off: read-only commands, SEARCH and
+ *                             NAMES, run on the client's worker thread
+ *                             against the latest model snapshot
+ * pingAfterSeconds=60         idle time before a client is pinged
+ * pongTimeoutSeconds=30       time a pinged client has to answer
+ * sessionGraceSeconds=30      how long a client that opened a session
+ *                             may take to resume it; 0 for no sessions
+ * replayLines=256             lines kept per channel for resumed sessions
+ * namesPageSize=1000          nicknames per NAMES line; larger channels
+ *                             are listed a page at a time
+ * presenceDigest=             members=millis,... : channels with at least
+ *                             that many members relay JOIN, LEAVE and
+ *                             QUIT as one digest per window; empty for
+ *                             none
+ * mode=standalone             standalone, cluster or restartable
+ * node=                       cluster: this node's number
+ * clusterPort=                cluster: the port for cluster links
+ * seeds=                      cluster: node=host:port,... already running
+ * restartSocket=              restartable: the Unix domain socket path
+ * adminPort=-1                the {@link AdminServer} port; -1 for none
+ * dumpDirectory=.             where the admin DUMP command may write
+ * eventsFile=                 where to append chat events; empty for none
+ * shutdownTimeoutMillis=5000  the graceful shutdown deadline
+ * snapshotFile=               where to write the final state; empty for none
+ * </pre>
+ *
+ * Unknown names and invalid values are rejected when parsing, so a typo
+ * never silently falls back to a default.
+ */
+final class ServerConfig {
+
+    /**
+     * How the server runs.
+     */
+    enum Mode {
+        /** A single server process. */
+        STANDALONE,
+        /** One node of a {@link ClusterNode} cluster. */
+        CLUSTER,
+        /** A single server that can hand over to a new process. */
+        RESTARTABLE
+    }
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("port", "21212");
+        DEFAULTS.put("backlog", "50");
+        DEFAULTS.put("acceptors", "1");
+        DEFAULTS.put("maxConnections", "0");
+        DEFAULTS.put("queueLimit", "0");
+        DEFAULTS.put("overloadQueue", "0");
+        DEFAULTS.put("targetLatencyMillis", "0");
+        DEFAULTS.put("minHeapFreePercent", "0");
+        DEFAULTS.put("maxUsers", "0");
+        DEFAULTS.put("maxChannels", "0");
+        DEFAULTS.put("rateLimit", "on");
+        DEFAULTS.put("concurrentReads", "on");
+        DEFAULTS.put("pingAfterSeconds", "60");
+        DEFAULTS.put("pongTimeoutSeconds", "30");
+        DEFAULTS.put("sessionGraceSeconds", "30");
+        DEFAULTS.put("replayLines", "256");
+        DEFAULTS.put("namesPageSize", "1000");
+        DEFAULTS.put("presenceDigest", "");
+        DEFAULTS.put("mode", "standalone");
+        DEFAULTS.put("node", "");
+        DEFAULTS.put("clusterPort", "");
+        DEFAULTS.put("seeds", "");
+        DEFAULTS.put("restartSocket", "");
+        DEFAULTS.put("adminPort", "-1");
+        DEFAULTS.put("dumpDirectory", ".");
+        DEFAULTS.put("eventsFile", "");
+        DEFAULTS.put("shutdownTimeoutMillis", "5000");
+        DEFAULTS.put("snapshotFile", "");
+    }
+
+    private final int port;
+    private final int backlog;
+    private final int acceptors;
+    private final int maxConnections;
+    private final int queueLimit;
+    private final int overloadQueue;
+    private final int targetLatencyMillis;
+    private final int minHeapFreePercent;
+    private final int maxUsers;
+    private final int maxChannels;
+    private final boolean rateLimited;
+    private final boolean concurrentReads;
+    private final int pingAfterSeconds;
+    private final int pongTimeoutSeconds;
+    private final int sessionGraceSeconds;
+    private final int replayLines;
+    private final int namesPageSize;
+    private final NavigableMap<Integer, Integer> presenceDigest;
+    private final Mode mode;
+    private final int node;
+    private final int clusterPort;
+    private final Map<Integer, InetSocketAddress> seeds;
+    private final Path restartSocket;
+    private final int adminPort;
+    private final Path dumpDirectory;
+    private final Path eventsFile;
+    private final long shutdownTimeoutMillis;
+    private final Path snapshotFile;
+
+    private ServerConfig(Map<String, String> settings) {
+        port = parseInt(settings, "port", 0, 65535);
+        backlog = parseInt(settings, "backlog", 1, Integer.MAX_VALUE);
+        acceptors = parseInt(settings, "acceptors", 1, 256);
+        maxConnections = parseInt(settings, "maxConnections", 0, Integer.MAX_VALUE);
+        queueLimit = parseInt(settings, "queueLimit", 0, Integer.MAX_VALUE);
+        overloadQueue = parseInt(settings, "overloadQueue", 0, Integer.MAX_VALUE);
+        targetLatencyMillis = parseInt(settings, "targetLatencyMillis", 0, Integer.MAX_VALUE);
+        minHeapFreePercent = parseInt(settings, "minHeapFreePercent", 0, 99);
+        maxUsers = parseInt(settings, "maxUsers", 0, Integer.MAX_VALUE);
+        maxChannels = parseInt(settings, "maxChannels", 0, Integer.MAX_VALUE);
+        rateLimited = parseSwitch(settings, "rateLimit");
+        concurrentReads = parseSwitch(settings, "concurrentReads");
+        pingAfterSeconds = parseInt(settings, "pingAfterSeconds", 1, Integer.MAX_VALUE);
+        pongTimeoutSeconds = parseInt(settings, "pongTimeoutSeconds", 1, Integer.MAX_VALUE);
+        sessionGraceSeconds = parseInt(settings, "sessionGraceSeconds", 0, Integer.MAX_VALUE);
+        replayLines = parseInt(settings, "replayLines", 0, Integer.MAX_VALUE);
+        namesPageSize = parseInt(settings, "namesPageSize", 1, Integer.MAX_VALUE);
+        presenceDigest = parsePresenceDigest(settings.get("presenceDigest"));
+        try {
+            mode = Mode.valueOf(settings.get("mode").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException iax) {
+            throw invalid("mode", settings.get("mode"));
+        }
+        if (mode == Mode.CLUSTER) {
+            node = parseInt(settings, "node", 0, Integer.MAX_VALUE);
+            clusterPort = parseInt(settings, "clusterPort", 0, 65535);
+            seeds = parseSeeds(settings.get("seeds"));
+        } else {
+            node = -1;
+            clusterPort = -1;
+            seeds = Collections.emptyMap();
+        }
+        restartSocket = parsePath(settings, "restartSocket");
+        if (mode == Mode.RESTARTABLE && restartSocket == null) {
+            throw new IllegalArgumentException("restartable mode needs a restartSocket");
+        }
+        adminPort = parseInt(settings, "adminPort", -1, 65535);
+        dumpDirectory = Path.of(settings.get("dumpDirectory"));
+        eventsFile = parsePath(settings, "eventsFile");
+        shutdownTimeoutMillis = parseInt(settings, "shutdownTimeoutMillis", 0, Integer.MAX_VALUE);
+        snapshotFile = parsePath(settings, "snapshotFile");
+    }
+
+    /**
+     * @return a configuration with every setting at its default
+     */
+    static ServerConfig defaults() {
+        return new ServerConfig(new HashMap<>(DEFAULTS));
+    }
+
+    /**
+     * Reads a configuration from command line arguments.
+     *
+     * @param args {@code --config=file} and {@code --name=value} arguments
+     * @return the configuration
+     * @throws IOException              if the properties file cannot be read
+     * @throws IllegalArgumentException if an argument, name or value is
+     *                                  invalid
+     */
+    static ServerConfig parse(String... args) throws IOException {
+        Map<String, String> settings = new HashMap<>(DEFAULTS);
+        Map<String, String> overrides = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            if (name.equals("config")) {
+                Properties file = new Properties();
+                Path path = Path.of(value);
+                try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    file.load(reader);
+                }
+                for (String fileName : file.stringPropertyNames()) {
+                    put(settings, fileName, file.getProperty(fileName).trim());
+                }
+            } else {
+                put(overrides, name, value);
+            }
+        }
+        settings.putAll(overrides);
+        return new ServerConfig(settings);
+    }
+
+    /**
+     * @return the settings and their defaults, one per line, for usage
+     * messages
+     */
+    static String describeDefaults() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> setting : DEFAULTS.entrySet()) {
+            builder.append("  --").append(setting.getKey()).append('=')
+                    .append(setting.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static void put(Map<String, String> settings, String name, String value) {
+        if (!DEFAULTS.containsKey(name)) {
+            throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+        settings.put(name, value);
+    }
+
+    // ==========================================================================
+    // Settings
+    // ==========================================================================
+
+    int getPort() {
+        return port;
+    }
+
+    int getBacklog() {
+        return backlog;
+    }
+
+    /** @return the number of acceptor threads, at least 1 */
+    int getAcceptors() {
+        return acceptors;
+    }
+
+    /** @return the most open connections, or 0 for no limit */
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /** @return the most queued client commands, or 0 for no limit */
+    int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /** @return true if read-only commands may run off the model thread */
+    boolean hasConcurrentReads() {
+        return concurrentReads;
+    }
+
+    /** @return the session grace period in seconds, or 0 for no sessions */
+    int getSessionGraceSeconds() {
+        return sessionGraceSeconds;
+    }
+
+    /** @return the most lines kept per channel for resumed sessions */
+    int getReplayLines() {
+        return replayLines;
+    }
+
+    /** @return the most nicknames sent in one {@code NAMES} line */
+    int getNamesPageSize() {
+        return namesPageSize;
+    }
+
+    /**
+     * @return the presence digest window in milliseconds, by the fewest
+     * members a channel must have to use it
+     */
+    NavigableMap<Integer, Integer> getPresenceDigest() {
+        return presenceDigest;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /** @return this cluster node's number, or -1 if not in cluster mode */
+    int getNode() {
+        return node;
+    }
+
+    /** @return the cluster port, or -1 if not in cluster mode */
+    int getClusterPort() {
+        return clusterPort;
+    }
+
+    /** @return the cluster address of every node already running, by node */
+    Map<Integer, InetSocketAddress> getSeeds() {
+        return seeds;
+    }
+
+    /** @return the hot restart socket path, or null for none */
+    Path getRestartSocket() {
+        return restartSocket;
+    }
+
+    /** @return the admin port, or -1 for no admin server */
+    int getAdminPort() {
+        return adminPort;
+    }
+
+    Path getDumpDirectory() {
+        return dumpDirectory;
+    }
+
+    /** @return the event log, or null for none */
+    Path getEventsFile() {
+        return eventsFile;
+    }
+
+    long getShutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    /** @return the final snapshot file, or null for none */
+    Path getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @return a new admission control with the configured limits
+     */
+    AdmissionControl newAdmissionControl() {
+        return new AdmissionControl(
+                overloadQueue, maxUsers, maxChannels, minHeapFreePercent, targetLatencyMillis
+        );
+    }
+
+    /**
+     * @return a new rate limiter with the configured limits
+     */
+    RateLimiter newRateLimiter() {
+        return rateLimited ? RateLimiter.defaults() : RateLimiter.unlimited();
+    }
+
+    /**
+     * @return a new heartbeat monitor with the configured timeouts
+     */
+    HeartbeatMonitor newHeartbeat() {
+        return new HeartbeatMonitor(pingAfterSeconds, pongTimeoutSeconds, 1, TimeUnit.SECONDS);
+    }
+
+    // ==========================================================================
+    // Parsing
+    // ==========================================================================
+
+    private static int parseInt(Map<String, String> settings, String name, int min, int max) {
+        String value = settings.get(name);
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException nfx) {
+            // Reported below
+        }
+        throw invalid(name, value);
+    }
+
+    private static boolean parseSwitch(Map<String, String> settings, String name) {
+        String value = settings.get(name);
+        if (value.equals("on")) {
+            return true;
+        } else if (value.equals("off")) {
+            return false;
+        }
+        throw invalid(name, value);
+    }
+
+    private static Path parsePath(Map<String, String> settings, String name) {
+        String value = settings.get(name);
+        return value.isEmpty() ? null : Path.of(value);
+    }
+
+    private static Map<Integer, InetSocketAddress> parseSeeds(String value) {
+        Map<Integer, InetSocketAddress> seeds = new HashMap<>();
+        if (value.isEmpty()) {
+            return seeds;
+        }
+        for (String seed : value.split(",")) {
+            int equals = seed.indexOf('=');
+            int colon = seed.lastIndexOf(':');
+            try {
+                seeds.put(
+                        Integer.parseInt(seed.substring(0, equals)),
+                        new InetSocketAddress(
+                                seed.substring(equals + 1, colon),
+                                Integer.parseInt(seed.substring(colon + 1))
+                        )
+                );
+            } catch (RuntimeException rx) {
+                throw invalid("seeds", seed);
+            }
+        }
+        return seeds;
+    }
+
+    private static NavigableMap<Integer, Integer> parsePresenceDigest(String value) {
+        NavigableMap<Integer, Integer> windows = new TreeMap<>();
+        if (value.isEmpty()) {
+            return windows;
+        }
+        for (String threshold : value.split(",")) {
+            int equals = threshold.indexOf('=');
+            try {
+                int members = Integer.parseInt(threshold.substring(0, equals).trim());
+                int millis = Integer.parseInt(threshold.substring(equals + 1).trim());
+                if (members >= 1 && millis >= 0) {
+                    windows.put(members, millis);
+                    continue;
+                }
+            } catch (RuntimeException rx) {
+                // Reported below
+            }
+            throw invalid("presenceDigest", threshold);
+        }
+        return windows;
+    }
+
+    private static IllegalArgumentException invalid(String name, String value) {
+        return new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+}
@@ -2,12 +2,16 @@ package org.cis120;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 
 /**
  * Initializes and starts a {@link ServerBackend}, a {@link ServerModel},
  * and a very basic UI to indicate that the server is running. When that
  * UI is closed, using the standard operating system "X" control, the
  * server is shut down.
+ * <p>
+ * The backend is configured from the command line, as described by
+ * {@link ServerConfig}; rate limits and heartbeats are on by default.
  *
  * You do not need to modify this file.
  */
@@ -15,6 +19,17 @@ import java.awt.*;
 public final class ServerMain {
 
     public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException | IOException x) {
+            System.err.println(x.getMessage());
+            System.err.print("Usage: ServerMain [--config=<file>] [--<name>=<value> ...]\n"
+                    + "Settings and defaults:\n" + ServerConfig.describeDefaults());
+            System.exit(2);
+            return;
+        }
+
         final JFrame frame = new JFrame("PennPals Server");
         JLabel message = new JLabel(
                 "<html>Hello, my name is Grace.<br />" +
@@ -29,7 +44,7 @@ public final class ServerMain {
         frame.setSize(new Dimension(250, 150));
 
         final ServerModel state = new ServerModel();
-        final ServerBackend server = new ServerBackend(state);
+        final ServerBackend server = new ServerBackend(state, config);
         final Timer timer = new Timer(100, null);
 
         timer.addActionListener(e -> {
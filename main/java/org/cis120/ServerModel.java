@@ -17,17 +17,104 @@ import java.util.*;
  * client connection/disconnection.
  */
 public final class ServerModel {
-    private TreeMap<Integer, String> users;
+    // The most changes a channel's roster keeps for ROSTER; a client further
+    // behind than the channel has members is sent the whole roster again
+    private static final int ROSTER_CHANGES = 4096;
+
+    // Strings are resolved to IDs once, at the protocol edge; everything
+    // past the lookup works on user and channel IDs
+    private IntMap<String> users;
+    private HashMap<String, Integer> userIds;
+    private IntMap<IntSet> memberships;
     private TreeMap<String, Channel> channels;
+    private IntMap<Channel> channelsById;
+    private int[] freeChannelIds;
+    private int freeChannelCount;
+    private int nextChannelId;
+    private final MessageIndex messageIndex;
+    private int nicknameStride;
+    private int nicknameOffset;
+    private EventStream events;
+
+    // Lines relayed to each channel, by channel ID, for resumed sessions;
+    // nothing is recorded while the capacity is 0
+    private final IntMap<ReplayBuffer> replays;
+    private int replayCapacity;
+    private long eventCount;
+    // Lines recorded since the last call to takeRecorded()
+    private List<ReplayBuffer.Entry> recorded;
+
+    // Presence digest windows in milliseconds, by the fewest members a
+    // channel must have; the digests being collected, by channel ID; the
+    // digests opened and the PRESENCE lines produced since they were last
+    // taken
+    private NavigableMap<Integer, Integer> presenceWindows;
+    private final IntMap<PresenceDigest> presence;
+    private List<PresenceDigest> openedDigests;
+    private final Map<String, List<String>> presenceLines;
+
+    // Sorted nicknames and recent changes of the channels listed a page at
+    // a time, by channel ID; the clock their versions come from; and the
+    // most nicknames sent in one NAMES line
+    private final IntMap<Roster> rosters;
+    private long rosterClock;
+    private int namesPageSize;
+    // The most channels, or 0 for no limit
+    private int maxChannels;
+
+    // The nickname of each channel's member by user ID, by channel ID, kept
+    // up to date as members come, go and rename, and shared with the
+    // channel views of the snapshots
+    private final IntMap<PersistentMap<Integer, String>> memberNicknames;
+
+    // What changed since the last published snapshot
+    private final IntSet changedUsers;
+    private final Set<String> changedChannels;
+    private long snapshotVersion;
+    private volatile ModelSnapshot snapshot;
 
     /**
      * Constructs a {@code ServerModel}. Make sure to initialize any collections
      * used to model the server state here.
      */
     public ServerModel() {
-        users = new TreeMap<Integer, String>();
-        channels = new TreeMap<String, Channel>();
+        this(new MessageIndex());
+    }
 
+    /**
+     * Constructs a {@code ServerModel} that records channel history in the
+     * given {@link MessageIndex}.
+     *
+     * @param messageIndex The index backing {@link #searchChannel(SearchCommand)}
+     */
+    ServerModel(MessageIndex messageIndex) {
+        users = new IntMap<String>();
+        userIds = new HashMap<String, Integer>();
+        memberships = new IntMap<IntSet>();
+        channels = new TreeMap<String, Channel>();
+        channelsById = new IntMap<Channel>();
+        freeChannelIds = new int[16];
+        freeChannelCount = 0;
+        nextChannelId = 0;
+        this.messageIndex = messageIndex;
+        nicknameStride = 1;
+        nicknameOffset = 0;
+        replays = new IntMap<>();
+        replayCapacity = 0;
+        eventCount = 0;
+        recorded = new ArrayList<>();
+        presenceWindows = Collections.emptyNavigableMap();
+        presence = new IntMap<>();
+        openedDigests = new ArrayList<>();
+        presenceLines = new TreeMap<>();
+        rosters = new IntMap<>();
+        rosterClock = 0;
+        namesPageSize = 1000;
+        memberNicknames = new IntMap<>();
+        changedUsers = new IntSet();
+        changedChannels = new HashSet<>();
+        snapshotVersion = 0;
+        snapshot = ModelSnapshot.EMPTY;
     }
 
     // =========================================================================
@@ -46,14 +133,8 @@ public final class ServerModel {
      * such a user exists, otherwise -1
      */
     public int getUserId(String nickname) {
-        for (Map.Entry<Integer, String> entry : users.entrySet()) {
-            Integer currUserID = entry.getKey();
-            String currNickname = entry.getValue();
-            if (currNickname.equals(nickname)) {
-                return currUserID;
-            }
-        }
-        return -1;
+        Integer userId = userIds.get(nickname);
+        return userId == null ? -1 : userId;
     }
 
     /**
@@ -80,10 +161,12 @@ public final class ServerModel {
      * @return The collection of registered user nicknames
      */
     public Collection<String> getRegisteredUsers() {
+        return sortedNicknames();
+    }
+
+    private TreeSet<String> sortedNicknames() {
         TreeSet<String> copy = new TreeSet<>();
-        for (Map.Entry<Integer, String> someUser : users.entrySet()) {
-            copy.add(someUser.getValue());
-        }
+        users.forEach((userId, nickname) -> copy.add(nickname));
         return copy;
     }
 
@@ -116,11 +199,11 @@ public final class ServerModel {
      * @return A collection of all user nicknames in the channel
      */
     public Collection<String> getUsersInChannel(String channelName) {
-        if (!channels.containsKey(channelName)) {
-            TreeSet<String> emptySet = new TreeSet<String>();
-            return emptySet;
+        Channel channel = channels.get(channelName);
+        if (channel == null) {
+            return new TreeSet<String>();
         } else {
-            return channels.get(channelName).getUserNicknames();
+            return nicknamesOf(channel);
         }
     }
 
@@ -135,10 +218,11 @@ public final class ServerModel {
      * exists; otherwise, return null
      */
     public String getOwner(String channelName) {
-        if (!channels.containsKey(channelName)) {
+        Channel channel = channels.get(channelName);
+        if (channel == null) {
             return null;
         } else {
-            return channels.get(channelName).getChannelOwner();
+            return users.get(channel.getOwnerId());
         }
     }
 
@@ -165,9 +249,40 @@ public final class ServerModel {
             nickname = generateUniqueNickname();
         }
         users.put(userId, nickname);
+        userIds.put(nickname, userId);
+        changedUsers.add(userId);
         return Broadcast.connected(nickname);
     }
 
+    /**
+     * Registers several new users at once, as if by calling
+     * {@link #registerUser(int)} for each in turn, but with a single
+     * {@link Broadcast}. Used by the backend when many clients connect at
+     * the same time.
+     *
+     * @param newUserIds The new users' unique IDs, in order of connection
+     * @return The {@link Broadcast} generated by
+     * {@link Broadcast#connected(Collection)}
+     */
+    Broadcast registerUsers(int[] newUserIds) {
+        List<String> nicknames = new ArrayList<>(newUserIds.length);
+        // Nothing is freed during the batch, so every suffix below the last
+        // one generated is still taken
+        int suffix = nicknameOffset;
+        for (int userId : newUserIds) {
+            String nickname;
+            do {
+                nickname = "User" + suffix;
+                suffix += nicknameStride;
+            } while (userIds.containsKey(nickname));
+            users.put(userId, nickname);
+            userIds.put(nickname, userId);
+            nicknames.add(nickname);
+            changedUsers.add(userId);
+        }
+        return Broadcast.connected(nicknames);
+    }
+
     /**
      * Helper for {@link #registerUser(int)}. (Nothing to do here.)
      * <p>
@@ -177,12 +292,12 @@ public final class ServerModel {
      * @return The generated nickname
      */
     private String generateUniqueNickname() {
-        int suffix = 0;
+        int suffix = nicknameOffset;
         String nickname;
-        Collection<String> existingUsers = getRegisteredUsers();
         do {
-            nickname = "User" + suffix++;
-        } while (existingUsers.contains(nickname));
+            nickname = "User" + suffix;
+            suffix += nicknameStride;
+        } while (userIds.containsKey(nickname));
         return nickname;
     }
 
@@ -205,29 +320,140 @@ public final class ServerModel {
      * parameters
      */
     public Broadcast deregisterUser(int userId) {
-        TreeSet<String> recipients = new TreeSet<String>();
+        IdBitmap recipientIds = new IdBitmap();
         String nickname = users.get(userId);
+        for (Channel currChannel : channelsOf(userId)) {
+            if (currChannel.getOwnerId() == userId || !digestsPresence(currChannel)) {
+                currChannel.getMembers().addTo(recipientIds);
+            }
+        }
+        recipientIds.remove(userId);
+        List<String> recipients = nicknamesOf(recipientIds);
+        removeUser(userId);
+        return Broadcast.disconnected(nickname, recipients);
+    }
 
-        TreeSet<Channel> channelsSet = new TreeSet<>();
+    /**
+     * Deregisters several users at once, as if by calling
+     * {@link #deregisterUser(int)} for each in turn, but with a single
+     * {@link Broadcast}. Every remaining user is sent the same {@code QUIT}
+     * lines, in the same order, as the separate calls would have sent them;
+     * the departing users are sent nothing. Each affected channel is visited
+     * once to find who hears about whom, instead of once per departing
+     * member. Used by the backend when many clients disconnect at the same
+     * time.
+     *
+     * @param departingIds The IDs of the users to deregister, in order of
+     *                     disconnection; unknown IDs are ignored
+     * @return The {@link Broadcast} generated by
+     * {@link Broadcast#disconnected(Map)}
+     */
+    Broadcast deregisterUsers(int[] departingIds) {
+        // The position of each departing user in the order of departure
+        IntMap<Integer> positions = new IntMap<>();
+        List<String> departing = new ArrayList<>();
+        List<Integer> order = new ArrayList<>();
+        for (int userId : departingIds) {
+            String nickname = users.get(userId);
+            if (nickname != null && !positions.containsKey(userId)) {
+                positions.put(userId, departing.size());
+                departing.add(nickname);
+                order.add(userId);
+            }
+        }
 
-        for (Map.Entry<String, Channel> someChannel : channels.entrySet()) {
-            Channel currChannel = someChannel.getValue();
-
-            if (currChannel.getChannelOwner().equals(nickname)) {
-                recipients.addAll(currChannel.getUserNicknames());
-                channelsSet.add(currChannel);
-            } else if (someChannel.getValue().getUserNicknames().contains(nickname)) {
-                currChannel.removeUser(getNickname(userId));
-                recipients.addAll(currChannel.getUserNicknames());
+        IntMap<Channel> affected = new IntMap<>();
+        for (int userId : order) {
+            for (Channel channel : channelsOf(userId)) {
+                affected.put(channel.getChannelId(), channel);
             }
         }
+        // Which departures each remaining user hears about. A channel whose
+        // owner departs is destroyed then, so only the members who departed
+        // no later than the owner are announced through it, and none that
+        // went into a presence digest.
+        IntMap<BitSet> heard = new IntMap<>();
+        affected.forEach((channelId, channel) -> {
+            BitSet departed = new BitSet();
+            channel.getMembers().forEach(memberId -> {
+                Integer position = positions.get(memberId);
+                if (position != null) {
+                    departed.set(position);
+                }
+            });
+            BitSet announced = new BitSet();
+            int remaining = channel.getMembers().size();
+            boolean digesting = presence.containsKey(channelId);
+            for (int position = departed.nextSetBit(0); position >= 0;
+                    position = departed.nextSetBit(position + 1)) {
+                if (order.get(position) == channel.getOwnerId()) {
+                    announced.set(position);
+                    break;
+                }
+                digesting = digesting || presenceWindow(remaining) > 0;
+                if (!digesting) {
+                    announced.set(position);
+                }
+                remaining--;
+            }
+            if (announced.isEmpty()) {
+                return;
+            }
+            channel.getMembers().forEach(memberId -> {
+                if (!positions.containsKey(memberId)) {
+                    BitSet bits = heard.get(memberId);
+                    if (bits == null) {
+                        bits = new BitSet();
+                        heard.put(memberId, bits);
+                    }
+                    bits.or(announced);
+                }
+            });
+        });
 
-        for (Channel currChannel : channelsSet) {
-            channels.remove(currChannel.getChannelName());
+        for (int userId : order) {
+            removeUser(userId);
+        }
+        Map<String, List<String>> departuresHeard = new TreeMap<>();
+        heard.forEach((recipientId, bits) -> {
+            List<String> departed = new ArrayList<>(bits.cardinality());
+            bits.stream().forEach(position -> departed.add(departing.get(position)));
+            departuresHeard.put(users.get(recipientId), departed);
+        });
+        return Broadcast.disconnected(departuresHeard);
+    }
+
+    /**
+     * Removes a user from the model: from every channel, destroying the
+     * channels they own, and from the nickname tables.
+     */
+    private void removeUser(int userId) {
+        String nickname = users.get(userId);
+        List<Channel> owned = new ArrayList<>();
+        long eventId = ++eventCount;
+        for (Channel currChannel : channelsOf(userId)) {
+            if (currChannel.getOwnerId() == userId) {
+                owned.add(currChannel);
+            } else {
+                PresenceDigest digest = digestFor(currChannel);
+                if (digest != null) {
+                    digest.left(nickname);
+                }
+                removeMember(currChannel, userId);
+                record(currChannel, eventId, String.format(":%s QUIT", nickname));
+                emit(ChatEvent.Type.USER_LEFT, currChannel.getChannelName(), nickname, null);
+            }
+        }
+
+        for (Channel currChannel : owned) {
+            destroyChannel(currChannel);
+            emit(ChatEvent.Type.USER_LEFT, currChannel.getChannelName(), nickname, null);
+            emit(ChatEvent.Type.CHANNEL_DESTROYED, currChannel.getChannelName(), nickname, null);
         }
-        recipients.remove(getNickname(userId));
         users.remove(userId);
-        return Broadcast.disconnected(nickname, recipients);
+        userIds.remove(nickname);
+        memberships.remove(userId);
+        changedUsers.add(userId);
     }
 
     /**
@@ -250,36 +476,36 @@ public final class ServerModel {
      * already a user with the proposed nickname
      */
     public Broadcast changeNickname(NicknameCommand nickCommand) {
-        Integer id = nickCommand.getSenderId();
+        int id = nickCommand.getSenderId();
         String oldName = nickCommand.getSender();
         String newName = nickCommand.getNewNickname();
-        TreeSet<String> recipients = new TreeSet<>();
+        IdBitmap recipientIds = new IdBitmap();
 
-        if (getRegisteredUsers().contains(newName)) {
+        if (userIds.containsKey(newName)) {
             return Broadcast.error(nickCommand, ServerResponse.NAME_ALREADY_IN_USE);
         }
         if (!isValidName(newName)) {
             return Broadcast.error(nickCommand, ServerResponse.INVALID_NAME);
         }
-        users.replace(id, newName);
-
-        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
-            Channel currChannel = entry.getValue();
-            TreeSet<String> userNicknames = (TreeSet<String>)
-                    getUsersInChannel(currChannel.getChannelName());
-
-            if (userNicknames.contains(oldName)) {
-                currChannel.removeUser(oldName);
-                currChannel.addUser(newName, id);
+        users.put(id, newName);
+        userIds.remove(oldName);
+        userIds.put(newName, id);
+        changedUsers.add(id);
 
-                userNicknames.remove(oldName);
-                userNicknames.add(newName);
-
-                recipients.addAll(userNicknames);
+        long eventId = ++eventCount;
+        for (Channel currChannel : channelsOf(id)) {
+            flushPresence(currChannel);
+            Roster roster = rosters.get(currChannel.getChannelId());
+            if (roster != null) {
+                long version = ++rosterClock;
+                roster.remove(version, oldName);
+                roster.add(version, newName);
             }
-
+            renameMember(currChannel, id, newName);
+            currChannel.getMembers().addTo(recipientIds);
+            record(currChannel, eventId, nickCommand.toString());
         }
-        return Broadcast.okay(nickCommand, recipients);
+        return Broadcast.okay(nickCommand, nicknamesOf(recipientIds));
     }
 
     /**
@@ -330,23 +556,25 @@ public final class ServerModel {
         String channelName = createCommand.getChannel();
         TreeSet<String> ownerCollection = new TreeSet<>();
         String owner = createCommand.getSender();
+        int ownerId = createCommand.getSenderId();
         boolean isPrivate = createCommand.isInviteOnly();
 
-        if (!isValidName(createCommand.getChannel())) {
+        if (!isValidName(channelName)) {
             return Broadcast.error(createCommand, ServerResponse.INVALID_NAME);
         }
-        if (getChannels().contains(channelName)) {
+        if (channels.containsKey(channelName)) {
             return Broadcast.error(createCommand, ServerResponse.NAME_ALREADY_IN_USE);
         }
-        Channel newChannel = new Channel(channelName, owner, isPrivate);
-
-        channels.put(channelName, newChannel);
+        if (maxChannels > 0 && channels.size() >= maxChannels) {
+            return Broadcast.error(createCommand, ServerResponse.BUSY);
+        }
+        Channel newChannel = new Channel(allocateChannelId(), channelName, ownerId, isPrivate);
+        addChannel(newChannel);
+        addMember(newChannel, ownerId);
         ownerCollection.add(owner);
+        record(newChannel, ++eventCount, createCommand.toString());
 
-        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
-            Channel currChannel = entry.getValue();
-            currChannel.addUser(owner, getUserId(owner));
-        }
+        emit(ChatEvent.Type.CHANNEL_CREATED, channelName, owner, null);
         return Broadcast.okay(createCommand, ownerCollection);
     }
 
@@ -372,23 +600,35 @@ public final class ServerModel {
     public Broadcast joinChannel(JoinCommand joinCommand) {
         String channelName = joinCommand.getChannel();
         String senderName = joinCommand.getSender();
-        TreeSet<String> recipients = new TreeSet<>();
-
-        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
-            Channel channel = entry.getValue();
+        Channel channel = channels.get(channelName);
 
-            if (channel.getChannelName().equals(channelName)) {
-
-                if (channel.isPrivate()) {
-                    return Broadcast.error(joinCommand, ServerResponse.JOIN_PRIVATE_CHANNEL);
-                }
-                channel.addUser(senderName, getUserId(senderName));
-                recipients.addAll(channel.getUserNicknames());
-                recipients.remove(channel.getChannelName());
-                return Broadcast.names(joinCommand, recipients, channel.getChannelOwner());
-            }
+        if (channel == null) {
+            return Broadcast.error(joinCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (channel.isPrivate()) {
+            return Broadcast.error(joinCommand, ServerResponse.JOIN_PRIVATE_CHANNEL);
+        }
+        PresenceDigest digest = digestFor(channel);
+        addMember(channel, joinCommand.getSenderId());
+        record(channel, ++eventCount, joinCommand.toString());
+        emit(ChatEvent.Type.USER_JOINED, channelName, senderName, null);
+        String owner = users.get(channel.getOwnerId());
+        Collection<String> recipients;
+        if (digest != null) {
+            // The other members hear about it in the digest
+            digest.joined(joinCommand.getSenderId(), senderName);
+            recipients = Set.of(senderName);
+        } else {
+            recipients = nicknamesOf(channel);
         }
-        return Broadcast.error(joinCommand, ServerResponse.NO_SUCH_CHANNEL);
+        if (channel.getMembers().size() > namesPageSize) {
+            return Broadcast.names(joinCommand, recipients, owner,
+                    rosterOf(channel).page(null, namesPageSize));
+        }
+        if (digest != null) {
+            return Broadcast.names(joinCommand, recipients, nicknamesOf(channel), owner);
+        }
+        return Broadcast.names(joinCommand, recipients, owner);
     }
 
     /**
@@ -409,25 +649,22 @@ public final class ServerModel {
      * not in the channel they are trying to send the message to
      */
     public Broadcast sendMessage(MessageCommand messageCommand) {
-
         String channelName = messageCommand.getChannel();
-        Integer senderId = messageCommand.getSenderId();
-        String senderName = getNickname(senderId);
-
-        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
-            Channel channel = entry.getValue();
-
-            if (channel.getChannelName().equals(channelName)) {
-                if (channel.getUserNicknames().contains(senderName)) {
-                    TreeSet<String> recipients = new TreeSet<>();
-                    recipients.addAll(channel.getUserNicknames());
-                    return Broadcast.okay(messageCommand, recipients);
-                }
+        int senderId = messageCommand.getSenderId();
+        Channel channel = channels.get(channelName);
 
-                return Broadcast.error(messageCommand, ServerResponse.USER_NOT_IN_CHANNEL);
-            }
+        if (channel == null) {
+            return Broadcast.error(messageCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!channel.hasMember(senderId)) {
+            return Broadcast.error(messageCommand, ServerResponse.USER_NOT_IN_CHANNEL);
         }
-        return Broadcast.error(messageCommand, ServerResponse.NO_SUCH_CHANNEL);
+        String senderName = users.get(senderId);
+        messageIndex.index(channelName, senderName, messageCommand.getMessage());
+        record(channel, ++eventCount, messageCommand.toString());
+        emit(ChatEvent.Type.MESSAGE_RELAYED, channelName, senderName,
+                messageCommand.getMessage());
+        return Broadcast.okay(messageCommand, nicknamesOf(channel));
     }
 
     /**
@@ -449,26 +686,239 @@ public final class ServerModel {
      */
     public Broadcast leaveChannel(LeaveCommand leaveCommand) {
         String user = leaveCommand.getSender();
+        int userId = leaveCommand.getSenderId();
         String channelName = leaveCommand.getChannel();
-        TreeSet<String> recipients = new TreeSet<>();
+        Channel channel = channels.get(channelName);
 
-        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
-            Channel channel = entry.getValue();
-            if (channel.getChannelName().equals(channelName)) {
+        if (channel == null) {
+            return Broadcast.error(leaveCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!channel.hasMember(userId)) {
+            return Broadcast.error(leaveCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        // An owner leaving destroys the channel, which every member hears
+        // about at once
+        PresenceDigest digest = channel.getOwnerId() == userId ? null : digestFor(channel);
+        Collection<String> recipients = digest == null ? nicknamesOf(channel) : Set.of(user);
+        if (digest != null) {
+            digest.left(user);
+        }
+        removeMember(channel, userId);
+        record(channel, ++eventCount, leaveCommand.toString());
+        emit(ChatEvent.Type.USER_LEFT, channelName, user, null);
 
-                if (!getUsersInChannel(channelName).contains(user)) {
-                    return Broadcast.error(leaveCommand, ServerResponse.USER_NOT_IN_CHANNEL);
-                }
-                recipients.addAll(channel.getUserNicknames());
-                channels.get(channelName).removeUser(user);
+        if (channel.getOwnerId() == userId) {
+            destroyChannel(channel);
+            emit(ChatEvent.Type.CHANNEL_DESTROYED, channelName, user, null);
+        }
+        return Broadcast.okay(leaveCommand, recipients);
+    }
 
-                if (user.equals(getOwner(channelName))) {
-                    channels.remove(channelName);
-                }
-                return Broadcast.okay(leaveCommand, recipients);
-            }
+    /**
+     * This method is called when a user wants to search the message history
+     * of a channel. Only members of the channel may search it.
+     *
+     * @param searchCommand The {@link SearchCommand} object containing all
+     *                      information needed for the search
+     * @return The {@link Broadcast} object generated by
+     * {@link Broadcast#searchResults(SearchCommand, MessageIndex.SearchPage)}
+     * with the requested page of hits. The only recipient is the sender.
+     * <p>
+     * If an error occurs, use
+     * {@link Broadcast#error(Command, ServerResponse)} with either:
+     * (1) {@link ServerResponse#NO_SUCH_CHANNEL} if there is no
+     * channel with the specified name
+     * (2) {@link ServerResponse#USER_NOT_IN_CHANNEL} if the sender is
+     * not in the channel they are trying to search
+     */
+    public Broadcast searchChannel(SearchCommand searchCommand) {
+        String channelName = searchCommand.getChannel();
+        Channel channel = channels.get(channelName);
+
+        if (channel == null) {
+            return Broadcast.error(searchCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!channel.hasMember(searchCommand.getSenderId())) {
+            return Broadcast.error(searchCommand, ServerResponse.USER_NOT_IN_CHANNEL);
         }
-        return Broadcast.error(leaveCommand, ServerResponse.NO_SUCH_CHANNEL);
+        return search(searchCommand);
+    }
+
+    /**
+     * Searches a channel as {@link #searchChannel(SearchCommand)} does, but
+     * checks the sender's membership against a published snapshot rather
+     * than the live model, so that it may run on any thread. The message
+     * index is itself thread-safe.
+     *
+     * @param searchCommand The {@link SearchCommand} object containing all
+     *                      information needed for the search
+     * @param snapshot      A snapshot reflecting every earlier command of
+     *                      the sender
+     * @return The {@link Broadcast} object with the requested page of hits
+     * or an error, as for {@link #searchChannel(SearchCommand)}
+     */
+    Broadcast searchChannel(SearchCommand searchCommand, ModelSnapshot snapshot) {
+        ModelSnapshot.ChannelView channel = snapshot.getChannel(searchCommand.getChannel());
+
+        if (channel == null) {
+            return Broadcast.error(searchCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!channel.hasMember(searchCommand.getSenderId())) {
+            return Broadcast.error(searchCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        return search(searchCommand);
+    }
+
+    private Broadcast search(SearchCommand searchCommand) {
+        MessageIndex.SearchPage page = messageIndex.search(
+                searchCommand.getChannel(), searchCommand.getQuery(), searchCommand.getCursor()
+        );
+        return Broadcast.searchResults(searchCommand, page);
+    }
+
+    /**
+     * This method is called when a user asks for a page of a channel's
+     * members. Only members of the channel may list it.
+     *
+     * @param namesCommand The {@link NamesCommand} object containing the
+     *                     channel and the cursor from the previous page
+     * @return The {@link Broadcast} object generated by
+     * {@link Broadcast#namesPage(Command, String, String, Roster.Page)} with
+     * the nicknames sorted after the cursor. The only recipient is the
+     * sender.
+     * <p>
+     * If an error occurs, use
+     * {@link Broadcast#error(Command, ServerResponse)} with either:
+     * (1) {@link ServerResponse#NO_SUCH_CHANNEL} if there is no
+     * channel with the specified name
+     * (2) {@link ServerResponse#USER_NOT_IN_CHANNEL} if the sender is
+     * not in the channel
+     */
+    public Broadcast listNames(NamesCommand namesCommand) {
+        Channel channel = channels.get(namesCommand.getChannel());
+
+        if (channel == null) {
+            return Broadcast.error(namesCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!channel.hasMember(namesCommand.getSenderId())) {
+            return Broadcast.error(namesCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        return Broadcast.namesPage(namesCommand, channel.getChannelName(),
+                users.get(channel.getOwnerId()),
+                rosterOf(channel).page(namesCommand.getCursor(), namesPageSize));
+    }
+
+    /**
+     * Lists a page of a channel's members as {@link #listNames(NamesCommand)}
+     * does, but from a published snapshot rather than the live model, so
+     * that it may run on any thread.
+     *
+     * @param namesCommand The {@link NamesCommand} object containing the
+     *                     channel and the cursor from the previous page
+     * @param snapshot     A snapshot reflecting every earlier command of the
+     *                     sender
+     * @return The {@link Broadcast} object with the requested page or an
+     * error, as for {@link #listNames(NamesCommand)}
+     */
+    Broadcast listNames(NamesCommand namesCommand, ModelSnapshot snapshot) {
+        ModelSnapshot.ChannelView channel = snapshot.getChannel(namesCommand.getChannel());
+
+        if (channel == null) {
+            return Broadcast.error(namesCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!channel.hasMember(namesCommand.getSenderId())) {
+            return Broadcast.error(namesCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        return Broadcast.namesPage(namesCommand, channel.getName(), channel.getOwner(),
+                Roster.page(channel.getMembers(), channel.getRosterVersion(),
+                        namesCommand.getCursor(), namesPageSize));
+    }
+
+    /**
+     * This method is called when a user holding a copy of a channel's
+     * members, as of a roster version from {@code ENDNAMES} or
+     * {@code ROSTER}, asks what changed since.
+     *
+     * @param rosterCommand The {@link RosterCommand} object containing the
+     *                      channel and the version
+     * @return The {@link Broadcast} object generated by
+     * {@link Broadcast#rosterChanges(RosterCommand, long, String)}, or, if
+     * the changes since that version are no longer kept, by
+     * {@link Broadcast#namesPage(Command, String, String, Roster.Page)} with
+     * the first page, so that the client starts over. The only recipient is
+     * the sender.
+     * <p>
+     * If an error occurs, use
+     * {@link Broadcast#error(Command, ServerResponse)} with either:
+     * (1) {@link ServerResponse#NO_SUCH_CHANNEL} if there is no
+     * channel with the specified name
+     * (2) {@link ServerResponse#USER_NOT_IN_CHANNEL} if the sender is
+     * not in the channel
+     */
+    public Broadcast rosterChanges(RosterCommand rosterCommand) {
+        Channel channel = channels.get(rosterCommand.getChannel());
+
+        if (channel == null) {
+            return Broadcast.error(rosterCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!channel.hasMember(rosterCommand.getSenderId())) {
+            return Broadcast.error(rosterCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        Roster roster = rosterOf(channel);
+        String changes = roster.changesSince(rosterCommand.getVersion());
+        if (changes == null) {
+            return Broadcast.namesPage(rosterCommand, channel.getChannelName(),
+                    users.get(channel.getOwnerId()), roster.page(null, namesPageSize));
+        }
+        return Broadcast.rosterChanges(rosterCommand, roster.getVersion(), changes);
+    }
+
+    /**
+     * Sets the most channels. Once there are that many, {@code CREATE} is
+     * answered {@link ServerResponse#BUSY}.
+     *
+     * @param channels The most channels, or 0 for no limit
+     */
+    void setMaxChannels(int channels) {
+        maxChannels = channels;
+    }
+
+    /**
+     * @return the number of registered users
+     */
+    int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Sets the most nicknames sent in one {@code NAMES} line. A user joining
+     * or invited to a channel with more members than that is sent the first
+     * page only, and asks for the rest with {@code NAMES}.
+     *
+     * @param nicknames The page size
+     */
+    void setNamesPageSize(int nicknames) {
+        if (nicknames < 1) {
+            throw new IllegalArgumentException("Invalid page size");
+        }
+        namesPageSize = nicknames;
+    }
+
+    /**
+     * Returns a channel's roster, building it the first time the channel is
+     * listed a page at a time. From then on it is kept up to date as members
+     * come and go.
+     */
+    private Roster rosterOf(Channel channel) {
+        Roster roster = rosters.get(channel.getChannelId());
+        if (roster == null) {
+            int capacity = Math.min(ROSTER_CHANGES, Math.max(16, channel.getMembers().size()));
+            roster = new Roster(nicknamesOf(channel), ++rosterClock, capacity);
+            rosters.put(channel.getChannelId(), roster);
+            // So that the next snapshot carries the roster's version
+            changedChannels.add(channel.getChannelName());
+        }
+        return roster;
     }
 
     // =============================
@@ -501,32 +951,33 @@ public final class ServerModel {
      * the owner of the channel
      */
     public Broadcast inviteUser(InviteCommand inviteCommand) {
-        TreeSet<String> recipients = new TreeSet<>();
         String channelName = inviteCommand.getChannel();
-        String senderName = inviteCommand.getSender();
         String invitedUser = inviteCommand.getUserToInvite();
+        int invitedId = getUserId(invitedUser);
+        Channel channel = channels.get(channelName);
 
-        if (!users.containsKey(getUserId(invitedUser))) {
+        if (invitedId < 0) {
             return Broadcast.error(inviteCommand, ServerResponse.NO_SUCH_USER);
         }
-        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
-            Channel channel = entry.getValue();
-            if (!channel.getChannelOwner().equals(senderName)) {
-                return Broadcast.error(inviteCommand, ServerResponse.USER_NOT_OWNER);
-            }
-            if (!channel.isPrivate()) {
-                return Broadcast.error(inviteCommand, ServerResponse.INVITE_TO_PUBLIC_CHANNEL);
-            }
-            for (Map.Entry<Integer, String> userMap : users.entrySet()) {
-                String currUser = userMap.getValue();
-                if (channel.getChannelName().equals(channelName)) {
-                    channel.addUser(invitedUser, getUserId(invitedUser));
-                    recipients.addAll(channel.getUserNicknames());
-                }
-            }
-            return Broadcast.names(inviteCommand, recipients, channel.getChannelOwner());
+        if (channel == null) {
+            return Broadcast.error(inviteCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (channel.getOwnerId() != inviteCommand.getSenderId()) {
+            return Broadcast.error(inviteCommand, ServerResponse.USER_NOT_OWNER);
+        }
+        if (!channel.isPrivate()) {
+            return Broadcast.error(inviteCommand, ServerResponse.INVITE_TO_PUBLIC_CHANNEL);
         }
-        return Broadcast.error(inviteCommand, ServerResponse.NO_SUCH_CHANNEL);
+        flushPresence(channel);
+        addMember(channel, invitedId);
+        record(channel, ++eventCount, inviteCommand.toString());
+        emit(ChatEvent.Type.USER_JOINED, channelName, invitedUser, null);
+        String owner = users.get(channel.getOwnerId());
+        if (channel.getMembers().size() > namesPageSize) {
+            return Broadcast.names(inviteCommand, nicknamesOf(channel), owner,
+                    rosterOf(channel).page(null, namesPageSize));
+        }
+        return Broadcast.names(inviteCommand, nicknamesOf(channel), owner);
     }
 
     /**
@@ -553,37 +1004,639 @@ public final class ServerModel {
      * the owner of the channel
      */
     public Broadcast kickUser(KickCommand kickCommand) {
-        String senderName = kickCommand.getSender();
         String channelName = kickCommand.getChannel();
         String kickedUser = kickCommand.getUserToKick();
-        TreeSet<String> recipients = new TreeSet<>();
+        int kickedId = getUserId(kickedUser);
+        Channel channel = channels.get(channelName);
 
-        if (!users.containsKey(getUserId(kickedUser))) {
+        if (kickedId < 0) {
             return Broadcast.error(kickCommand, ServerResponse.NO_SUCH_USER);
         }
-        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
-            Channel channel = entry.getValue();
+        if (channel == null) {
+            return Broadcast.error(kickCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (channel.getOwnerId() != kickCommand.getSenderId()) {
+            return Broadcast.error(kickCommand, ServerResponse.USER_NOT_OWNER);
+        }
+        if (!channel.hasMember(kickedId)) {
+            return Broadcast.error(kickCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        flushPresence(channel);
+        TreeSet<String> recipients = nicknamesOf(channel);
+        removeMember(channel, kickedId);
+        record(channel, ++eventCount, kickCommand.toString());
+        emit(ChatEvent.Type.USER_LEFT, channelName, kickedUser, null);
+        if (channel.getOwnerId() == kickedId) {
+            destroyChannel(channel);
+            emit(ChatEvent.Type.CHANNEL_DESTROYED, channelName, kickedUser, null);
+        }
+        return Broadcast.okay(kickCommand, recipients);
+    }
 
-            if (channel.getChannelName().equals(channelName)) {
+    // ==========================
+    // == ID-keyed bookkeeping ==
+    // ==========================
 
-                if (!channel.getChannelOwner().equals(senderName)) {
-                    return Broadcast.error(kickCommand, ServerResponse.USER_NOT_OWNER);
+    /**
+     * Collects the nicknames of a channel's members.
+     */
+    private TreeSet<String> nicknamesOf(Channel channel) {
+        TreeSet<String> nicknames = new TreeSet<>();
+        addNicknames(channel, nicknames);
+        return nicknames;
+    }
+
+    /**
+     * Looks up the nicknames of a set of users, such as a union of several
+     * channels' members.
+     */
+    private List<String> nicknamesOf(IdBitmap userIds) {
+        List<String> nicknames = new ArrayList<>(userIds.size());
+        userIds.forEach(userId -> nicknames.add(users.get(userId)));
+        return nicknames;
+    }
+
+    private void addNicknames(Channel channel, Collection<String> nicknames) {
+        channel.getMembers().forEach(memberId -> nicknames.add(users.get(memberId)));
+    }
+
+    /**
+     * Lists the channels a user is in, sorted by name so that events and
+     * responses come out in a stable order.
+     */
+    private List<Channel> channelsOf(int userId) {
+        IntSet channelIds = memberships.get(userId);
+        if (channelIds == null || channelIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Channel> result = new ArrayList<>(channelIds.size());
+        channelIds.forEach(channelId -> result.add(channelsById.get(channelId)));
+        result.sort(Comparator.comparing(Channel::getChannelName));
+        return result;
+    }
+
+    private void addMember(Channel channel, int userId) {
+        if (channel.addMember(userId)) {
+            IntSet channelIds = memberships.get(userId);
+            if (channelIds == null) {
+                channelIds = new IntSet();
+                memberships.put(userId, channelIds);
+            }
+            channelIds.add(channel.getChannelId());
+            renameMember(channel, userId, users.get(userId));
+            Roster roster = rosters.get(channel.getChannelId());
+            if (roster != null) {
+                roster.add(++rosterClock, users.get(userId));
+            }
+        }
+    }
+
+    private void removeMember(Channel channel, int userId) {
+        if (channel.removeMember(userId)) {
+            IntSet channelIds = memberships.get(userId);
+            if (channelIds != null) {
+                channelIds.remove(channel.getChannelId());
+            }
+            memberNicknames.put(channel.getChannelId(),
+                    memberNicknamesOf(channel).minus(userId));
+            changedChannels.add(channel.getChannelName());
+            Roster roster = rosters.get(channel.getChannelId());
+            if (roster != null) {
+                roster.remove(++rosterClock, users.get(userId));
+            }
+        }
+    }
+
+    /**
+     * Records a member's current nickname in the channel's persistent
+     * member map, as a member joins or renames.
+     */
+    private void renameMember(Channel channel, int userId, String nickname) {
+        memberNicknames.put(channel.getChannelId(),
+                memberNicknamesOf(channel).plus(userId, nickname));
+        changedChannels.add(channel.getChannelName());
+    }
+
+    private PersistentMap<Integer, String> memberNicknamesOf(Channel channel) {
+        PersistentMap<Integer, String> nicknames = memberNicknames.get(channel.getChannelId());
+        return nicknames == null ? PersistentMap.empty() : nicknames;
+    }
+
+    private void addChannel(Channel channel) {
+        channels.put(channel.getChannelName(), channel);
+        channelsById.put(channel.getChannelId(), channel);
+        changedChannels.add(channel.getChannelName());
+    }
+
+    /**
+     * Removes a channel, its memberships and its history, and recycles its
+     * ID.
+     */
+    private void destroyChannel(Channel channel) {
+        int channelId = channel.getChannelId();
+        channel.getMembers().forEach(memberId -> {
+            IntSet channelIds = memberships.get(memberId);
+            if (channelIds != null) {
+                channelIds.remove(channelId);
+            }
+        });
+        channels.remove(channel.getChannelName());
+        channelsById.remove(channelId);
+        replays.remove(channelId);
+        presence.remove(channelId);
+        rosters.remove(channelId);
+        memberNicknames.remove(channelId);
+        changedChannels.add(channel.getChannelName());
+        messageIndex.drop(channel.getChannelName());
+        if (freeChannelCount == freeChannelIds.length) {
+            freeChannelIds = Arrays.copyOf(freeChannelIds, freeChannelCount * 2);
+        }
+        freeChannelIds[freeChannelCount++] = channelId;
+    }
+
+    /**
+     * Reuses the most recently freed channel ID, if any, so that channel IDs
+     * stay dense.
+     */
+    private int allocateChannelId() {
+        return freeChannelCount > 0 ? freeChannelIds[--freeChannelCount] : nextChannelId++;
+    }
+
+    // ===============
+    // == Snapshots ==
+    // ===============
+
+    /**
+     * Returns the most recently published snapshot of this model. Unlike the
+     * other query methods, this may be called from any thread, and costs
+     * nothing beyond a volatile read. The snapshot reflects the model as of
+     * the last call to {@link #publishSnapshot()}.
+     *
+     * @return The latest published snapshot
+     */
+    ModelSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publishes a snapshot of the current state, if anything changed since
+     * the last one. Only the changed users and the views of changed
+     * channels are applied to the previous snapshot's maps, and a changed
+     * channel's view takes the channel's persistent member map as it is;
+     * everything else is shared with the previous snapshot. Must be called
+     * on the model thread.
+     */
+    void publishSnapshot() {
+        if (changedUsers.isEmpty() && changedChannels.isEmpty()) {
+            return;
+        }
+        ModelSnapshot previous = snapshot;
+        PersistentMap<Integer, String> nicknames = previous.getNicknames();
+        PersistentMap<String, Integer> ids = previous.getUserIds();
+        if (!changedUsers.isEmpty()) {
+            int[] changed = changedUsers.toArray();
+            // Every old nickname goes before any new one is added, as users
+            // may have taken each other's nicknames since the last snapshot
+            for (int userId : changed) {
+                String old = nicknames.get(userId);
+                if (old != null) {
+                    ids = ids.minus(old);
                 }
-                if (!channel.getUserNicknames().contains(kickedUser)) {
-                    return Broadcast.error(kickCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+            }
+            for (int userId : changed) {
+                String nickname = users.get(userId);
+                if (nickname == null) {
+                    nicknames = nicknames.minus(userId);
+                } else {
+                    nicknames = nicknames.plus(userId, nickname);
+                    ids = ids.plus(nickname, userId);
                 }
-                recipients.addAll(channel.getUserNicknames());
-                channels.get(channelName).removeUser(kickedUser);
-                if (kickedUser.equals(getOwner(channelName))) {
+            }
+        }
+        PersistentMap<String, ModelSnapshot.ChannelView> channelViews =
+                previous.getChannelViews();
+        for (String channelName : changedChannels) {
+            Channel channel = channels.get(channelName);
+            if (channel == null) {
+                channelViews = channelViews.minus(channelName);
+            } else {
+                Roster roster = rosters.get(channel.getChannelId());
+                channelViews = channelViews.plus(channelName, new ModelSnapshot.ChannelView(
+                        channelName, users.get(channel.getOwnerId()),
+                        channel.isPrivate(), memberNicknamesOf(channel),
+                        roster == null ? 0 : roster.getVersion()
+                ));
+            }
+        }
+        snapshot = new ModelSnapshot(++snapshotVersion, nicknames, ids, channelViews);
+        changedUsers.clear();
+        changedChannels.clear();
+    }
 
-                    for (String userName : getUsersInChannel(channelName)) {
-                        channel.removeUser(userName);
-                    }
-                    channels.remove(channelName);
+    // ==================
+    // == Event stream ==
+    // ==================
+
+    /**
+     * Publishes changes to this model as {@link ChatEvent}s on the given
+     * stream from now on. The stream must already be started.
+     *
+     * @param events The stream to emit events to, or null to stop emitting
+     */
+    void publishEventsTo(EventStream events) {
+        this.events = events;
+    }
+
+    /**
+     * Emits an event if an event stream is attached. Never blocks.
+     */
+    private void emit(ChatEvent.Type type, String channel, String nickname, String message) {
+        if (events != null) {
+            events.emit(type, channel, nickname, message);
+        }
+    }
+
+    // =====================
+    // == Cluster support ==
+    // =====================
+
+    /**
+     * Restricts the default nicknames generated by
+     * {@link #registerUser(int)} to "UserX" where X is {@code offset} plus a
+     * multiple of {@code stride}. Cluster nodes use disjoint offsets so they
+     * never generate the same nickname at the same time.
+     *
+     * @param stride The step between generated suffixes, at least 1
+     * @param offset The smallest generated suffix
+     */
+    void setNicknameSpace(int stride, int offset) {
+        if (stride < 1 || offset < 0) {
+            throw new IllegalArgumentException("Invalid nickname space");
+        }
+        nicknameStride = stride;
+        nicknameOffset = offset;
+    }
+
+    /**
+     * Records a user connected to another cluster node, so that commands
+     * from and about them can be handled here. No broadcast is generated.
+     *
+     * @param userId   The user's cluster-wide ID
+     * @param nickname The user's current nickname
+     */
+    void addRemoteUser(int userId, String nickname) {
+        String previous = users.put(userId, nickname);
+        if (previous != null) {
+            userIds.remove(previous);
+            for (Channel channel : channelsOf(userId)) {
+                renameMember(channel, userId, nickname);
+            }
+        }
+        userIds.put(nickname, userId);
+        changedUsers.add(userId);
+    }
+
+    /**
+     * Removes a channel from this model so that it can be handed to another
+     * cluster node. Its message history is discarded.
+     *
+     * @param channelName The channel to remove
+     * @return The removed channel, or null if there is no such channel
+     */
+    Channel releaseChannel(String channelName) {
+        Channel channel = channels.get(channelName);
+        if (channel != null) {
+            destroyChannel(channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Adds a channel handed over by another cluster node. Its members are
+     * recorded as users if they are not known yet.
+     *
+     * @param channelName The channel's name
+     * @param isPrivate   true if the channel is invite-only
+     * @param ownerId     The owner's user ID
+     * @param members     The nickname of every member, by user ID
+     */
+    void adoptChannel(
+            String channelName, boolean isPrivate, int ownerId, IntMap<String> members
+    ) {
+        Channel channel = new Channel(allocateChannelId(), channelName, ownerId, isPrivate);
+        addChannel(channel);
+        members.forEach((memberId, nickname) -> {
+            if (!users.containsKey(memberId)) {
+                addRemoteUser(memberId, nickname);
+            }
+            addMember(channel, memberId);
+        });
+    }
+
+    // =================
+    // == Hot restart ==
+    // =================
+
+    /**
+     * Loads the users and channels of a snapshot taken by the process this
+     * one took over from. Must be called before any user registers. No
+     * broadcast is generated, and message history is not carried over.
+     *
+     * @param snapshot The old process's model
+     */
+    void restore(ModelSnapshot snapshot) {
+        snapshot.getNicknames().forEach(this::addRemoteUser);
+        // In name order, so that channel IDs do not depend on hash order
+        List<String> channelNames = new ArrayList<>(snapshot.getChannels());
+        Collections.sort(channelNames);
+        for (String channelName : channelNames) {
+            ModelSnapshot.ChannelView view = snapshot.getChannel(channelName);
+            IntMap<String> members = new IntMap<>();
+            view.getMemberNicknames().forEach(members::put);
+            adoptChannel(channelName, view.isPrivate(), userIds.get(view.getOwner()), members);
+        }
+    }
+
+    // ========================
+    // == Session resumption ==
+    // ========================
+
+    /**
+     * Starts or stops keeping the lines relayed to each channel for
+     * {@link #resumeSession(int, Map)}. Lines are numbered per channel from
+     * the first time this is called with a positive capacity.
+     *
+     * @param lines The most lines to keep per channel, or 0 to keep none
+     */
+    void setReplayCapacity(int lines) {
+        if (lines < 0) {
+            throw new IllegalArgumentException("Invalid replay capacity");
+        }
+        replayCapacity = lines;
+        if (lines == 0) {
+            for (int channelId : replays.keys()) {
+                replays.remove(channelId);
+            }
+        }
+    }
+
+    /**
+     * Returns the lines numbered since the last call, so that the backend
+     * can stamp them with their sequence numbers as it sends them. Must be
+     * called on the model thread after every change.
+     *
+     * @return The numbered lines, oldest first
+     */
+    List<ReplayBuffer.Entry> takeRecorded() {
+        if (recorded.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ReplayBuffer.Entry> taken = recorded;
+        recorded = new ArrayList<>();
+        return taken;
+    }
+
+    /**
+     * @param channelName A channel's name
+     * @param userId      A user's ID
+     * @return true if the channel exists and the user is a member
+     */
+    boolean isMember(String channelName, int userId) {
+        Channel channel = channels.get(channelName);
+        return channel != null && channel.hasMember(userId);
+    }
+
+    /**
+     * Creates the answer to a client that opened a session: its resume
+     * token, followed by the sequence number of the last line relayed to
+     * each of its channels.
+     *
+     * @param userId The client's user ID
+     * @param token  The session's resume token
+     * @return The {@link Broadcast} generated by
+     * {@link Broadcast#sessionOpened(String, String, Collection)}
+     */
+    Broadcast sessionOpened(int userId, String token) {
+        List<String> positions = new ArrayList<>();
+        for (Channel channel : channelsOf(userId)) {
+            positions.add(channel.getChannelName() + ":" + seqOf(channel));
+        }
+        return Broadcast.sessionOpened(users.get(userId), token, positions);
+    }
+
+    /**
+     * Brings a user whose session was resumed on a new connection up to
+     * date. For every channel the user is still in, the lines relayed since
+     * the last one the client saw are replayed, each stamped with its
+     * sequence numbers as it would have been when first sent. A line relayed
+     * to several of the user's channels is replayed once. If the client
+     * missed more lines of a channel than are kept, or did not say what it
+     * saw there, it is sent the channel's current {@code NAMES} instead. A
+     * channel the client saw but the user is no longer in is reported as
+     * left.
+     *
+     * @param userId The resumed user's ID
+     * @param seen   The sequence number of the last line the client saw,
+     *               by channel name
+     * @return The {@link Broadcast} generated by
+     * {@link Broadcast#resumed(String, List)}
+     */
+    Broadcast resumeSession(int userId, Map<String, Long> seen) {
+        String nickname = users.get(userId);
+        List<String> replayed = new ArrayList<>();
+        List<ReplayBuffer.Entry> missed = new ArrayList<>();
+        Set<String> current = new HashSet<>();
+        for (Channel channel : channelsOf(userId)) {
+            String channelName = channel.getChannelName();
+            current.add(channelName);
+            ReplayBuffer buffer = replays.get(channel.getChannelId());
+            Long lastSeen = seen.get(channelName);
+            if (lastSeen != null && (buffer == null
+                    ? lastSeen == 0 : buffer.collectAfter(lastSeen, missed))) {
+                continue;
+            }
+            replayed.add(stamp(channelName + ":" + seqOf(channel), Broadcast.namesResponse(
+                    nickname, channelName, users.get(channel.getOwnerId()), nicknamesOf(channel)
+            )));
+        }
+        for (String channelName : new TreeSet<>(seen.keySet())) {
+            if (!current.contains(channelName)) {
+                replayed.add(String.format(":%s LEAVE %s", nickname, channelName));
+            }
+        }
+
+        // Merge the channels by event, stamping each event once with every
+        // channel it was relayed to
+        missed.sort(Comparator.comparingLong(ReplayBuffer.Entry::getEventId));
+        for (int i = 0; i < missed.size(); ) {
+            ReplayBuffer.Entry first = missed.get(i);
+            StringBuilder tag = new StringBuilder();
+            for (; i < missed.size() && missed.get(i).getEventId() == first.getEventId(); i++) {
+                ReplayBuffer.Entry entry = missed.get(i);
+                if (tag.length() > 0) {
+                    tag.append(',');
                 }
-                return Broadcast.okay(kickCommand, recipients);
+                tag.append(entry.getChannelName()).append(':').append(entry.getSeq());
+            }
+            replayed.add(stamp(tag.toString(), first.getLine()));
+        }
+        return Broadcast.resumed(nickname, replayed);
+    }
+
+    /**
+     * Prefixes a line with a sequence number tag, such as
+     * {@code @java:17,ocaml:5}.
+     */
+    static String stamp(String tag, String line) {
+        return "@" + tag + " " + line;
+    }
+
+    private long seqOf(Channel channel) {
+        ReplayBuffer buffer = replays.get(channel.getChannelId());
+        return buffer == null ? 0 : buffer.getSeq();
+    }
+
+    /**
+     * Numbers a line relayed to a channel's members and keeps it for
+     * replay, while replay is on.
+     */
+    private void record(Channel channel, long eventId, String line) {
+        if (replayCapacity == 0) {
+            return;
+        }
+        ReplayBuffer buffer = replays.get(channel.getChannelId());
+        if (buffer == null) {
+            buffer = new ReplayBuffer(channel.getChannelName());
+            replays.put(channel.getChannelId(), buffer);
+        }
+        recorded.add(buffer.append(eventId, line, replayCapacity));
+    }
+
+    // ======================
+    // == Presence digests ==
+    // ======================
+
+    /**
+     * Sets which channels relay membership changes as digests. While a
+     * channel has at least as many members as a threshold, a {@code JOIN},
+     * {@code LEAVE} or {@code QUIT} is only sent at once to the member who
+     * joined or left; the other members are sent one
+     * {@code :<nickname> PRESENCE <channel> :+<joined> -<left> ...} line
+     * listing the changes at the end of the window, or before the next
+     * {@code INVITE}, {@code KICK} or {@code NICK} in the channel. Messages
+     * are still relayed at once, so a message may arrive before the digest
+     * announcing its sender. Channels with fewer members than every
+     * threshold, and an owner leaving, are relayed at once as before.
+     *
+     * @param windowsByMembers The window in milliseconds for each threshold,
+     *                         keyed by the fewest members a channel must
+     *                         have to use it; empty for no digests
+     */
+    void setPresenceWindows(NavigableMap<Integer, Integer> windowsByMembers) {
+        presenceWindows = new TreeMap<>(windowsByMembers);
+    }
+
+    /**
+     * Returns the digests opened since the last call, so that the backend
+     * can flush each with {@link #flushPresence(PresenceDigest)} once its
+     * window ends. Must be called on the model thread after every change.
+     *
+     * @return The digests, oldest first
+     */
+    List<PresenceDigest> takeOpenedDigests() {
+        if (openedDigests.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<PresenceDigest> taken = openedDigests;
+        openedDigests = new ArrayList<>();
+        return taken;
+    }
+
+    /**
+     * Ends a digest's window. Does nothing to a digest that was already sent
+     * early or whose channel is gone.
+     *
+     * @param digest A digest from {@link #takeOpenedDigests()}
+     * @return The {@link Broadcast} from {@link #takePresenceLines()}
+     */
+    Broadcast flushPresence(PresenceDigest digest) {
+        Channel channel = channels.get(digest.getChannelName());
+        if (channel != null && presence.get(channel.getChannelId()) == digest) {
+            flushPresence(channel);
+        }
+        return takePresenceLines();
+    }
+
+    /**
+     * Returns the {@code PRESENCE} lines of the digests sent since the last
+     * call. They must be sent before the {@link Broadcast} of the change
+     * that sent them early, if any.
+     *
+     * @return The lines, or null if there are none
+     */
+    Broadcast takePresenceLines() {
+        if (presenceLines.isEmpty()) {
+            return null;
+        }
+        Broadcast broadcast = Broadcast.presence(presenceLines);
+        presenceLines.clear();
+        return broadcast;
+    }
+
+    /**
+     * @return the window for a channel with this many members, or 0 if its
+     * membership changes are relayed at once
+     */
+    private int presenceWindow(int members) {
+        Map.Entry<Integer, Integer> window = presenceWindows.floorEntry(members);
+        return window == null ? 0 : window.getValue();
+    }
+
+    /**
+     * @return true if the next membership change in the channel goes into a
+     * digest
+     */
+    private boolean digestsPresence(Channel channel) {
+        return presence.containsKey(channel.getChannelId())
+                || presenceWindow(channel.getMembers().size()) > 0;
+    }
+
+    /**
+     * Returns the digest the next membership change in a channel goes into,
+     * opening one if the channel is large enough.
+     *
+     * @return the digest, or null if the change should be relayed at once
+     */
+    private PresenceDigest digestFor(Channel channel) {
+        PresenceDigest digest = presence.get(channel.getChannelId());
+        if (digest == null) {
+            int window = presenceWindow(channel.getMembers().size());
+            if (window <= 0) {
+                return null;
             }
+            digest = new PresenceDigest(channel.getChannelName(), window);
+            presence.put(channel.getChannelId(), digest);
+            openedDigests.add(digest);
         }
-        return Broadcast.error(kickCommand, ServerResponse.NO_SUCH_CHANNEL);
+        return digest;
+    }
+
+    /**
+     * Turns a channel's digest, if any, into a {@code PRESENCE} line for
+     * each member, to be taken by {@link #takePresenceLines()}.
+     */
+    private void flushPresence(Channel channel) {
+        PresenceDigest digest = presence.remove(channel.getChannelId());
+        if (digest == null) {
+            return;
+        }
+        channel.getMembers().forEach(memberId -> {
+            String changes = digest.changesFor(memberId);
+            if (changes != null) {
+                String nickname = users.get(memberId);
+                presenceLines.computeIfAbsent(nickname, n -> new ArrayList<>()).add(
+                        Broadcast.presenceResponse(nickname, channel.getChannelName(), changes));
+            }
+        });
     }
-}
\ No newline at end of file
+}
@@ -58,6 +58,26 @@ public enum ServerResponse {
      */
     INVITE_TO_PUBLIC_CHANNEL(408),
 
+    /**
+     * Response by the server when a client tries to resume a session that
+     * has expired, or never existed, or opens a session where sessions are
+     * not supported.
+     */
+    NO_SUCH_SESSION(410),
+
+    /**
+     * Response by the server when a client sends commands faster than
+     * its rate limits allow. The command was dropped without effect.
+     */
+    THROTTLED(429),
+
+    /**
+     * Response by the server when it is overloaded, or at its limit of
+     * channels, and refuses a command that would add to its work. The
+     * command was dropped without effect and may be retried later.
+     */
+    BUSY(503),
+
     /**
      * Response by the server when a client attempts to change his or
      * her nick to a nickname that is already in use by another user.
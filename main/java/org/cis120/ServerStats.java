@@ -0,0 +1,232 @@
+package org.cis120;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code ServerStats} holds traffic statistics that are updated by the
+ * connection workers as commands arrive, and read by monitoring tools such
+ * as the {@link AdminServer}. It never touches the model thread.
+ * <p>
+ * Updating a statistic costs one or two {@link LongAdder} increments, which
+ * do not contend between workers. Rates are not computed on the hot path:
+ * {@link #sample(ModelSnapshot, long)} is called periodically by the reader,
+ * turns the counts since the previous sample into exponentially smoothed
+ * per-second rates, and forgets channels and users that no longer exist.
+ */
+final class ServerStats {
+
+    // Weight of the newest sample in the smoothed rates
+    private static final double SMOOTHING = 0.5;
+
+    private final LongAdder commands;
+    private final LongAdder rejected;
+    private final LongAdder connections;
+    private final LongAdder refused;
+    // Wall-clock time of the first accepted connection, or 0
+    private volatile long firstConnectionMillis;
+    private final CountDownLatch firstConnection;
+    private final Map<String, Counter> channelMessages;
+    private final Map<Integer, Counter> userCommands;
+
+    private long lastSampleNanos;
+
+    /**
+     * Constructs an empty {@code ServerStats}.
+     */
+    ServerStats() {
+        commands = new LongAdder();
+        rejected = new LongAdder();
+        connections = new LongAdder();
+        refused = new LongAdder();
+        firstConnection = new CountDownLatch(1);
+        channelMessages = new ConcurrentHashMap<>();
+        userCommands = new ConcurrentHashMap<>();
+        lastSampleNanos = System.nanoTime();
+    }
+
+    /**
+     * Records a connection being accepted.
+     */
+    void connectionOpened() {
+        connections.increment();
+        if (firstConnectionMillis == 0) {
+            firstConnectionMillis = System.currentTimeMillis();
+            firstConnection.countDown();
+        }
+    }
+
+    /**
+     * Records a connection refused because the server was full.
+     */
+    void connectionRefused() {
+        refused.increment();
+    }
+
+    /**
+     * Records a command accepted from a client. Called on the connection's
+     * worker thread.
+     *
+     * @param userId  The sender
+     * @param payload The command, without prefix
+     */
+    void commandAccepted(int userId, String payload) {
+        commands.increment();
+        userCommands.computeIfAbsent(userId, id -> new Counter()).count.increment();
+        String channelName = RateLimiter.messageChannel(payload);
+        if (channelName != null) {
+            channelMessages.computeIfAbsent(channelName, name -> new Counter()).count.increment();
+        }
+    }
+
+    /**
+     * Records a command refused before reaching the model.
+     */
+    void commandRejected() {
+        rejected.increment();
+    }
+
+    /** @return the number of commands accepted since startup */
+    long getCommands() {
+        return commands.sum();
+    }
+
+    /** @return the number of commands refused since startup */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /** @return the number of connections accepted since startup */
+    long getConnectionsAccepted() {
+        return connections.sum();
+    }
+
+    /** @return the number of connections refused since startup */
+    long getConnectionsRefused() {
+        return refused.sum();
+    }
+
+    /**
+     * @return the wall-clock time the first connection was accepted, in
+     * milliseconds since the epoch, or 0 if none has been yet
+     */
+    long getFirstConnectionMillis() {
+        return firstConnectionMillis;
+    }
+
+    /**
+     * Waits for the first connection to be accepted.
+     *
+     * @return the wall-clock time it was accepted, in milliseconds since the
+     * epoch
+     * @throws InterruptedException if interrupted while waiting
+     */
+    long awaitFirstConnection() throws InterruptedException {
+        firstConnection.await();
+        return firstConnectionMillis;
+    }
+
+    /**
+     * Updates the smoothed rates from the counts since the last sample, and
+     * drops the statistics of channels and users that are gone. Must not be
+     * called concurrently with itself.
+     *
+     * @param snapshot The current model snapshot
+     * @param now      The current time from {@link System#nanoTime()}
+     */
+    synchronized void sample(ModelSnapshot snapshot, long now) {
+        double seconds = Math.max(1e-3, (now - lastSampleNanos) / 1e9);
+        lastSampleNanos = now;
+        channelMessages.keySet().retainAll(snapshot.getChannels());
+        userCommands.keySet().removeIf(userId -> snapshot.getNickname(userId) == null);
+        for (Counter counter : channelMessages.values()) {
+            counter.sample(seconds);
+        }
+        for (Counter counter : userCommands.values()) {
+            counter.sample(seconds);
+        }
+    }
+
+    /**
+     * @param channelName A channel name
+     * @return the channel's smoothed message rate per second
+     */
+    double getMessageRate(String channelName) {
+        Counter counter = channelMessages.get(channelName);
+        return counter == null ? 0 : counter.rate;
+    }
+
+    /**
+     * @param channelName A channel name
+     * @return the number of messages sent to the channel since it was first
+     * seen
+     */
+    long getMessageCount(String channelName) {
+        Counter counter = channelMessages.get(channelName);
+        return counter == null ? 0 : counter.count.sum();
+    }
+
+    /**
+     * Lists the channels with the highest message rates.
+     *
+     * @param limit The most channels to return
+     * @return The channel names, busiest first
+     */
+    List<String> topChannelsByRate(int limit) {
+        return top(channelMessages, limit);
+    }
+
+    /**
+     * Lists the users with the highest command rates.
+     *
+     * @param limit The most users to return
+     * @return The user IDs, busiest first
+     */
+    List<Integer> topUsersByRate(int limit) {
+        return top(userCommands, limit);
+    }
+
+    /**
+     * @param userId A user ID
+     * @return the user's smoothed command rate per second
+     */
+    double getCommandRate(int userId) {
+        Counter counter = userCommands.get(userId);
+        return counter == null ? 0 : counter.rate;
+    }
+
+    private static <K> List<K> top(Map<K, Counter> counters, int limit) {
+        PriorityQueue<Map.Entry<K, Counter>> best = new PriorityQueue<>(
+                Comparator.comparingDouble(entry -> entry.getValue().rate));
+        for (Map.Entry<K, Counter> entry : counters.entrySet()) {
+            best.add(entry);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        List<K> keys = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            keys.add(best.poll().getKey());
+        }
+        Collections.reverse(keys);
+        return keys;
+    }
+
+    /**
+     * A count with a smoothed rate.
+     */
+    private static final class Counter {
+        private final LongAdder count = new LongAdder();
+        private long sampledCount;
+        private volatile double rate;
+
+        void sample(double seconds) {
+            long current = count.sum();
+            double instant = (current - sampledCount) / seconds;
+            sampledCount = current;
+            rate = SMOOTHING * instant + (1 - SMOOTHING) * rate;
+        }
+    }
+}
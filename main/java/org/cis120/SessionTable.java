@@ -0,0 +1,143 @@
+package org.cis120;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * A {@code SessionTable} holds the resumable sessions of a
+ * {@link ServerBackend}: which users opened one, the secret token each can
+ * be resumed with, and which are suspended because their connection was
+ * lost. Only touched on the model thread. Not thread-safe.
+ */
+final class SessionTable {
+
+    private static final int TOKEN_BYTES = 16;
+
+    /**
+     * One user's session.
+     */
+    static final class Session {
+        private final int userId;
+        private final String token;
+        private boolean suspended;
+        // Counts suspensions, so that an expiry scheduled for an earlier one
+        // can tell it is stale
+        private int generation;
+
+        private Session(int userId, String token) {
+            this.userId = userId;
+            this.token = token;
+        }
+
+        int getUserId() {
+            return userId;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        /** @return true while the user has no connection */
+        boolean isSuspended() {
+            return suspended;
+        }
+    }
+
+    private final Map<String, Session> byToken = new HashMap<>();
+    private final IntMap<Session> byUser = new IntMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Opens a session for a user, or returns the one already open.
+     *
+     * @param userId The user's ID
+     * @return The user's session
+     */
+    Session open(int userId) {
+        Session session = byUser.get(userId);
+        if (session == null) {
+            byte[] bytes = new byte[TOKEN_BYTES];
+            random.nextBytes(bytes);
+            session = new Session(userId, HexFormat.of().formatHex(bytes));
+            byToken.put(session.token, session);
+            byUser.put(userId, session);
+        }
+        return session;
+    }
+
+    /**
+     * @param token A resume token
+     * @return the session with that token, or null if there is none
+     */
+    Session get(String token) {
+        return byToken.get(token);
+    }
+
+    /**
+     * @param userId A user's ID
+     * @return the user's session, or null if the user has not opened one
+     */
+    Session of(int userId) {
+        return byUser.get(userId);
+    }
+
+    /** @return true if no session is open */
+    boolean isEmpty() {
+        return byUser.isEmpty();
+    }
+
+    /** @return the IDs of the users whose sessions are suspended */
+    int[] suspendedUsers() {
+        int[] userIds = new int[byUser.size()];
+        int count = 0;
+        for (int userId : byUser.keys()) {
+            if (byUser.get(userId).suspended) {
+                userIds[count++] = userId;
+            }
+        }
+        return Arrays.copyOf(userIds, count);
+    }
+
+    /**
+     * Marks a session as having lost its connection.
+     *
+     * @param session The session
+     * @return the number of this suspension, for {@link #isStale(Session, int)}
+     */
+    int suspend(Session session) {
+        session.suspended = true;
+        return ++session.generation;
+    }
+
+    /**
+     * Marks a session as connected again.
+     *
+     * @param session The session
+     */
+    void resume(Session session) {
+        session.suspended = false;
+    }
+
+    /**
+     * @param session    A session
+     * @param generation The number returned when it was suspended
+     * @return true if the session has since been resumed or closed
+     */
+    boolean isStale(Session session, int generation) {
+        return !session.suspended || session.generation != generation
+                || byUser.get(session.userId) != session;
+    }
+
+    /**
+     * Closes a session; its token can no longer be used.
+     *
+     * @param session The session
+     */
+    void close(Session session) {
+        byToken.remove(session.token);
+        byUser.remove(session.userId);
+    }
+}
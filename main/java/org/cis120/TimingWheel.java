@@ -0,0 +1,120 @@
+package org.cis120;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A {@code TimingWheel} is a hashed timing wheel: a fixed ring of slots, each
+ * holding the timeouts that fall due when the wheel's hand reaches it. Adding
+ * a timeout and expiring a slot are both constant time per timeout, however
+ * many timeouts are pending, which is what lets one thread track the idle
+ * deadlines of every connection without a timer per connection.
+ * <p>
+ * Timeouts further away than one turn of the wheel are placed in the slot
+ * they will eventually fall in. Each time the hand reaches a slot, the
+ * deadline of every timeout in it is checked again, and those not yet due
+ * stay for a later turn.
+ * <p>
+ * {@link #schedule(Object, long, long)} may be called from any thread; new
+ * timeouts are handed over through a lock-free queue and placed in their
+ * slots by {@link #advance(long, Consumer)}, which must only be called from a
+ * single thread.
+ *
+ * @param <T> The type of item whose timeouts are tracked
+ */
+final class TimingWheel<T> {
+
+    private final long tickNanos;
+    private final int mask;
+    private final Node<T>[] slots;
+    private final Queue<Node<T>> pending;
+    private final long startNanos;
+
+    // The number of ticks already processed; only touched by advance()
+    private long tick;
+
+    /**
+     * Constructs an empty {@code TimingWheel}.
+     *
+     * @param tickNanos  The duration of one slot, in nanoseconds
+     * @param slotCount  The number of slots, rounded up to a power of two
+     * @param startNanos The current time from {@link System#nanoTime()}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(long tickNanos, int slotCount, long startNanos) {
+        if (tickNanos <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("Invalid tick or slot count");
+        }
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.mask = size - 1;
+        this.slots = (Node<T>[]) new Node[size];
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Schedules an item to expire once {@code delayNanos} have passed. The
+     * item expires on the first tick at or after its deadline.
+     *
+     * @param item       The item to expire
+     * @param delayNanos The delay from {@code now}, in nanoseconds
+     * @param now        The current time from {@link System#nanoTime()}
+     */
+    void schedule(T item, long delayNanos, long now) {
+        long deadline = now - startNanos + Math.max(0, delayNanos);
+        pending.add(new Node<>(item, (deadline + tickNanos - 1) / tickNanos));
+    }
+
+    /**
+     * Moves the wheel's hand up to the given time, passing every item whose
+     * deadline has been reached to {@code expired}. An expired item may be
+     * scheduled again from within {@code expired}.
+     *
+     * @param now     The current time from {@link System#nanoTime()}
+     * @param expired The action to take for each expired item
+     */
+    void advance(long now, Consumer<T> expired) {
+        long target = (now - startNanos) / tickNanos;
+        while (tick <= target) {
+            placePending();
+            int index = (int) (tick & mask);
+            Node<T> node = slots[index];
+            slots[index] = null;
+            while (node != null) {
+                Node<T> next = node.next;
+                if (node.deadlineTick <= tick) {
+                    expired.accept(node.item);
+                } else {
+                    node.next = slots[index];
+                    slots[index] = node;
+                }
+                node = next;
+            }
+            tick++;
+        }
+    }
+
+    private void placePending() {
+        Node<T> node;
+        while ((node = pending.poll()) != null) {
+            // Anything already due goes in the current slot
+            long due = Math.max(node.deadlineTick, tick);
+            int index = (int) (due & mask);
+            node.next = slots[index];
+            slots[index] = node;
+        }
+    }
+
+    private static final class Node<T> {
+        private final T item;
+        private final long deadlineTick;
+        private Node<T> next;
+
+        Node(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
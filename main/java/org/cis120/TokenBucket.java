@@ -0,0 +1,69 @@
+package org.cis120;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code TokenBucket} allows short bursts of up to {@code capacity} events
+ * and a sustained rate of {@code perSecond} events per second.
+ * <p>
+ * Instead of a token count and a refill timer, the bucket stores a single
+ * "theoretical arrival time": the time at which the bucket would be full
+ * again. Each event pushes that time forward by one refill interval, and an
+ * event is refused if doing so would put it more than a full bucket ahead of
+ * now. This keeps a check to a few arithmetic operations and one
+ * compare-and-set, so one bucket can be shared between threads without
+ * locking.
+ */
+final class TokenBucket {
+
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong fullAt;
+
+    /**
+     * Constructs a full {@code TokenBucket}.
+     *
+     * @param capacity  The largest burst allowed, at least 1
+     * @param perSecond The sustained number of events allowed per second
+     * @throws IllegalArgumentException if either argument is not positive
+     */
+    TokenBucket(int capacity, double perSecond) {
+        if (capacity < 1 || perSecond <= 0) {
+            throw new IllegalArgumentException("Invalid bucket size or rate");
+        }
+        interval = Math.max(1, (long) (1_000_000_000L / perSecond));
+        tolerance = interval * (capacity - 1);
+        fullAt = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @param now The current time from {@link System#nanoTime()}
+     * @return true if a token was taken, false if the bucket is empty
+     */
+    boolean tryAcquire(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long base = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+            if (base - now > tolerance) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, base + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the bucket has refilled completely, meaning it holds
+     * no information worth keeping.
+     *
+     * @param now The current time from {@link System#nanoTime()}
+     * @return true if the bucket is full
+     */
+    boolean isFull(long now) {
+        long current = fullAt.get();
+        return current == Long.MIN_VALUE || current - now <= 0;
+    }
+}
@@ -0,0 +1,97 @@
+package org.cis120;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@code WireCodec} converts between the text form of commands and
+ * responses, as understood by {@link CommandParser} and produced by
+ * {@link Broadcast}, and the bytes sent over a client connection.
+ * <p>
+ * Every connection starts out using {@link TextCodec}. A client may switch
+ * its connection to another codec by sending a {@code PROTO} line; see
+ * {@link ClientConnection}.
+ * <p>
+ * Decoding is only ever done by the connection's reader thread, and
+ * encoding only while holding the connection's write lock, so a codec may
+ * keep per-direction state without further synchronization.
+ */
+interface WireCodec {
+
+    /**
+     * Reads the next line sent by the peer.
+     *
+     * @param in The stream to read from
+     * @return The line in text form, without a line terminator, or null at
+     * the end of the stream
+     * @throws IOException if reading fails or the input is malformed
+     */
+    String decode(InputStream in) throws IOException;
+
+    /**
+     * Writes a line to the peer. Does not flush.
+     *
+     * @param line The line in text form, without a line terminator
+     * @param out  The stream to write to
+     * @throws IOException if writing fails
+     */
+    void encode(String line, OutputStream out) throws IOException;
+
+    /**
+     * Returns whether {@link #encode(String, OutputStream)} produces the same
+     * bytes for a line regardless of what was encoded before. The encoded
+     * bytes of such codecs can be shared between connections.
+     *
+     * @return true if encoding is a pure function of the line
+     */
+    boolean isStateless();
+
+    /**
+     * @return the name of the codec, as used in a {@code PROTO} line
+     */
+    String getName();
+}
+
+/**
+ * The default, newline-delimited text protocol.
+ */
+final class TextCodec implements WireCodec {
+
+    static final String NAME = "TEXT";
+
+    private static final byte[] LINE_SEPARATOR =
+            System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public String decode(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    @Override
+    public void encode(String line, OutputStream out) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write(LINE_SEPARATOR);
+    }
+
+    @Override
+    public boolean isStateless() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
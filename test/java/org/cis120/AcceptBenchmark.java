@@ -0,0 +1,93 @@
+package org.cis120;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many connections per second a server accepts on loopback
+ * during a connection storm, with one, two and four acceptor threads. Each
+ * client thread connects, waits for its {@code CONNECT} line, and hangs up
+ * with a reset, so that no port is left in TIME_WAIT.
+ * <p>
+ * This is not a unit test. Run it with {@code main} after compiling the
+ * test sources, for example:
+ * {@code java -cp <classes> org.cis120.AcceptBenchmark [seconds] [clients]}
+ */
+public final class AcceptBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        PrintStream console = System.out;
+        // The backend logs every response; keep it off the report
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        console.printf("%d client threads, %d s per run, %d processors%n",
+                clients, seconds, Runtime.getRuntime().availableProcessors());
+        console.printf("%-10s %14s %12s%n", "acceptors", "connections/s", "refused");
+        for (int acceptors : new int[] {1, 2, 4}) {
+            // Warm up, then measure
+            run(console, acceptors, clients, 1, false);
+            run(console, acceptors, clients, seconds, true);
+        }
+        System.setOut(console);
+    }
+
+    private static void run(
+            PrintStream console, int acceptors, int clients, int seconds, boolean report
+    ) throws Exception {
+        ServerBackend backend = new ServerBackend(new ServerModel(), ServerConfig.parse(
+                "--port=0", "--acceptors=" + acceptors, "--rateLimit=off",
+                "--backlog=1024"
+        ));
+        Thread acceptor = new Thread(backend, "Connection acceptor");
+        acceptor.start();
+        while (backend.getLocalPort() <= 0 && acceptor.isAlive()) {
+            Thread.sleep(1);
+        }
+        int port = backend.getLocalPort();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong connected = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread client = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                        socket.setSoLinger(true, 0);
+                        BufferedReader in = new BufferedReader(
+                                new InputStreamReader(socket.getInputStream()));
+                        if (in.readLine() != null) {
+                            connected.incrementAndGet();
+                        }
+                    } catch (IOException iox) {
+                        // Counted as a connection that did not complete
+                    }
+                }
+            }, "Client " + i);
+            client.start();
+            threads.add(client);
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        backend.stop();
+        acceptor.join();
+
+        if (report) {
+            console.printf("%-10d %14.0f %12d%n", acceptors, connected.get() / (elapsed / 1e9),
+                    backend.getStats().getConnectionsRefused());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class AdminServerTest {
+    private ServerModel model;
+    private ServerBackend backend;
+    private AdminServer admin;
+    private Path dumpDirectory;
+
+    /**
+     * Before each test, we publish a snapshot of a model with three users:
+     * User0 owns "java" with User1 in it, and User2 owns "ocaml" alone.
+     * The backend is never started; the admin server reads only its
+     * statistics and the published snapshot.
+     */
+    @BeforeEach
+    public void setUp() throws IOException {
+        model = new ServerModel();
+        model.registerUser(0);
+        model.registerUser(1);
+        model.registerUser(2);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.joinChannel(new JoinCommand(1, "User1", "java"));
+        model.createChannel(new CreateCommand(2, "User2", "ocaml", false));
+        model.publishSnapshot();
+        backend = new ServerBackend(model);
+        dumpDirectory = Files.createTempDirectory("admin");
+        admin = new AdminServer(backend, 0, dumpDirectory);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        admin.stop();
+        try (var files = Files.list(dumpDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dumpDirectory);
+    }
+
+    @Test
+    public void testStatsCountCommandsAndState() {
+        ServerStats stats = backend.getStats();
+        stats.connectionOpened();
+        stats.commandAccepted(1, "MESG java :hello");
+        stats.commandRejected();
+
+        assertEquals("{\"connections\":0,\"accepted\":1,\"refused\":0,\"queueDepth\":0,"
+                + "\"queueWaitMicros\":{\"priority\":{\"mean\":0,\"max\":0},"
+                + "\"fair\":{\"mean\":0,\"max\":0},\"ordered\":{\"mean\":0,\"max\":0}},"
+                + "\"overloaded\":false,\"users\":3,\"channels\":2,\"commands\":1,"
+                + "\"rejected\":1,\"snapshotVersion\":1}",
+                admin.handle("STATS"), "stats");
+    }
+
+    @Test
+    public void testTopChannelsByMembers() {
+        assertEquals("{\"channels\":[{\"name\":\"java\",\"members\":2,\"rate\":0.00}]}",
+                admin.handle("TOP CHANNELS MEMBERS 1"), "largest channel");
+    }
+
+    @Test
+    public void testTopChannelsAndUsersByRate() {
+        ServerStats stats = backend.getStats();
+        long start = System.nanoTime();
+        stats.sample(model.snapshot(), start);
+        for (int i = 0; i < 4; i++) {
+            stats.commandAccepted(2, "MESG ocaml :hi");
+        }
+        stats.commandAccepted(1, "MESG java :hi");
+        stats.sample(model.snapshot(), start + 1_000_000_000L);
+
+        assertEquals("{\"channels\":[{\"name\":\"ocaml\",\"members\":1,\"rate\":2.00},"
+                + "{\"name\":\"java\",\"members\":2,\"rate\":0.50}]}",
+                admin.handle("top channels rate"), "busiest channels");
+        assertEquals("{\"users\":[{\"id\":2,\"nickname\":\"User2\",\"rate\":2.00}]}",
+                admin.handle("TOP USERS 1"), "busiest user");
+    }
+
+    @Test
+    public void testSamplingForgetsDepartedUsersAndChannels() {
+        ServerStats stats = backend.getStats();
+        stats.commandAccepted(2, "MESG ocaml :hi");
+        model.deregisterUser(2);
+        model.publishSnapshot();
+        admin.sample();
+
+        assertEquals(0, stats.getMessageCount("ocaml"), "channel forgotten");
+        assertEquals("{\"users\":[]}", admin.handle("TOP USERS"), "user forgotten");
+    }
+
+    @Test
+    public void testChannelDetails() {
+        assertEquals("{\"name\":\"java\",\"owner\":\"User0\",\"private\":false,"
+                + "\"messages\":0,\"rate\":0.00,\"members\":[\"User0\",\"User1\"]}",
+                admin.handle("CHANNEL java"), "details");
+        assertEquals("{\"error\":\"No such channel: scala\"}",
+                admin.handle("CHANNEL scala"), "missing channel");
+    }
+
+    @Test
+    public void testAnswersComeFromTheLatestSnapshot() {
+        model.joinChannel(new JoinCommand(2, "User2", "java"));
+        assertTrue(admin.handle("CHANNEL java").endsWith("[\"User0\",\"User1\"]}"),
+                "unpublished change not visible");
+        model.publishSnapshot();
+        assertTrue(admin.handle("CHANNEL java").endsWith("[\"User0\",\"User1\",\"User2\"]}"),
+                "published change visible");
+    }
+
+    @Test
+    public void testInvalidCommands() {
+        assertTrue(admin.handle("REBOOT").startsWith("{\"error\":"), "unknown");
+        assertTrue(admin.handle("TOP").startsWith("{\"error\":"), "missing argument");
+        assertTrue(admin.handle("TOP USERS -1").startsWith("{\"error\":"), "bad count");
+        assertTrue(admin.handle("DUMP ../escape").startsWith("{\"error\":"), "outside");
+    }
+
+    @Test
+    public void testDumpWritesFile() throws IOException {
+        String answer = admin.handle("DUMP stats.jsonl");
+        Path file = dumpDirectory.resolve("stats.jsonl");
+        assertTrue(answer.startsWith("{\"dumped\":"), "dumped: " + answer);
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(4, lines.size(), "stats, two channels and users");
+        assertTrue(lines.get(0).contains("\"stats\":{\"connections\":0"), "stats first");
+        assertTrue(lines.get(1).startsWith("{\"name\":\"java\""), "java");
+        assertTrue(lines.get(2).startsWith("{\"name\":\"ocaml\""), "ocaml");
+    }
+
+    @Test
+    public void testServesOverLoopback() throws IOException {
+        admin.start();
+        try (
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                        admin.getLocalPort());
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(
+                        socket.getOutputStream(), StandardCharsets.UTF_8)
+        ) {
+            out.write("CHANNEL ocaml\nHELP\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("{\"name\":\"ocaml\""), "first answer");
+            assertTrue(in.readLine().startsWith("{\"commands\":"), "second answer");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AdmissionControlTest {
+    private AdmissionControl admission;
+
+    /**
+     * Before each test, the server may queue 100 tasks, wait 50 ms, and
+     * hold 2 users and 1 channel.
+     */
+    @BeforeEach
+    public void setUp() {
+        admission = new AdmissionControl(100, 2, 1, 10, 50);
+    }
+
+    @Test
+    public void testOverloadShedsMessagesAndConnections() {
+        assertTrue(admission.isSampled(), "overload limits set");
+        assertTrue(admission.admitsConnection(1), "under the user limit");
+        assertFalse(admission.admitsConnection(2), "at the user limit");
+        assertTrue(admission.admitsCommand("CREATE java 0", 0), "under the channel limit");
+        assertFalse(admission.admitsCommand("CREATE java 0", 1), "at the channel limit");
+
+        assertTrue(admission.sample(101, 0, 50), "too many queued tasks");
+        assertTrue(admission.isOverloaded(), "overloaded");
+        assertFalse(admission.admitsConnection(0), "connections refused");
+        assertFalse(admission.admitsCommand("MESG java :hi", 0), "messages refused");
+        assertTrue(admission.admitsCommand("LEAVE java", 0), "other commands still admitted");
+    }
+
+    @Test
+    public void testRecoversOnceBackUnderTarget() {
+        assertTrue(admission.sample(0, 60_000, 50), "too slow");
+        assertFalse(admission.sample(0, 60_000, 50), "still too slow");
+        assertFalse(admission.sample(60, 1_000, 50), "queue not yet under half its limit");
+        assertTrue(admission.isOverloaded(), "still overloaded");
+        assertTrue(admission.sample(50, 1_000, 50), "back under target");
+        assertTrue(admission.admitsCommand("MESG java :hi", 0), "messages admitted again");
+
+        assertTrue(admission.sample(0, 0, 5), "heap almost full");
+        assertTrue(admission.sample(0, 0, 20), "heap freed");
+    }
+
+    @Test
+    public void testUnlimitedNeverRefuses() {
+        admission = AdmissionControl.unlimited();
+        assertFalse(admission.isSampled(), "nothing to sample");
+        assertFalse(admission.sample(Integer.MAX_VALUE, Long.MAX_VALUE, 0), "never overloaded");
+        assertTrue(admission.admitsConnection(Integer.MAX_VALUE), "any number of users");
+        assertTrue(admission.admitsCommand("CREATE java 0", Integer.MAX_VALUE), "channels");
+    }
+
+    @Test
+    public void testModelEnforcesTheChannelLimit() {
+        ServerModel model = new ServerModel();
+        model.setMaxChannels(1);
+        model.registerUser(0);
+        CreateCommand second = new CreateCommand(0, "User0", "ocaml", false);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        assertEquals(Broadcast.error(second, ServerResponse.BUSY),
+                second.updateServerModel(model), "however stale the snapshot");
+        new LeaveCommand(0, "User0", "java").updateServerModel(model);
+        assertEquals(List.of(":User0 CREATE ocaml 0"),
+                second.updateServerModel(model).getResponses(model).get(0), "room again");
+    }
+
+    @Test
+    public void testUserLimitHoldsUnderABurst() throws Exception {
+        // Two users the unpublished snapshot does not show yet
+        ServerModel model = new ServerModel();
+        model.registerUser(100);
+        model.registerUser(101);
+        ServerBackend backend = new ServerBackend(model, ServerConfig.parse(
+                "--port=0", "--rateLimit=off", "--maxUsers=3"));
+        new Thread(backend, "Connection acceptor").start();
+        List<TestClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 500 && backend.getLocalPort() <= 0; i++) {
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 5; i++) {
+                clients.add(new TestClient(backend.getLocalPort()));
+            }
+            int connected = 0;
+            for (TestClient client : clients) {
+                if (client.read() != null) {
+                    connected++;
+                }
+            }
+            assertEquals(1, connected, "the rest refused");
+            assertEquals(4, backend.getStats().getConnectionsRefused(), "counted as refused");
+        } finally {
+            for (TestClient client : clients) {
+                client.close();
+            }
+            backend.stop();
+        }
+    }
+
+    @Test
+    public void testChannelLimitAnsweredBusy() throws Exception {
+        ServerBackend backend = new ServerBackend(new ServerModel(), ServerConfig.parse(
+                "--port=0", "--rateLimit=off", "--maxChannels=1",
+                "--targetLatencyMillis=1000"));
+        new Thread(backend, "Connection acceptor").start();
+        try {
+            for (int i = 0; i < 500 && backend.getLocalPort() <= 0; i++) {
+                Thread.sleep(10);
+            }
+            try (TestClient client = new TestClient(backend.getLocalPort())) {
+                assertEquals(":User0 CONNECT", client.read(), "connected");
+                client.send("CREATE java 0");
+                assertEquals(":User0 CREATE java 0", client.read(), "first channel");
+                client.send("CREATE ocaml 0");
+                assertEquals(":User0 ERROR " + ServerResponse.BUSY.getCode(), client.read(),
+                        "over the limit");
+                client.send("MESG java :still here");
+                assertEquals(":User0 MESG java :still here", client.read(), "not overloaded");
+            }
+        } finally {
+            backend.stop();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+public class ClusterTest {
+    private List<Node> nodes;
+    private List<TestClient> clients;
+
+    @BeforeEach
+    public void setUp() {
+        nodes = new ArrayList<>();
+        clients = new ArrayList<>();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (TestClient client : clients) {
+            client.close();
+        }
+        for (Node node : nodes) {
+            node.backend.stop();
+        }
+    }
+
+    // ==========================================================================
+    // HashRing
+    // ==========================================================================
+
+    @Test
+    public void testRingSpreadsKeysEvenly() {
+        HashRing ring = new HashRing(List.of(0, 1, 2, 3));
+        int[] counts = new int[4];
+        for (int i = 0; i < 40_000; i++) {
+            counts[ring.ownerOf("channel" + i)]++;
+        }
+        for (int node = 0; node < 4; node++) {
+            assertTrue(counts[node] > 7_000 && counts[node] < 13_000,
+                    "node " + node + " owns " + counts[node] + " of 40000");
+        }
+    }
+
+    @Test
+    public void testRingMovesOnlyKeysOfChangedNode() {
+        HashRing ring = new HashRing(List.of(0, 1, 2));
+        HashRing grown = ring.with(3);
+        HashRing shrunk = ring.without(1);
+        int moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            String key = "channel" + i;
+            int owner = ring.ownerOf(key);
+            if (grown.ownerOf(key) != owner) {
+                assertEquals(3, grown.ownerOf(key), "keys only move to the new node");
+                moved++;
+            }
+            if (owner != 1) {
+                assertEquals(owner, shrunk.ownerOf(key), "keys of other nodes stay");
+            }
+        }
+        assertTrue(moved > 1_500 && moved < 3_500, "about a quarter moved: " + moved);
+    }
+
+    @Test
+    public void testRingIsDeterministic() {
+        HashRing ring = new HashRing(List.of(2, 0, 1));
+        HashRing same = new HashRing(List.of(0, 1)).with(2);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.ownerOf("c" + i), same.ownerOf("c" + i), "same owner");
+        }
+        assertThrows(IllegalStateException.class,
+                () -> new HashRing(List.of()).ownerOf("c"));
+    }
+
+    @Test
+    public void testChannelOf() {
+        assertEquals("java", ClusterNode.channelOf("MESG java :hello there"));
+        assertEquals("java", ClusterNode.channelOf("JOIN java"));
+        assertEquals("java", ClusterNode.channelOf("SEARCH java :term"));
+        assertNull(ClusterNode.channelOf("NICK java"), "not channel-scoped");
+        assertNull(ClusterNode.channelOf("JOIN"), "no channel");
+    }
+
+    // ==========================================================================
+    // FanoutTree
+    // ==========================================================================
+
+    @Test
+    public void testFanoutTreeOrderStartsAtOrigin() {
+        SortedSet<Integer> nodes = new TreeSet<>(List.of(0, 1, 2, 3, 4));
+        assertEquals(List.of(0, 1, 2, 3, 4), FanoutTree.order(nodes, 0));
+        assertEquals(List.of(3, 4, 0, 1, 2), FanoutTree.order(nodes, 3));
+    }
+
+    @Test
+    public void testFanoutTreeRoutesThroughSubtrees() {
+        // Degree 2 from node 0: 0 -> {1, 2}, 1 -> {3, 4}, 2 -> {5, 6}
+        FanoutTree tree = new FanoutTree(2);
+        SortedSet<Integer> nodes = new TreeSet<>(List.of(0, 1, 2, 3, 4, 5, 6));
+        SortedMap<Integer, List<Integer>> targets = new TreeMap<>();
+        targets.put(0, List.of(64));
+        targets.put(3, List.of(3, 67));
+        targets.put(5, List.of(5));
+        targets.put(6, List.of(6));
+
+        Map<Integer, SortedMap<Integer, List<Integer>>> hops = tree.route(nodes, 0, 0, targets);
+        assertEquals(Set.of(1, 2), hops.keySet(), "one copy per child");
+        assertEquals(Set.of(3), hops.get(1).keySet(), "node 3 is under node 1");
+        assertEquals(Set.of(5, 6), hops.get(2).keySet(), "nodes 5 and 6 are under node 2");
+
+        Map<Integer, SortedMap<Integer, List<Integer>>> next =
+                tree.route(nodes, 0, 2, hops.get(2));
+        assertEquals(Set.of(5, 6), next.keySet(), "node 2 relays to its children");
+    }
+
+    @Test
+    public void testFanoutTreeRoutesUnknownNodeDirectly() {
+        FanoutTree tree = new FanoutTree(2);
+        SortedMap<Integer, List<Integer>> targets = new TreeMap<>();
+        targets.put(9, List.of(9));
+        Map<Integer, SortedMap<Integer, List<Integer>>> hops =
+                tree.route(new TreeSet<>(List.of(0, 1)), 0, 0, targets);
+        assertEquals(Set.of(9), hops.keySet(), "not on this node's ring");
+    }
+
+    @Test
+    public void testFanoutFrameRoundTrip() {
+        SortedMap<Integer, List<Integer>> targets = new TreeMap<>();
+        targets.put(1, List.of(1, 65, 129));
+        targets.put(3, List.of(3));
+        String frame = FanoutTree.encode(2, targets, ":User2 MESG java :a b c");
+        assertEquals("2 1:0,1,2;3:0 :User2 MESG java :a b c", frame, "local ids");
+
+        FanoutTree.Frame decoded = FanoutTree.decode(frame);
+        assertEquals(2, decoded.getOrigin());
+        assertEquals(targets, decoded.getTargets());
+        assertEquals(":User2 MESG java :a b c", decoded.getLine());
+    }
+
+    // ==========================================================================
+    // Multi-node clusters on loopback
+    // ==========================================================================
+
+    @Test
+    public void testCrossNodeChannel() throws Exception {
+        Node node0 = startNode(0);
+        Node node1 = startNode(1, node0);
+        awaitRing(2, node0, node1);
+
+        TestClient alice = connect(node0);
+        TestClient bob = connect(node1);
+        assertEquals(":User0 CONNECT", alice.read(), "node 0 generated nickname");
+        assertEquals(":User1 CONNECT", bob.read(), "node 1 generated nickname");
+
+        // Created through node 0, but owned by node 1
+        String channel = channelOwnedBy(node0.cluster.getRing(), 1);
+        alice.send("CREATE " + channel + " 0");
+        assertEquals(":User0 CREATE " + channel + " 0", alice.read());
+
+        bob.send("JOIN " + channel);
+        assertEquals(":User1 JOIN " + channel, bob.read());
+        assertTrue(bob.read().contains("NAMES " + channel), "names");
+        assertEquals(":User1 JOIN " + channel, alice.read(), "delivered across nodes");
+
+        alice.send("MESG " + channel + " :hello");
+        assertEquals(":User0 MESG " + channel + " :hello", alice.read());
+        assertEquals(":User0 MESG " + channel + " :hello", bob.read());
+    }
+
+    @Test
+    public void testBroadcastReachesEveryNodeThroughTree() throws Exception {
+        Node[] cluster = new Node[5];
+        for (int i = 0; i < cluster.length; i++) {
+            cluster[i] = startNode(i, 2, Arrays.copyOf(cluster, i));
+        }
+        awaitRing(cluster.length, cluster);
+
+        List<TestClient> members = new ArrayList<>();
+        for (Node node : cluster) {
+            for (int i = 0; i < 3; i++) {
+                TestClient client = connect(node);
+                client.read();
+                members.add(client);
+            }
+        }
+
+        String channel = channelOwnedBy(cluster[0].cluster.getRing(), 2);
+        TestClient owner = members.get(0);
+        owner.send("CREATE " + channel + " 0");
+        owner.read();
+        for (TestClient member : members.subList(1, members.size())) {
+            member.send("JOIN " + channel);
+            String join = member.read();
+            assertTrue(join.endsWith(" JOIN " + channel), join);
+            member.read();
+        }
+
+        owner.send("MESG " + channel + " :to everyone");
+        for (TestClient member : members) {
+            // Skip JOIN lines of members who joined later
+            String line = member.read();
+            while (line.contains(" JOIN ")) {
+                line = member.read();
+            }
+            assertEquals(":User0 MESG " + channel + " :to everyone", line);
+        }
+    }
+
+    @Test
+    public void testNicknamesUniqueAcrossNodes() throws Exception {
+        Node node0 = startNode(0);
+        Node node1 = startNode(1, node0);
+        awaitRing(2, node0, node1);
+
+        TestClient alice = connect(node0);
+        TestClient bob = connect(node1);
+        alice.read();
+        bob.read();
+
+        String channel = channelOwnedBy(node0.cluster.getRing(), 0);
+        alice.send("CREATE " + channel + " 0");
+        alice.read();
+        bob.send("JOIN " + channel);
+        bob.read();
+        bob.read();
+        alice.read();
+
+        bob.send("NICK User0");
+        assertEquals(":User1 ERROR 500", bob.read(), "taken on the other node");
+
+        alice.send("NICK Alice");
+        assertEquals(":User0 NICK Alice", alice.read());
+        assertEquals(":User0 NICK Alice", bob.read(), "rename seen across nodes");
+
+        bob.send("NICK Alice");
+        assertEquals(":User1 ERROR 500", bob.read(), "new name taken");
+        bob.send("NICK User0");
+        assertEquals(":User1 NICK User0", bob.read(), "old name released");
+        assertEquals(":User1 NICK User0", alice.read());
+    }
+
+    @Test
+    public void testQuitSeenOnceAcrossNodes() throws Exception {
+        Node node0 = startNode(0);
+        Node node1 = startNode(1, node0);
+        awaitRing(2, node0, node1);
+
+        TestClient alice = connect(node0);
+        TestClient bob = connect(node1);
+        alice.read();
+        bob.read();
+
+        // Bob shares a channel with Alice on each node
+        for (int owner = 0; owner < 2; owner++) {
+            String channel = channelOwnedBy(node0.cluster.getRing(), owner);
+            alice.send("CREATE " + channel + " 0");
+            alice.read();
+            bob.send("JOIN " + channel);
+            bob.read();
+            bob.read();
+            alice.read();
+        }
+
+        alice.close();
+        assertEquals(":User0 QUIT", bob.read());
+        bob.send("PING done");
+        assertEquals("PONG done", bob.read(), "no duplicate quit");
+    }
+
+    @Test
+    public void testRebalanceOnJoinAndLeave() throws Exception {
+        Node node0 = startNode(0);
+        Node node1 = startNode(1, node0);
+        awaitRing(2, node0, node1);
+
+        TestClient alice = connect(node0);
+        TestClient bob = connect(node1);
+        alice.read();
+        bob.read();
+
+        // A channel that will move to node 2 when it joins
+        HashRing before = node0.cluster.getRing();
+        HashRing after = before.with(2);
+        String channel = null;
+        for (int i = 0; channel == null; i++) {
+            if (after.ownerOf("room" + i) == 2) {
+                channel = "room" + i;
+            }
+        }
+        alice.send("CREATE " + channel + " 0");
+        alice.read();
+        bob.send("JOIN " + channel);
+        bob.read();
+        bob.read();
+        alice.read();
+
+        Node node2 = startNode(2, node0, node1);
+        awaitRing(3, node0, node1, node2);
+        awaitChannel(node2, channel);
+
+        alice.send("MESG " + channel + " :moved");
+        assertEquals(":User0 MESG " + channel + " :moved", alice.read());
+        assertEquals(":User0 MESG " + channel + " :moved", bob.read());
+
+        node2.cluster.leave();
+        awaitRing(2, node0, node1);
+        awaitChannel(node0.cluster.getRing().ownerOf(channel) == 0 ? node0 : node1, channel);
+
+        bob.send("MESG " + channel + " :back");
+        assertEquals(":User1 MESG " + channel + " :back", bob.read());
+        assertEquals(":User1 MESG " + channel + " :back", alice.read());
+    }
+
+    // ==========================================================================
+    // Helpers
+    // ==========================================================================
+
+    private static final class Node {
+        private final ServerModel model;
+        private final ServerBackend backend;
+        private final ClusterNode cluster;
+
+        Node(ServerModel model, ServerBackend backend, ClusterNode cluster) {
+            this.model = model;
+            this.backend = backend;
+            this.cluster = cluster;
+        }
+    }
+
+
+    private Node startNode(int number, Node... seeds) throws InterruptedException {
+        return startNode(number, FanoutTree.DEFAULT_DEGREE, seeds);
+    }
+
+    private Node startNode(int number, int degree, Node... seeds)
+            throws InterruptedException {
+        Map<Integer, InetSocketAddress> addresses = new HashMap<>();
+        for (Node seed : seeds) {
+            addresses.put(seed.cluster.getNodeNumber(), new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), seed.cluster.getClusterPort()));
+        }
+        ServerModel model = new ServerModel();
+        ServerBackend backend = new ServerBackend(
+                model, RateLimiter.unlimited(), HeartbeatMonitor.defaults(), 0);
+        ClusterNode cluster = new ClusterNode(number, 0, addresses, degree);
+        backend.joinCluster(cluster);
+        new Thread(backend, "Connection acceptor " + number).start();
+        for (int i = 0; i < 500; i++) {
+            if (backend.getLocalPort() > 0 && cluster.getClusterPort() > 0) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Node node = new Node(model, backend, cluster);
+        nodes.add(node);
+        return node;
+    }
+
+    private TestClient connect(Node node) throws IOException {
+        TestClient client = new TestClient(node.backend.getLocalPort());
+        clients.add(client);
+        return client;
+    }
+
+    private static void awaitRing(int size, Node... nodes) throws InterruptedException {
+        for (Node node : nodes) {
+            for (int i = 0; i < 500 && node.cluster.getRing().getNodes().size() != size; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(size, node.cluster.getRing().getNodes().size(), "ring converged");
+        }
+    }
+
+    private static void awaitChannel(Node node, String channel) throws InterruptedException {
+        // The model is only safe to read on the model thread
+        for (int i = 0; i < 500; i++) {
+            boolean[] adopted = new boolean[1];
+            Object done = new Object();
+            synchronized (done) {
+                node.backend.submit(() -> {
+                    synchronized (done) {
+                        adopted[0] = node.model.getChannels().contains(channel);
+                        done.notify();
+                    }
+                    return null;
+                });
+                done.wait(1000);
+            }
+            if (adopted[0]) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("channel " + channel + " never adopted");
+    }
+
+    private static String channelOwnedBy(HashRing ring, int node) {
+        for (int i = 0; ; i++) {
+            if (ring.ownerOf("chan" + i) == node) {
+                return "chan" + i;
+            }
+        }
+    }
+}
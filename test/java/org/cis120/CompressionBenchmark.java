@@ -0,0 +1,148 @@
+package org.cis120;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Reports the CPU versus bandwidth tradeoff of compressed transports when
+ * every line is relayed to a channel of {@code fanout} subscribers.
+ * <p>
+ * Four strategies are compared, all measured as CPU time and bytes per
+ * line per subscriber:
+ * <ul>
+ * <li>text: the uncompressed protocol</li>
+ * <li>deflate: {@link DeflateCodec}, compressing separately for every
+ * subscriber</li>
+ * <li>deflate shared: {@link DeflateCodec} with the encoded bytes shared
+ * between subscribers, as the backend does</li>
+ * <li>stream: one long-lived deflate stream per subscriber with a sync flush
+ * after every line, the usual alternative</li>
+ * </ul>
+ * This is not a unit test. Run it with {@code main} after compiling the
+ * test sources.
+ */
+public final class CompressionBenchmark {
+
+    private static final OutputStream NULL_OUT = OutputStream.nullOutputStream();
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        List<String> lines = WireCodecBenchmark.sampleTraffic(count, new Random(120));
+        int[] fanouts = {1, 10, 100, 1000};
+
+        System.out.printf("%7s %-15s %14s %12s%n", "fanout", "strategy", "ns/line/sub", "bytes/line");
+        for (int fanout : fanouts) {
+            List<String> sample = lines.subList(0, Math.max(100, count / fanout));
+            report(fanout, "text", sample, () -> perSubscriber(sample, fanout, TextCodec::new));
+            report(fanout, "deflate", sample, () -> perSubscriber(sample, fanout, DeflateCodec::new));
+            report(fanout, "deflate shared", sample, () -> shared(sample, fanout));
+            report(fanout, "stream", sample, () -> streaming(sample, fanout));
+        }
+    }
+
+    private interface Run {
+        long bytes() throws IOException;
+    }
+
+    private static void report(int fanout, String name, List<String> lines, Run run)
+            throws IOException {
+        run.bytes();
+        long start = System.nanoTime();
+        long bytes = run.bytes();
+        long nanos = System.nanoTime() - start;
+        double sends = (double) lines.size() * fanout;
+        System.out.printf("%7d %-15s %14.1f %12.1f%n",
+                fanout, name, nanos / sends, bytes / sends);
+    }
+
+    /**
+     * Encodes every line once per subscriber, each with its own codec.
+     */
+    private static long perSubscriber(
+            List<String> lines, int fanout, java.util.function.Supplier<WireCodec> codecs
+    ) throws IOException {
+        WireCodec[] subscribers = new WireCodec[fanout];
+        for (int i = 0; i < fanout; i++) {
+            subscribers[i] = codecs.get();
+        }
+        CountingStream out = new CountingStream();
+        for (String line : lines) {
+            for (WireCodec codec : subscribers) {
+                codec.encode(line, out);
+            }
+        }
+        return out.count;
+    }
+
+    /**
+     * Encodes every line once and writes the same bytes to every subscriber.
+     */
+    private static long shared(List<String> lines, int fanout) throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        CountingStream out = new CountingStream();
+        for (String line : lines) {
+            Map<String, byte[]> encoded = new HashMap<>();
+            for (int i = 0; i < fanout; i++) {
+                byte[] bytes = encoded.get(line);
+                if (bytes == null) {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    codec.encode(line, buffer);
+                    bytes = buffer.toByteArray();
+                    encoded.put(line, bytes);
+                }
+                out.write(bytes);
+            }
+        }
+        return out.count;
+    }
+
+    /**
+     * Compresses every line into a per-subscriber deflate stream, flushing
+     * at each line boundary.
+     */
+    private static long streaming(List<String> lines, int fanout) throws IOException {
+        CountingStream out = new CountingStream();
+        DeflaterOutputStream[] subscribers = new DeflaterOutputStream[fanout];
+        Deflater[] deflaters = new Deflater[fanout];
+        for (int i = 0; i < fanout; i++) {
+            deflaters[i] = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            subscribers[i] = new DeflaterOutputStream(out, deflaters[i], 4096, true);
+        }
+        for (String line : lines) {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            for (DeflaterOutputStream stream : subscribers) {
+                stream.write(bytes);
+                stream.flush();
+            }
+        }
+        for (Deflater deflater : deflaters) {
+            deflater.end();
+        }
+        return out.count;
+    }
+
+    private static final class CountingStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private CompressionBenchmark() {
+    }
+}
@@ -0,0 +1,169 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventStreamTest {
+    private ServerModel model;
+    private MemoryEventPublisher broker;
+    private EventStream stream;
+
+    /**
+     * Before each test, we attach a started stream publishing to an
+     * in-memory broker to a new model with one user, User0, who owns the
+     * channel "java".
+     */
+    @BeforeEach
+    public void setUp() {
+        model = new ServerModel();
+        broker = new MemoryEventPublisher();
+        stream = new EventStream(broker, 1024, 64, 5);
+        stream.start();
+        model.registerUser(0);
+        model.publishEventsTo(stream);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        stream.close(1000);
+    }
+
+    private static List<String> describe(List<ChatEvent> events) {
+        List<String> descriptions = new ArrayList<>();
+        for (ChatEvent event : events) {
+            descriptions.add(event.getType() + " " + event.getChannel() + " "
+                    + event.getNickname());
+        }
+        return descriptions;
+    }
+
+    @Test
+    public void testModelEmitsEventsInOrder() throws InterruptedException {
+        model.registerUser(1);
+        model.joinChannel(new JoinCommand(1, "User1", "java"));
+        model.sendMessage(new MessageCommand(1, "User1", "java", "hi there"));
+        model.leaveChannel(new LeaveCommand(1, "User1", "java"));
+        model.deregisterUser(0);
+
+        assertTrue(broker.await(6, 1000), "published");
+        List<ChatEvent> events = broker.getEvents();
+        assertEquals(List.of(
+                "CHANNEL_CREATED java User0",
+                "USER_JOINED java User1",
+                "MESSAGE_RELAYED java User1",
+                "USER_LEFT java User1",
+                "USER_LEFT java User0",
+                "CHANNEL_DESTROYED java User0"
+        ), describe(events));
+        assertEquals("hi there", events.get(2).getMessage(), "message carried");
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(i, events.get(i).getSequence(), "sequence numbers");
+        }
+    }
+
+    @Test
+    public void testFailedCommandsEmitNothing() throws InterruptedException {
+        model.registerUser(1);
+        model.sendMessage(new MessageCommand(1, "User1", "java", "not a member"));
+        model.joinChannel(new JoinCommand(1, "User1", "nowhere"));
+        model.createChannel(new CreateCommand(1, "User1", "java", false));
+
+        assertTrue(broker.await(1, 1000), "published");
+        Thread.sleep(50);
+        assertEquals(1, broker.getEvents().size(), "only the creation");
+    }
+
+    @Test
+    public void testEventsAreBatched() throws InterruptedException {
+        for (int i = 0; i < 199; i++) {
+            model.sendMessage(new MessageCommand(0, "User0", "java", "message " + i));
+        }
+        assertTrue(broker.await(200, 1000), "published");
+        assertTrue(broker.getBatchSizes().size() < 200, "fewer batches than events");
+        for (int size : broker.getBatchSizes()) {
+            assertTrue(size <= 64, "batch within limit");
+        }
+    }
+
+    @Test
+    public void testFullBufferDropsWithoutBlocking() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger publishedEvents = new AtomicInteger();
+        EventStream slow = new EventStream(batch -> {
+            try {
+                release.await();
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+            publishedEvents.addAndGet(batch.size());
+        }, 10, 5, 0);
+        slow.start();
+
+        long start = System.nanoTime();
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (slow.emit(ChatEvent.Type.MESSAGE_RELAYED, "java", "User0", "m" + i)) {
+                accepted++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(500), "emit never blocks");
+        assertTrue(accepted <= 15, "bounded: " + accepted);
+        assertEquals(100 - accepted, slow.getDropped(), "drops counted");
+
+        release.countDown();
+        slow.close(1000);
+        assertEquals(accepted, publishedEvents.get(), "buffered events published on close");
+    }
+
+    @Test
+    public void testFailedBatchIsRetried() throws Exception {
+        MemoryEventPublisher target = new MemoryEventPublisher();
+        AtomicInteger failures = new AtomicInteger(2);
+        EventStream flaky = new EventStream(batch -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("bus unavailable");
+            }
+            target.publish(batch);
+        }, 100, 10, 0);
+        flaky.start();
+        flaky.emit(ChatEvent.Type.CHANNEL_CREATED, "java", "User0", null);
+
+        assertTrue(target.await(1, 2000), "published after retries");
+        assertEquals(0, flaky.getDropped(), "nothing lost");
+        flaky.close(1000);
+    }
+
+    @Test
+    public void testFilePublisherWritesJsonLines() throws Exception {
+        Path file = Files.createTempFile("events", ".jsonl");
+        try {
+            FileEventPublisher publisher = new FileEventPublisher(file);
+            publisher.publish(List.of(
+                    new ChatEvent(0, 5, ChatEvent.Type.MESSAGE_RELAYED, "java", "User0",
+                            "say \"hi\"\n"),
+                    new ChatEvent(1, 6, ChatEvent.Type.USER_LEFT, "java", "User0", null)
+            ));
+            publisher.close();
+
+            assertEquals(List.of(
+                    "{\"seq\":0,\"time\":5,\"type\":\"MESSAGE_RELAYED\",\"channel\":\"java\","
+                            + "\"user\":\"User0\",\"message\":\"say \\\"hi\\\"\\u000a\"}",
+                    "{\"seq\":1,\"time\":6,\"type\":\"USER_LEFT\",\"channel\":\"java\","
+                            + "\"user\":\"User0\"}"
+            ), Files.readAllLines(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class FairQueueTest {
+    private FairQueue<String> queue;
+
+    /**
+     * Before each test, the queue allows each flow a cost of 10 per turn.
+     */
+    @BeforeEach
+    public void setUp() {
+        queue = new FairQueue<>(10);
+    }
+
+    private List<String> drain() {
+        List<String> items = new ArrayList<>();
+        for (String item = queue.poll(); item != null; item = queue.poll()) {
+            items.add(item);
+        }
+        return items;
+    }
+
+    @Test
+    public void testFloodingFlowTakesTurns() {
+        for (int i = 0; i < 6; i++) {
+            queue.add("flood" + i, 1, 5);
+        }
+        queue.add("quiet0", 2, 5);
+        queue.add("quiet1", 2, 5);
+        assertEquals(List.of("flood0", "flood1", "quiet0", "quiet1", "flood2", "flood3",
+                "flood4", "flood5"), drain(), "two items per turn each");
+    }
+
+    @Test
+    public void testDeficitCarriesOverForCostlyItems() {
+        queue.add("big", 1, 15);
+        queue.add("small0", 2, 4);
+        queue.add("small1", 2, 4);
+        queue.add("small2", 2, 4);
+        assertEquals(List.of("small0", "small1", "big", "small2"), drain(),
+                "the big item waits for a second turn's worth");
+        assertTrue(queue.isEmpty(), "empty");
+    }
+
+    @Test
+    public void testUrgentItemsNeverOvertakeTheirOwnFlow() {
+        queue.add("command", 1, 1);
+        queue.add("other", 2, 1);
+        queue.addUrgent("registration");
+        queue.addUrgent("quit1", 1);
+        queue.addUrgent("quit3", 3);
+        assertEquals(List.of("registration", "quit3", "command", "quit1", "other"), drain(),
+                "quit1 stays behind its flow's command, in the same turn");
+    }
+
+    @Test
+    public void testBarrierKeepsArrivalOrder() {
+        queue.add("before", 1, 1);
+        queue.addBarrier("barrier");
+        queue.addUrgent("after0");
+        queue.add("after1", 1, 1);
+        assertEquals("before", queue.peek(), "earlier items first");
+        assertEquals("before", queue.poll(), "peeked item polled");
+        assertEquals(List.of("barrier", "after0", "after1"), drain(), "then in order");
+    }
+
+    @Test
+    public void testClearAndWaitStatistics() throws InterruptedException {
+        queue.addUrgent("urgent");
+        queue.add("command", 1, 1);
+        Thread.sleep(5);
+        assertEquals("urgent", queue.take(), "priority first");
+        assertEquals(1, queue.getServed(FairQueue.Lane.PRIORITY), "served");
+        assertTrue(queue.getMaxWaitMicros(FairQueue.Lane.PRIORITY) >= 5000, "waited");
+        assertEquals(0, queue.getServed(FairQueue.Lane.FAIR), "nothing served yet");
+        assertEquals(0, queue.getMeanWaitMicros(FairQueue.Lane.FAIR), "no wait yet");
+        assertEquals("command", queue.peek(), "peeked");
+        queue.add("later", 2, 1);
+        assertEquals(List.of("command", "later"), queue.clear(), "cleared, peeked item too");
+        assertNull(queue.peek(), "empty");
+    }
+}
@@ -0,0 +1,142 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class HeadlessMainTest {
+    private Path snapshotFile;
+    private HeadlessMain server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        snapshotFile = Files.createTempFile("snapshot", ".txt");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if (server != null) {
+            server.shutdown();
+        }
+        Files.deleteIfExists(snapshotFile);
+    }
+
+    private void start(String... args) throws Exception {
+        server = new HeadlessMain(ServerConfig.parse(args));
+        server.start();
+    }
+
+    private Socket connect(int port) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(5000);
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    private static PrintWriter writer(Socket socket) throws IOException {
+        return new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    @Test
+    public void testStartsConfiguredServer() throws Exception {
+        start("--port=0", "--adminPort=0", "--rateLimit=off",
+                "--snapshotFile=" + snapshotFile);
+        assertTrue(server.getLocalPort() > 0, "client port bound on return");
+        assertTrue(server.getAdminPort() > 0, "admin port bound on return");
+
+        Socket client = connect(server.getLocalPort());
+        assertEquals(":User0 CONNECT", reader(client).readLine(), "connected");
+        assertTrue(server.getBackend().getStats().getFirstConnectionMillis() > 0,
+                "first connection recorded");
+
+        Socket admin = connect(server.getAdminPort());
+        writer(admin).println("STATS");
+        assertTrue(reader(admin).readLine().startsWith("{\"connections\":1,"), "admin");
+
+        server.shutdown();
+        server = null;
+        assertEquals("USER 0 User0", Files.readAllLines(snapshotFile).get(1),
+                "graceful shutdown wrote the snapshot");
+    }
+
+    @Test
+    public void testConnectionLimit() throws Exception {
+        start("--port=0", "--maxConnections=1");
+        Socket first = connect(server.getLocalPort());
+        assertEquals(":User0 CONNECT", reader(first).readLine(), "within the limit");
+        Socket second = connect(server.getLocalPort());
+        assertNull(reader(second).readLine(), "refused");
+        assertEquals(1, server.getBackend().getStats().getConnectionsRefused(), "counted");
+    }
+
+    @Test
+    public void testQueueLimitLosesNothing() throws Exception {
+        start("--port=0", "--queueLimit=1", "--rateLimit=off");
+        Socket client = connect(server.getLocalPort());
+        BufferedReader in = reader(client);
+        PrintWriter out = writer(client);
+        assertEquals(":User0 CONNECT", in.readLine(), "connected");
+        out.println("CREATE java 0");
+        for (int i = 0; i < 200; i++) {
+            out.println("MESG java :" + i);
+        }
+        assertEquals(":User0 CREATE java 0", in.readLine(), "created");
+        for (int i = 0; i < 200; i++) {
+            assertEquals(":User0 MESG java :" + i, in.readLine(), "in order");
+        }
+    }
+
+    @Test
+    public void testSeveralAcceptorsShareThePort() throws Exception {
+        start("--port=0", "--acceptors=4");
+        int port = server.getLocalPort();
+        Set<String> greetings = new HashSet<>();
+        List<Thread> connectors = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread connector = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 25; i++) {
+                        String greeting = reader(connect(port)).readLine();
+                        synchronized (greetings) {
+                            greetings.add(greeting);
+                        }
+                    }
+                } catch (IOException iox) {
+                    throw new RuntimeException(iox);
+                }
+            });
+            connector.start();
+            connectors.add(connector);
+        }
+        for (Thread connector : connectors) {
+            connector.join(10000);
+        }
+        assertEquals(100, greetings.size(), "every client greeted, each by its own name");
+        for (int i = 0; i < 100; i++) {
+            assertTrue(greetings.contains(":User" + i + " CONNECT"), "smallest free names");
+        }
+        assertEquals(100, server.getBackend().getConnectionCount(), "all still open");
+    }
+}
@@ -0,0 +1,224 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class HeartbeatTest {
+    private ServerSocket listener;
+    private Socket client;
+    private ClientConnection connection;
+
+    /**
+     * Before each test, we connect a client socket to a server socket over
+     * loopback and wrap the server side in a {@link ClientConnection}.
+     */
+    @BeforeEach
+    public void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        connection = new ClientConnection(0, listener.accept());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        client.close();
+        connection.close();
+        listener.close();
+    }
+
+    @Test
+    public void testWheelExpiresInDeadlineOrder() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0);
+        wheel.schedule("late", 250, 0);
+        wheel.schedule("early", 15, 0);
+        wheel.schedule("now", 0, 0);
+        List<String> expired = new ArrayList<>();
+
+        wheel.advance(5, expired::add);
+        assertEquals(List.of("now"), expired, "due immediately");
+        wheel.advance(20, expired::add);
+        assertEquals(List.of("now", "early"), expired, "due at second tick");
+        wheel.advance(240, expired::add);
+        assertEquals(2, expired.size(), "late not due after a full turn");
+        wheel.advance(250, expired::add);
+        assertEquals(List.of("now", "early", "late"), expired, "late due");
+    }
+
+    @Test
+    public void testWheelRescheduleFromCallback() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(10, 4, 0);
+        List<Integer> expired = new ArrayList<>();
+        wheel.schedule(0, 10, 0);
+        for (long now = 0; now <= 100; now += 10) {
+            long at = now;
+            wheel.advance(now, item -> {
+                expired.add(item);
+                wheel.schedule(item + 1, 30, at);
+            });
+        }
+        assertEquals(List.of(0, 1, 2, 3), expired, "rescheduled every 30");
+    }
+
+    @Test
+    public void testWheelManyTimeouts() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(1, 64, 0);
+        int count = 100_000;
+        for (int i = 0; i < count; i++) {
+            wheel.schedule(i, i % 1000, 0);
+        }
+        int[] expired = new int[1];
+        wheel.advance(499, item -> {
+            assertTrue(item % 1000 <= 499, "not expired early");
+            expired[0]++;
+        });
+        assertEquals(count / 2, expired[0], "half expired");
+    }
+
+    @Test
+    public void testActiveConnectionNotPinged() throws IOException {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(100, 50, 10, TimeUnit.MILLISECONDS);
+        HeartbeatMonitor.Watch watch = new HeartbeatMonitor.Watch(connection);
+        monitor.check(watch, connection.getLastActivity() + TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, client.getInputStream().available(), "nothing sent");
+        assertFalse(connection.getSocket().isClosed(), "still open");
+    }
+
+    @Test
+    public void testSilentConnectionPingedThenReaped() throws IOException {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(100, 50, 10, TimeUnit.MILLISECONDS);
+        HeartbeatMonitor.Watch watch = new HeartbeatMonitor.Watch(connection);
+        long start = connection.getLastActivity();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+
+        monitor.check(watch, start + TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(reader.readLine().startsWith("PING "), "pinged");
+        assertFalse(connection.getSocket().isClosed(), "open while waiting for pong");
+
+        monitor.check(watch, start + TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(connection.getSocket().isClosed(), "reaped");
+    }
+
+    @Test
+    public void testPeerThatStopsReadingNeverBlocksTheMonitor() throws Exception {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(100, 50, 10, TimeUnit.MILLISECONDS);
+        HeartbeatMonitor.Watch watch = new HeartbeatMonitor.Watch(connection);
+        long start = connection.getLastActivity();
+        // Fill the socket buffers of a client that never reads
+        Thread filler = new Thread(() -> {
+            try {
+                connection.getSocket().getOutputStream().write(new byte[64 << 20]);
+            } catch (IOException iox) {
+                // Socket closed by the reaping
+            }
+        });
+        filler.start();
+        Thread.sleep(100);
+
+        long before = System.nanoTime();
+        monitor.check(watch, start + TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(System.nanoTime() - before < TimeUnit.MILLISECONDS.toNanos(500),
+                "ping handed off");
+        // The pong timeout runs from when the sender started writing
+        for (int i = 0; i < 500 && !connection.getSocket().isClosed(); i++) {
+            Thread.sleep(10);
+            monitor.check(watch, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        assertTrue(connection.getSocket().isClosed(), "reaped");
+        filler.join(5000);
+        assertFalse(filler.isAlive(), "blocked write freed");
+    }
+
+    @Test
+    public void testSendersDoNotGrowWithConnections() throws Exception {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(100, 50, 10, TimeUnit.MILLISECONDS);
+        List<Socket> peers = new ArrayList<>();
+        List<ClientConnection> connections = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < 40; i++) {
+                peers.add(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                connections.add(new ClientConnection(i + 1, server.accept()));
+            }
+            // Every connection goes idle at once, as after a mass connect
+            long now = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            for (ClientConnection idle : connections) {
+                monitor.check(new HeartbeatMonitor.Watch(idle), now);
+            }
+            for (Socket peer : peers) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(peer.getInputStream()));
+                peer.setSoTimeout(5000);
+                assertTrue(reader.readLine().startsWith("PING "), "pinged");
+            }
+            assertTrue(monitor.getSenderThreads() <= HeartbeatMonitor.SENDERS,
+                    monitor.getSenderThreads() + " sender threads");
+        } finally {
+            for (Socket peer : peers) {
+                peer.close();
+            }
+            for (ClientConnection idle : connections) {
+                idle.close();
+            }
+        }
+    }
+
+    @Test
+    public void testResponsiveConnectionSurvives() throws Exception {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(20, 100, 5, TimeUnit.MILLISECONDS);
+        monitor.watch(connection);
+        monitor.start();
+
+        // Answer every ping, and keep the server side reading like a worker
+        Thread responder = new Thread(() -> {
+            try {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(client.getInputStream()));
+                PrintWriter writer = new PrintWriter(client.getOutputStream(), true);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    writer.println("PONG" + line.substring("PING".length()));
+                }
+            } catch (IOException iox) {
+                // Socket closed by tearDown
+            }
+        });
+        Thread worker = new Thread(() -> {
+            try {
+                while (connection.receive() != null) {
+                    continue;
+                }
+            } catch (IOException iox) {
+                // Socket closed by tearDown
+            }
+        });
+        responder.start();
+        worker.start();
+        Thread.sleep(400);
+        monitor.stop();
+
+        assertFalse(connection.getSocket().isClosed(), "not reaped");
+    }
+
+    @Test
+    public void testUnresponsiveConnectionReaped() throws Exception {
+        HeartbeatMonitor monitor = new HeartbeatMonitor(20, 20, 5, TimeUnit.MILLISECONDS);
+        monitor.watch(connection);
+        monitor.start();
+        for (int i = 0; i < 200 && !connection.getSocket().isClosed(); i++) {
+            Thread.sleep(10);
+        }
+        monitor.stop();
+
+        assertTrue(connection.getSocket().isClosed(), "reaped");
+    }
+}
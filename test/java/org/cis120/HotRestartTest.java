@@ -0,0 +1,183 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class HotRestartTest {
+    private Path directory;
+    private Path socketPath;
+    private ServerBackend oldServer;
+    private ServerBackend newServer;
+    private HotRestart oldRestart;
+    private HotRestart newRestart;
+    private final List<TestClient> clients = new ArrayList<>();
+
+    /**
+     * Before each test, we start the old server with a hot restart socket in
+     * a fresh directory.
+     */
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("restart");
+        socketPath = directory.resolve("chat.sock");
+        oldServer = new ServerBackend(
+                new ServerModel(), RateLimiter.unlimited(), HeartbeatMonitor.defaults(), 0);
+        oldRestart = new HotRestart(oldServer, socketPath);
+        oldRestart.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (TestClient client : clients) {
+            client.close();
+        }
+        oldServer.stop();
+        oldRestart.close();
+        if (newServer != null) {
+            newServer.stop();
+            newRestart.close();
+        }
+        Files.deleteIfExists(socketPath);
+        Files.deleteIfExists(directory);
+    }
+
+    private TestClient connect(ServerBackend server) throws IOException {
+        TestClient client = new TestClient(server.getLocalPort());
+        clients.add(client);
+        return client;
+    }
+
+    private void restart() throws Exception {
+        newServer = new ServerBackend(
+                new ServerModel(), RateLimiter.unlimited(), HeartbeatMonitor.defaults(),
+                oldServer.getLocalPort()
+        );
+        newRestart = new HotRestart(newServer, socketPath);
+        newRestart.start();
+    }
+
+    @Test
+    public void testClientsKeepTheirStateAcrossRestart() throws Exception {
+        TestClient alice = connect(oldServer);
+        assertEquals(":User0 CONNECT", alice.read(), "connected");
+        TestClient bob = connect(oldServer);
+        assertEquals(":User1 CONNECT", bob.read(), "connected");
+        alice.send("CREATE java 0");
+        assertEquals(":User0 CREATE java 0", alice.read(), "created");
+        bob.send("JOIN java");
+        assertEquals(":User1 JOIN java", bob.read(), "joined");
+        assertEquals(":User1 NAMES java :@User0 User1", bob.read(), "names");
+        assertEquals(":User1 JOIN java", alice.read(), "joined");
+        int port = oldServer.getLocalPort();
+
+        restart();
+        assertEquals(port, newServer.getLocalPort(), "same port");
+        assertEquals(2, newServer.getConnectionCount(), "both clients relayed");
+
+        alice.send("MESG java :still here");
+        assertEquals(":User0 MESG java :still here", alice.read(), "own message");
+        assertEquals(":User0 MESG java :still here", bob.read(), "through the new server");
+
+        TestClient carol = connect(newServer);
+        assertEquals(":User2 CONNECT", carol.read(), "no ID or nickname reused");
+        carol.send("JOIN java");
+        assertEquals(":User2 JOIN java", carol.read(), "joined");
+        assertEquals(":User2 NAMES java :@User0 User1 User2", carol.read(), "old members");
+        assertEquals(":User2 JOIN java", alice.read(), "relayed client sees new one");
+        assertEquals(":User2 JOIN java", bob.read(), "relayed client sees new one");
+
+        bob.send("LEAVE java");
+        assertEquals(":User1 LEAVE java", carol.read(), "relayed command");
+        bob.close();
+        alice.close();
+        for (int i = 0; i < 500 && oldServer.isRunning(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(oldServer.isRunning(), "old server stops after its last client");
+        for (int i = 0; i < 500 && newServer.getSnapshot().getRegisteredUsers().size() > 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Set.of("User2"), newServer.getSnapshot().getRegisteredUsers(),
+                "hang-ups reached the new server");
+        assertEquals(1, newServer.getConnectionCount(), "relayed clients gone");
+    }
+
+    @Test
+    public void testRestartWithoutClients() throws Exception {
+        restart();
+        for (int i = 0; i < 500 && oldServer.isRunning(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(oldServer.isRunning(), "nothing to relay");
+        TestClient client = connect(newServer);
+        assertEquals(":User0 CONNECT", client.read(), "new server accepts");
+    }
+
+    @Test
+    public void testRestartsCanChain() throws Exception {
+        TestClient alice = connect(oldServer);
+        assertEquals(":User0 CONNECT", alice.read(), "connected");
+        restart();
+
+        // The second server hands over to a third
+        ServerBackend third = new ServerBackend(
+                new ServerModel(), RateLimiter.unlimited(), HeartbeatMonitor.defaults(),
+                newServer.getLocalPort()
+        );
+        HotRestart thirdRestart = new HotRestart(third, socketPath);
+        try {
+            thirdRestart.start();
+            alice.send("NICK alice");
+            assertEquals(":User0 NICK alice", alice.read(), "relayed twice");
+            assertEquals(Set.of("alice"), third.getSnapshot().getRegisteredUsers(),
+                    "state reached the third server");
+        } finally {
+            third.stop();
+            thirdRestart.close();
+        }
+    }
+
+    @Test
+    public void testSnapshotRestoresModel() throws IOException {
+        ServerModel model = new ServerModel();
+        model.registerUser(0);
+        model.registerUser(3);
+        model.registerUser(7);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(3, "User1", "secret", true).updateServerModel(model);
+        new JoinCommand(7, "User2", "java").updateServerModel(model);
+        new NicknameCommand(7, "User2", "carol").updateServerModel(model);
+        model.publishSnapshot();
+
+        StringWriter out = new StringWriter();
+        model.snapshot().write(out);
+        ModelSnapshot read = ModelSnapshot.read(
+                new BufferedReader(new StringReader(out.toString())));
+        ServerModel restored = new ServerModel();
+        restored.restore(read);
+
+        assertEquals("carol", restored.getNickname(7), "nickname by ID");
+        assertEquals(model.getRegisteredUsers(), restored.getRegisteredUsers(), "users");
+        assertEquals(model.getChannels(), restored.getChannels(), "channels");
+        assertEquals(new TreeSet<>(List.of("User0", "carol")),
+                restored.getUsersInChannel("java"), "members");
+        assertEquals("User1", restored.getOwner("secret"), "owner");
+        restored.registerUser(8);
+        assertEquals("User2", restored.getNickname(8), "free nickname reused");
+        assertEquals(List.of(":User2 ERROR 407"),
+                new JoinCommand(8, "User2", "secret").updateServerModel(restored)
+                        .getResponses(restored).get(8),
+                "still private");
+    }
+}
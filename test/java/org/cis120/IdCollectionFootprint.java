@@ -0,0 +1,134 @@
+package org.cis120;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.*;
+import java.util.function.IntFunction;
+import javax.management.ObjectName;
+
+/**
+ * Compares the heap footprint of the boxed {@code java.util} collections the
+ * server used to key state by user ID with the in-tree {@link IntMap} and
+ * {@link IntSet}, and channel members in a {@link MemberSet}, at 100k users
+ * by default.
+ * <p>
+ * Each structure is measured from two heap class histograms, taken through
+ * the HotSpot diagnostic command MBean while it is reachable and again once
+ * it is dropped. Taking a histogram runs a full collection first, so the
+ * difference is what the structure keeps alive. Nicknames and connections
+ * are allocated up front and shared, so only the structure itself is counted.
+ * <p>
+ * This is not a unit test. Run it with {@code main} after compiling the
+ * test sources, for example:
+ * {@code java -cp <classes> org.cis120.IdCollectionFootprint [users]}
+ */
+public final class IdCollectionFootprint {
+
+    private static final String[] NO_ARGUMENTS = new String[0];
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        String[] nicknames = new String[count];
+        Object[] connections = new Object[count];
+        for (int i = 0; i < count; i++) {
+            nicknames[i] = "User" + i;
+            connections[i] = new Object();
+        }
+
+        System.out.printf("%-40s %12s %12s%n", "structure", "bytes", "bytes/user");
+        report("users: TreeMap<Integer, String>", count, n -> {
+            TreeMap<Integer, String> users = new TreeMap<>();
+            for (int i = 0; i < n; i++) {
+                users.put(i, nicknames[i]);
+            }
+            return users;
+        });
+        report("users: IntMap<String>", count, n -> {
+            IntMap<String> users = new IntMap<>();
+            for (int i = 0; i < n; i++) {
+                users.put(i, nicknames[i]);
+            }
+            return users;
+        });
+        report("sockets: HashMap<Integer, Connection>", count, n -> {
+            Map<Integer, Object> sockets = Collections.synchronizedMap(new HashMap<>());
+            for (int i = 0; i < n; i++) {
+                sockets.put(i, connections[i]);
+            }
+            return sockets;
+        });
+        report("sockets: IntMap<Connection>", count, n -> {
+            IntMap<Object> sockets = new IntMap<>();
+            for (int i = 0; i < n; i++) {
+                sockets.put(i, connections[i]);
+            }
+            return sockets;
+        });
+        report("members: TreeSet<Integer>", count, n -> {
+            TreeSet<Integer> members = new TreeSet<>();
+            for (int i = 0; i < n; i++) {
+                members.add(i);
+            }
+            return members;
+        });
+        report("members: IntSet", count, n -> {
+            IntSet members = new IntSet();
+            for (int i = 0; i < n; i++) {
+                members.add(i);
+            }
+            return members;
+        });
+        report("members: MemberSet", count, n -> {
+            MemberSet members = new MemberSet();
+            for (int i = 0; i < n; i++) {
+                members.add(i);
+            }
+            return members;
+        });
+        // The shared objects must outlive every measurement
+        Reference.reachabilityFence(nicknames);
+        Reference.reachabilityFence(connections);
+    }
+
+    private static void report(String name, int count, IntFunction<Object> build)
+            throws Exception {
+        long bytes = footprint(count, build);
+        System.out.printf("%-40s %12d %12.1f%n", name, bytes, bytes / (double) count);
+    }
+
+    /**
+     * Measures the heap kept alive by a structure.
+     *
+     * @param count The number of elements to build it with
+     * @param build Builds the structure
+     * @return The live bytes freed once the structure is dropped
+     */
+    private static long footprint(int count, IntFunction<Object> build) throws Exception {
+        // Held in an array so that the structure is reachable until cleared,
+        // whatever liveness the JIT computes for locals
+        Object[] holder = {build.apply(count)};
+        long with = liveBytes();
+        holder[0] = null;
+        return with - liveBytes();
+    }
+
+    /**
+     * @return the total size of live objects, from a class histogram
+     */
+    private static long liveBytes() throws Exception {
+        String histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName("com.sun.management:type=DiagnosticCommand"),
+                "gcClassHistogram",
+                new Object[] {NO_ARGUMENTS},
+                new String[] {String[].class.getName()}
+        );
+        for (String line : histogram.split("\n")) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("Total")) {
+                String[] fields = trimmed.split("\\s+");
+                return Long.parseLong(fields[2]);
+            }
+        }
+        throw new IllegalStateException("No total in class histogram");
+    }
+}
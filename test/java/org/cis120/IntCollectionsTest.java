@@ -0,0 +1,184 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+public class IntCollectionsTest {
+    private IntSet set;
+    private IntMap<String> map;
+
+    /**
+     * Before each test, we create an empty set and an empty map.
+     */
+    @BeforeEach
+    public void setUp() {
+        set = new IntSet();
+        map = new IntMap<>();
+    }
+
+    @Test
+    public void testSetAddContainsRemove() {
+        assertTrue(set.add(3), "added");
+        assertFalse(set.add(3), "duplicate");
+        assertTrue(set.add(0), "zero");
+        assertTrue(set.add(-7), "negative");
+        assertEquals(3, set.size(), "size");
+        assertTrue(set.contains(0), "contains zero");
+        assertFalse(set.contains(4), "missing");
+        assertTrue(set.remove(3), "removed");
+        assertFalse(set.remove(3), "already removed");
+        assertEquals("[-7, 0]", set.toString(), "remaining");
+    }
+
+    @Test
+    public void testReservedValue() {
+        assertThrows(IllegalArgumentException.class, () -> set.add(Integer.MIN_VALUE));
+        assertFalse(set.contains(Integer.MIN_VALUE), "never contained");
+        assertThrows(IllegalArgumentException.class, () -> map.put(Integer.MIN_VALUE, "x"));
+        assertNull(map.get(Integer.MIN_VALUE), "never mapped");
+    }
+
+    @Test
+    public void testMapPutGetRemove() {
+        assertNull(map.put(1, "one"), "new key");
+        assertEquals("one", map.put(1, "uno"), "replaced");
+        map.put(65, "sixty-five");
+        assertEquals("uno", map.get(1), "get");
+        assertTrue(map.containsKey(65), "contains");
+        assertEquals("sixty-five", map.remove(65), "removed");
+        assertNull(map.remove(65), "already removed");
+        assertEquals(1, map.size(), "size");
+    }
+
+    @Test
+    public void testMatchesJavaCollectionsUnderRandomChurn() {
+        Random random = new Random(42);
+        Set<Integer> expectedSet = new HashSet<>();
+        Map<Integer, String> expectedMap = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            int key = random.nextInt(2000) - 100;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expectedSet.remove(key), set.remove(key), "set remove " + key);
+                assertEquals(expectedMap.remove(key), map.remove(key), "map remove " + key);
+            } else {
+                assertEquals(expectedSet.add(key), set.add(key), "set add " + key);
+                assertEquals(expectedMap.put(key, "v" + i), map.put(key, "v" + i),
+                        "map put " + key);
+            }
+        }
+        assertEquals(expectedSet.size(), set.size(), "set size");
+        for (int key = -100; key < 1900; key++) {
+            assertEquals(expectedSet.contains(key), set.contains(key), "set contains " + key);
+            assertEquals(expectedMap.get(key), map.get(key), "map get " + key);
+        }
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        int[] expectedKeys = expectedMap.keySet().stream().mapToInt(k -> k).sorted().toArray();
+        assertArrayEquals(expectedKeys, keys, "map keys");
+    }
+
+    @Test
+    public void testForEachVisitsEveryElement() {
+        for (int i = 0; i < 100; i++) {
+            set.add(i * 64);
+            map.put(i * 64, "v" + i);
+        }
+        List<Integer> visited = new ArrayList<>();
+        set.forEach(visited::add);
+        Collections.sort(visited);
+        assertEquals(100, visited.size(), "all visited");
+        assertEquals(64 * 99, (int) visited.get(99), "largest");
+
+        int[] count = new int[1];
+        map.forEach((key, value) -> {
+            assertEquals("v" + key / 64, value, "value of " + key);
+            count[0]++;
+        });
+        assertEquals(100, count[0], "all mappings visited");
+    }
+
+    @Test
+    public void testMemberSetMatchesTreeSetAcrossForms() {
+        MemberSet members = new MemberSet();
+        TreeSet<Integer> expected = new TreeSet<>();
+        Random random = new Random(7);
+        // Grow well past the array limit
+        for (int i = 0; i < 50_000; i++) {
+            int userId = random.nextInt(200_000);
+            if (random.nextInt(4) > 0) {
+                assertEquals(expected.add(userId), members.add(userId), "add " + userId);
+            } else {
+                assertEquals(expected.remove(userId), members.remove(userId),
+                        "remove " + userId);
+            }
+        }
+        assertTrue(members.isBitmap(), "large set as a bitmap");
+        assertEquals(new ArrayList<>(expected), toList(members), "ascending order");
+
+        // Then shrink back below it
+        for (int userId : new ArrayList<>(expected)) {
+            if (random.nextInt(100) > 0) {
+                assertTrue(members.remove(userId), "remove " + userId);
+                expected.remove(userId);
+            }
+        }
+        assertFalse(members.isBitmap(), "small set as an array");
+        assertEquals(expected.size(), members.size(), "size");
+        assertEquals(new ArrayList<>(expected), toList(members), "ascending order");
+        assertFalse(members.contains(-1), "never negative");
+    }
+
+    private static List<Integer> toList(MemberSet members) {
+        List<Integer> visited = new ArrayList<>();
+        members.forEach(visited::add);
+        return visited;
+    }
+
+    @Test
+    public void testBitmapUnion() {
+        IdBitmap union = new IdBitmap();
+        MemberSet small = new MemberSet();
+        MemberSet large = new MemberSet();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 3 * MemberSet.ARRAY_LIMIT; i++) {
+            large.add(i * 3);
+            expected.add(i * 3);
+        }
+        for (int i = 0; i < 100; i++) {
+            small.add(70_000 + i * 2);
+            small.add(i * 2);
+            expected.add(70_000 + i * 2);
+            expected.add(i * 2);
+        }
+        union.add(1);
+        expected.add(1);
+        small.addTo(union);
+        large.addTo(union);
+        large.addTo(union);
+
+        assertTrue(large.isBitmap(), "large channel as a bitmap");
+        assertEquals(expected.size(), union.size(), "size");
+        assertEquals(expected.toString(), union.toString(), "values");
+        assertTrue(union.contains(70_198), "second chunk");
+        assertFalse(union.contains(5), "odd and not a multiple of three");
+        for (int value : expected) {
+            assertTrue(union.remove(value), "remove " + value);
+        }
+        assertTrue(union.isEmpty(), "empty");
+    }
+
+    @Test
+    public void testTableSizeAt100kUsers() {
+        int count = 100_000;
+        for (int i = 0; i < count; i++) {
+            map.put(i, "User" + i);
+        }
+        int capacity = map.capacity();
+        assertEquals(0, capacity & (capacity - 1), "power of two");
+        assertTrue(count * 4 <= capacity * 3, "at most three quarters full");
+        assertTrue(capacity * 3 < count * 8, "grown no further than needed");
+        assertEquals(262_144, capacity, "about 2.6 slots per user");
+    }
+}
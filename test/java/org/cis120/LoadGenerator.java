@@ -0,0 +1,498 @@
+package org.cis120;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Puts load on a server by simulating many clients speaking the text
+ * protocol, and measures how long relayed messages take to arrive.
+ * <p>
+ * Every simulated client has its own connection and reader thread. A small
+ * scheduler pool makes each client send commands at random (Poisson)
+ * intervals, choosing the verb from a configurable mix and its arguments
+ * from what the client has seen: it only sends {@code MESG} and
+ * {@code LEAVE} to channels it is in, and only kicks users from channels it
+ * owns. Each {@code MESG} carries the {@link System#nanoTime()} at which it
+ * was sent, and every client receiving it records the delivery latency, so
+ * the percentiles cover the whole fan-out.
+ * <p>
+ * Options are given as {@code key=value} arguments:
+ * <pre>
+ * clients=1000        simulated clients
+ * channels=50         size of the pool of channel names
+ * rate=1.0            commands per client per second
+ * duration=30         seconds of measured load
+ * warmup=5            seconds of load before measuring starts
+ * mix=MESG:70,JOIN:12,LEAVE:8,CREATE:5,NICK:3,KICK:2
+ * host=localhost      server to drive; without it, an in-process
+ * port=21212          ServerBackend is started on a free loopback port
+ * seed=120            random seed
+ * report=PATH         write the JSON report to a file instead of stdout
+ * </pre>
+ * Long durations make it a soak test; the report includes connection
+ * failures and server errors by code. Latencies are only meaningful when
+ * the server runs on the same machine, as both ends read the same clock.
+ * <p>
+ * This is not a unit test. Run it with {@code main} after compiling the
+ * test sources.
+ */
+public final class LoadGenerator {
+
+    private static final String[] VERBS = {"MESG", "JOIN", "LEAVE", "CREATE", "NICK", "KICK"};
+
+    private final Map<String, String> options;
+    private final int clientCount;
+    private final int channelCount;
+    private final double rate;
+    private final long durationMillis;
+    private final long warmupMillis;
+    private final int[] mix;
+    private final int mixTotal;
+
+    private final Histogram latencies = new Histogram();
+    private final Map<String, AtomicLong> sent = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        clientCount = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        channelCount = Integer.parseInt(options.getOrDefault("channels", "50"));
+        rate = Double.parseDouble(options.getOrDefault("rate", "1.0"));
+        durationMillis = (long) (Double.parseDouble(options.getOrDefault("duration", "30")) * 1000);
+        warmupMillis = (long) (Double.parseDouble(options.getOrDefault("warmup", "5")) * 1000);
+        mix = new int[VERBS.length];
+        int total = 0;
+        String mixSpec = options.getOrDefault("mix", "MESG:70,JOIN:12,LEAVE:8,CREATE:5,NICK:3,KICK:2");
+        for (String entry : mixSpec.split(",")) {
+            String[] parts = entry.split(":");
+            int verb = Arrays.asList(VERBS).indexOf(parts[0]);
+            if (verb < 0) {
+                throw new IllegalArgumentException("Unknown verb in mix: " + parts[0]);
+            }
+            mix[verb] = Integer.parseInt(parts[1]);
+            total += mix[verb];
+        }
+        mixTotal = total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private void run() throws Exception {
+        PrintStream out = System.out;
+        ServerBackend backend = null;
+        String host = options.get("host");
+        int port = Integer.parseInt(options.getOrDefault("port", "21212"));
+        if (host == null) {
+            // The backend logs every line it handles; that would be the
+            // bottleneck, so silence it
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            backend = new ServerBackend(
+                    new ServerModel(), RateLimiter.unlimited(), HeartbeatMonitor.defaults(), 0);
+            new Thread(backend, "Connection acceptor").start();
+            while (backend.getLocalPort() < 0) {
+                Thread.sleep(10);
+            }
+            host = "localhost";
+            port = backend.getLocalPort();
+        }
+
+        Random seeds = new Random(Long.parseLong(options.getOrDefault("seed", "120")));
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            try {
+                Client client = new Client(i, new Socket(), seeds.nextLong());
+                client.socket.connect(new InetSocketAddress(host, port), 5000);
+                client.start();
+                clients.add(client);
+            } catch (IOException iox) {
+                connectFailures.incrementAndGet();
+            }
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        for (Client client : clients) {
+            client.scheduleNext(scheduler);
+        }
+
+        Thread.sleep(warmupMillis);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationMillis);
+        measuring = false;
+        long elapsedNanos = System.nanoTime() - start;
+
+        stopping = true;
+        scheduler.shutdownNow();
+        for (Client client : clients) {
+            client.socket.close();
+        }
+        if (backend != null) {
+            backend.stop();
+        }
+
+        String report = report(clients.size(), elapsedNanos);
+        String path = options.get("report");
+        if (path == null) {
+            out.println(report);
+        } else {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(path))) {
+                writer.write(report);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private String report(int connected, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"options\": {");
+        String separator = "";
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            json.append(separator).append('"').append(option.getKey()).append("\": \"")
+                    .append(option.getValue()).append('"');
+            separator = ", ";
+        }
+        json.append("},\n");
+        json.append("  \"clients\": ").append(connected).append(",\n");
+        json.append("  \"connectFailures\": ").append(connectFailures.get()).append(",\n");
+        json.append("  \"disconnects\": ").append(disconnects.get()).append(",\n");
+        json.append("  \"seconds\": ").append(String.format("%.3f", seconds)).append(",\n");
+        json.append("  \"sent\": ").append(counts(sent)).append(",\n");
+        json.append("  \"errors\": ").append(counts(errors)).append(",\n");
+        json.append("  \"delivered\": ").append(delivered.get()).append(",\n");
+        json.append("  \"deliveredPerSecond\": ")
+                .append(String.format("%.1f", delivered.get() / seconds)).append(",\n");
+        json.append("  \"latencyMicros\": {");
+        double[] percentiles = {50, 90, 99, 99.9};
+        for (double percentile : percentiles) {
+            json.append("\"p").append(String.valueOf(percentile).replace(".0", ""))
+                    .append("\": ").append(latencies.percentile(percentile) / 1000).append(", ");
+        }
+        json.append("\"max\": ").append(latencies.max() / 1000).append("}\n}");
+        return json.toString();
+    }
+
+    private static String counts(Map<String, AtomicLong> counts) {
+        StringBuilder json = new StringBuilder("{");
+        String separator = "";
+        for (Map.Entry<String, AtomicLong> count : new TreeMap<>(counts).entrySet()) {
+            json.append(separator).append('"').append(count.getKey()).append("\": ")
+                    .append(count.getValue().get());
+            separator = ", ";
+        }
+        return json.append('}').toString();
+    }
+
+    private static void count(Map<String, AtomicLong> counts, String key) {
+        counts.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    // ==========================================================================
+    // Simulated client
+    // ==========================================================================
+
+    private final class Client {
+        private final int index;
+        private final Socket socket;
+        private final Random random;
+        private Writer writer;
+
+        // Updated by the reader thread from the server's responses
+        private String nickname;
+        private final Set<String> joined = new HashSet<>();
+        private final Map<String, Set<String>> owned = new HashMap<>();
+        private final Map<String, String> owners = new HashMap<>();
+        private int renames;
+
+        Client(int index, Socket socket, long seed) {
+            this.index = index;
+            this.socket = socket;
+            this.random = new Random(seed);
+        }
+
+        void start() throws IOException {
+            writer = new OutputStreamWriter(
+                    socket.getOutputStream(), StandardCharsets.UTF_8);
+            Thread reader = new Thread(null, this::read, "Load client " + index, 1 << 18);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void scheduleNext(ScheduledExecutorService scheduler) {
+            if (stopping) {
+                return;
+            }
+            double delaySeconds = -Math.log(1 - random.nextDouble()) / rate;
+            try {
+                scheduler.schedule(() -> {
+                    act();
+                    scheduleNext(scheduler);
+                }, (long) (delaySeconds * 1e6), TimeUnit.MICROSECONDS);
+            } catch (RejectedExecutionException rx) {
+                // Shutting down
+            }
+        }
+
+        private void act() {
+            String command = chooseCommand();
+            if (command == null) {
+                return;
+            }
+            send(command);
+            if (measuring) {
+                count(sent, command.substring(0, command.indexOf(' ')));
+            }
+        }
+
+        private synchronized String chooseCommand() {
+            if (nickname == null) {
+                return null;
+            }
+            int pick = random.nextInt(mixTotal);
+            int verb = 0;
+            while (pick >= mix[verb]) {
+                pick -= mix[verb++];
+            }
+            String channel = "load" + random.nextInt(channelCount);
+            switch (VERBS[verb]) {
+                case "MESG":
+                    if (joined.isEmpty()) {
+                        return "JOIN " + channel;
+                    }
+                    return "MESG " + pickFrom(joined) + " :t=" + System.nanoTime()
+                            + " from " + nickname;
+                case "JOIN":
+                    return "JOIN " + channel;
+                case "LEAVE":
+                    return joined.isEmpty() ? null : "LEAVE " + pickFrom(joined);
+                case "CREATE":
+                    return "CREATE " + channel + " 0";
+                case "NICK":
+                    return "NICK L" + index + "r" + renames++;
+                case "KICK":
+                    for (Map.Entry<String, Set<String>> entry : owned.entrySet()) {
+                        if (!entry.getValue().isEmpty()) {
+                            return "KICK " + entry.getKey() + " " + pickFrom(entry.getValue());
+                        }
+                    }
+                    return null;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private String pickFrom(Set<String> names) {
+            int skip = random.nextInt(names.size());
+            Iterator<String> iterator = names.iterator();
+            while (skip-- > 0) {
+                iterator.next();
+            }
+            return iterator.next();
+        }
+
+        private void read() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    handle(line);
+                }
+            } catch (IOException iox) {
+                // Closed
+            }
+            if (!stopping) {
+                disconnects.incrementAndGet();
+            }
+        }
+
+        private void handle(String line) {
+            if (line.startsWith("PING")) {
+                send("PONG" + line.substring(4));
+                return;
+            }
+            String[] parts = line.split(" ", 4);
+            if (parts.length < 2) {
+                return;
+            }
+            String sender = parts[0].substring(1);
+            String verb = parts[1];
+            if (verb.equals("MESG") && parts.length == 4) {
+                int stamp = parts[3].indexOf(":t=");
+                if (stamp >= 0 && measuring) {
+                    int end = parts[3].indexOf(' ', stamp);
+                    long sentAt = Long.parseLong(parts[3].substring(stamp + 3, end));
+                    latencies.record(System.nanoTime() - sentAt);
+                    delivered.incrementAndGet();
+                }
+                return;
+            }
+            synchronized (this) {
+                switch (verb) {
+                    case "CONNECT":
+                        nickname = sender;
+                        break;
+                    case "ERROR":
+                        if (measuring) {
+                            count(errors, parts[2]);
+                        }
+                        break;
+                    case "NICK":
+                        if (sender.equals(nickname)) {
+                            nickname = parts[2];
+                        }
+                        owners.replaceAll((channel, owner) -> owner.equals(sender) ? parts[2] : owner);
+                        for (Set<String> members : owned.values()) {
+                            if (members.remove(sender)) {
+                                members.add(parts[2]);
+                            }
+                        }
+                        break;
+                    case "CREATE":
+                        joined.add(parts[2]);
+                        owned.put(parts[2], new HashSet<>());
+                        owners.put(parts[2], nickname);
+                        break;
+                    case "JOIN":
+                        if (sender.equals(nickname)) {
+                            joined.add(parts[2]);
+                        } else if (owned.containsKey(parts[2])) {
+                            owned.get(parts[2]).add(sender);
+                        }
+                        break;
+                    case "NAMES": {
+                        int at = line.indexOf('@');
+                        int end = line.indexOf(' ', at);
+                        owners.put(parts[2], end < 0 ? line.substring(at + 1)
+                                : line.substring(at + 1, end));
+                        break;
+                    }
+                    case "LEAVE":
+                    case "KICK": {
+                        String channel = parts[2];
+                        String leaving = verb.equals("KICK") ? parts[3] : sender;
+                        // The owner leaving destroys the channel
+                        if (leaving.equals(nickname) || leaving.equals(owners.get(channel))) {
+                            joined.remove(channel);
+                            owned.remove(channel);
+                            owners.remove(channel);
+                        } else if (owned.containsKey(channel)) {
+                            owned.get(channel).remove(leaving);
+                        }
+                        break;
+                    }
+                    case "QUIT":
+                        for (Set<String> members : owned.values()) {
+                            members.remove(sender);
+                        }
+                        for (Map.Entry<String, String> owner : owners.entrySet()) {
+                            if (owner.getValue().equals(sender)) {
+                                joined.remove(owner.getKey());
+                            }
+                        }
+                        owners.values().removeIf(sender::equals);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private void send(String line) {
+            try {
+                synchronized (writer) {
+                    writer.write(line);
+                    writer.write('\n');
+                    writer.flush();
+                }
+            } catch (IOException iox) {
+                // Counted as a disconnect by the reader
+            }
+        }
+    }
+
+    // ==========================================================================
+    // Latency histogram
+    // ==========================================================================
+
+    /**
+     * A lock-free histogram of nanosecond values with about 3% precision:
+     * 16 linear sub-buckets per power of two.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 16;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong maximum = new AtomicLong();
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(bucketOf(v));
+            total.incrementAndGet();
+            maximum.accumulateAndGet(v, Math::max);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+            return (exponent - 3) * SUB_BUCKETS + sub;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 3;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 4);
+        }
+
+        long percentile(double percentile) {
+            long count = total.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length(); bucket++) {
+                seen += counts.get(bucket);
+                if (seen >= rank) {
+                    return lowerBound(bucket);
+                }
+            }
+            return maximum.get();
+        }
+
+        long max() {
+            return maximum.get();
+        }
+    }
+}
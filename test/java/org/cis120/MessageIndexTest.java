@@ -0,0 +1,174 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MessageIndexTest {
+    private static final long NEWEST = Long.MAX_VALUE;
+
+    private long now;
+    private MessageIndex index;
+
+    /**
+     * Before each test, we create an index that indexes synchronously on the
+     * calling thread and reads time from a clock the test controls.
+     */
+    @BeforeEach
+    public void setUp() {
+        now = 0;
+        index = new MessageIndex(Runnable::run, () -> now);
+    }
+
+    private static List<String> messages(MessageIndex.SearchPage page) {
+        List<String> messages = new ArrayList<>();
+        for (MessageIndex.Doc hit : page.getHits()) {
+            messages.add(hit.getMessage());
+        }
+        return messages;
+    }
+
+    @Test
+    public void testTermQueryMatchesWholeWords() {
+        index.index("java", "User0", "hello world");
+        index.index("java", "User1", "Hello there");
+        index.index("java", "User0", "helloworld");
+
+        MessageIndex.SearchPage page = index.search("java", "hello", NEWEST);
+        assertEquals(List.of("Hello there", "hello world"), messages(page), "newest first");
+        assertFalse(page.hasMore(), "single page");
+    }
+
+    @Test
+    public void testPrefixQuery() {
+        index.index("java", "User0", "compile error");
+        index.index("java", "User0", "compiler crashed");
+        index.index("java", "User0", "it works");
+
+        assertEquals(
+                List.of("compiler crashed", "compile error"),
+                messages(index.search("java", "comp*", NEWEST)), "prefix matches"
+        );
+    }
+
+    @Test
+    public void testAllTermsMustMatch() {
+        index.index("java", "User0", "red apple");
+        index.index("java", "User0", "green apple");
+        index.index("java", "User0", "red car");
+
+        assertEquals(
+                List.of("red apple"),
+                messages(index.search("java", "apple RED", NEWEST)), "conjunction"
+        );
+    }
+
+    @Test
+    public void testChannelsAreSeparate() {
+        index.index("java", "User0", "hello");
+        index.index("ocaml", "User0", "hello");
+        index.drop("ocaml");
+
+        assertEquals(1, index.search("java", "hello", NEWEST).getHits().size(), "java hit");
+        assertTrue(index.search("ocaml", "hello", NEWEST).getHits().isEmpty(), "dropped");
+    }
+
+    @Test
+    public void testPagination() {
+        int total = MessageIndex.PAGE_SIZE * 2 + 3;
+        for (int i = 0; i < total; i++) {
+            index.index("java", "User0", "ping " + i);
+        }
+        MessageIndex.SearchPage first = index.search("java", "ping", NEWEST);
+        MessageIndex.SearchPage second = index.search("java", "ping", first.getCursor());
+        MessageIndex.SearchPage last = index.search("java", "ping", second.getCursor());
+
+        assertEquals(MessageIndex.PAGE_SIZE, first.getHits().size(), "full first page");
+        assertTrue(first.hasMore(), "more after first page");
+        assertEquals("ping " + (total - 1), first.getHits().get(0).getMessage(), "newest");
+        assertEquals(first.getHits().get(MessageIndex.PAGE_SIZE - 1).getSeq(), first.getCursor(),
+                "cursor at the oldest hit");
+        assertEquals(3, last.getHits().size(), "partial last page");
+        assertFalse(last.hasMore(), "no more after last page");
+        assertEquals(-1, last.getCursor(), "no cursor after last page");
+        assertEquals("ping 0", last.getHits().get(2).getMessage(), "oldest");
+    }
+
+    @Test
+    public void testNewMessagesDoNotShiftLaterPages() {
+        for (int i = 0; i < MessageIndex.PAGE_SIZE * 2; i++) {
+            index.index("java", "User0", "ping " + i);
+        }
+        MessageIndex.SearchPage first = index.search("java", "ping", NEWEST);
+        for (int i = 0; i < 5; i++) {
+            index.index("java", "User0", "ping late " + i);
+        }
+        MessageIndex.SearchPage second = index.search("java", "ping", first.getCursor());
+
+        assertEquals("ping " + (MessageIndex.PAGE_SIZE - 1), second.getHits().get(0).getMessage(),
+                "continues right after the first page");
+        assertEquals(MessageIndex.PAGE_SIZE, second.getHits().size(), "full second page");
+        assertFalse(second.hasMore(), "nothing repeated or skipped");
+    }
+
+    @Test
+    public void testOldestSegmentsEvicted() {
+        index = new MessageIndex(Runnable::run, () -> now, MessageIndex.SEGMENT_MAX_DOCS * 2);
+        int total = MessageIndex.SEGMENT_MAX_DOCS * 5;
+        for (int i = 0; i < total; i++) {
+            index.index("java", "User0", "msg" + i + " all");
+        }
+
+        assertTrue(index.search("java", "msg0", NEWEST).getHits().isEmpty(), "oldest dropped");
+        assertEquals(List.of("msg" + (total - 1) + " all"),
+                messages(index.search("java", "msg" + (total - 1), NEWEST)), "newest kept");
+        int kept = 0;
+        for (long cursor = NEWEST; cursor >= 0; ) {
+            MessageIndex.SearchPage page = index.search("java", "all", cursor);
+            kept += page.getHits().size();
+            cursor = page.getCursor();
+        }
+        assertTrue(kept <= MessageIndex.SEGMENT_MAX_DOCS * 2, "at most the limit: " + kept);
+        assertTrue(kept >= MessageIndex.SEGMENT_MAX_DOCS, "whole segments dropped: " + kept);
+    }
+
+    @Test
+    public void testSegmentsSealedAndMergedKeepAllHits() {
+        int total = MessageIndex.SEGMENT_MAX_DOCS * MessageIndex.MERGE_FACTOR * 2 + 1;
+        for (int i = 0; i < total; i++) {
+            if (i % 100 == 0) {
+                now += MessageIndex.SEGMENT_SPAN_MILLIS;
+            }
+            index.index("java", "User0", "msg" + i + (i % 7 == 0 ? " seven" : ""));
+        }
+
+        int hits = 0;
+        long previousSeq = Long.MAX_VALUE;
+        for (long cursor = NEWEST; ; ) {
+            MessageIndex.SearchPage results = index.search("java", "seven", cursor);
+            cursor = results.getCursor();
+            for (MessageIndex.Doc hit : results.getHits()) {
+                assertTrue(hit.getSeq() < previousSeq, "strictly newest first");
+                previousSeq = hit.getSeq();
+                hits++;
+            }
+            if (!results.hasMore()) {
+                break;
+            }
+        }
+        assertEquals((total + 6) / 7, hits, "every multiple of seven found");
+        assertEquals(
+                List.of("msg1234"), messages(index.search("java", "msg1234", NEWEST)),
+                "exact term after merges"
+        );
+    }
+
+    @Test
+    public void testEmptyQueryHasNoHits() {
+        index.index("java", "User0", "hello");
+        assertTrue(index.search("java", "  ", NEWEST).getHits().isEmpty(), "no terms");
+        assertTrue(index.search("java", null, NEWEST).getHits().isEmpty(), "no query");
+    }
+}
@@ -0,0 +1,130 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+public class NamesTest {
+    private ServerModel model;
+
+    /**
+     * Before each test, User0 owns "java", joined by User1 to User4, and
+     * NAMES lines hold two nicknames.
+     */
+    @BeforeEach
+    public void setUp() {
+        model = new ServerModel();
+        model.setNamesPageSize(2);
+        for (int userId = 0; userId < 8; userId++) {
+            model.registerUser(userId);
+        }
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        for (int userId = 1; userId < 5; userId++) {
+            new JoinCommand(userId, "User" + userId, "java").updateServerModel(model);
+        }
+    }
+
+    private List<String> responsesTo(int userId, Command command) {
+        return command.updateServerModel(model).getResponses(model).get(userId);
+    }
+
+    /**
+     * @return the version in an {@code ENDNAMES} or {@code ROSTER} line
+     */
+    private static long versionIn(String line) {
+        return Long.parseLong(line.split(" ")[3]);
+    }
+
+    @Test
+    public void testJoiningALargeChannelSendsTheFirstPage() {
+        List<String> lines = responsesTo(5, CommandParser.parse(5, "User5", "JOIN java"));
+        assertEquals(3, lines.size(), "JOIN, NAMES, ENDNAMES");
+        assertEquals(":User5 JOIN java", lines.get(0), "relayed");
+        assertEquals(":User5 NAMES java :@User0 User1", lines.get(1), "first page");
+        assertTrue(lines.get(2).matches(":User5 ENDNAMES java \\d+ User1"), lines.get(2));
+    }
+
+    @Test
+    public void testPagesFollowTheCursor() {
+        List<String> first = responsesTo(1, CommandParser.parse(1, "User1", "NAMES java"));
+        assertEquals(":User1 NAMES java :@User0 User1", first.get(0), "first page");
+        List<String> second = responsesTo(1, CommandParser.parse(1, "User1", "NAMES java User1"));
+        assertEquals(":User1 NAMES java :User2 User3", second.get(0), "second page");
+        List<String> last = responsesTo(1, CommandParser.parse(1, "User1", "NAMES java User3"));
+        assertEquals(":User1 NAMES java :User4", last.get(0), "last page");
+        assertTrue(last.get(1).endsWith(" -1"), "no more pages");
+        assertEquals(versionIn(first.get(1)), versionIn(last.get(1)), "nothing changed");
+        assertEquals(List.of(":User5 ERROR " + ServerResponse.USER_NOT_IN_CHANNEL.getCode()),
+                responsesTo(5, CommandParser.parse(5, "User5", "NAMES java")), "members only");
+    }
+
+    @Test
+    public void testNamesFromSnapshot() {
+        model.publishSnapshot();
+        ReadOnlyCommand first = (ReadOnlyCommand) CommandParser.parse(1, "User1", "NAMES java");
+        assertTrue(CommandParser.isReadOnly("NAMES java"), "listing only reads");
+        List<String> live = responsesTo(1, first);
+        assertEquals(live, first.readServerModel(model, model.snapshot()).getResponses("User1"),
+                "same as on the model thread, roster version included");
+        ReadOnlyCommand second =
+                (ReadOnlyCommand) CommandParser.parse(1, "User1", "NAMES java User1");
+        assertEquals(responsesTo(1, second),
+                second.readServerModel(model, model.snapshot()).getResponses("User1"),
+                "same second page");
+
+        new JoinCommand(5, "User5", "java").updateServerModel(model);
+        ReadOnlyCommand outsider = (ReadOnlyCommand) CommandParser.parse(5, "User5", "NAMES java");
+        assertEquals(Broadcast.error(outsider, ServerResponse.USER_NOT_IN_CHANNEL),
+                outsider.readServerModel(model, model.snapshot()),
+                "the snapshot does not reflect the join yet");
+        long version = versionIn(live.get(1));
+        assertTrue(responsesTo(1, CommandParser.parse(1, "User1", "ROSTER java " + version))
+                .get(0).endsWith(":+User5"), "the published version brought up to date");
+    }
+
+    @Test
+    public void testRosterSendsOnlyTheChanges() {
+        List<String> names = responsesTo(1, CommandParser.parse(1, "User1", "NAMES java"));
+        long version = versionIn(names.get(1));
+        new JoinCommand(5, "User5", "java").updateServerModel(model);
+        new LeaveCommand(2, "User2", "java").updateServerModel(model);
+        new JoinCommand(6, "User6", "java").updateServerModel(model);
+        new LeaveCommand(6, "User6", "java").updateServerModel(model);
+        new NicknameCommand(3, "User3", "carol").updateServerModel(model);
+
+        List<String> changes = responsesTo(1,
+                CommandParser.parse(1, "User1", "ROSTER java " + version));
+        assertEquals(1, changes.size(), "one line");
+        assertTrue(changes.get(0).matches(
+                ":User1 ROSTER java \\d+ :\\+User5 -User2 -User3 \\+carol"), changes.get(0));
+        long latest = versionIn(changes.get(0));
+        assertEquals(List.of(":User1 ROSTER java " + latest + " :"),
+                responsesTo(1, CommandParser.parse(1, "User1", "ROSTER java " + latest)),
+                "up to date");
+    }
+
+    @Test
+    public void testUnknownVersionStartsOver() {
+        List<String> lines = responsesTo(1, CommandParser.parse(1, "User1", "ROSTER java 0"));
+        assertEquals(":User1 NAMES java :@User0 User1", lines.get(0), "first page again");
+        assertTrue(lines.get(1).startsWith(":User1 ENDNAMES java "), lines.get(1));
+
+        // A channel of the same name made later has a roster of its own
+        long version = versionIn(lines.get(1));
+        for (int userId = 0; userId < 5; userId++) {
+            model.deregisterUser(userId);
+        }
+        new CreateCommand(5, "User5", "java", false).updateServerModel(model);
+        assertEquals(":User5 NAMES java :@User5", responsesTo(5,
+                CommandParser.parse(5, "User5", "ROSTER java " + version)).get(0), "start over");
+    }
+
+    @Test
+    public void testSmallChannelsStillGetOneNamesLine() {
+        model.setNamesPageSize(1000);
+        assertEquals(List.of(":User5 JOIN java", ":User5 NAMES java :@User0 User1 User2 User3 "
+                        + "User4 User5"),
+                responsesTo(5, new JoinCommand(5, "User5", "java")), "no ENDNAMES");
+    }
+}
@@ -0,0 +1,94 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+public class PersistentMapTest {
+    private PersistentMap<String, Integer> map;
+
+    /**
+     * Before each test, we start from the empty map.
+     */
+    @BeforeEach
+    public void setUp() {
+        map = PersistentMap.empty();
+    }
+
+    @Test
+    public void testPlusGetMinus() {
+        PersistentMap<String, Integer> one = map.plus("one", 1);
+        PersistentMap<String, Integer> two = one.plus("two", 2).plus("one", 11);
+        assertEquals(Integer.valueOf(11), two.get("one"), "replaced");
+        assertEquals(Integer.valueOf(2), two.get("two"), "added");
+        assertEquals(2, two.size(), "size");
+        assertEquals(Integer.valueOf(1), one.get("one"), "earlier map unchanged");
+        assertNull(one.get("two"), "earlier map unchanged");
+        assertTrue(map.isEmpty(), "empty map unchanged");
+
+        PersistentMap<String, Integer> removed = two.minus("one");
+        assertNull(removed.get("one"), "removed");
+        assertEquals(1, removed.size(), "size");
+        assertSame(removed, removed.minus("one"), "nothing to remove");
+        assertSame(removed, removed.plus("two", removed.get("two")), "nothing to change");
+    }
+
+    @Test
+    public void testKeysWithTheSameHash() {
+        // "Aa" and "BB" have the same hash code
+        map = map.plus("Aa", 1).plus("BB", 2).plus("C", 3);
+        assertEquals(Integer.valueOf(1), map.get("Aa"), "first");
+        assertEquals(Integer.valueOf(2), map.get("BB"), "second");
+        map = map.plus("BB", 22).minus("Aa");
+        assertNull(map.get("Aa"), "removed");
+        assertEquals(Integer.valueOf(22), map.get("BB"), "replaced");
+        assertEquals(Set.of("BB", "C"), map.keySet(), "keys");
+    }
+
+    @Test
+    public void testKeySetIsUnmodifiable() {
+        map = map.plus("one", 1);
+        Set<String> keys = map.keySet();
+        assertTrue(keys.contains("one"), "contains");
+        assertFalse(keys.contains(null), "null never contained");
+        assertThrows(UnsupportedOperationException.class, () -> keys.add("two"));
+        Iterator<String> iterator = keys.iterator();
+        iterator.next();
+        assertThrows(UnsupportedOperationException.class, iterator::remove);
+    }
+
+    @Test
+    public void testMatchesHashMapUnderRandomChurn() {
+        Random random = new Random(42);
+        Map<String, Integer> expected = new HashMap<>();
+        List<PersistentMap<String, Integer>> versions = new ArrayList<>();
+        List<Map<String, Integer>> expectedVersions = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            String key = "User" + random.nextInt(3000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+            assertEquals(expected.size(), map.size(), "size after " + key);
+            if (i % 10_000 == 0) {
+                versions.add(map);
+                expectedVersions.add(new HashMap<>(expected));
+            }
+        }
+        for (int key = 0; key < 3000; key++) {
+            assertEquals(expected.get("User" + key), map.get("User" + key), "get User" + key);
+        }
+        Map<String, Integer> copy = new HashMap<>();
+        map.forEach(copy::put);
+        assertEquals(expected, copy, "every mapping");
+        for (int i = 0; i < versions.size(); i++) {
+            Map<String, Integer> old = new HashMap<>();
+            versions.get(i).forEach(old::put);
+            assertEquals(expectedVersions.get(i), old, "earlier version " + i + " unchanged");
+        }
+    }
+}
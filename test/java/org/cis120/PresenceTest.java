@@ -0,0 +1,141 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class PresenceTest {
+    private ServerModel model;
+
+    /**
+     * Before each test, User0 owns "java", joined by User1 and User2, and
+     * channels of three or more members relay presence as digests.
+     */
+    @BeforeEach
+    public void setUp() {
+        model = new ServerModel();
+        model.setPresenceWindows(new TreeMap<>(Map.of(3, 1000)));
+        for (int userId = 0; userId < 6; userId++) {
+            model.registerUser(userId);
+        }
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        new JoinCommand(2, "User2", "java").updateServerModel(model);
+        assertEquals(List.of(), model.takeOpenedDigests(), "too small until now");
+    }
+
+    private Map<Integer, List<String>> flush() {
+        List<PresenceDigest> opened = model.takeOpenedDigests();
+        assertEquals(1, opened.size(), "one digest open");
+        Broadcast digests = model.flushPresence(opened.get(0));
+        return digests == null ? Map.of() : toMap(digests);
+    }
+
+    private Map<Integer, List<String>> toMap(Broadcast broadcast) {
+        Map<Integer, List<String>> lines = new TreeMap<>();
+        broadcast.getResponses(model).forEach(lines::put);
+        return lines;
+    }
+
+    @Test
+    public void testJoinsAndLeavesAreDigested() {
+        Command join = new JoinCommand(3, "User3", "java");
+        assertEquals(Map.of(3, List.of(
+                ":User3 JOIN java", ":User3 NAMES java :@User0 User1 User2 User3"
+        )), toMap(join.updateServerModel(model)), "only the joining user, at once");
+        Command message = new MessageCommand(3, "User3", "java", "hi");
+        assertEquals(4, toMap(message.updateServerModel(model)).size(),
+                "messages are relayed at once");
+        Command leave = new LeaveCommand(1, "User1", "java");
+        assertEquals(Map.of(1, List.of(":User1 LEAVE java")),
+                toMap(leave.updateServerModel(model)), "only the leaving user");
+
+        assertEquals(Map.of(
+                0, List.of(":User0 PRESENCE java :+User3 -User1"),
+                2, List.of(":User2 PRESENCE java :+User3 -User1"),
+                3, List.of(":User3 PRESENCE java :-User1")
+        ), flush(), "one line each, without what the joining user already saw");
+    }
+
+    @Test
+    public void testChangesThatCancelOutAreDropped() {
+        new JoinCommand(3, "User3", "java").updateServerModel(model);
+        new LeaveCommand(3, "User3", "java").updateServerModel(model);
+        assertEquals(Map.of(), flush(), "back where everyone started");
+        assertNull(model.takePresenceLines(), "nothing left");
+    }
+
+    @Test
+    public void testKickSendsTheDigestFirst() {
+        new JoinCommand(3, "User3", "java").updateServerModel(model);
+        Broadcast kick = new KickCommand(0, "User0", "java", "User3").updateServerModel(model);
+
+        assertEquals(Map.of(
+                0, List.of(":User0 PRESENCE java :+User3"),
+                1, List.of(":User1 PRESENCE java :+User3"),
+                2, List.of(":User2 PRESENCE java :+User3")
+        ), toMap(model.takePresenceLines()), "before the kick");
+        assertEquals(4, toMap(kick).size(), "the kick itself is relayed at once");
+        assertEquals(Map.of(), flush(), "nothing left at the end of the window");
+    }
+
+    @Test
+    public void testQuitIsDigestedUnlessTheOwnerQuits() {
+        new JoinCommand(3, "User3", "java").updateServerModel(model);
+        assertEquals(Map.of(), toMap(model.deregisterUsers(new int[] {1, 4})),
+                "User1 went into the digest, User4 was in no channel");
+        assertEquals(2, toMap(model.deregisterUser(0)).size(), "the owner's QUIT at once");
+        assertNull(model.takePresenceLines(), "the digest went with the channel");
+    }
+
+    @Test
+    public void testDigestSentWhenTheWindowEnds() throws Exception {
+        ServerBackend backend = new ServerBackend(new ServerModel(), ServerConfig.parse(
+                "--port=0", "--rateLimit=off", "--presenceDigest=3=200"));
+        new Thread(backend, "Connection acceptor").start();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 500 && backend.getLocalPort() <= 0; i++) {
+                Thread.sleep(10);
+            }
+            List<BufferedReader> readers = new ArrayList<>();
+            List<PrintWriter> writers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Socket socket = new Socket(
+                        InetAddress.getLoopbackAddress(), backend.getLocalPort());
+                socket.setSoTimeout(5000);
+                sockets.add(socket);
+                readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+                writers.add(new PrintWriter(socket.getOutputStream(), true));
+                assertEquals(":User" + i + " CONNECT", readers.get(i).readLine(), "connected");
+            }
+            writers.get(0).println("CREATE java 0");
+            assertEquals(":User0 CREATE java 0", readers.get(0).readLine(), "created");
+            long joined = 0;
+            for (int i = 1; i < 4; i++) {
+                joined = System.nanoTime();
+                writers.get(i).println("JOIN java");
+                assertEquals(":User" + i + " JOIN java", readers.get(i).readLine(), "joined");
+                readers.get(i).readLine();
+            }
+            assertEquals(":User1 JOIN java", readers.get(0).readLine(), "two members: at once");
+            assertEquals(":User2 JOIN java", readers.get(0).readLine(), "three: at once");
+            assertEquals(":User0 PRESENCE java :+User3", readers.get(0).readLine(), "digested");
+            assertTrue(System.nanoTime() - joined >= 150_000_000L, "after the window");
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            backend.stop();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    private long now;
+    private RateLimiter limiter;
+
+    /**
+     * Before each test, we create a limiter on a clock the test controls,
+     * allowing bursts of 4 commands at 2 per second per connection, 2
+     * messages at 1 per second per user, and 3 messages at 1 per second per
+     * channel. A connection is dropped on its fourth rejected line.
+     */
+    @BeforeEach
+    public void setUp() {
+        now = 1000 * SECOND;
+        limiter = new RateLimiter(
+                new RateLimiter.Limit(4, 2), new RateLimiter.Limit(2, 1),
+                new RateLimiter.Limit(3, 1), new RateLimiter.Limit(3, 0.001), () -> now
+        );
+    }
+
+    @Test
+    public void testBucketAllowsBurstThenRefills() {
+        TokenBucket bucket = new TokenBucket(3, 10);
+        assertTrue(bucket.tryAcquire(0), "1st of burst");
+        assertTrue(bucket.tryAcquire(0), "2nd of burst");
+        assertTrue(bucket.tryAcquire(0), "3rd of burst");
+        assertFalse(bucket.tryAcquire(0), "burst exhausted");
+        assertFalse(bucket.isFull(0), "not full");
+        assertTrue(bucket.tryAcquire(SECOND / 10), "one token refilled");
+        assertFalse(bucket.tryAcquire(SECOND / 10), "only one token refilled");
+        assertTrue(bucket.isFull(SECOND), "full after idling");
+    }
+
+    @Test
+    public void testConnectionLimitAppliesToAllCommands() {
+        RateLimiter.ConnectionLimits limits = limiter.newConnection();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(RateLimiter.Verdict.ACCEPT, limits.check("JOIN java"), "burst");
+        }
+        assertEquals(
+                RateLimiter.Verdict.REJECT_AND_NOTIFY, limits.check("JOIN java"),
+                "first rejection is reported"
+        );
+        assertEquals(
+                RateLimiter.Verdict.REJECT, limits.check("JOIN java"),
+                "later rejections are silent"
+        );
+        now += SECOND;
+        assertEquals(RateLimiter.Verdict.ACCEPT, limits.check("JOIN java"), "refilled");
+        assertEquals(RateLimiter.Verdict.ACCEPT, limits.check("JOIN java"), "refilled");
+        assertEquals(
+                RateLimiter.Verdict.REJECT_AND_NOTIFY, limits.check("JOIN java"),
+                "new run of rejections is reported"
+        );
+        assertEquals(
+                RateLimiter.Verdict.DISCONNECT, limits.check("JOIN java"),
+                "out of strikes"
+        );
+    }
+
+    @Test
+    public void testHeartbeatsChargedToTheConnection() {
+        RateLimiter.ConnectionLimits limits = limiter.newConnection();
+        assertEquals(RateLimiter.Verdict.ACCEPT, limits.check("JOIN java"), "command");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(RateLimiter.Verdict.ACCEPT, limits.checkHeartbeat(), "rest of burst");
+        }
+        assertEquals(RateLimiter.Verdict.REJECT, limits.checkHeartbeat(), "never reported");
+        assertEquals(
+                RateLimiter.Verdict.REJECT_AND_NOTIFY, limits.check("JOIN java"),
+                "the bucket is shared with commands"
+        );
+        assertEquals(RateLimiter.Verdict.REJECT, limits.checkHeartbeat(), "last strike");
+        assertEquals(RateLimiter.Verdict.DISCONNECT, limits.checkHeartbeat(), "out of strikes");
+        assertEquals(
+                RateLimiter.Verdict.ACCEPT, limiter.newConnection().checkHeartbeat(),
+                "other connections unaffected"
+        );
+    }
+
+    @Test
+    public void testUserMessageLimit() {
+        RateLimiter.ConnectionLimits limits = limiter.newConnection();
+        assertEquals(RateLimiter.Verdict.ACCEPT, limits.check("MESG java :a"), "1st");
+        assertEquals(RateLimiter.Verdict.ACCEPT, limits.check("MESG ocaml :b"), "2nd");
+        assertEquals(
+                RateLimiter.Verdict.REJECT_AND_NOTIFY, limits.check("MESG java :c"),
+                "user message burst exhausted"
+        );
+        assertEquals(RateLimiter.Verdict.ACCEPT, limits.check("NICK Duke"), "non-MESG ok");
+    }
+
+    @Test
+    public void testChannelLimitSharedBetweenConnections() {
+        RateLimiter.ConnectionLimits first = limiter.newConnection();
+        RateLimiter.ConnectionLimits second = limiter.newConnection();
+        RateLimiter.ConnectionLimits third = limiter.newConnection();
+        assertEquals(RateLimiter.Verdict.ACCEPT, first.check("MESG java :a"), "1st");
+        assertEquals(RateLimiter.Verdict.ACCEPT, second.check("MESG java :b"), "2nd");
+        assertEquals(RateLimiter.Verdict.ACCEPT, third.check("MESG java :c"), "3rd");
+        assertEquals(
+                RateLimiter.Verdict.REJECT_AND_NOTIFY, first.check("MESG java :d"),
+                "channel burst exhausted"
+        );
+        assertEquals(RateLimiter.Verdict.ACCEPT, second.check("MESG ocaml :e"), "other channel");
+    }
+
+    @Test
+    public void testUnlimited() {
+        RateLimiter.ConnectionLimits limits = RateLimiter.unlimited().newConnection();
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(RateLimiter.Verdict.ACCEPT, limits.check("MESG java :spam"), "accept");
+        }
+    }
+
+    @Test
+    public void testMessageChannel() {
+        assertEquals("java", RateLimiter.messageChannel("MESG java :hi"), "with payload");
+        assertEquals("java", RateLimiter.messageChannel("MESG java"), "without payload");
+        assertNull(RateLimiter.messageChannel("JOIN java"), "not a message");
+    }
+
+    @Test
+    public void testThrottledErrorCode() {
+        Command command = new MessageCommand(0, "User0", "java", "spam");
+        assertEquals(
+                ":User0 ERROR 429",
+                Broadcast.error(command, ServerResponse.THROTTLED).toString()
+                        .replace("{User0=[", "").replace("]}", ""),
+                "error line"
+        );
+    }
+}
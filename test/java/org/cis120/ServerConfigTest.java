@@ -0,0 +1,100 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+public class ServerConfigTest {
+
+    @Test
+    public void testDefaults() throws IOException {
+        ServerConfig config = ServerConfig.parse();
+        assertEquals(21212, config.getPort(), "port");
+        assertEquals(50, config.getBacklog(), "backlog");
+        assertEquals(1, config.getAcceptors(), "one acceptor");
+        assertEquals(30, config.getSessionGraceSeconds(), "session grace period");
+        assertEquals(1000, config.getNamesPageSize(), "NAMES page size");
+        assertTrue(config.getPresenceDigest().isEmpty(), "no presence digests");
+        assertTrue(config.hasConcurrentReads(), "reads answered by workers");
+        assertFalse(config.newAdmissionControl().isSampled(), "no overload limits");
+        assertEquals(0, config.getMaxConnections(), "no connection limit");
+        assertEquals(0, config.getQueueLimit(), "no queue limit");
+        assertEquals(ServerConfig.Mode.STANDALONE, config.getMode(), "mode");
+        assertEquals(-1, config.getAdminPort(), "no admin server");
+        assertNull(config.getEventsFile(), "no event log");
+        assertNull(config.getSnapshotFile(), "no snapshot");
+        assertNull(config.getRestartSocket(), "no hot restart");
+        assertEquals(5000, config.getShutdownTimeoutMillis(), "shutdown deadline");
+    }
+
+    @Test
+    public void testArgumentsOverrideFile() throws IOException {
+        Path file = Files.createTempFile("server", ".properties");
+        try {
+            Files.writeString(file, "port = 4000\nqueueLimit=100\n# a comment\n");
+            ServerConfig config = ServerConfig.parse(
+                    "--port=5000", "--config=" + file, "--maxConnections=10");
+            assertEquals(5000, config.getPort(), "argument wins, wherever it is");
+            assertEquals(100, config.getQueueLimit(), "from the file");
+            assertEquals(10, config.getMaxConnections(), "argument");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testClusterMode() throws IOException {
+        ServerConfig config = ServerConfig.parse(
+                "--mode=cluster", "--node=2", "--clusterPort=31214",
+                "--seeds=0=localhost:31212,1=localhost:31213");
+        assertEquals(ServerConfig.Mode.CLUSTER, config.getMode(), "mode");
+        assertEquals(2, config.getNode(), "node");
+        assertEquals(31214, config.getClusterPort(), "cluster port");
+        assertEquals(Map.of(
+                0, new InetSocketAddress("localhost", 31212),
+                1, new InetSocketAddress("localhost", 31213)
+        ), config.getSeeds(), "seeds");
+    }
+
+    @Test
+    public void testPresenceDigestThresholds() throws IOException {
+        ServerConfig config = ServerConfig.parse("--presenceDigest=100=1000, 1000=5000");
+        assertEquals(Map.of(100, 1000, 1000, 5000), config.getPresenceDigest(), "windows");
+        assertEquals(1000, (int) config.getPresenceDigest().floorEntry(999).getValue(),
+                "a channel of 999 uses the first window");
+    }
+
+    @Test
+    public void testRejectsMistakes() {
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--prot=1"), "unknown name");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("port=1"), "not --name=value");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--port=70000"), "out of range");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--acceptors=0"), "no acceptor");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--presenceDigest=100"), "no window");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--queueLimit=lots"), "not a number");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--rateLimit=maybe"), "not on or off");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--minHeapFreePercent=100"), "no heap to use");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--mode=mesh"), "unknown mode");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--mode=cluster"), "cluster without node");
+        assertThrows(IllegalArgumentException.class,
+                () -> ServerConfig.parse("--mode=restartable"), "restartable without socket");
+        assertThrows(IOException.class,
+                () -> ServerConfig.parse("--config=/nonexistent/server.properties"),
+                "missing file");
+    }
+}
@@ -3,8 +3,12 @@ package org.cis120;
 import org.junit.jupiter.api.*;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 public class ServerModelTest {
@@ -318,4 +322,323 @@ public class ServerModelTest {
 
         assertEquals(0, model.getChannels().size());
     }
+
+    @Test
+    public void testSearchReturnsMatchingMessages() {
+        model = new ServerModel(new MessageIndex(Runnable::run, () -> 42));
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        new MessageCommand(0, "User0", "java", "hello world").updateServerModel(model);
+        new MessageCommand(1, "User1", "java", "goodbye").updateServerModel(model);
+
+        SearchCommand search = new SearchCommand(1, "User1", "java", Long.MAX_VALUE, "hel*");
+        String hit = ":User1 HIT java 0 42 User0 :hello world";
+        String end = ":User1 ENDSEARCH java -1";
+        assertEquals(
+                "{User1=[" + hit + ", " + end + "]}",
+                search.updateServerModel(model).toString(), "broadcast"
+        );
+    }
+
+    @Test
+    public void testSearchNotMember() {
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+
+        SearchCommand search = new SearchCommand(1, "User1", "java", Long.MAX_VALUE, "hello");
+        Broadcast expected = Broadcast.error(search, ServerResponse.USER_NOT_IN_CHANNEL);
+        assertEquals(expected, search.updateServerModel(model), "broadcast");
+    }
+
+    @Test
+    public void testSearchNoSuchChannel() {
+        model.registerUser(0);
+
+        SearchCommand search = new SearchCommand(0, "User0", "java", Long.MAX_VALUE, "hello");
+        Broadcast expected = Broadcast.error(search, ServerResponse.NO_SUCH_CHANNEL);
+        assertEquals(expected, search.updateServerModel(model), "broadcast");
+    }
+
+    @Test
+    public void testSearchFromSnapshot() {
+        model = new ServerModel(new MessageIndex(Runnable::run, () -> 42));
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new MessageCommand(0, "User0", "java", "hello world").updateServerModel(model);
+        model.publishSnapshot();
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+
+        ReadOnlyCommand search =
+                (ReadOnlyCommand) CommandParser.parse(1, "User1", "SEARCH java :hello");
+        assertTrue(CommandParser.isReadOnly("SEARCH java :hello"), "searching only reads");
+        assertFalse(CommandParser.isReadOnly("MESG java :hi"), "messages are indexed and relayed");
+        assertFalse(CommandParser.isReadOnly("SEARCHING"), "whole first word");
+        assertEquals(Broadcast.error(search, ServerResponse.USER_NOT_IN_CHANNEL),
+                search.readServerModel(model, model.snapshot()),
+                "the snapshot does not reflect the join yet");
+        model.publishSnapshot();
+        assertEquals(search.updateServerModel(model),
+                search.readServerModel(model, model.snapshot()), "same as on the model thread");
+        assertEquals(List.of(":User1 HIT java 0 42 User0 :hello world",
+                ":User1 ENDSEARCH java -1"),
+                search.readServerModel(model, model.snapshot()).getResponses("User1"),
+                "lines for the sender");
+        assertFalse(CommandParser.isReadOnly("JOIN c"), "joining is not a read");
+    }
+
+    @Test
+    public void testSnapshotReflectsPublishedState() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.joinChannel(new JoinCommand(1, "User1", "java"));
+        assertEquals(0, model.snapshot().getVersion(), "nothing published yet");
+        assertTrue(model.snapshot().getRegisteredUsers().isEmpty(), "empty before publish");
+
+        model.publishSnapshot();
+        ModelSnapshot snapshot = model.snapshot();
+        assertEquals(Set.of("User0", "User1"), snapshot.getRegisteredUsers(), "users");
+        assertEquals(Set.of("java"), snapshot.getChannels(), "channels");
+        assertEquals(Set.of("User0", "User1"), snapshot.getUsersInChannel("java"), "members");
+        assertEquals("User0", snapshot.getOwner("java"), "owner");
+        assertTrue(snapshot.getUsersInChannel("nowhere").isEmpty(), "no such channel");
+        assertNull(snapshot.getOwner("nowhere"), "no such channel");
+    }
+
+    @Test
+    public void testSnapshotIsIsolatedAndImmutable() {
+        model.registerUser(0);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.publishSnapshot();
+        ModelSnapshot before = model.snapshot();
+
+        model.registerUser(1);
+        model.joinChannel(new JoinCommand(1, "User1", "java"));
+        model.leaveChannel(new LeaveCommand(0, "User0", "java"));
+        model.publishSnapshot();
+
+        assertEquals(Set.of("User0"), before.getRegisteredUsers(), "old snapshot unchanged");
+        assertEquals(Set.of("java"), before.getChannels(), "old snapshot unchanged");
+        assertTrue(model.snapshot().getChannels().isEmpty(), "new snapshot");
+        assertTrue(model.snapshot().getVersion() > before.getVersion(), "versioned");
+        assertThrows(UnsupportedOperationException.class,
+                () -> before.getRegisteredUsers().add("Mallory"));
+        assertThrows(UnsupportedOperationException.class,
+                () -> before.getUsersInChannel("java").clear());
+    }
+
+    @Test
+    public void testSnapshotSharesUnchangedParts() {
+        model.registerUser(0);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.createChannel(new CreateCommand(0, "User0", "scala", false));
+        model.publishSnapshot();
+        ModelSnapshot first = model.snapshot();
+
+        model.publishSnapshot();
+        assertSame(first, model.snapshot(), "nothing changed, nothing published");
+
+        model.sendMessage(new MessageCommand(0, "User0", "java", "hi"));
+        model.publishSnapshot();
+        assertSame(first, model.snapshot(), "messages do not change the snapshot");
+
+        model.registerUser(1);
+        model.joinChannel(new JoinCommand(1, "User1", "java"));
+        model.publishSnapshot();
+        ModelSnapshot second = model.snapshot();
+        assertSame(first.getChannel("scala"), second.getChannel("scala"), "untouched channel shared");
+        assertNotSame(first.getChannel("java"), second.getChannel("java"), "changed channel rebuilt");
+    }
+
+    @Test
+    public void testSnapshotChannelViewsFollowMembers() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.registerUser(2);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.joinChannel(new JoinCommand(1, "User1", "java"));
+        model.publishSnapshot();
+        ModelSnapshot before = model.snapshot();
+
+        model.changeNickname(new NicknameCommand(1, "User1", "Duke"));
+        model.joinChannel(new JoinCommand(2, "User2", "java"));
+        model.leaveChannel(new LeaveCommand(2, "User2", "java"));
+        model.joinChannel(new JoinCommand(2, "User2", "java"));
+        model.publishSnapshot();
+
+        ModelSnapshot.ChannelView view = model.snapshot().getChannel("java");
+        assertEquals(3, view.getMemberCount(), "count");
+        assertTrue(view.hasMember(2), "joined again");
+        assertEquals(List.of("Duke", "User0", "User2"), List.copyOf(view.getMembers()),
+                "renamed, sorted");
+        assertSame(view.getMembers(), view.getMembers(), "built once");
+        assertEquals(Set.of("User0", "User1"), before.getUsersInChannel("java"),
+                "old snapshot unchanged");
+        assertFalse(before.getChannel("java").hasMember(2), "old snapshot unchanged");
+    }
+
+    @Test
+    public void testSnapshotAppliesUserChangesSincePublished() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.registerUser(2);
+        model.publishSnapshot();
+        ModelSnapshot before = model.snapshot();
+
+        // Users 0 and 1 swap nicknames between two publications
+        model.changeNickname(new NicknameCommand(0, "User0", "swap"));
+        model.changeNickname(new NicknameCommand(1, "User1", "User0"));
+        model.changeNickname(new NicknameCommand(0, "swap", "User1"));
+        model.deregisterUser(2);
+        model.publishSnapshot();
+
+        ModelSnapshot after = model.snapshot();
+        assertEquals(Set.of("User0", "User1"), after.getRegisteredUsers(), "users");
+        assertEquals("User1", after.getNickname(0), "swapped");
+        assertEquals(Integer.valueOf(0), after.getUserIds().get("User1"), "swapped");
+        assertEquals(Integer.valueOf(1), after.getUserIds().get("User0"), "swapped");
+        assertNull(after.getNickname(2), "deregistered");
+        assertEquals(Set.of("User0", "User1", "User2"), before.getRegisteredUsers(),
+                "old snapshot unchanged");
+        assertEquals("User0", before.getNickname(0), "old snapshot unchanged");
+    }
+
+    @Test
+    public void testOwnerRenameKeepsChannelJoinable() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.changeNickname(new NicknameCommand(0, "User0", "Duke"));
+
+        assertEquals("Duke", model.getOwner("java"), "owner renamed");
+        Broadcast expected = Broadcast.names(
+                new JoinCommand(1, "User1", "java"), Set.of("Duke", "User1"), "Duke");
+        assertEquals(expected, model.joinChannel(new JoinCommand(1, "User1", "java")),
+                "join after owner rename");
+    }
+
+    @Test
+    public void testCreateJoinsOnlyTheNewChannel() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.createChannel(new CreateCommand(1, "User1", "ocaml", false));
+
+        assertEquals(Set.of("User0"), model.getUsersInChannel("java"), "java unchanged");
+        assertEquals(Set.of("User1"), model.getUsersInChannel("ocaml"), "owner in ocaml");
+    }
+
+    @Test
+    public void testDestroyedChannelLeavesNoMemberships() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.joinChannel(new JoinCommand(1, "User1", "java"));
+        model.leaveChannel(new LeaveCommand(0, "User0", "java"));
+        model.createChannel(new CreateCommand(0, "User0", "ocaml", false));
+
+        assertEquals(Set.of(), model.getUsersInChannel("java"), "java destroyed");
+        assertEquals(Set.of("User0"), model.getUsersInChannel("ocaml"), "recycled channel");
+        assertEquals(Broadcast.disconnected("User1", Set.of()), model.deregisterUser(1),
+                "no longer shares a channel");
+    }
+
+    @Test
+    public void testNicknameChangeSeenInEveryChannel() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        model.createChannel(new CreateCommand(1, "User1", "ocaml", false));
+        model.joinChannel(new JoinCommand(0, "User0", "ocaml"));
+        model.changeNickname(new NicknameCommand(0, "User0", "Duke"));
+
+        assertEquals(0, model.getUserId("Duke"), "new nickname resolves");
+        assertEquals(-1, model.getUserId("User0"), "old nickname released");
+        assertEquals(Set.of("Duke"), model.getUsersInChannel("java"), "java");
+        assertEquals(Set.of("Duke", "User1"), model.getUsersInChannel("ocaml"), "ocaml");
+    }
+
+    @Test
+    public void testParseSearch() {
+        Command command = CommandParser.parse(0, "User0", "SEARCH java 42 :foo bar*");
+        assertEquals(
+                new SearchCommand(0, "User0", "java", 42, "foo bar*"), command,
+                "parsed search"
+        );
+        assertEquals(
+                new SearchCommand(0, "User0", "java", Long.MAX_VALUE, "foo"),
+                CommandParser.parse(0, "User0", "SEARCH java :foo"), "newest first"
+        );
+        assertNull(CommandParser.parse(0, "User0", "SEARCH java -1 :foo"), "no page after last");
+    }
+
+    @Test
+    public void testRegisterUsersInOneBatch() {
+        model.registerUser(0);
+        model.registerUser(1);
+        model.registerUser(2);
+        model.deregisterUser(1);
+        Broadcast expected = Broadcast.connected(List.of("User1", "User3", "User4"));
+
+        assertEquals(expected, model.registerUsers(new int[] {5, 6, 7}),
+                "one CONNECT line each");
+        assertEquals("User1", model.getNickname(5), "freed nickname reused first");
+        assertEquals("User3", model.getNickname(6), "then the next free one");
+        assertEquals(7, model.getUserId("User4"), "resolves by nickname");
+        assertEquals(5, model.getRegisteredUsers().size(), "all registered");
+    }
+
+    /**
+     * User0 owns "java", joined by everyone but User4; User2 owns "ocaml",
+     * joined by User3 and User4.
+     */
+    private static ServerModel modelForDisconnections() {
+        ServerModel model = new ServerModel();
+        for (int userId = 0; userId < 6; userId++) {
+            model.registerUser(userId);
+        }
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(2, "User2", "ocaml", false).updateServerModel(model);
+        for (int userId : new int[] {1, 2, 3, 5}) {
+            new JoinCommand(userId, "User" + userId, "java").updateServerModel(model);
+        }
+        new JoinCommand(3, "User3", "ocaml").updateServerModel(model);
+        new JoinCommand(4, "User4", "ocaml").updateServerModel(model);
+        return model;
+    }
+
+    private static void collect(
+            ServerModel model, Broadcast broadcast, Map<Integer, List<String>> into
+    ) {
+        broadcast.getResponses(model).forEach((userId, lines) ->
+                into.computeIfAbsent(userId, id -> new ArrayList<>()).addAll(lines));
+    }
+
+    @Test
+    public void testDeregisterUsersMatchesOneByOne() {
+        int[] departing = {3, 0, 1, 2, 0, 9};
+        ServerModel oneByOne = modelForDisconnections();
+        Map<Integer, List<String>> expected = new TreeMap<>();
+        for (int userId : new int[] {3, 0, 1, 2}) {
+            collect(oneByOne, oneByOne.deregisterUser(userId), expected);
+        }
+        // Lines for users who were about to depart too are never delivered
+        expected.keySet().removeIf(userId -> userId < 4);
+        ServerModel batched = modelForDisconnections();
+        Map<Integer, List<String>> actual = new TreeMap<>();
+        collect(batched, batched.deregisterUsers(departing), actual);
+
+        assertEquals(Map.of(
+                4, List.of(":User3 QUIT", ":User2 QUIT"),
+                5, List.of(":User3 QUIT", ":User0 QUIT")
+        ), expected, "User1 left after java was destroyed");
+        assertEquals(expected, actual, "same lines, in the same order");
+        assertEquals(oneByOne.getRegisteredUsers(), batched.getRegisteredUsers(), "users");
+        assertEquals(new TreeSet<>(oneByOne.getChannels()), new TreeSet<>(batched.getChannels()),
+                "channels");
+    }
 }
@@ -0,0 +1,174 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class SessionTest {
+    private ServerBackend backend;
+    private final List<TestClient> clients = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (TestClient client : clients) {
+            client.close();
+        }
+        if (backend != null) {
+            backend.stop();
+        }
+    }
+
+    private void start(String... settings) throws Exception {
+        List<String> args = new ArrayList<>(List.of("--port=0", "--rateLimit=off"));
+        args.addAll(List.of(settings));
+        backend = new ServerBackend(
+                new ServerModel(), ServerConfig.parse(args.toArray(new String[0])));
+        new Thread(backend, "Connection acceptor").start();
+        for (int i = 0; i < 500 && backend.getLocalPort() <= 0; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private TestClient connect() throws IOException {
+        TestClient client = new TestClient(backend.getLocalPort());
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Connects User0, with a session and owning "java", and User1, without
+     * one, in "java".
+     *
+     * @return User0's resume token
+     */
+    private String openSessionInChannel(TestClient alice, TestClient bob) throws IOException {
+        assertEquals(":User0 CONNECT", alice.read(), "connected");
+        assertEquals(":User1 CONNECT", bob.read(), "connected");
+        alice.send("SESSION");
+        String session = alice.read();
+        assertTrue(session.matches(":User0 SESSION [0-9a-f]{32}"), session);
+        alice.send("CREATE java 0");
+        assertEquals("@java:1 :User0 CREATE java 0", alice.read(), "stamped");
+        bob.send("JOIN java");
+        assertEquals(":User1 JOIN java", bob.read(), "no session, no stamp");
+        assertEquals(":User1 NAMES java :@User0 User1", bob.read(), "names");
+        assertEquals("@java:2 :User1 JOIN java", alice.read(), "stamped");
+        return session.substring(":User0 SESSION ".length());
+    }
+
+    private void awaitConnections(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && backend.getConnectionCount() != count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, backend.getConnectionCount(), "connections");
+    }
+
+    @Test
+    public void testResumeReplaysMissedLines() throws Exception {
+        start();
+        TestClient alice = connect();
+        TestClient bob = connect();
+        String token = openSessionInChannel(alice, bob);
+
+        alice.close();
+        awaitConnections(1);
+        bob.send("MESG java :one");
+        bob.send("MESG java :two");
+        assertEquals(":User1 MESG java :one", bob.read(), "channel kept");
+        assertEquals(":User1 MESG java :two", bob.read(), "channel kept");
+
+        TestClient again = connect();
+        assertEquals(":User2 CONNECT", again.read(), "connected");
+        again.send("RESUME " + token + " java:2");
+        assertEquals(":User0 RESUMED", again.read(), "old nickname");
+        assertEquals("@java:3 :User1 MESG java :one", again.read(), "replayed");
+        assertEquals("@java:4 :User1 MESG java :two", again.read(), "replayed");
+
+        again.send("MESG java :back");
+        assertEquals("@java:5 :User0 MESG java :back", again.read(), "as User0");
+        assertEquals(":User0 MESG java :back", bob.read(), "no QUIT or JOIN in between");
+        for (int i = 0; i < 500 && backend.getSnapshot().getRegisteredUsers().size() > 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Set.of("User0", "User1"), backend.getSnapshot().getRegisteredUsers(),
+                "the resuming connection's own user is gone");
+    }
+
+    @Test
+    public void testTooFarBehindGetsNames() throws Exception {
+        start("--replayLines=2");
+        TestClient alice = connect();
+        TestClient bob = connect();
+        String token = openSessionInChannel(alice, bob);
+
+        alice.close();
+        awaitConnections(1);
+        for (int i = 0; i < 3; i++) {
+            bob.send("MESG java :" + i);
+            assertEquals(":User1 MESG java :" + i, bob.read(), "sent");
+        }
+
+        TestClient again = connect();
+        assertEquals(":User2 CONNECT", again.read(), "connected");
+        again.send("RESUME " + token + " java:2 gone:7");
+        assertEquals(":User0 RESUMED", again.read(), "resumed");
+        assertEquals("@java:5 :User0 NAMES java :@User0 User1", again.read(), "resynced");
+        assertEquals(":User0 LEAVE gone", again.read(), "unknown channel left");
+    }
+
+    @Test
+    public void testExpiredSessionCannotResume() throws Exception {
+        start("--sessionGraceSeconds=1");
+        TestClient alice = connect();
+        TestClient bob = connect();
+        String token = openSessionInChannel(alice, bob);
+
+        long closed = System.nanoTime();
+        alice.close();
+        assertEquals(":User0 QUIT", bob.read(), "gone after the grace period");
+        assertTrue(System.nanoTime() - closed >= 900_000_000L, "not before");
+
+        TestClient again = connect();
+        assertEquals(":User0 CONNECT", again.read(), "nickname free again");
+        again.send("RESUME " + token + " java:2");
+        assertEquals(":User0 ERROR 410", again.read(), "expired");
+        again.send("RESUME nonsense");
+        assertEquals(":User0 ERROR 410", again.read(), "unknown");
+    }
+
+    @Test
+    public void testSessionsOff() throws Exception {
+        start("--sessionGraceSeconds=0");
+        TestClient alice = connect();
+        assertEquals(":User0 CONNECT", alice.read(), "connected");
+        alice.send("SESSION");
+        assertEquals(":User0 ERROR 410", alice.read(), "refused");
+    }
+
+    @Test
+    public void testReplayMergesEventsAcrossChannels() {
+        ServerModel model = new ServerModel();
+        model.setReplayCapacity(8);
+        model.registerUser(0);
+        model.registerUser(1);
+        new CreateCommand(0, "User0", "java", false).updateServerModel(model);
+        new CreateCommand(0, "User0", "ocaml", false).updateServerModel(model);
+        new JoinCommand(1, "User1", "java").updateServerModel(model);
+        new JoinCommand(1, "User1", "ocaml").updateServerModel(model);
+        new NicknameCommand(1, "User1", "bob").updateServerModel(model);
+        new MessageCommand(1, "bob", "ocaml", "hi").updateServerModel(model);
+        assertEquals(7, model.takeRecorded().size(), "one line per channel an event reached");
+
+        Broadcast resumed = model.resumeSession(0, Map.of("java", 2L, "ocaml", 2L));
+        assertEquals(List.of(
+                ":User0 RESUMED",
+                "@java:3,ocaml:3 :User1 NICK bob",
+                "@ocaml:4 :bob MESG ocaml :hi"
+        ), resumed.getResponses(model).get(0), "the rename replayed once");
+    }
+}
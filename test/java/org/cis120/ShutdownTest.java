@@ -0,0 +1,222 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShutdownTest {
+    private ServerBackend backend;
+    private Path snapshotFile;
+    private final List<TestClient> clients = new ArrayList<>();
+
+    /**
+     * Before each test, we start a backend on a free port and connect two
+     * clients, User0 and User1, both in User0's channel "java".
+     */
+    @BeforeEach
+    public void setUp() throws Exception {
+        snapshotFile = Files.createTempFile("snapshot", ".txt");
+        start(new ServerBackend(
+                new ServerModel(), RateLimiter.unlimited(), HeartbeatMonitor.defaults(), 0));
+    }
+
+    private void start(ServerBackend backend) throws Exception {
+        this.backend = backend;
+        new Thread(backend, "Connection acceptor").start();
+        for (int i = 0; i < 500 && backend.getLocalPort() <= 0; i++) {
+            Thread.sleep(10);
+        }
+
+        TestClient owner = connect();
+        assertEquals(":User0 CONNECT", owner.read(), "connected");
+        TestClient member = connect();
+        assertEquals(":User1 CONNECT", member.read(), "connected");
+        owner.send("CREATE java 0");
+        assertEquals(":User0 CREATE java 0", owner.read(), "created");
+        member.send("JOIN java");
+        assertEquals(":User1 JOIN java", owner.read(), "joined");
+        assertEquals(":User1 JOIN java", member.read(), "joined");
+        assertEquals(":User1 NAMES java :@User0 User1", member.read(), "names");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        backend.stop();
+        for (TestClient client : clients) {
+            client.close();
+        }
+        Files.deleteIfExists(snapshotFile);
+    }
+
+    private TestClient connect() throws IOException {
+        TestClient client = new TestClient(backend.getLocalPort());
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Starts a thread that has each client read to the end of the stream and
+     * then hang up, as a client told of a shutdown would.
+     *
+     * @param received Filled in with the number of lines each client read
+     * @return the thread, started
+     */
+    private Thread hangUp(int[] received) {
+        Thread hangUp = new Thread(() -> {
+            for (int i = 0; i < received.length; i++) {
+                try {
+                    received[i] = clients.get(i).readToEnd();
+                    clients.get(i).close();
+                } catch (IOException iox) {
+                    // Reported by the assertions below
+                }
+            }
+        });
+        hangUp.start();
+        return hangUp;
+    }
+
+    @Test
+    public void testQueuedWorkRunsAndClientsAreTold() throws Exception {
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            backend.submit(() -> {
+                ran.incrementAndGet();
+                return null;
+            });
+        }
+        int[] received = new int[clients.size()];
+        Thread hangUp = hangUp(received);
+
+        ServerBackend.ShutdownReport report = backend.shutdown(5000, snapshotFile);
+        hangUp.join(5000);
+
+        assertEquals(1000, ran.get(), "every queued task ran");
+        assertEquals(0, report.getTasksDropped(), "nothing dropped");
+        assertEquals(2, report.getClientsNotified(), "both told");
+        assertEquals(0, report.getClientsLingering(), "both hung up");
+        assertTrue(report.getDrainNanos() <= report.getTotalNanos(), "drain timed");
+        for (int lines : received) {
+            assertEquals(1, lines, "one SHUTDOWN line, then end of stream");
+        }
+        assertFalse(backend.isRunning(), "stopped");
+
+        assertTrue(report.isSnapshotWritten(), "snapshot written");
+        assertEquals(List.of(
+                "SNAPSHOT " + backend.getSnapshot().getVersion(),
+                "USER 0 User0",
+                "USER 1 User1",
+                "CHANNEL java 0 User0 User0 User1"
+        ), Files.readAllLines(snapshotFile), "final state");
+    }
+
+    @Test
+    public void testShutdownLineNamesTheRecipient() throws Exception {
+        Thread shutdown = new Thread(() -> {
+            try {
+                backend.shutdown(1000, null);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        shutdown.start();
+        assertEquals(":User0 SHUTDOWN", clients.get(0).read(), "owner told");
+        assertEquals(":User1 SHUTDOWN", clients.get(1).read(), "member told");
+        assertNull(clients.get(0).read(), "end of stream");
+        shutdown.join(5000);
+    }
+
+    @Test
+    public void testDeadlineBoundsTheDrain() throws Exception {
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            backend.submit(() -> {
+                ran.incrementAndGet();
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            });
+        }
+
+        long start = System.nanoTime();
+        ServerBackend.ShutdownReport report = backend.shutdown(200, snapshotFile);
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(1000), "bounded: " + report);
+        assertTrue(report.getTasksDropped() > 0, "late tasks dropped");
+        assertEquals(100, ran.get() + report.getTasksDropped(), "every task accounted for");
+        assertEquals(2, report.getClientsLingering(), "clients that never hung up");
+        assertTrue(report.isSnapshotWritten(), "snapshot still written");
+    }
+
+    @Test
+    public void testNoNewWorkWhileDraining() throws Exception {
+        backend.submit(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        Thread shutdown = new Thread(() -> {
+            try {
+                backend.shutdown(1000, snapshotFile);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        shutdown.start();
+        Thread.sleep(50);
+        clients.get(1).send("LEAVE java");
+        assertEquals(":User1 SHUTDOWN", clients.get(1).read(), "LEAVE ignored");
+        shutdown.join(5000);
+        assertTrue(Files.readAllLines(snapshotFile).contains(
+                "CHANNEL java 0 User0 User0 User1"), "membership unchanged");
+    }
+
+    @Test
+    public void testWorkersWaitingForTheQueueLimitEnd() throws Exception {
+        backend.stop();
+        for (TestClient client : clients) {
+            client.close();
+        }
+        clients.clear();
+        start(new ServerBackend(new ServerModel(), ServerConfig.parse(
+                "--port=0", "--rateLimit=off", "--queueLimit=1")));
+
+        // Hold up the model thread while both workers use up the one permit
+        backend.submit(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        for (TestClient client : clients) {
+            for (int i = 0; i < 5; i++) {
+                client.send("MESG java :flood " + i);
+            }
+        }
+        Thread.sleep(50);
+        Thread hangUp = hangUp(new int[clients.size()]);
+
+        ServerBackend.ShutdownReport report = backend.shutdown(2000, null);
+        hangUp.join(5000);
+
+        assertTrue(report.getTasksDropped() > 0, "commands queued behind the shutdown dropped");
+        assertEquals(0, report.getClientsLingering(), "no worker left waiting for a permit");
+        assertEquals(0, backend.getConnectionCount(), "every worker ended");
+    }
+}
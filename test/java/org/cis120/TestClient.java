@@ -0,0 +1,68 @@
+package org.cis120;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A client connected to a test server over the loopback interface, which
+ * sends and reads one line at a time. Reads give up after 5 seconds, so that
+ * a missing response fails the test rather than hanging it.
+ */
+final class TestClient implements Closeable {
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final PrintWriter writer;
+
+    /**
+     * Connects to a server on this machine.
+     *
+     * @param port The server's client port
+     * @throws IOException if the connection fails
+     */
+    TestClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(5000);
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        writer = new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    /**
+     * @return the next line from the server, or null at the end of the
+     * stream
+     * @throws IOException if no line arrives in time
+     */
+    String read() throws IOException {
+        return reader.readLine();
+    }
+
+    /**
+     * Reads lines until the server closes its end of the connection.
+     *
+     * @return the number of lines read
+     * @throws IOException if the stream does not end in time
+     */
+    int readToEnd() throws IOException {
+        int lines = 0;
+        while (reader.readLine() != null) {
+            lines++;
+        }
+        return lines;
+    }
+
+    void send(String line) {
+        writer.println(line);
+    }
+
+    /**
+     * Hangs up.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
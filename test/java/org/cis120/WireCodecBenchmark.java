@@ -0,0 +1,98 @@
+package org.cis120;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Compares the text and binary wire codecs on a synthetic stream of server
+ * responses: encode and decode throughput, and bytes on the wire.
+ * <p>
+ * This is not a unit test. Run it with {@code main} after compiling the
+ * test sources, for example:
+ * {@code java -cp <classes> org.cis120.WireCodecBenchmark [lines]}
+ */
+public final class WireCodecBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        List<String> lines = sampleTraffic(count, new Random(120));
+
+        System.out.printf("%-8s %12s %10s %14s %14s%n",
+                "codec", "bytes", "bytes/line", "encode ns/line", "decode ns/line");
+        report("TEXT", TextCodec::new, lines);
+        report("BINARY", BinaryCodec::new, lines);
+    }
+
+    /**
+     * Builds a traffic mix dominated by MESG relays in a handful of channels,
+     * with occasional JOIN, NAMES and ERROR lines.
+     */
+    static List<String> sampleTraffic(int count, Random random) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String user = "User" + random.nextInt(200);
+            String channel = "channel" + random.nextInt(10);
+            int kind = random.nextInt(100);
+            if (kind < 85) {
+                lines.add(String.format(":%s MESG %s :message number %d from %s",
+                        user, channel, i, user));
+            } else if (kind < 95) {
+                lines.add(String.format(":%s JOIN %s", user, channel));
+            } else if (kind < 98) {
+                StringBuilder names = new StringBuilder("@User0");
+                for (int j = 1; j < 50; j++) {
+                    names.append(" User").append(j);
+                }
+                lines.add(String.format(":%s NAMES %s :%s", user, channel, names));
+            } else {
+                lines.add(String.format(":%s ERROR 404", user));
+            }
+        }
+        return lines;
+    }
+
+    private static void report(String name, Supplier<WireCodec> codecs, List<String> lines)
+            throws IOException {
+        // Warm up, then measure
+        byte[] encoded = encode(codecs.get(), lines);
+        decode(codecs.get(), encoded, lines.size());
+
+        long start = System.nanoTime();
+        encoded = encode(codecs.get(), lines);
+        long encodeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        decode(codecs.get(), encoded, lines.size());
+        long decodeNanos = System.nanoTime() - start;
+
+        System.out.printf("%-8s %12d %10.1f %14.1f %14.1f%n",
+                name, encoded.length, (double) encoded.length / lines.size(),
+                (double) encodeNanos / lines.size(), (double) decodeNanos / lines.size());
+    }
+
+    private static byte[] encode(WireCodec codec, List<String> lines) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String line : lines) {
+            codec.encode(line, out);
+        }
+        return out.toByteArray();
+    }
+
+    private static void decode(WireCodec codec, byte[] bytes, int count) throws IOException {
+        InputStream in = new ByteArrayInputStream(bytes);
+        for (int i = 0; i < count; i++) {
+            if (codec.decode(in) == null) {
+                throw new IllegalStateException("Stream ended early");
+            }
+        }
+    }
+
+    private WireCodecBenchmark() {
+    }
+}
@@ -0,0 +1,155 @@
+package org.cis120;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+public class WireCodecTest {
+
+    private static final List<String> LINES = List.of(
+            ":User0 CONNECT",
+            ":User0 CREATE java 0",
+            ":User1 JOIN java",
+            ":User1 NAMES java :@User0 User1",
+            ":User0 MESG java :hello :) world",
+            ":User0 MESG java :",
+            ":User1 ERROR 404",
+            ":User1 HIT java 12 1700000000000 User0 :hello",
+            ":User1 WHATEVER java",
+            "MESG java :from a client",
+            "NICK Duke"
+    );
+
+    /**
+     * Encodes lines with one codec instance and decodes them with another,
+     * as the two ends of a connection would.
+     */
+    private static void assertRoundTrip(WireCodec encoder, WireCodec decoder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String line : LINES) {
+            encoder.encode(line, out);
+        }
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (String line : LINES) {
+            assertEquals(line, decoder.decode(in), "round trip");
+        }
+        assertNull(decoder.decode(in), "end of stream");
+    }
+
+    @Test
+    public void testTextRoundTrip() throws IOException {
+        assertRoundTrip(new TextCodec(), new TextCodec());
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        assertRoundTrip(new BinaryCodec(), new BinaryCodec());
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws IOException {
+        assertRoundTrip(new DeflateCodec(), new DeflateCodec());
+    }
+
+    @Test
+    public void testDeflateIsDeterministicPerLine() throws IOException {
+        String line = ":User1 NAMES java :@User0 User1 User2 User3 User4 User5";
+        DeflateCodec codec = new DeflateCodec();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        codec.encode(":User0 MESG java :something else first", first);
+        first.reset();
+        codec.encode(line, first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        new DeflateCodec().encode(line, second);
+
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+        assertTrue(second.size() < line.length(), "compressed");
+    }
+
+    @Test
+    public void testTextDecodesCarriageReturn() throws IOException {
+        InputStream in = new ByteArrayInputStream("JOIN java\r\nLEAVE java".getBytes());
+        TextCodec codec = new TextCodec();
+        assertEquals("JOIN java", codec.decode(in), "CRLF stripped");
+        assertEquals("LEAVE java", codec.decode(in), "unterminated last line");
+    }
+
+    @Test
+    public void testBinaryInternsRepeatedNames() throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        codec.encode(":SomeLongNickname JOIN SomeLongChannelName", first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        codec.encode(":SomeLongNickname JOIN SomeLongChannelName", second);
+
+        assertTrue(first.size() > second.size(), "names only defined once");
+        assertTrue(second.size() < 8, "repeat refers to ids");
+    }
+
+    @Test
+    public void testBinaryRejectsOversizedFrame() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryCodec.writeVarint(BinaryCodec.MAX_FRAME_LENGTH + 1, out);
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertThrows(IOException.class, () -> new BinaryCodec().decode(in));
+    }
+
+    @Test
+    public void testVarint() throws IOException {
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int value : values) {
+            BinaryCodec.writeVarint(value, out);
+        }
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (int value : values) {
+            assertEquals(value, BinaryCodec.readVarint(in), "varint");
+        }
+    }
+
+    @Test
+    public void testCreateCodecByName() {
+        assertTrue(ClientConnection.createCodec("TEXT") instanceof TextCodec, "text");
+        assertTrue(ClientConnection.createCodec("BINARY") instanceof BinaryCodec, "binary");
+        assertTrue(ClientConnection.createCodec("DEFLATE") instanceof DeflateCodec, "deflate");
+        assertNull(ClientConnection.createCodec("ZIP"), "unknown");
+    }
+
+    @Test
+    public void testNegotiationsCapped() throws IOException {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Socket client = new Socket(
+                        InetAddress.getLoopbackAddress(), listener.getLocalPort())) {
+            client.setSoTimeout(5000);
+            ClientConnection connection = new ClientConnection(0, listener.accept());
+            try {
+                for (int i = 0; i < ClientConnection.MAX_NEGOTIATIONS; i++) {
+                    assertTrue(connection.negotiate("PROTO TEXT"), "switched");
+                }
+                assertFalse(connection.negotiate("PROTO TEXT"),
+                        "a command from now on, which the rate limiter counts");
+                assertFalse(connection.negotiate("NICK Duke"), "not a PROTO line");
+                connection.closeOutput();
+
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(client.getInputStream()));
+                for (int i = 0; i < ClientConnection.MAX_NEGOTIATIONS; i++) {
+                    assertEquals("PROTO TEXT", in.readLine(), "acknowledged");
+                }
+                assertNull(in.readLine(), "the capped switch not acknowledged");
+            } finally {
+                connection.close();
+            }
+        }
+    }
+}